@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.benchmark;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import org.jahia.modules.external.users.Member;
+import org.jahia.services.usermanager.JahiaUser;
+import org.jahia.services.usermanager.ldap.LDAPUserGroupProvider;
+import org.jahia.services.usermanager.ldap.cache.LDAPCacheManager;
+import org.jahia.services.usermanager.ldap.communication.LdapTemplateWrapper;
+import org.jahia.services.usermanager.ldap.config.GroupConfig;
+import org.jahia.services.usermanager.ldap.config.UserConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.support.DefaultDirObjectFactory;
+import org.springframework.ldap.core.support.LdapContextSource;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the provider hot paths against an embedded directory, see {@link SyntheticDirectory}.
+ * <p>
+ * With the <code>cold</code> cache mode, the LDAP caches are flushed before each invocation, so that every call
+ * reaches the LDAP server; with the <code>warm</code> mode the caches are kept and most calls are cache hits once
+ * the benchmark is warmed up.
+ * <p>
+ * Run with <code>mvn -Pbenchmark test-compile exec:exec</code>, JMH options can be passed with
+ * <code>-Djmh.args="-p users=10000 -p cache=cold"</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class LDAPUserGroupProviderBenchmark {
+
+    private static final int AD_RANGE_STEP = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int users;
+
+    @Param({"warm", "cold"})
+    public String cache;
+
+    private SyntheticDirectory directory;
+    private CacheManager cacheManager;
+    private LDAPUserGroupProvider provider;
+    private LDAPUserGroupProvider adProvider;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = new SyntheticDirectory(users);
+        directory.start();
+
+        Configuration configuration = new Configuration();
+        configuration.setName("ldap-benchmark-" + users + "-" + cache);
+        configuration.setUpdateCheck(false);
+        configuration.defaultCache(new CacheConfiguration("default", 0));
+        cacheManager = CacheManager.newInstance(configuration);
+        LDAPCacheManager ldapCacheManager = new LDAPCacheManager();
+        ldapCacheManager.initialize(cacheManager);
+
+        provider = createProvider("ldap", SyntheticDirectory.GROUPS_DN, false, ldapCacheManager);
+        adProvider = createProvider("ldap.ad", SyntheticDirectory.AD_GROUPS_DN, true, ldapCacheManager);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cacheManager.shutdown();
+        directory.stop();
+    }
+
+    @Setup(Level.Invocation)
+    public void flushCaches() {
+        if ("cold".equals(cache)) {
+            cacheManager.clearAll();
+        }
+    }
+
+    @Benchmark
+    public JahiaUser getUser() throws Exception {
+        return provider.getUser(randomUser());
+    }
+
+    @Benchmark
+    public List<String> getMembership() {
+        return provider.getMembership(new Member(randomUser(), Member.MemberType.USER));
+    }
+
+    @Benchmark
+    public List<Member> getGroupMembersFlat() {
+        return provider.getGroupMembers("group-" + random(directory.getFlatGroupCount()));
+    }
+
+    @Benchmark
+    public List<Member> getGroupMembersNested() {
+        return provider.getGroupMembers("nested-" + random(directory.getNestedGroupCount()));
+    }
+
+    @Benchmark
+    public List<Member> getGroupMembersAdRange() {
+        return adProvider.getGroupMembers("ad-large-" + random(directory.getAdGroupCount()));
+    }
+
+    @Benchmark
+    public List<String> searchUsersWildcard() {
+        Properties criteria = new Properties();
+        criteria.setProperty("username", "user" + random(100) + "*");
+        return provider.searchUsers(criteria, 0, 100);
+    }
+
+    @Benchmark
+    public boolean verifyPassword() {
+        return provider.verifyPassword(randomUser(), SyntheticDirectory.PASSWORD);
+    }
+
+    private String randomUser() {
+        return SyntheticDirectory.getUserName(random(users));
+    }
+
+    private static int random(int bound) {
+        return ThreadLocalRandom.current().nextInt(bound);
+    }
+
+    private LDAPUserGroupProvider createProvider(String key, String groupSearchName, boolean adRange, LDAPCacheManager ldapCacheManager) throws Exception {
+        UserConfig userConfig = new UserConfig();
+        userConfig.setUrl(directory.getUrl());
+        userConfig.setUidSearchName(SyntheticDirectory.PEOPLE_DN);
+        userConfig.setUidSearchAttribute("uid");
+        userConfig.setSearchObjectclass("inetOrgPerson");
+        userConfig.setCanGroupContainSubGroups(true);
+        userConfig.handleDefaults();
+
+        GroupConfig groupConfig = new GroupConfig();
+        groupConfig.setUrl(directory.getUrl());
+        groupConfig.setSearchName(groupSearchName);
+        if (adRange) {
+            groupConfig.setSearchObjectclass("groupOfNames");
+            groupConfig.setMembersAttribute("member");
+            groupConfig.setAdRangeStep(AD_RANGE_STEP);
+        }
+        groupConfig.handleDefaults();
+
+        LdapContextSource contextSource = new LdapContextSource();
+        contextSource.setUrl(directory.getUrl());
+        contextSource.setUserDn(SyntheticDirectory.BIND_DN);
+        contextSource.setPassword(SyntheticDirectory.PASSWORD);
+        contextSource.setPooled(true);
+        contextSource.setDirObjectFactory(DefaultDirObjectFactory.class);
+        contextSource.afterPropertiesSet();
+        LdapTemplate ldapTemplate = new LdapTemplate(contextSource);
+        ldapTemplate.setIgnorePartialResultException(true);
+        ldapTemplate.setIgnoreNameNotFoundException(true);
+
+        LDAPUserGroupProvider ldapUserGroupProvider = new LDAPUserGroupProvider();
+        ldapUserGroupProvider.setKey(key);
+        ldapUserGroupProvider.setUserConfig(userConfig);
+        ldapUserGroupProvider.setGroupConfig(groupConfig);
+        ldapUserGroupProvider.setDistinctBase(true);
+        ldapUserGroupProvider.setLdapCacheManager(ldapCacheManager);
+        ldapUserGroupProvider.setLdapTemplateWrapper(new LdapTemplateWrapper(ldapTemplate));
+        ldapUserGroupProvider.setContextSource(contextSource);
+        return ldapUserGroupProvider;
+    }
+}
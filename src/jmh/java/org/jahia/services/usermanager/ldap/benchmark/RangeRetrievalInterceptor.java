@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.benchmark;
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.SearchRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Emulates the Active Directory ranged retrieval of multi-valued attributes ("member;range=0-999"), which is not
+ * supported by the in-memory directory server.
+ */
+public class RangeRetrievalInterceptor extends InMemoryOperationInterceptor {
+
+    private static final Pattern RANGE = Pattern.compile("([^;]+);range=(\\d+)-(\\d+|\\*)", Pattern.CASE_INSENSITIVE);
+
+    // requested ranges, keyed by connection and message ID
+    private final Map<String, Range> ranges = new ConcurrentHashMap<>();
+
+    @Override
+    public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+        List<String> attributes = new ArrayList<>(request.getRequest().getAttributeList());
+        for (int i = 0; i < attributes.size(); i++) {
+            Matcher matcher = RANGE.matcher(attributes.get(i));
+            if (matcher.matches()) {
+                int low = Integer.parseInt(matcher.group(2));
+                int high = "*".equals(matcher.group(3)) ? Integer.MAX_VALUE : Integer.parseInt(matcher.group(3));
+                ranges.put(request.getConnectionID() + "/" + request.getMessageID(), new Range(matcher.group(1), low, high));
+                attributes.set(i, matcher.group(1));
+                SearchRequest searchRequest = request.getRequest().duplicate();
+                searchRequest.setAttributes(attributes);
+                request.setRequest(searchRequest);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void processSearchEntry(InMemoryInterceptedSearchEntry entry) {
+        Range range = ranges.get(entry.getConnectionID() + "/" + entry.getMessageID());
+        if (range == null) {
+            return;
+        }
+        Entry result = entry.getSearchEntry().duplicate();
+        Attribute attribute = result.getAttribute(range.attribute);
+        if (attribute == null) {
+            return;
+        }
+        String[] values = attribute.getValues();
+        int low = Math.min(range.low, values.length);
+        boolean last = range.high >= values.length - 1;
+        int high = last ? values.length - 1 : range.high;
+        result.removeAttribute(range.attribute);
+        result.addAttribute(new Attribute(range.attribute + ";range=" + low + "-" + (last ? "*" : String.valueOf(high)),
+                Arrays.copyOfRange(values, low, high + 1)));
+        entry.setSearchEntry(result);
+    }
+
+    @Override
+    public void processSearchResult(InMemoryInterceptedSearchResult result) {
+        ranges.remove(result.getConnectionID() + "/" + result.getMessageID());
+    }
+
+    private static final class Range {
+        private final String attribute;
+        private final int low;
+        private final int high;
+
+        private Range(String attribute, int low, int high) {
+            this.attribute = attribute;
+            this.low = low;
+            this.high = high;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.benchmark;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Embedded in-memory LDAP server seeded with a synthetic directory:
+ * <ul>
+ *     <li><code>ou=people</code>: users <code>user0</code> to <code>userN-1</code>, all with the password
+ *     {@link #PASSWORD}</li>
+ *     <li><code>ou=groups</code>: flat groups <code>group-i</code> of {@link #FLAT_GROUP_SIZE} consecutive users,
+ *     department groups <code>dept-i</code> holding one user out of {@link #DEPARTMENTS}, and nested groups
+ *     <code>nested-i</code> holding {@link #NESTED_GROUP_SIZE} flat groups each (groupOfUniqueNames)</li>
+ *     <li><code>ou=adgroups</code>: large groups <code>ad-large-i</code> of {@link #AD_GROUP_SIZE} users, read with
+ *     Active Directory ranged retrieval (groupOfNames)</li>
+ * </ul>
+ */
+public class SyntheticDirectory {
+
+    public static final String BASE_DN = "dc=example,dc=com";
+    public static final String PEOPLE_DN = "ou=people," + BASE_DN;
+    public static final String GROUPS_DN = "ou=groups," + BASE_DN;
+    public static final String AD_GROUPS_DN = "ou=adgroups," + BASE_DN;
+    public static final String BIND_DN = "cn=Directory Manager";
+    public static final String PASSWORD = "password";
+
+    public static final int FLAT_GROUP_SIZE = 100;
+    public static final int DEPARTMENTS = 50;
+    public static final int NESTED_GROUP_SIZE = 10;
+    public static final int AD_GROUP_SIZE = 5000;
+
+    private static final int BATCH_SIZE = 10000;
+
+    private final int userCount;
+    private InMemoryDirectoryServer server;
+
+    /**
+     * @param userCount the number of users of the directory
+     */
+    public SyntheticDirectory(int userCount) {
+        this.userCount = userCount;
+    }
+
+    /**
+     * Starts the server on a random port and seeds the directory
+     *
+     * @throws LDAPException if the server cannot be started
+     */
+    public void start() throws LDAPException {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(BIND_DN, PASSWORD);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        // objectClass is not indexed: with an index, every AND filter would build the candidate set of all the users
+        config.setEqualityIndexAttributes("uid", "cn", "uniqueMember", "member");
+        config.addInMemoryOperationInterceptor(new RangeRetrievalInterceptor());
+        config.setAccessLogHandler(null);
+        server = new InMemoryDirectoryServer(config);
+
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "example")));
+        entries.add(organizationalUnit(PEOPLE_DN, "people"));
+        entries.add(organizationalUnit(GROUPS_DN, "groups"));
+        entries.add(organizationalUnit(AD_GROUPS_DN, "adgroups"));
+        server.addEntries(entries);
+
+        entries.clear();
+        for (int i = 0; i < userCount; i++) {
+            entries.add(new Entry(getUserDn(i),
+                    new Attribute("objectClass", "top", "person", "organizationalPerson", "inetOrgPerson"),
+                    new Attribute("uid", getUserName(i)),
+                    new Attribute("cn", "User " + i),
+                    new Attribute("givenName", "First" + i),
+                    new Attribute("sn", "Last" + i),
+                    new Attribute("mail", getUserName(i) + "@example.com"),
+                    new Attribute("o", "Department " + (i % DEPARTMENTS)),
+                    new Attribute("userPassword", PASSWORD)));
+            flush(entries, false);
+        }
+        flush(entries, true);
+
+        for (int g = 0; g < getFlatGroupCount(); g++) {
+            List<String> members = new ArrayList<>(FLAT_GROUP_SIZE);
+            for (int i = g * FLAT_GROUP_SIZE; i < Math.min(userCount, (g + 1) * FLAT_GROUP_SIZE); i++) {
+                members.add(getUserDn(i));
+            }
+            entries.add(group("group-" + g, GROUPS_DN, "groupOfUniqueNames", "uniqueMember", members));
+            flush(entries, false);
+        }
+        for (int d = 0; d < DEPARTMENTS; d++) {
+            List<String> members = new ArrayList<>(userCount / DEPARTMENTS + 1);
+            for (int i = d; i < userCount; i += DEPARTMENTS) {
+                members.add(getUserDn(i));
+            }
+            entries.add(group("dept-" + d, GROUPS_DN, "groupOfUniqueNames", "uniqueMember", members));
+            flush(entries, false);
+        }
+        for (int n = 0; n < getNestedGroupCount(); n++) {
+            List<String> members = new ArrayList<>(NESTED_GROUP_SIZE);
+            for (int g = n * NESTED_GROUP_SIZE; g < Math.min(getFlatGroupCount(), (n + 1) * NESTED_GROUP_SIZE); g++) {
+                members.add("cn=group-" + g + "," + GROUPS_DN);
+            }
+            entries.add(group("nested-" + n, GROUPS_DN, "groupOfUniqueNames", "uniqueMember", members));
+            flush(entries, false);
+        }
+        for (int a = 0; a < getAdGroupCount(); a++) {
+            List<String> members = new ArrayList<>(AD_GROUP_SIZE);
+            for (int i = a * AD_GROUP_SIZE; i < Math.min(userCount, (a + 1) * AD_GROUP_SIZE); i++) {
+                members.add(getUserDn(i));
+            }
+            entries.add(group("ad-large-" + a, AD_GROUPS_DN, "groupOfNames", "member", members));
+            flush(entries, false);
+        }
+        flush(entries, true);
+
+        server.startListening();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.shutDown(true);
+            server = null;
+        }
+    }
+
+    public String getUrl() {
+        return "ldap://localhost:" + server.getListenPort();
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    public int getFlatGroupCount() {
+        return (userCount + FLAT_GROUP_SIZE - 1) / FLAT_GROUP_SIZE;
+    }
+
+    public int getNestedGroupCount() {
+        return (getFlatGroupCount() + NESTED_GROUP_SIZE - 1) / NESTED_GROUP_SIZE;
+    }
+
+    public int getAdGroupCount() {
+        return Math.max(1, Math.min(10, userCount / AD_GROUP_SIZE));
+    }
+
+    public static String getUserName(int i) {
+        return "user" + i;
+    }
+
+    public static String getUserDn(int i) {
+        return "uid=" + getUserName(i) + "," + PEOPLE_DN;
+    }
+
+    private void flush(List<Entry> entries, boolean force) throws LDAPException {
+        if (!entries.isEmpty() && (force || entries.size() >= BATCH_SIZE)) {
+            server.addEntries(entries);
+            entries.clear();
+        }
+    }
+
+    private static Entry organizationalUnit(String dn, String name) {
+        return new Entry(dn, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", name));
+    }
+
+    private static Entry group(String name, String parentDn, String objectclass, String membersAttribute, List<String> members) {
+        return new Entry("cn=" + name + "," + parentDn,
+                new Attribute("objectClass", "top", objectclass),
+                new Attribute("cn", name),
+                new Attribute("description", "Synthetic group " + name),
+                new Attribute(membersAttribute, members));
+    }
+}
@@ -23,7 +23,9 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.jahia.modules.external.users.ExternalUserGroupService;
 import org.jahia.services.usermanager.ldap.cache.LDAPCacheManager;
+import org.jahia.services.usermanager.ldap.communication.LdapPriorityScheduler;
 import org.jahia.services.usermanager.ldap.communication.LdapTemplateWrapper;
+import org.jahia.services.usermanager.ldap.communication.LoadBalancingContextSource;
 import org.jahia.services.usermanager.ldap.config.AbstractConfig;
 import org.jahia.services.usermanager.ldap.config.GroupConfig;
 import org.jahia.services.usermanager.ldap.config.UserConfig;
@@ -32,12 +34,18 @@ import org.osgi.framework.Constants;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.core.support.DefaultDirObjectFactory;
 import org.springframework.ldap.core.support.LdapContextSource;
 import org.springframework.ldap.pool.factory.PoolingContextSource;
 
+import javax.naming.Context;
 import java.lang.reflect.InvocationTargetException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import org.springframework.ldap.pool.validation.DefaultDirContextValidator;
 
@@ -55,7 +63,10 @@ public class JahiaLDAPConfig {
     private static Logger logger = LoggerFactory.getLogger(JahiaLDAPConfig.class);
 
     private String providerKey;
+    private String configHash;
     private LDAPUserGroupProvider ldapUserGroupProvider;
+    private LDAPGroupPreloader groupPreloader;
+    private LDAPChangeTracker changeTracker;
 
     /**
      * Initializes an instance of this class.
@@ -111,115 +122,24 @@ public class JahiaLDAPConfig {
             groupConfig.handleDefaults();
 
 
-            LdapContextSource lcs = new LdapContextSource();
-            lcs.setUrl(userConfig.getUrl());
-            if (StringUtils.isNotBlank(userConfig.getPublicBindDn())) {
-                lcs.setUserDn(userConfig.getPublicBindDn());
-            }
-            if (StringUtils.isNotEmpty(userConfig.getPublicBindPassword())) {
-                lcs.setPassword(userConfig.getPublicBindPassword());
-            }
-
-            Map<String, Object> publicEnv = new HashMap<>();
             if (POOL_LDAP.equalsIgnoreCase(userConfig.getLdapConnectPool()) || Boolean.valueOf(userConfig.getLdapConnectPool())) {
-                lcs.setPooled(true);
-                if (userConfig.getLdapConnectPoolAuthentication() != null) {
-                    publicEnv.put("com.sun.jndi.ldap.connect.pool.authentication", userConfig.getLdapConnectPoolAuthentication());
-                }
-                if (userConfig.getLdapConnectPoolTimeout() != null && Long.valueOf(userConfig.getLdapConnectPoolTimeout()) > 0) {
-                    publicEnv.put("com.sun.jndi.ldap.connect.pool.timeout", userConfig.getLdapConnectPoolTimeout());
-                }
-                if (userConfig.getLdapConnectPoolDebug() != null) {
-                    publicEnv.put("com.sun.jndi.ldap.connect.pool.debug", userConfig.getLdapConnectPoolDebug());
-                }
-                if (userConfig.getLdapConnectPoolInitSize() != null) {
-                    publicEnv.put("com.sun.jndi.ldap.connect.pool.initsize", userConfig.getLdapConnectPoolInitSize());
-                }
-                if (userConfig.getLdapConnectPoolMaxSize() != null) {
-                    publicEnv.put("com.sun.jndi.ldap.connect.pool.maxsize", userConfig.getLdapConnectPoolMaxSize());
-                }
-                if (userConfig.getLdapConnectPoolPrefSize() != null) {
-                    publicEnv.put("com.sun.jndi.ldap.connect.pool.prefsize", userConfig.getLdapConnectPoolPrefSize());
-                }
-
                 logger.info("Using built-in Java LDAP connection pooling with {} maximum active connections",
                         userConfig.getLdapConnectPoolMaxSize() != null ? userConfig.getLdapConnectPoolMaxSize()
                                 : "unlimited");
             }
-            if (userConfig.getLdapReadTimeout() != null) {
-                publicEnv.put("com.sun.jndi.ldap.read.timeout", userConfig.getLdapReadTimeout());
-            }
-            if (userConfig.getLdapConnectTimeout() != null) {
-                publicEnv.put("com.sun.jndi.ldap.connect.timeout", userConfig.getLdapConnectTimeout());
-            }
-            lcs.setBaseEnvironmentProperties(publicEnv);
-
-            lcs.setReferral(groupConfig.getRefferal());
-            lcs.setDirObjectFactory(DefaultDirObjectFactory.class);
-            lcs.afterPropertiesSet();
-
-
-            LdapTemplate ldap;
-
-            if (POOL_APACHE_COMMONS.equalsIgnoreCase(userConfig.getLdapConnectPool())) {
-                PoolingContextSource poolingContextSource = new PoolingContextSource();
-                poolingContextSource.setContextSource(lcs);
-                poolingContextSource.setDirContextValidator(new DefaultDirContextValidator());
-                if (userConfig.getLdapConnectPoolMaxActive() != null) {
-                    poolingContextSource.setMaxActive(userConfig.getLdapConnectPoolMaxActive());
-                }
-                if (userConfig.getLdapConnectPoolMaxIdle() != null) {
-                    poolingContextSource.setMaxIdle(userConfig.getLdapConnectPoolMaxIdle());
-                }
-                if (userConfig.getLdapConnectPoolMaxTotal() != null) {
-                    poolingContextSource.setMaxTotal(userConfig.getLdapConnectPoolMaxTotal());
-                }
-                if (userConfig.getLdapConnectPoolMaxWait() != null) {
-                    poolingContextSource.setMaxWait(userConfig.getLdapConnectPoolMaxWait());
-                }
-                if (userConfig.getLdapConnectPoolMinEvictableIdleTimeMillis() != null) {
-                    poolingContextSource.setMinEvictableIdleTimeMillis(userConfig.getLdapConnectPoolMinEvictableIdleTimeMillis());
-                }
-                if (userConfig.getLdapConnectPoolMinIdle() != null) {
-                    poolingContextSource.setMinIdle(userConfig.getLdapConnectPoolMinIdle());
-                }
-                if (userConfig.getLdapConnectPoolNumTestsPerEvictionRun() != null) {
-                    poolingContextSource.setNumTestsPerEvictionRun(userConfig.getLdapConnectPoolNumTestsPerEvictionRun());
-                }
-                if (userConfig.getLdapConnectPoolTestOnBorrow() != null) {
-                    poolingContextSource.setTestOnBorrow(userConfig.getLdapConnectPoolTestOnBorrow());
-                }
-                if (userConfig.getLdapConnectPoolTestOnReturn() != null) {
-                    poolingContextSource.setTestOnReturn(userConfig.getLdapConnectPoolTestOnReturn());
-                }
-                if (userConfig.getLdapConnectPoolTestWhileIdle() != null) {
-                    poolingContextSource.setTestWhileIdle(userConfig.getLdapConnectPoolTestWhileIdle());
-                }
-                if (userConfig.getLdapConnectPoolTimeBetweenEvictionRunsMillis() != null) {
-                    poolingContextSource.setTimeBetweenEvictionRunsMillis(userConfig.getLdapConnectPoolTimeBetweenEvictionRunsMillis());
-                }
-                if (WHEN_EXHAUSTED_BLOCK.equalsIgnoreCase(userConfig.getLdapConnectPoolWhenExhaustedAction())) {
-                    poolingContextSource.setWhenExhaustedAction(GenericKeyedObjectPool.WHEN_EXHAUSTED_BLOCK);
-                } else if (WHEN_EXHAUSTED_FAIL.equalsIgnoreCase(userConfig.getLdapConnectPoolWhenExhaustedAction())) {
-                    poolingContextSource.setWhenExhaustedAction(GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL);
-                } else if (WHEN_EXHAUSTED_GROW.equalsIgnoreCase(userConfig.getLdapConnectPoolWhenExhaustedAction())) {
-                    poolingContextSource.setWhenExhaustedAction(GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW);
-                }
-
-                ldap = new LdapTemplate(poolingContextSource);
-
-                logger.info(
-                        "Using LDAP connection pooling based on Apache Commons Pool with {} maximum active connections",
-                        poolingContextSource.getMaxActive());
-            } else {
-                ldap = new LdapTemplate(lcs);
+            ServerPool lookupPool = createServerPool(userConfig.getUrl(), userConfig.getLdapConnectPoolMaxActive(), userConfig, groupConfig);
+            // the bulk searches get their own connections when they go to other servers, or when their Apache Commons
+            // pool is sized on its own; the JNDI pool is shared by all the context sources
+            ServerPool bulkPool = lookupPool;
+            Integer bulkMaxActive = userConfig.getLdapBulkConnectPoolMaxActive();
+            if (StringUtils.isNotBlank(userConfig.getLdapBulkUrl())
+                    || (bulkMaxActive != null && POOL_APACHE_COMMONS.equalsIgnoreCase(userConfig.getLdapConnectPool()))) {
+                bulkPool = createServerPool(StringUtils.defaultIfBlank(userConfig.getLdapBulkUrl(), userConfig.getUrl()),
+                        bulkMaxActive != null ? bulkMaxActive : userConfig.getLdapConnectPoolMaxActive(), userConfig, groupConfig);
+                logger.info("Using separate LDAP connections for the bulk searches");
             }
 
-
-            // AD workaround to ignore Exceptions
-            ldap.setIgnorePartialResultException(true);
-            ldap.setIgnoreNameNotFoundException(true);
-
+            String configHash = computeConfigHash(dictionary);
             if (ldapUserGroupProvider == null) {
                 ldapUserGroupProvider = new LDAPUserGroupProvider();
                 ldapUserGroupProvider.setLdapCacheManager(ldapCacheManager);
@@ -227,49 +147,313 @@ public class JahiaLDAPConfig {
                 ldapUserGroupProvider.setBundleContext(bundleContext);
             } else {
                 // Deactivate the provider before reconfiguring it.
+                cancelPreload();
+                stopChangeTracker();
                 ldapUserGroupProvider.unregister();
+                // flushed before registering again, so that the entries restored from the snapshot are kept
+                ldapCacheManager.flushCaches(providerKey, !configHash.equals(this.configHash));
             }
+            this.configHash = configHash;
 
             ldapUserGroupProvider.setKey(providerKey);
+            ldapUserGroupProvider.setConfigHash(configHash);
             ldapUserGroupProvider.setUserConfig(userConfig);
             ldapUserGroupProvider.setGroupConfig(groupConfig);
             if (StringUtils.isNotEmpty(userConfig.getUidSearchName()) && StringUtils.isNotEmpty(groupConfig.getSearchName())) {
                 ldapUserGroupProvider.setDistinctBase(!userConfig.getUidSearchName().startsWith(groupConfig.getSearchName()) &&
                         !groupConfig.getSearchName().startsWith(userConfig.getUidSearchName()));
             }
-            ldapUserGroupProvider.setLdapTemplateWrapper(new LdapTemplateWrapper(ldap));
-            ldapUserGroupProvider.setContextSource(lcs);
+            LdapTemplateWrapper ldapTemplateWrapper = new LdapTemplateWrapper(lookupPool.ldapTemplate, ldapUserGroupProvider.getMetrics());
+            int maxConcurrentOperations = userConfig.getLdapMaxConcurrentOperations();
+            ldapTemplateWrapper.setScheduler(createScheduler(maxConcurrentOperations != 0 ? maxConcurrentOperations : lookupPool.maxConnections, userConfig));
+            if (bulkPool != lookupPool) {
+                ldapTemplateWrapper.setBulkLdapTemplate(bulkPool.ldapTemplate);
+            }
+            // by default the bulk searches may only use half of a shared pool, the rest is kept for the lookups
+            int maxBulkOperations = userConfig.getLdapBulkMaxConcurrentOperations();
+            if (maxBulkOperations == 0) {
+                maxBulkOperations = bulkPool != lookupPool ? bulkPool.maxConnections : (lookupPool.maxConnections + 1) / 2;
+            }
+            ldapTemplateWrapper.setBulkScheduler(createScheduler(maxBulkOperations, userConfig));
+            ldapUserGroupProvider.setLdapTemplateWrapper(ldapTemplateWrapper);
+            // paged searches are bulk searches
+            ldapUserGroupProvider.setContextSource(bulkPool.searchContextSource);
+            ldapUserGroupProvider.setAuthenticationEnvironment(createAuthenticationEnvironment(userConfig, groupConfig));
+            // binds without the authentication connections
+            if (StringUtils.isNotBlank(userConfig.getAuthUrl())) {
+                ldapUserGroupProvider.setAuthContextSource(createContextSource(userConfig.getAuthUrl(), userConfig, groupConfig));
+            } else {
+                ldapUserGroupProvider.setAuthContextSource(lookupPool.searchContextSource);
+            }
+            ldapUserGroupProvider.getMetrics().setLoadBalancingContextSource(lookupPool.loadBalancingContextSource);
+            ldapUserGroupProvider.getMetrics().setBulkLoadBalancingContextSource(bulkPool != lookupPool ? bulkPool.loadBalancingContextSource : null);
+            ldapUserGroupProvider.getMetrics().setSchedulers(ldapTemplateWrapper.getScheduler(), ldapTemplateWrapper.getBulkScheduler());
             ldapUserGroupProvider.setMaxLdapTimeoutCountBeforeDisconnect(userConfig.getMaxLdapTimeoutCountBeforeDisconnect());
             // Activate (again).
             ldapUserGroupProvider.register();
 
             if (userConfig.isMinimalSettingsOk() && groupConfig.isPreload()) {
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        List<String> l = ldapUserGroupProvider.searchGroups(new Properties(), 0, -1);
-                        for (String s : l) {
-                            ldapUserGroupProvider.getGroupMembers(s);
-                        }
-                    }
-                }, "LDAP Preload").start();
+                int preloadThreads = groupConfig.getPreloadThreads();
+                if (maxBulkOperations > 0 && preloadThreads > maxBulkOperations) {
+                    logger.info("Limiting the number of LDAP preload threads to the {} concurrent bulk searches", maxBulkOperations);
+                    preloadThreads = maxBulkOperations;
+                }
+                groupPreloader = new LDAPGroupPreloader(ldapUserGroupProvider, preloadThreads, groupConfig.getPreloadOrder());
+                groupPreloader.start();
+            }
+            if (userConfig.isMinimalSettingsOk() && userConfig.getSyncInterval() > 0) {
+                changeTracker = new LDAPChangeTracker(ldapUserGroupProvider, userConfig.getSyncInterval());
+                changeTracker.start();
             }
         } catch (IllegalAccessException | InvocationTargetException e) {
             logger.error("Invalid LDAP configuration:" + fileName + ", please refer to the LDAP configuration documentation", e);
         }
     }
 
+    /**
+     * Creates the scheduler granting the permits of an operation class by priority
+     *
+     * @param permits the maximum number of concurrent operations, 0 or less for no limit
+     * @return the scheduler, null if the operations are not limited
+     */
+    private LdapPriorityScheduler createScheduler(int permits, UserConfig userConfig) {
+        if (permits <= 0) {
+            return null;
+        }
+        return new LdapPriorityScheduler(permits, userConfig.getLdapBackgroundMaxConcurrentOperations(),
+                userConfig.getLdapMaxQueuedOperations(), userConfig.getLdapMaxQueueWait());
+    }
+
+    /**
+     * Creates the connections to a list of servers: a single context source failing over from one server to the next,
+     * or one context source per server if the operations are balanced
+     *
+     * @param url the URLs of the servers, separated by spaces
+     * @param maxActive the maximum number of connections of each Apache Commons pool, null for the default
+     */
+    private ServerPool createServerPool(String url, Integer maxActive, UserConfig userConfig, GroupConfig groupConfig) {
+        ServerPool pool = new ServerPool();
+        LdapContextSource lcs = createContextSource(url, userConfig, groupConfig);
+        pool.searchContextSource = lcs;
+        if (lcs.isPooled() && userConfig.getLdapConnectPoolMaxSize() != null) {
+            pool.maxConnections = Integer.parseInt(userConfig.getLdapConnectPoolMaxSize());
+        }
+
+        LdapTemplate ldap;
+        List<String> urls = Arrays.asList(StringUtils.split(StringUtils.defaultString(url)));
+        if (urls.size() > 1 && !LoadBalancingContextSource.FAILOVER.equalsIgnoreCase(userConfig.getLdapLoadBalancing())) {
+            // one context source and connection pool per server
+            List<ContextSource> serverContextSources = new ArrayList<>();
+            int maxServerConnections = pool.maxConnections;
+            pool.maxConnections = 0;
+            for (String serverUrl : urls) {
+                LdapContextSource serverContextSource = createContextSource(serverUrl, userConfig, groupConfig);
+                if (POOL_APACHE_COMMONS.equalsIgnoreCase(userConfig.getLdapConnectPool())) {
+                    PoolingContextSource poolingContextSource = createPoolingContextSource(serverContextSource, maxActive, userConfig);
+                    serverContextSources.add(poolingContextSource);
+                    maxServerConnections = poolingContextSource.getMaxActive();
+                } else {
+                    serverContextSources.add(serverContextSource);
+                }
+                pool.maxConnections = maxServerConnections > 0 ? pool.maxConnections + maxServerConnections : 0;
+            }
+            pool.loadBalancingContextSource = new LoadBalancingContextSource(urls, serverContextSources, userConfig.getLdapLoadBalancing(),
+                    userConfig.getLdapServerEjectionFailures(), userConfig.getLdapServerEjectionTime(), userConfig.getLdapServerSlowThreshold());
+            pool.searchContextSource = pool.loadBalancingContextSource;
+            ldap = new LdapTemplate(pool.loadBalancingContextSource);
+
+            logger.info("Balancing the LDAP operations over {} servers ({})", urls.size(), userConfig.getLdapLoadBalancing());
+        } else if (POOL_APACHE_COMMONS.equalsIgnoreCase(userConfig.getLdapConnectPool())) {
+            PoolingContextSource poolingContextSource = createPoolingContextSource(lcs, maxActive, userConfig);
+            ldap = new LdapTemplate(poolingContextSource);
+            pool.maxConnections = poolingContextSource.getMaxActive();
+
+            logger.info(
+                    "Using LDAP connection pooling based on Apache Commons Pool with {} maximum active connections",
+                    poolingContextSource.getMaxActive());
+        } else {
+            ldap = new LdapTemplate(lcs);
+        }
+
+        // AD workaround to ignore Exceptions
+        ldap.setIgnorePartialResultException(true);
+        ldap.setIgnoreNameNotFoundException(true);
+        pool.ldapTemplate = ldap;
+        return pool;
+    }
+
+    /**
+     * Creates the context source of a server, or of a list of servers to fail over
+     *
+     * @param url the URL of the server, or the URLs separated by spaces
+     */
+    private LdapContextSource createContextSource(String url, UserConfig userConfig, GroupConfig groupConfig) {
+        LdapContextSource lcs = new LdapContextSource();
+        lcs.setUrl(url);
+        if (StringUtils.isNotBlank(userConfig.getPublicBindDn())) {
+            lcs.setUserDn(userConfig.getPublicBindDn());
+        }
+        if (StringUtils.isNotEmpty(userConfig.getPublicBindPassword())) {
+            lcs.setPassword(userConfig.getPublicBindPassword());
+        }
+
+        Map<String, Object> publicEnv = new HashMap<>();
+        if (POOL_LDAP.equalsIgnoreCase(userConfig.getLdapConnectPool()) || Boolean.valueOf(userConfig.getLdapConnectPool())) {
+            lcs.setPooled(true);
+            if (userConfig.getLdapConnectPoolAuthentication() != null) {
+                publicEnv.put("com.sun.jndi.ldap.connect.pool.authentication", userConfig.getLdapConnectPoolAuthentication());
+            }
+            if (userConfig.getLdapConnectPoolTimeout() != null && Long.valueOf(userConfig.getLdapConnectPoolTimeout()) > 0) {
+                publicEnv.put("com.sun.jndi.ldap.connect.pool.timeout", userConfig.getLdapConnectPoolTimeout());
+            }
+            if (userConfig.getLdapConnectPoolDebug() != null) {
+                publicEnv.put("com.sun.jndi.ldap.connect.pool.debug", userConfig.getLdapConnectPoolDebug());
+            }
+            if (userConfig.getLdapConnectPoolInitSize() != null) {
+                publicEnv.put("com.sun.jndi.ldap.connect.pool.initsize", userConfig.getLdapConnectPoolInitSize());
+            }
+            if (userConfig.getLdapConnectPoolMaxSize() != null) {
+                publicEnv.put("com.sun.jndi.ldap.connect.pool.maxsize", userConfig.getLdapConnectPoolMaxSize());
+            }
+            if (userConfig.getLdapConnectPoolPrefSize() != null) {
+                publicEnv.put("com.sun.jndi.ldap.connect.pool.prefsize", userConfig.getLdapConnectPoolPrefSize());
+            }
+        }
+        publicEnv.putAll(createConnectionEnvironment(userConfig));
+        lcs.setBaseEnvironmentProperties(publicEnv);
+
+        lcs.setReferral(groupConfig.getRefferal());
+        lcs.setDirObjectFactory(DefaultDirObjectFactory.class);
+        lcs.afterPropertiesSet();
+        return lcs;
+    }
+
+    /**
+     * @return the JNDI settings of the connections shared by the context sources and the authentication connections
+     */
+    private Map<String, Object> createConnectionEnvironment(UserConfig userConfig) {
+        Map<String, Object> environment = new HashMap<>();
+        if (userConfig.getLdapReadTimeout() != null) {
+            environment.put("com.sun.jndi.ldap.read.timeout", userConfig.getLdapReadTimeout());
+        }
+        if (userConfig.getLdapConnectTimeout() != null) {
+            environment.put("com.sun.jndi.ldap.connect.timeout", userConfig.getLdapConnectTimeout());
+        }
+        return environment;
+    }
+
+    /**
+     * Creates the JNDI environment of the connections checking the passwords, on the servers of auth.url or the ones of
+     * the lookups, with the configured context factory and authentication mode
+     */
+    private Hashtable<String, Object> createAuthenticationEnvironment(UserConfig userConfig, GroupConfig groupConfig) {
+        Hashtable<String, Object> environment = new Hashtable<>(createConnectionEnvironment(userConfig));
+        environment.put(Context.PROVIDER_URL, StringUtils.defaultIfBlank(userConfig.getAuthUrl(), userConfig.getUrl()));
+        if (StringUtils.isNotBlank(userConfig.getContextFactory())) {
+            environment.put(Context.INITIAL_CONTEXT_FACTORY, userConfig.getContextFactory());
+        }
+        if (StringUtils.isNotBlank(userConfig.getAuthentificationMode())) {
+            environment.put(Context.SECURITY_AUTHENTICATION, userConfig.getAuthentificationMode());
+        }
+        if (groupConfig.getRefferal() != null) {
+            environment.put(Context.REFERRAL, groupConfig.getRefferal());
+        }
+        return environment;
+    }
+
+    /**
+     * Creates a pool of connections based on Apache Commons Pool
+     *
+     * @param maxActive the maximum number of active connections, null for the default
+     */
+    private PoolingContextSource createPoolingContextSource(LdapContextSource contextSource, Integer maxActive, UserConfig userConfig) {
+        PoolingContextSource poolingContextSource = new PoolingContextSource();
+        poolingContextSource.setContextSource(contextSource);
+        poolingContextSource.setDirContextValidator(new DefaultDirContextValidator());
+        if (maxActive != null) {
+            poolingContextSource.setMaxActive(maxActive);
+        }
+        if (userConfig.getLdapConnectPoolMaxIdle() != null) {
+            poolingContextSource.setMaxIdle(userConfig.getLdapConnectPoolMaxIdle());
+        }
+        if (userConfig.getLdapConnectPoolMaxTotal() != null) {
+            poolingContextSource.setMaxTotal(userConfig.getLdapConnectPoolMaxTotal());
+        }
+        if (userConfig.getLdapConnectPoolMaxWait() != null) {
+            poolingContextSource.setMaxWait(userConfig.getLdapConnectPoolMaxWait());
+        }
+        if (userConfig.getLdapConnectPoolMinEvictableIdleTimeMillis() != null) {
+            poolingContextSource.setMinEvictableIdleTimeMillis(userConfig.getLdapConnectPoolMinEvictableIdleTimeMillis());
+        }
+        if (userConfig.getLdapConnectPoolMinIdle() != null) {
+            poolingContextSource.setMinIdle(userConfig.getLdapConnectPoolMinIdle());
+        }
+        if (userConfig.getLdapConnectPoolNumTestsPerEvictionRun() != null) {
+            poolingContextSource.setNumTestsPerEvictionRun(userConfig.getLdapConnectPoolNumTestsPerEvictionRun());
+        }
+        if (userConfig.getLdapConnectPoolTestOnBorrow() != null) {
+            poolingContextSource.setTestOnBorrow(userConfig.getLdapConnectPoolTestOnBorrow());
+        }
+        if (userConfig.getLdapConnectPoolTestOnReturn() != null) {
+            poolingContextSource.setTestOnReturn(userConfig.getLdapConnectPoolTestOnReturn());
+        }
+        if (userConfig.getLdapConnectPoolTestWhileIdle() != null) {
+            poolingContextSource.setTestWhileIdle(userConfig.getLdapConnectPoolTestWhileIdle());
+        }
+        if (userConfig.getLdapConnectPoolTimeBetweenEvictionRunsMillis() != null) {
+            poolingContextSource.setTimeBetweenEvictionRunsMillis(userConfig.getLdapConnectPoolTimeBetweenEvictionRunsMillis());
+        }
+        if (WHEN_EXHAUSTED_BLOCK.equalsIgnoreCase(userConfig.getLdapConnectPoolWhenExhaustedAction())) {
+            poolingContextSource.setWhenExhaustedAction(GenericKeyedObjectPool.WHEN_EXHAUSTED_BLOCK);
+        } else if (WHEN_EXHAUSTED_FAIL.equalsIgnoreCase(userConfig.getLdapConnectPoolWhenExhaustedAction())) {
+            poolingContextSource.setWhenExhaustedAction(GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL);
+        } else if (WHEN_EXHAUSTED_GROW.equalsIgnoreCase(userConfig.getLdapConnectPoolWhenExhaustedAction())) {
+            poolingContextSource.setWhenExhaustedAction(GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW);
+        }
+        return poolingContextSource;
+    }
+
     public LDAPUserGroupProvider getLdapUserGroupProvider() {
         return ldapUserGroupProvider;
     }
 
+    /**
+     * @return the group preloader of the provider, or null if the preload is not enabled
+     */
+    public LDAPGroupPreloader getGroupPreloader() {
+        return groupPreloader;
+    }
+
+    /**
+     * @return the change tracker of the provider, or null if the synchronization is not enabled
+     */
+    public LDAPChangeTracker getChangeTracker() {
+        return changeTracker;
+    }
+
     public void unregister() {
+        cancelPreload();
+        stopChangeTracker();
         if (ldapUserGroupProvider != null) {
             unregisterUserProvider();
         }
 
     }
 
+    private void cancelPreload() {
+        if (groupPreloader != null) {
+            groupPreloader.cancel();
+            groupPreloader = null;
+        }
+    }
+
+    private void stopChangeTracker() {
+        if (changeTracker != null) {
+            changeTracker.stop();
+            changeTracker = null;
+        }
+    }
+
     private void unregisterUserProvider() {
         ldapUserGroupProvider.unregister();
         ldapUserGroupProvider = null;
@@ -295,6 +479,30 @@ public class JahiaLDAPConfig {
         return (StringUtils.isBlank(confId) || "config".equals(confId))  ? "ldap" : ("ldap." + confId);
     }
 
+    /**
+     * Hash of the settings that affect the content of the cached entries: the cache settings and the passwords are
+     * left out
+     */
+    private String computeConfigHash(Dictionary<String, ?> dictionary) {
+        Map<String, String> settings = new TreeMap<>();
+        Enumeration<String> keys = dictionary.keys();
+        while (keys.hasMoreElements()) {
+            String key = keys.nextElement();
+            if (Constants.SERVICE_PID.equals(key) || ConfigurationAdmin.SERVICE_FACTORYPID.equals(key)
+                    || "felix.fileinstall.filename".equals(key) || key.contains("cache.") || key.contains("password")) {
+                continue;
+            }
+            settings.put(key, String.valueOf(dictionary.get(key)));
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return String.format("%064x", new BigInteger(1, digest.digest(settings.toString().getBytes(StandardCharsets.UTF_8))));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
     private String transformPropKeyToBeanAttr(String key){
         Iterable<String> upperStrings = Iterables.transform(Arrays.asList(StringUtils.split(key, '.')), new Function<String,String>() {
             public String apply(String input) {
@@ -322,4 +530,17 @@ public class JahiaLDAPConfig {
     public String getProviderKey() {
         return providerKey;
     }
+
+    /**
+     * Connections to a list of servers
+     */
+    private static class ServerPool {
+        private LdapTemplate ldapTemplate;
+        // context source of the paged searches
+        private ContextSource searchContextSource;
+        // null if the operations are not balanced
+        private LoadBalancingContextSource loadBalancingContextSource;
+        // maximum number of connections that can be opened to the servers, 0 if unbounded
+        private int maxConnections;
+    }
 }
@@ -88,6 +88,7 @@ public class JahiaLDAPConfigFactory implements ManagedServiceFactory {
             ldapConfigs.put(pid, ldapConfig);
             deleteConfig(pidsByProviderKey.put(ldapConfig.getProviderKey(), pid));
         }
+        // the LDAP cache regions of the provider are flushed while it is reconfigured, before the snapshot is restored
         ldapConfig.setContext(externalUserGroupService, ldapCacheManager, bundleContext, dictionary);
         flushRelatedCaches();
     }
@@ -113,6 +114,7 @@ public class JahiaLDAPConfigFactory implements ManagedServiceFactory {
         if (existingPid != null && existingPid.equals(pid)) {
             pidsByProviderKey.remove(ldapConfig.getProviderKey());
             ldapConfig.unregister();
+            ldapCacheManager.flushCaches(ldapConfig.getProviderKey(), false);
             flushRelatedCaches();
         }
     }
@@ -129,8 +131,6 @@ public class JahiaLDAPConfigFactory implements ManagedServiceFactory {
         CacheHelper.flushEhcacheByName("org.jahia.services.usermanager.JahiaUserManagerService.userPathByUserNameCache", true);
         CacheHelper.flushEhcacheByName("org.jahia.services.usermanager.JahiaGroupManagerService.groupPathByGroupNameCache", true);
         CacheHelper.flushEhcacheByName("org.jahia.services.usermanager.JahiaGroupManagerService.membershipCache", true);
-        CacheHelper.flushEhcacheByName("LDAPUsersCache", true);
-        CacheHelper.flushEhcacheByName("LDAPGroupsCache", true);
     }
 
     public LdapTemplateWrapper getLdapTemplateWrapper(String providerKey) {
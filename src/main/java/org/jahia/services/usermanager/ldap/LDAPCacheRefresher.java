@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap;
+
+import org.jahia.services.usermanager.ldap.communication.LdapPriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Refreshes the stale cache entries of a provider in the background, while the stale entries keep being served.
+ * Each entry is refreshed once at a time; refreshes are dropped when the queue is full, the entries then expire normally.
+ */
+public class LDAPCacheRefresher {
+
+    private static Logger logger = LoggerFactory.getLogger(LDAPCacheRefresher.class);
+
+    private static final int THREADS = 2;
+    private static final int MAX_QUEUED_REFRESHES = 1000;
+
+    private final String providerKey;
+    private final long softTtl;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param providerKey the provider key
+     * @param softTtl the age in seconds after which an entry is refreshed
+     */
+    public LDAPCacheRefresher(final String providerKey, int softTtl) {
+        this.providerKey = providerKey;
+        this.softTtl = softTtl * 1000L;
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_REFRESHES), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(LdapPriority.REFRESH.wrap(r), "LDAP Refresh " + providerKey + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param loadedAt the time at which an entry was read from the LDAP server
+     * @return true if the entry should be refreshed
+     */
+    public boolean isStale(long loadedAt) {
+        return System.currentTimeMillis() - loadedAt > softTtl;
+    }
+
+    /**
+     * Schedules the refresh of an entry, unless it is already scheduled
+     *
+     * @param key the entry key
+     * @param refresh the refresh task
+     */
+    public void refresh(final String key, final Runnable refresh) {
+        if (!pending.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh.run();
+                        refreshCount.incrementAndGet();
+                    } catch (Exception e) {
+                        logger.warn("Unable to refresh {} of provider {}: {}", new Object[]{key, providerKey, e.getMessage()});
+                        logger.debug(e.getMessage(), e);
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            logger.debug("Refresh queue of provider {} is full, {} will expire", providerKey, key);
+        }
+    }
+
+    /**
+     * @return the number of entries refreshed in the background
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * Stops refreshing entries, the pending refreshes are dropped
+     */
+    public void stop() {
+        executor.shutdownNow();
+        pending.clear();
+    }
+}
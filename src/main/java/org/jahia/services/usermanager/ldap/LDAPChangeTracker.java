@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap;
+
+import org.jahia.services.usermanager.ldap.communication.LdapPriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically polls the LDAP server for the users and groups modified since the last poll, based on their modification
+ * timestamp, and refreshes the corresponding cache entries of the provider in place.
+ */
+public class LDAPChangeTracker {
+
+    private static Logger logger = LoggerFactory.getLogger(LDAPChangeTracker.class);
+
+    // margin applied to the first poll, to cover the clock difference between this server and the LDAP server
+    private static final long CLOCK_SKEW_MARGIN = 5 * 60 * 1000L;
+
+    private final LDAPUserGroupProvider ldapUserGroupProvider;
+    private final int interval;
+
+    private ScheduledExecutorService executor;
+    private volatile String lastSeen;
+    private volatile long lastSync = -1;
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param ldapUserGroupProvider the provider to synchronize
+     * @param interval the delay between two polls, in seconds
+     */
+    public LDAPChangeTracker(LDAPUserGroupProvider ldapUserGroupProvider, int interval) {
+        this.ldapUserGroupProvider = ldapUserGroupProvider;
+        this.interval = interval;
+    }
+
+    /**
+     * Starts polling the LDAP server in the background
+     */
+    public synchronized void start() {
+        final String key = ldapUserGroupProvider.getKey();
+        lastSeen = formatGeneralizedTime(System.currentTimeMillis() - CLOCK_SKEW_MARGIN);
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(LdapPriority.REFRESH.wrap(r), "LDAP Sync " + key);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                synchronize();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+        logger.info("Synchronizing the cache entries of provider {} every {} s", key, interval);
+    }
+
+    private void synchronize() {
+        try {
+            String seen = ldapUserGroupProvider.refreshModifiedEntries(lastSeen);
+            if (seen != null) {
+                lastSeen = seen;
+                lastSync = System.currentTimeMillis();
+            }
+        } catch (Exception e) {
+            // keep the previous timestamp, the modifications will be searched again at the next poll
+            logger.warn("Unable to synchronize the cache entries of provider {}: {}", ldapUserGroupProvider.getKey(), e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stops polling the LDAP server
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * @return the generalized time from which the next poll searches the modified entries
+     */
+    public String getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return the time of the last successful poll, or -1 if none succeeded yet
+     */
+    public long getLastSync() {
+        return lastSync;
+    }
+
+    private static String formatGeneralizedTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+}
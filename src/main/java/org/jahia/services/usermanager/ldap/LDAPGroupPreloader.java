@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap;
+
+import org.jahia.services.usermanager.ldap.communication.LdapPriority;
+import org.jahia.services.usermanager.ldap.config.GroupConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Preloads the members of all the groups of an LDAP provider, using a bounded number of threads.
+ * The most accessed (or the biggest) groups are loaded first. The preload can be cancelled at any time.
+ */
+public class LDAPGroupPreloader {
+
+    private static Logger logger = LoggerFactory.getLogger(LDAPGroupPreloader.class);
+
+    private static final long PROGRESS_LOG_INTERVAL = 30000;
+
+    private final LDAPUserGroupProvider ldapUserGroupProvider;
+    private final int parallelism;
+    private final String order;
+
+    private ExecutorService executor;
+    private volatile boolean cancelled = false;
+    private volatile List<String> groups;
+    private volatile int total = -1;
+    private final AtomicInteger loaded = new AtomicInteger(0);
+    private volatile long startTime;
+    private volatile long lastProgressLog;
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param ldapUserGroupProvider the provider to preload
+     * @param parallelism the number of groups loaded in parallel
+     * @param order the preload order, see {@link GroupConfig#getPreloadOrder()}
+     */
+    public LDAPGroupPreloader(LDAPUserGroupProvider ldapUserGroupProvider, int parallelism, String order) {
+        this.ldapUserGroupProvider = ldapUserGroupProvider;
+        this.parallelism = Math.max(1, parallelism);
+        this.order = order;
+    }
+
+    /**
+     * Starts the preload in the background
+     */
+    public synchronized void start() {
+        final String key = ldapUserGroupProvider.getKey();
+        executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(LdapPriority.PRELOAD.wrap(r), "LDAP Preload " + key + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        startTime = System.currentTimeMillis();
+        lastProgressLog = startTime;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<String> groupNames = ldapUserGroupProvider.searchGroups(new Properties(), 0, -1);
+                    if (groupNames == null) {
+                        logger.warn("Unable to list the groups of provider {}, the preload is skipped", key);
+                        total = 0;
+                        return;
+                    }
+                    List<String> groups = new ArrayList<>(groupNames);
+                    sort(groups);
+                    LDAPGroupPreloader.this.groups = groups;
+                    total = groups.size();
+                    logger.info("Preloading {} groups of provider {} using {} threads", new Object[]{total, key, parallelism});
+                    for (final String group : groups) {
+                        if (cancelled) {
+                            return;
+                        }
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                preload(group);
+                            }
+                        });
+                    }
+                } catch (RejectedExecutionException e) {
+                    // preload cancelled in the meantime
+                } catch (RuntimeException e) {
+                    logger.warn("Unable to list the groups of provider {}, the preload is skipped: {}", key, e.getMessage());
+                    logger.debug(e.getMessage(), e);
+                    total = 0;
+                } finally {
+                    // the threads stop once the queued groups are loaded
+                    executor.shutdown();
+                }
+            }
+        });
+    }
+
+    private void sort(List<String> groups) {
+        final boolean bySize = GroupConfig.PRELOAD_ORDER_SIZE.equalsIgnoreCase(order);
+        // the counters keep changing while the groups are accessed, the order must be computed on a copy of them
+        final Map<String, Long> accessCounts = new HashMap<>(groups.size());
+        final Map<String, Integer> sizes = new HashMap<>(groups.size());
+        for (String group : groups) {
+            accessCounts.put(group, ldapUserGroupProvider.getGroupAccessCount(group));
+            sizes.put(group, ldapUserGroupProvider.getGroupSize(group));
+        }
+        Collections.sort(groups, new Comparator<String>() {
+            @Override
+            public int compare(String g1, String g2) {
+                long access1 = accessCounts.get(g1);
+                long access2 = accessCounts.get(g2);
+                int size1 = sizes.get(g1);
+                int size2 = sizes.get(g2);
+                int result = bySize ? Integer.compare(size2, size1) : Long.compare(access2, access1);
+                if (result == 0) {
+                    result = bySize ? Long.compare(access2, access1) : Integer.compare(size2, size1);
+                }
+                return result;
+            }
+        });
+    }
+
+    private void preload(String group) {
+        if (cancelled) {
+            return;
+        }
+        try {
+            ldapUserGroupProvider.loadGroupMembers(group, false);
+        } catch (Exception e) {
+            logger.warn("Unable to preload members of group {} on provider {}: {}", new Object[]{group, ldapUserGroupProvider.getKey(), e.getMessage()});
+            logger.debug(e.getMessage(), e);
+        }
+        int done = loaded.incrementAndGet();
+        long now = System.currentTimeMillis();
+        if (done == total) {
+            logger.info("Preloaded {} groups of provider {} in {} s", new Object[]{done, ldapUserGroupProvider.getKey(), (now - startTime) / 1000});
+            if (!cancelled) {
+                ldapUserGroupProvider.onGroupsPreloaded(groups);
+            }
+        } else if (now - lastProgressLog > PROGRESS_LOG_INTERVAL) {
+            lastProgressLog = now;
+            logger.info("Preloaded {}/{} groups of provider {}, estimated remaining time {} s", new Object[]{
+                done, total, ldapUserGroupProvider.getKey(), getEstimatedRemainingTime() / 1000});
+        }
+    }
+
+    /**
+     * Cancels the preload, the groups being loaded are completed but no other group is loaded.
+     */
+    public synchronized void cancel() {
+        if (!cancelled && !isDone()) {
+            logger.info("Cancelling preload of provider {} after {} groups", ldapUserGroupProvider.getKey(), loaded.get());
+        }
+        cancelled = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if all the groups have been preloaded
+     */
+    public boolean isDone() {
+        return total >= 0 && loaded.get() >= total;
+    }
+
+    /**
+     * @return the number of groups to preload, or -1 if the groups have not been listed yet
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the number of groups already preloaded
+     */
+    public int getLoaded() {
+        return loaded.get();
+    }
+
+    /**
+     * @return the estimated time in milliseconds before the end of the preload, or -1 if unknown
+     */
+    public long getEstimatedRemainingTime() {
+        int done = loaded.get();
+        if (total < 0 || done == 0) {
+            return -1;
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed * (total - done) / done;
+    }
+}
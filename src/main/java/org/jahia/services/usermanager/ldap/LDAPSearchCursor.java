@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap;
+
+import org.jahia.services.usermanager.ldap.communication.LdapPermit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.NamingException;
+import org.springframework.ldap.control.PagedResultsCookie;
+import org.springframework.ldap.control.PagedResultsDirContextProcessor;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
+import org.springframework.ldap.core.support.SingleContextSource;
+import org.springframework.ldap.query.LdapQuery;
+import org.springframework.ldap.query.SearchScope;
+
+import javax.naming.directory.SearchControls;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Search reading its results page by page with the paged results control (RFC 2696). The search keeps its own
+ * connection, as the paging state is bound to the connection on most servers, so that the next pages can be read
+ * later without running the search again. Several queries can be chained, their results are read one after the other.
+ * <p>
+ * A cursor is not thread-safe, and must be closed to release its connection and the scheduler permit it holds.
+ */
+public class LDAPSearchCursor {
+
+    private static Logger logger = LoggerFactory.getLogger(LDAPSearchCursor.class);
+
+    private final SingleContextSource contextSource;
+    private final LdapTemplate ldapTemplate;
+    private final int pageSize;
+    private final LdapPermit permit;
+    private final List<LdapQuery> queries = new ArrayList<>();
+    private final List<NameClassPairCallbackHandler> handlers = new ArrayList<>();
+    // results of the current page not consumed yet
+    private final LinkedList<String> buffer = new LinkedList<>();
+    private int queryIndex = 0;
+    private PagedResultsCookie cookie;
+    private long position = 0;
+    private long lastAccess = System.currentTimeMillis();
+
+    /**
+     * Opens a cursor on a new connection
+     *
+     * @param contextSource the context source to get the connection from
+     * @param pageSize the number of entries read per page
+     * @param permit the scheduler permit of the connection, released when the cursor is closed, null if the cursor is
+     * used within a single operation that holds its own permit
+     */
+    public LDAPSearchCursor(ContextSource contextSource, int pageSize, LdapPermit permit) {
+        this.permit = permit;
+        try {
+            this.contextSource = new SingleContextSource(contextSource.getReadOnlyContext());
+        } catch (RuntimeException e) {
+            releasePermit();
+            throw e;
+        }
+        this.ldapTemplate = new LdapTemplate(this.contextSource);
+        this.ldapTemplate.setIgnorePartialResultException(true);
+        this.ldapTemplate.setIgnoreNameNotFoundException(true);
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Adds a query to the search
+     *
+     * @param query the query
+     * @param handler the handler of the query results, which must add the result names to {@link #getBuffer()}
+     */
+    void addQuery(LdapQuery query, NameClassPairCallbackHandler handler) {
+        queries.add(query);
+        handlers.add(handler);
+    }
+
+    List<String> getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Skips results
+     *
+     * @param count the number of results to skip
+     */
+    public void skip(long count) {
+        lastAccess = System.currentTimeMillis();
+        for (long i = 0; i < count; i++) {
+            if (buffer.isEmpty() && !readPage()) {
+                return;
+            }
+            buffer.poll();
+            position++;
+        }
+    }
+
+    /**
+     * Reads the next results, reading new pages from the server as needed
+     *
+     * @param count the maximum number of results to return
+     * @return the results, fewer than requested once the search is exhausted
+     * @throws LDAPSearchCursorExpiredException if the server no longer knows the paged search
+     */
+    public List<String> next(int count) {
+        lastAccess = System.currentTimeMillis();
+        List<String> results = new ArrayList<>(Math.min(count, Math.max(pageSize, buffer.size())));
+        while (results.size() < count) {
+            if (buffer.isEmpty() && !readPage()) {
+                break;
+            }
+            results.add(buffer.poll());
+            position++;
+        }
+        return results;
+    }
+
+    /**
+     * @return true if all the results have been read
+     */
+    public boolean isExhausted() {
+        return buffer.isEmpty() && queryIndex >= queries.size();
+    }
+
+    /**
+     * @return the number of results read or skipped so far
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the time of the last read
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Abandons the search if it is not exhausted and releases the connection
+     */
+    public void close() {
+        if (cookie != null && cookie.getCookie() != null && queryIndex < queries.size()) {
+            try {
+                // a page size of 0 tells the server to release the search
+                search(queries.get(queryIndex), handlers.get(queryIndex), new PagedResultsDirContextProcessor(0, cookie));
+            } catch (Exception e) {
+                logger.debug("Unable to abandon paged search: {}", e.getMessage());
+            }
+        }
+        queryIndex = queries.size();
+        buffer.clear();
+        try {
+            contextSource.destroy();
+        } finally {
+            releasePermit();
+        }
+    }
+
+    private void releasePermit() {
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    private boolean readPage() {
+        while (buffer.isEmpty() && queryIndex < queries.size()) {
+            PagedResultsDirContextProcessor processor = new PagedResultsDirContextProcessor(pageSize, cookie);
+            // servers that do not support paging return all the results at once
+            processor.setCritical(false);
+            try {
+                search(queries.get(queryIndex), handlers.get(queryIndex), processor);
+            } catch (NamingException e) {
+                if (cookie != null && cookie.getCookie() != null) {
+                    // the connection or the paging state of the server is gone, the remaining results are lost
+                    throw new LDAPSearchCursorExpiredException("Paged search expired at position " + position, e);
+                }
+                throw e;
+            }
+            cookie = processor.getCookie();
+            if (!processor.hasMore()) {
+                queryIndex++;
+                cookie = null;
+            }
+        }
+        return !buffer.isEmpty();
+    }
+
+    private void search(LdapQuery query, NameClassPairCallbackHandler handler, PagedResultsDirContextProcessor processor) {
+        SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope((query.searchScope() != null ? query.searchScope() : SearchScope.SUBTREE).getId());
+        searchControls.setReturningAttributes(query.attributes());
+        if (query.timeLimit() != null) {
+            searchControls.setTimeLimit(query.timeLimit());
+        }
+        // the paging replaces the count limit
+        searchControls.setCountLimit(0);
+        searchControls.setReturningObjFlag(false);
+        ldapTemplate.search(query.base(), query.filter().encode(), searchControls, handler, processor);
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.jahia.services.usermanager.ldap;
 
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.sun.jndi.ldap.LdapURL;
 
@@ -26,27 +27,41 @@ import org.jahia.modules.external.users.*;
 import org.jahia.services.content.decorator.JCRMountPointNode;
 import org.jahia.services.usermanager.*;
 import org.jahia.services.usermanager.ldap.cache.LDAPAbstractCacheEntry;
+import org.jahia.services.usermanager.ldap.cache.LDAPCacheListener;
 import org.jahia.services.usermanager.ldap.cache.LDAPCacheManager;
 import org.jahia.services.usermanager.ldap.cache.LDAPGroupCacheEntry;
+import org.jahia.services.usermanager.ldap.cache.LDAPMembershipClosure;
+import org.jahia.services.usermanager.ldap.cache.LDAPMembershipIndex;
+import org.jahia.services.usermanager.ldap.cache.LDAPNegativeCache;
 import org.jahia.services.usermanager.ldap.cache.LDAPUserCacheEntry;
+import org.jahia.services.usermanager.ldap.communication.LdapAsyncExecutor;
+import org.jahia.services.usermanager.ldap.communication.LdapBindAuthenticator;
+import org.jahia.services.usermanager.ldap.communication.LdapCircuitBreaker;
+import org.jahia.services.usermanager.ldap.communication.LdapCircuitOpenException;
+import org.jahia.services.usermanager.ldap.communication.LdapCredentialCache;
+import org.jahia.services.usermanager.ldap.communication.LdapOverloadException;
+import org.jahia.services.usermanager.ldap.communication.LdapPermit;
+import org.jahia.services.usermanager.ldap.communication.LdapPriority;
+import org.jahia.services.usermanager.ldap.communication.LdapPriorityScheduler;
+import org.jahia.services.usermanager.ldap.communication.LdapRequestCoalescer;
 import org.jahia.services.usermanager.ldap.communication.LdapTemplateCallback;
 import org.jahia.services.usermanager.ldap.communication.LdapTemplateWrapper;
 import org.jahia.services.usermanager.ldap.config.AbstractConfig;
 import org.jahia.services.usermanager.ldap.config.GroupConfig;
 import org.jahia.services.usermanager.ldap.config.UserConfig;
+import org.jahia.services.usermanager.ldap.filter.DynamicGroupFilter;
+import org.jahia.services.usermanager.ldap.metrics.LdapMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.ldap.CommunicationException;
-import org.springframework.ldap.InsufficientResourcesException;
-import org.springframework.ldap.ServiceUnavailableException;
 import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.core.NameClassPairCallbackHandler;
 import org.springframework.ldap.core.support.DefaultIncrementalAttributesMapper;
-import org.springframework.ldap.core.support.LdapContextSource;
 import org.springframework.ldap.filter.Filter;
 import org.springframework.ldap.query.ConditionCriteria;
 import org.springframework.ldap.query.ContainerCriteria;
+import org.springframework.ldap.query.LdapQuery;
 import org.springframework.ldap.query.SearchScope;
 import org.springframework.ldap.support.LdapUtils;
 
@@ -62,10 +77,20 @@ import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.springframework.ldap.filter.AndFilter;
+import org.springframework.ldap.filter.EqualsFilter;
 import org.springframework.ldap.filter.HardcodedFilter;
+import org.springframework.ldap.filter.OrFilter;
 
 import static org.springframework.ldap.query.LdapQueryBuilder.query;
 
@@ -82,8 +107,18 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
 
     private static final String PROP_USERNAME = "username";
     private static final String PROP_GROUPNAME = "groupname";
-
-    private LdapContextSource contextSource;
+    private static final int MAX_SEARCH_CURSORS = 20;
+    private static final int DEFAULT_STREAM_PAGE_SIZE = 1000;
+    private static final long KNOWN_NAMES_CHECK_INTERVAL = 60000L;
+    private static final long SNAPSHOT_REFRESH_MAX_DELAY = 60000L;
+    private static final long GROUP_EXPIRY_CHECK_INTERVAL = 10000L;
+    // Active Directory LDAP_MATCHING_RULE_IN_CHAIN, matches the groups containing a member through nested groups
+    private static final String MATCHING_RULE_IN_CHAIN = "1.2.840.113556.1.4.1941";
+    private static final int DEFAULT_MEMBERSHIP_CLOSURE_MAX_ENTRIES = 10000;
+
+    private ContextSource contextSource;
+    // context source of the binds when there are no authentication connections, null to use the one of the searches
+    private ContextSource authContextSource;
     private LdapTemplateWrapper ldapTemplateWrapper;
 
     // Configs
@@ -96,8 +131,78 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
     private volatile ContainerCriteria searchGroupCriteria;
     private volatile ContainerCriteria searchGroupDynamicCriteria;
 
-    private AtomicInteger timeoutCount = new AtomicInteger(0);
+    // Members to groups index, built from the loaded group members
+    private final LDAPMembershipIndex membershipIndex = new LDAPMembershipIndex();
+    private final AtomicLong lastGroupExpiryCheck = new AtomicLong();
+    // Transitive memberships through the nested groups, null if disabled
+    private volatile LDAPMembershipClosure membershipClosure;
+    private final LDAPMembershipClosure.ParentResolver parentResolver = new LDAPMembershipClosure.ParentResolver() {
+        @Override
+        public List<String> getParents(String groupName) {
+            return getDirectMembership(new Member(groupName, Member.MemberType.GROUP));
+        }
+    };
+    private final LDAPCacheListener cacheListener = new LDAPCacheListener() {
+        @Override
+        public void groupRemoved(LDAPGroupCacheEntry groupCacheEntry) {
+            membershipIndex.remove(groupCacheEntry.getName());
+            invalidateTransitiveMemberships(new Member(groupCacheEntry.getName(), Member.MemberType.GROUP));
+            if (groupCacheEntry.isDynamic()) {
+                dynamicGroups = null;
+            }
+        }
+
+        @Override
+        public void cacheCleared() {
+            membershipIndex.clear();
+            LDAPMembershipClosure closure = membershipClosure;
+            if (closure != null) {
+                closure.clear();
+            }
+            dynamicGroups = null;
+        }
+    };
+
+    // Compiled member URLs of the dynamic groups
+    private volatile DynamicGroups dynamicGroups;
+    private final Object dynamicGroupsLock = new Object();
+
+    // Background refresh of the stale entries, null if disabled
+    private volatile LDAPCacheRefresher cacheRefresher;
+
+    // Hash of the provider configuration, snapshots written with another configuration are not restored
+    private String configHash;
+    private Thread snapshotRefresh;
+    // Periodic rebuild of the filters of the known names, null if disabled
+    private Thread knownNamesRefresh;
+
+    // Concurrent identical lookups share a single LDAP request
+    private final LdapRequestCoalescer requestCoalescer = new LdapRequestCoalescer();
+
+    // Executor of the asynchronous lookups, created on first use
+    private LdapAsyncExecutor asyncExecutor;
+
+    // LDAP operation and cache statistics, exposed through JMX
+    private final LdapMetrics metrics = new LdapMetrics();
+
+    // Paged searches waiting for the request of their next page, keyed by search and position
+    private final Map<String, LDAPSearchCursor> searchCursors = new LinkedHashMap<>();
+
+    // Group usage statistics, kept across reconfigurations to order the preload
+    private final ConcurrentMap<String, AtomicLong> groupAccessCounts = new ConcurrentHashMap<>();
+    private final Map<String, Integer> groupSizes = new ConcurrentHashMap<>();
+
+    // Fails the LDAP operations fast while the server is unavailable, null if disabled
+    private volatile LdapCircuitBreaker circuitBreaker;
     private int maxLdapTimeoutCountBeforeDisconnect = 3;
+    // Consecutive communication errors, used instead of the circuit breaker when it is disabled
+    private final AtomicInteger timeoutCount = new AtomicInteger(0);
+
+    // Connections dedicated to the password checks, null to open a new connection for each check
+    private volatile LdapBindAuthenticator bindAuthenticator;
+    private Hashtable<String, Object> authenticationEnvironment;
+    // Hashes of the recently verified passwords, null if disabled
+    private volatile LdapCredentialCache credentialCache;
 
     private ContainerCriteria groupSearchFilterCriteria;
     private ContainerCriteria userSearchFilterCriteria;
@@ -148,35 +253,823 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         if (!groupCacheEntry.getExist()) {
             throw new GroupNotFoundException("unable to find group " + name + " on provider " + getKey());
         } else {
+            recordGroupAccess(name);
             return groupCacheEntry.getGroup();
         }
     }
 
     @Override
-    public List<Member> getGroupMembers(String groupName) {
+    public List<Member> getGroupMembers(final String groupName) {
+        List<Member> members = requestCoalescer.execute("members/" + groupName, new Callable<List<Member>>() {
+            @Override
+            public List<Member> call() {
+                return loadGroupMembers(groupName, true);
+            }
+        });
+        return new ArrayList<>(members);
+    }
+
+    /**
+     * Asynchronous variant of {@link #getUser(String)}, running on the executor of the provider unless the user is
+     * cached. Lookups are rejected with a {@link java.util.concurrent.RejectedExecutionException} when the executor
+     * is saturated.
+     *
+     * @param name the user name
+     * @return the future user, completed with a {@link UserNotFoundException} if the user does not exist
+     */
+    public CompletableFuture<JahiaUser> getUserAsync(final String name) {
+        LDAPUserCacheEntry userCacheEntry = getCachedUserCacheEntry(name);
+        if (userCacheEntry != null) {
+            CompletableFuture<JahiaUser> future = new CompletableFuture<>();
+            if (userCacheEntry.getExist()) {
+                future.complete(userCacheEntry.getUser());
+            } else {
+                future.completeExceptionally(new UserNotFoundException("unable to find user " + name + " on provider " + getKey()));
+            }
+            return future;
+        }
+        return getAsyncExecutor().submit(new Callable<JahiaUser>() {
+            @Override
+            public JahiaUser call() throws UserNotFoundException {
+                return getUser(name);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #getGroup(String)}, running on the executor of the provider unless the group is
+     * cached
+     *
+     * @param name the group name
+     * @return the future group, completed with a {@link GroupNotFoundException} if the group does not exist
+     */
+    public CompletableFuture<JahiaGroup> getGroupAsync(final String name) {
+        LDAPGroupCacheEntry groupCacheEntry = getCachedGroupCacheEntry(name);
+        if (groupCacheEntry != null) {
+            CompletableFuture<JahiaGroup> future = new CompletableFuture<>();
+            if (groupCacheEntry.getExist()) {
+                recordGroupAccess(name);
+                future.complete(groupCacheEntry.getGroup());
+            } else {
+                future.completeExceptionally(new GroupNotFoundException("unable to find group " + name + " on provider " + getKey()));
+            }
+            return future;
+        }
+        return getAsyncExecutor().submit(new Callable<JahiaGroup>() {
+            @Override
+            public JahiaGroup call() throws GroupNotFoundException {
+                return getGroup(name);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #getGroupMembers(String)}
+     *
+     * @param groupName the group name
+     * @return the future members
+     */
+    public CompletableFuture<List<Member>> getGroupMembersAsync(final String groupName) {
+        return getAsyncExecutor().submit(new Callable<List<Member>>() {
+            @Override
+            public List<Member> call() {
+                return getGroupMembers(groupName);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #getMembership(Member)}
+     *
+     * @param member the user or group
+     * @return the future names of the groups of the member
+     */
+    public CompletableFuture<List<String>> getMembershipAsync(final Member member) {
+        return getAsyncExecutor().submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return getMembership(member);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #searchUsers(Properties, long, long)}
+     *
+     * @param searchCriteria the search criteria
+     * @param offset the index of the first result
+     * @param limit the maximum number of results, -1 for the search count limit
+     * @return the future user names
+     */
+    public CompletableFuture<List<String>> searchUsersAsync(final Properties searchCriteria, final long offset, final long limit) {
+        return getAsyncExecutor().submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return searchUsers(searchCriteria, offset, limit);
+            }
+        });
+    }
+
+    private synchronized LdapAsyncExecutor getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = new LdapAsyncExecutor(getKey(), Math.max(1, userConfig.getAsyncThreads()), userConfig.getAsyncQueueSize(),
+                    userConfig.isAsyncVirtualThreads());
+            metrics.setAsyncExecutor(asyncExecutor);
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Get the members of a group, loading and caching them if needed
+     *
+     * @param groupName the group name
+     * @param recordAccess true to count this call in the group access statistics
+     * @return the group members
+     */
+    List<Member> loadGroupMembers(String groupName, boolean recordAccess) {
 
         LDAPGroupCacheEntry groupCacheEntry = getGroupCacheEntry(groupName, false);
         if (!groupCacheEntry.getExist()) {
             return Collections.emptyList();
         }
-        if (groupCacheEntry.getMembers() != null) {
-            return new ArrayList<>(groupCacheEntry.getMembers());
+        if (recordAccess) {
+            recordGroupAccess(groupName);
+        }
+        // the cache entry returns a new list of members
+        List<Member> cachedMembers = groupCacheEntry.getMembers();
+        if (cachedMembers != null) {
+            if (!membershipIndex.contains(groupName)) {
+                membershipIndex.update(groupName, cachedMembers);
+            }
+            return cachedMembers;
+        }
+
+        List<Member> members = searchGroupMembers(groupCacheEntry);
+        if (CollectionUtils.isNotEmpty(members)) {
+            groupCacheEntry.setMembers(members);
+            ldapCacheManager.cacheGroup(getKey(), groupCacheEntry);
+            return members;
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Read the members of a group from the LDAP server and index them
+     *
+     * @param groupCacheEntry the group cache entry
+     * @return the members, or null if they could not be read
+     */
+    private List<Member> searchGroupMembers(LDAPGroupCacheEntry groupCacheEntry) {
+        List<Member> members = null;
+        if (groupCacheEntry.isDynamic() && StringUtils.isNotEmpty(groupCacheEntry.getDynamicMembersURL())) {
+            members = loadMembersFromUrl(groupCacheEntry.getDynamicMembersURL());
+        } else {
+            members = loadMembersFromDN(groupCacheEntry.getDn());
+        }
+
+        if (members != null) {
+            // members could be read, an empty list means that the group has no member
+            membershipIndex.update(groupCacheEntry.getName(), members);
+            groupSizes.put(groupCacheEntry.getName(), members.size());
+        }
+        return members;
+    }
+
+    private void recordGroupAccess(String groupName) {
+        AtomicLong count = groupAccessCounts.get(groupName);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = groupAccessCounts.putIfAbsent(groupName, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @param groupName the group name
+     * @return the number of times the group was accessed since the provider creation
+     */
+    long getGroupAccessCount(String groupName) {
+        AtomicLong count = groupAccessCounts.get(groupName);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @param groupName the group name
+     * @return the number of members the group had when it was last loaded, or 0 if unknown
+     */
+    int getGroupSize(String groupName) {
+        Integer size = groupSizes.get(groupName);
+        return size != null ? size : 0;
+    }
+
+    /**
+     * Schedule the background refresh of a stale user. The memberships are refreshed too if they were cached, so that
+     * the new entry can be served without any LDAP request.
+     */
+    private void refreshUserCacheEntry(LDAPCacheRefresher refresher, final LDAPUserCacheEntry stale) {
+        refresher.refresh("user/" + stale.getName(), new Runnable() {
+            @Override
+            public void run() {
+                reloadUserCacheEntry(stale);
+            }
+        });
+    }
+
+    private void reloadUserCacheEntry(LDAPUserCacheEntry stale) {
+        LDAPUserCacheEntry fresh = searchUserCacheEntry(stale.getName(), null, false);
+        if (fresh != null && fresh.getExist() && stale.getMemberships() != null) {
+            fresh.setMemberships(searchMemberships(new Member(stale.getName(), Member.MemberType.USER), fresh));
+        }
+        if (fresh != null) {
+            ldapCacheManager.cacheUser(getKey(), fresh);
+            invalidateTransitiveMemberships(new Member(stale.getName(), Member.MemberType.USER));
+        }
+    }
+
+    /**
+     * Schedule the background refresh of a stale group. The members and memberships are refreshed too if they were
+     * cached, so that the new entry can be served without any LDAP request.
+     */
+    private void refreshGroupCacheEntry(LDAPCacheRefresher refresher, final LDAPGroupCacheEntry stale) {
+        refresher.refresh("group/" + stale.getName(), new Runnable() {
+            @Override
+            public void run() {
+                reloadGroupCacheEntry(stale);
+            }
+        });
+    }
+
+    private void reloadGroupCacheEntry(LDAPGroupCacheEntry stale) {
+        LDAPGroupCacheEntry fresh = searchGroupCacheEntry(stale.getName(), false);
+        if (fresh == null) {
+            // LDAP server unavailable, keep the stale entry
+            return;
+        }
+        if (fresh.getExist()) {
+            if (stale.getMemberCount() >= 0) {
+                List<Member> members = searchGroupMembers(fresh);
+                if (CollectionUtils.isNotEmpty(members)) {
+                    fresh.setMembers(members);
+                }
+            }
+            if (stale.getMemberships() != null) {
+                fresh.setMemberships(searchMemberships(new Member(stale.getName(), Member.MemberType.GROUP), fresh));
+            }
+        }
+        ldapCacheManager.cacheGroup(getKey(), fresh);
+        invalidateTransitiveMemberships(new Member(stale.getName(), Member.MemberType.GROUP));
+    }
+
+    /**
+     * Refresh in the background the entries restored from the snapshot, which may have changed while the provider
+     * was stopped. The restored entries are served in the meantime. The refresh starts after a random delay and reads
+     * at most {@link AbstractConfig#getCacheSnapshotRefreshRate()} entries per second with the preload priority, so
+     * that the nodes restarted together do not reconnect all at once and the lookups keep precedence. The entries
+     * reloaded or removed since they were restored are skipped.
+     */
+    private void startSnapshotRefresh(final List<LDAPAbstractCacheEntry> restored) {
+        final long pause = 1000L / userConfig.getCacheSnapshotRefreshRate();
+        final long delay = ThreadLocalRandom.current().nextLong(Math.min(SNAPSHOT_REFRESH_MAX_DELAY, pause * restored.size()) + 1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LdapPriority.set(LdapPriority.PRELOAD);
+                int count = 0;
+                try {
+                    Thread.sleep(delay);
+                    long startTime = System.currentTimeMillis();
+                    for (LDAPAbstractCacheEntry entry : restored) {
+                        if (!isCachedAsRestored(entry)) {
+                            continue;
+                        }
+                        try {
+                            if (entry instanceof LDAPGroupCacheEntry) {
+                                reloadGroupCacheEntry((LDAPGroupCacheEntry) entry);
+                            } else {
+                                reloadUserCacheEntry((LDAPUserCacheEntry) entry);
+                            }
+                            count++;
+                        } catch (Exception e) {
+                            logger.warn("Unable to refresh {} of provider {}: {}", new Object[]{entry.getName(), getKey(), e.getMessage()});
+                            logger.debug(e.getMessage(), e);
+                        }
+                        Thread.sleep(pause);
+                    }
+                    logger.info("Refreshed {} entries of provider {} restored from snapshot in {} ms",
+                            new Object[]{count, getKey(), System.currentTimeMillis() - startTime});
+                } catch (InterruptedException e) {
+                    logger.debug("Refresh of the entries of provider {} restored from snapshot stopped after {} entries", getKey(), count);
+                }
+            }
+        }, "LDAP Snapshot refresh " + getKey());
+        thread.setDaemon(true);
+        snapshotRefresh = thread;
+        thread.start();
+    }
+
+    /**
+     * @return true if the entry restored from the snapshot is still cached and was not read again since
+     */
+    private boolean isCachedAsRestored(LDAPAbstractCacheEntry restored) {
+        LDAPAbstractCacheEntry cached = restored instanceof LDAPGroupCacheEntry
+                ? ldapCacheManager.getGroupCacheEntryName(getKey(), restored.getName())
+                : ldapCacheManager.getUserCacheEntryByName(getKey(), restored.getName());
+        return cached != null && cached.getLoadedAt() == restored.getLoadedAt();
+    }
+
+    /**
+     * Builds the filters of the known user and group names in the background, and builds them again once they are
+     * older than the refresh interval, or once they were dropped by a flush of the caches.
+     */
+    private void startKnownNamesRefresh(final int refreshInterval) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LdapPriority.set(LdapPriority.REFRESH);
+                long interval = refreshInterval * 1000L;
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        refreshKnownNames(ldapCacheManager.getUserNegativeCache(getKey()), false, interval);
+                        refreshKnownNames(ldapCacheManager.getGroupNegativeCache(getKey()), true, interval);
+                    } catch (Exception e) {
+                        logger.warn("Unable to read the names of provider {}: {}", getKey(), e.getMessage());
+                        logger.debug(e.getMessage(), e);
+                    }
+                    try {
+                        Thread.sleep(Math.min(interval, KNOWN_NAMES_CHECK_INTERVAL));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "LDAP Known names " + getKey());
+        thread.setDaemon(true);
+        knownNamesRefresh = thread;
+        thread.start();
+    }
+
+    private void refreshKnownNames(LDAPNegativeCache negativeCache, boolean groups, long interval) {
+        if (negativeCache == null || System.currentTimeMillis() - negativeCache.getKnownNamesBuiltAt() < interval) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        final LDAPNegativeCache.KnownNames knownNames = negativeCache.newKnownNames();
+        final List<ContainerCriteria> queries = new ArrayList<>(2);
+        final String attribute = groups ? groupConfig.getSearchAttribute() : userConfig.getUidSearchAttribute();
+        if (groups) {
+            queries.add(applyPredefinedGroupFilter(query().base(groupConfig.getSearchName()).attributes(attribute)
+                    .where(OBJECTCLASS_ATTRIBUTE).is(groupConfig.getSearchObjectclass())));
+            if (groupConfig.isDynamicEnabled()) {
+                queries.add(applyPredefinedGroupFilter(query().base(groupConfig.getSearchName()).attributes(attribute)
+                        .where(OBJECTCLASS_ATTRIBUTE).is(groupConfig.getDynamicSearchObjectclass())));
+            }
+        } else {
+            queries.add(applyPredefinedUserFilter(query().base(userConfig.getUidSearchName()).attributes(attribute)
+                    .where(OBJECTCLASS_ATTRIBUTE).is(userConfig.getSearchObjectclass())));
+        }
+        boolean complete = streamSearch(LdapMetrics.SCAN_NAMES, groups ? groupConfig : userConfig, new LDAPSearchCallback() {
+            @Override
+            public boolean handle(String name) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                // the names are looked up in their JCR form
+                knownNames.add(name);
+                String encoded = encode(name);
+                if (!encoded.equals(name)) {
+                    knownNames.add(encoded);
+                }
+                return true;
+            }
+        }, new SearchCursorFactory() {
+            @Override
+            public LDAPSearchCursor open(int pageSize, LdapPermit permit) {
+                LDAPSearchCursor cursor = new LDAPSearchCursor(contextSource, pageSize, permit);
+                for (ContainerCriteria query : queries) {
+                    cursor.addQuery(query, new AttributeValuesCallbackHandler(attribute, cursor.getBuffer()));
+                }
+                return cursor;
+            }
+        });
+        // an incomplete filter would report existing names as absent
+        if (complete && !Thread.currentThread().isInterrupted() && knownNames.getCount() > 0) {
+            negativeCache.setKnownNames(knownNames);
+            logger.info("Read {} {} names of provider {} in {} ms", new Object[]{knownNames.getCount(), groups ? "group" : "user",
+                    getKey(), System.currentTimeMillis() - startTime});
+        }
+    }
+
+    /**
+     * @return the number of lookups that shared the LDAP request of an identical concurrent lookup
+     */
+    public long getCoalescedRequestCount() {
+        return requestCoalescer.getCoalescedCount();
+    }
+
+    /**
+     * @return the LDAP operation and cache statistics of this provider
+     */
+    public LdapMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Called once the members of all the groups have been preloaded: the membership index is complete once the
+     * members of all these groups are indexed.
+     *
+     * @param groupNames the names of all the groups of the provider
+     */
+    void onGroupsPreloaded(List<String> groupNames) {
+        if (groupNames.size() >= groupConfig.getSearchCountlimit()) {
+            logger.info("The number of groups of provider {} reaches the search count limit, memberships will be searched on the LDAP server", getKey());
+            return;
+        }
+        membershipIndex.setExpectedGroups(groupNames);
+        // groups flushed from the cache during the preload
+        for (String groupName : groupNames) {
+            if (!membershipIndex.contains(groupName)) {
+                loadGroupMembers(groupName, false);
+            }
+        }
+        logger.info("Membership index of provider {} is {}", getKey(), membershipIndex.isComplete() ? "complete" : "incomplete");
+    }
+
+    /**
+     * Refreshes the cached users and groups modified on the LDAP server since the given time. Cached users are replaced
+     * by their new version, cached groups are reloaded, and the memberships of their previous and current members are
+     * invalidated. Deleted entries cannot be detected this way, they are removed from the caches when they expire.
+     *
+     * @param since the generalized time from which the modifications are searched
+     * @return the most recent modification time seen, or null if the LDAP server could not be queried
+     */
+    String refreshModifiedEntries(String since) {
+        long startTime = System.currentTimeMillis();
+        String timestampAttribute = userConfig.getSyncTimestampAttribute();
+
+        List<String> userAttrs = new ArrayList<>(getUserAttributes());
+        userAttrs.add(timestampAttribute);
+        ContainerCriteria userQuery = applyPredefinedUserFilter(query().base(userConfig.getUidSearchName())
+                .attributes(userAttrs.toArray(new String[userAttrs.size()]))
+                .where(timestampAttribute).gte(since)
+                .and(OBJECTCLASS_ATTRIBUTE).is(StringUtils.defaultString(userConfig.getSearchObjectclass(), "*")));
+        List<SearchResult> users = searchModifiedEntries(userQuery);
+        if (users == null) {
+            return null;
+        }
+
+        List<SearchResult> groups = Collections.emptyList();
+        if (groupConfig.isMinimalSettingsOk()) {
+            List<String> groupAttrs = new ArrayList<>(getGroupAttributes(groupConfig.isDynamicEnabled()));
+            groupAttrs.add(OBJECTCLASS_ATTRIBUTE);
+            groupAttrs.add(groupConfig.getMembersAttribute());
+            groupAttrs.add(timestampAttribute);
+            ContainerCriteria groupObjectclassQuery = query().where(OBJECTCLASS_ATTRIBUTE).is(groupConfig.getSearchObjectclass());
+            if (groupConfig.isDynamicEnabled()) {
+                groupObjectclassQuery.or(OBJECTCLASS_ATTRIBUTE).is(groupConfig.getDynamicSearchObjectclass());
+            }
+            ContainerCriteria groupQuery = applyPredefinedGroupFilter(query().base(groupConfig.getSearchName())
+                    .attributes(groupAttrs.toArray(new String[groupAttrs.size()]))
+                    .where(timestampAttribute).gte(since)
+                    .and(groupObjectclassQuery));
+            groups = searchModifiedEntries(groupQuery);
+            if (groups == null) {
+                return null;
+            }
+        }
+
+        String lastSeen = since;
+        for (SearchResult result : Iterables.concat(users, groups)) {
+            Attribute timestamp = result.getAttributes().get(timestampAttribute);
+            try {
+                if (timestamp != null && timestamp.get() instanceof String && ((String) timestamp.get()).compareTo(lastSeen) > 0) {
+                    lastSeen = (String) timestamp.get();
+                }
+            } catch (NamingException e) {
+                logger.debug("Unable to read {} of {}", timestampAttribute, result.getNameInNamespace());
+            }
+        }
+        int refreshedUsers = refreshModifiedUsers(users);
+        int refreshedGroups = refreshModifiedGroups(groups);
+        if (!users.isEmpty() || !groups.isEmpty()) {
+            logger.info("Synchronized {} modified users and {} modified groups of provider {} ({} users and {} groups were cached) in {} ms",
+                    new Object[]{users.size(), groups.size(), getKey(), refreshedUsers, refreshedGroups, System.currentTimeMillis() - startTime});
         }
+        return lastSeen;
+    }
+
+    private List<SearchResult> searchModifiedEntries(final ContainerCriteria query) {
+        return ldapTemplateWrapper.execute(LdapMetrics.SYNC, new BaseLdapActionCallback<List<SearchResult>>(getExternalUserGroupService(), getKey()) {
+
+            @Override
+            public List<SearchResult> doInLdap(LdapTemplate ldapTemplate) {
+                final List<SearchResult> results = new ArrayList<>();
+                ldapTemplate.search(query, new NameClassPairCallbackHandler() {
+
+                    @Override
+                    public void handleNameClassPair(NameClassPair nameClassPair) throws NamingException {
+                        if (nameClassPair instanceof SearchResult) {
+                            results.add((SearchResult) nameClassPair);
+                        } else {
+                            logger.error("Unexpected NameClassPair {} in {}", nameClassPair, getClass().getName());
+                        }
+                    }
+                });
+                return results;
+            }
+        });
+    }
+
+    private int refreshModifiedUsers(List<SearchResult> users) {
+        List<LDAPUserCacheEntry> refreshed = new ArrayList<>();
+        for (SearchResult result : users) {
+            String dn = result.getNameInNamespace();
+            LDAPUserCacheEntry userCacheEntry;
+            try {
+                userCacheEntry = attributesToUserCacheEntry(result.getAttributes(), null);
+            } catch (NamingException e) {
+                logger.warn("Unable to read modified user {}: {}", dn, e.getMessage());
+                continue;
+            }
+            if (userCacheEntry == null) {
+                continue;
+            }
+            userCacheEntry.setDn(dn);
+            LDAPUserCacheEntry cachedByDn = ldapCacheManager.getUserCacheEntryByDn(getKey(), dn);
+            LDAPUserCacheEntry cachedByName = ldapCacheManager.getUserCacheEntryByName(getKey(), userCacheEntry.getName());
+            if (cachedByDn == null && cachedByName == null) {
+                // not cached, nothing to refresh
+                continue;
+            }
+            if (cachedByDn != null && !cachedByDn.getName().equals(userCacheEntry.getName())) {
+                // user renamed
+                ldapCacheManager.clearUserCacheEntryByName(getKey(), cachedByDn.getName());
+            }
+            refreshed.add(userCacheEntry);
+        }
+        ldapCacheManager.cacheUsers(getKey(), refreshed);
+        return refreshed.size();
+    }
+
+    private int refreshModifiedGroups(List<SearchResult> groups) {
+        int refreshed = 0;
+        for (SearchResult result : groups) {
+            String dn = result.getNameInNamespace();
+            Attributes attrs = result.getAttributes();
+            if (attrs == null || attrs.get(groupConfig.getSearchAttribute()) == null) {
+                logger.warn("Unable to read modified group {}: missing {} attribute", dn, groupConfig.getSearchAttribute());
+                continue;
+            }
+            LDAPGroupCacheEntry groupCacheEntry;
+            try {
+                List<String> objectclasses = new ArrayList<>();
+                LdapUtils.collectAttributeValues(attrs, OBJECTCLASS_ATTRIBUTE, objectclasses, String.class);
+                boolean isDynamic = groupConfig.isDynamicEnabled() && containsIgnoreCase(objectclasses, groupConfig.getDynamicSearchObjectclass());
+                GroupNameClassPairCallbackHandler handler = new GroupNameClassPairCallbackHandler(null, isDynamic);
+                handler.handleNameClassPair(result);
+                groupCacheEntry = handler.getCacheEntry();
+                if (groupCacheEntry == null) {
+                    logger.warn("Unable to read modified group {}", dn);
+                    continue;
+                }
+
+                // memberships of the current members
+                Attribute members = attrs.get(groupConfig.getMembersAttribute());
+                if (members != null) {
+                    NamingEnumeration<?> memberDns = members.getAll();
+                    while (memberDns.hasMore()) {
+                        clearCachedMemberships(memberDns.next().toString());
+                    }
+                }
+            } catch (NamingException e) {
+                logger.warn("Unable to read modified group {}: {}", dn, e.getMessage());
+                continue;
+            }
+            if (groupCacheEntry.isDynamic()) {
+                dynamicGroups = null;
+            }
+
+            LDAPGroupCacheEntry cached = ldapCacheManager.getGroupCacheEntryByDn(getKey(), dn);
+            if (cached == null) {
+                cached = ldapCacheManager.getGroupCacheEntryName(getKey(), groupCacheEntry.getName());
+            }
+            boolean reload = membershipIndex.isComplete() || membershipIndex.contains(groupCacheEntry.getName());
+            if (cached != null) {
+                // memberships of the previous members
+                List<Member> cachedMembers = cached.getMembers();
+                if (cachedMembers != null) {
+                    reload = true;
+                    for (Member member : cachedMembers) {
+                        clearCachedMemberships(member);
+                    }
+                }
+                if (!cached.getName().equals(groupCacheEntry.getName())) {
+                    // group renamed
+                    ldapCacheManager.clearGroupCacheEntryByName(getKey(), cached.getName());
+                }
+                refreshed++;
+            }
+            if (cached != null || reload) {
+                ldapCacheManager.cacheGroup(getKey(), groupCacheEntry);
+            }
+            if (reload) {
+                for (Member member : loadGroupMembers(groupCacheEntry.getName(), false)) {
+                    clearCachedMemberships(member);
+                }
+            }
+        }
+        return refreshed;
+    }
+
+    private void clearCachedMemberships(String dn) {
+        LDAPAbstractCacheEntry cacheEntry = ldapCacheManager.getUserCacheEntryByDn(getKey(), dn);
+        if (cacheEntry == null && userConfig.isCanGroupContainSubGroups()) {
+            cacheEntry = ldapCacheManager.getGroupCacheEntryByDn(getKey(), dn);
+        }
+        clearCachedMemberships(cacheEntry);
+    }
+
+    private void clearCachedMemberships(Member member) {
+        clearCachedMemberships(member.getType() == Member.MemberType.GROUP ?
+                ldapCacheManager.getGroupCacheEntryName(getKey(), member.getName()) :
+                ldapCacheManager.getUserCacheEntryByName(getKey(), member.getName()));
+    }
+
+    private void clearCachedMemberships(LDAPAbstractCacheEntry cacheEntry) {
+        if (cacheEntry == null) {
+            return;
+        }
+        invalidateTransitiveMemberships(new Member(cacheEntry.getName(), cacheEntry instanceof LDAPGroupCacheEntry ?
+                Member.MemberType.GROUP : Member.MemberType.USER));
+        if (cacheEntry.getMemberships() == null) {
+            return;
+        }
+        cacheEntry.setMemberships(null);
+        if (cacheEntry instanceof LDAPGroupCacheEntry) {
+            ldapCacheManager.cacheGroup(getKey(), (LDAPGroupCacheEntry) cacheEntry);
+        } else {
+            ldapCacheManager.cacheUser(getKey(), (LDAPUserCacheEntry) cacheEntry);
+        }
+    }
+
+    @Override
+    public void register() {
+        ldapCacheManager.addListener(getKey(), cacheListener);
+        ldapCacheManager.configureCaches(getKey(), userConfig.getCacheMaxEntries(), userConfig.getCacheTti(), userConfig.getCacheHardTtl());
+        ldapCacheManager.setClustered(getKey(), userConfig.isCacheClustered());
+        if (StringUtils.isNotEmpty(userConfig.getCacheOffheapDirectory())) {
+            ldapCacheManager.openSecondLevelCache(getKey(), new File(userConfig.getCacheOffheapDirectory()), userConfig.getCacheOffheapSize(), configHash);
+        }
+        if (StringUtils.isNotEmpty(userConfig.getCacheSnapshotDirectory())) {
+            List<LDAPAbstractCacheEntry> restored = ldapCacheManager.openSnapshot(getKey(), new File(userConfig.getCacheSnapshotDirectory()), configHash);
+            if (!restored.isEmpty() && userConfig.getCacheSnapshotRefreshRate() > 0) {
+                startSnapshotRefresh(restored);
+            }
+        }
+        if (userConfig.getCacheNegativeTtl() > 0 || userConfig.getCacheNegativeFilterRefresh() > 0) {
+            ldapCacheManager.configureNegativeCaches(getKey(), userConfig.getCacheNegativeMaxEntries(), userConfig.getCacheNegativeTtl());
+            if (userConfig.getCacheNegativeFilterRefresh() > 0) {
+                startKnownNamesRefresh(userConfig.getCacheNegativeFilterRefresh());
+            }
+        }
+        if (userConfig.getCacheSoftTtl() > 0) {
+            cacheRefresher = new LDAPCacheRefresher(getKey(), userConfig.getCacheSoftTtl());
+        }
+        if (userConfig.getCircuitBreakerWindow() > 0) {
+            startCircuitBreaker();
+        }
+        if (userConfig.getAuthPoolSize() > 0 && authenticationEnvironment != null) {
+            bindAuthenticator = new LdapBindAuthenticator(authenticationEnvironment, userConfig.getAuthPoolSize(), userConfig.isAuthFastBind());
+        }
+        if (userConfig.getAuthCacheTtl() > 0) {
+            credentialCache = new LdapCredentialCache(userConfig.getAuthCacheTtl(), userConfig.getAuthCacheMaxEntries(),
+                    userConfig.getAuthCacheHashIterations());
+        }
+        if (userConfig.isCanGroupContainSubGroups() && userConfig.isMembershipTransitive()) {
+            membershipClosure = new LDAPMembershipClosure(userConfig.getCacheMaxEntries() > 0 ? userConfig.getCacheMaxEntries() :
+                    DEFAULT_MEMBERSHIP_CLOSURE_MAX_ENTRIES, userConfig.getMembershipClosureTtl());
+        }
+        ldapCacheManager.setMetrics(getKey(), metrics);
+        metrics.setMembershipClosure(membershipClosure);
+        metrics.setRequestCoalescer(requestCoalescer);
+        metrics.setCacheRefresher(cacheRefresher);
+        metrics.register(getKey());
+        super.register();
+    }
+
+    @Override
+    public void unregister() {
+        super.unregister();
+        metrics.unregister();
+        metrics.setCacheRefresher(null);
+        metrics.setAsyncExecutor(null);
+        metrics.setCircuitBreaker(null);
+        metrics.setMembershipClosure(null);
+        if (membershipClosure != null) {
+            membershipClosure.clear();
+            membershipClosure = null;
+        }
+        if (bindAuthenticator != null) {
+            bindAuthenticator.stop();
+            bindAuthenticator = null;
+        }
+        if (credentialCache != null) {
+            credentialCache.clear();
+            credentialCache = null;
+        }
+        if (circuitBreaker != null) {
+            ldapTemplateWrapper.setCircuitBreaker(null);
+            circuitBreaker.stop();
+            circuitBreaker = null;
+        }
+        synchronized (this) {
+            if (asyncExecutor != null) {
+                asyncExecutor.stop();
+                asyncExecutor = null;
+            }
+        }
+        closeSearchCursors();
+        if (cacheRefresher != null) {
+            cacheRefresher.stop();
+            cacheRefresher = null;
+        }
+        if (snapshotRefresh != null) {
+            snapshotRefresh.interrupt();
+            snapshotRefresh = null;
+        }
+        if (knownNamesRefresh != null) {
+            knownNamesRefresh.interrupt();
+            knownNamesRefresh = null;
+        }
+        ldapCacheManager.removeNegativeCaches(getKey());
+        ldapCacheManager.setMetrics(getKey(), null);
+        ldapCacheManager.closeSnapshot(getKey());
+        ldapCacheManager.closeSecondLevelCache(getKey());
+        ldapCacheManager.setClustered(getKey(), false);
+        ldapCacheManager.removeListener(getKey(), cacheListener);
+    }
+
+    private void startCircuitBreaker() {
+        final String providerKey = getKey();
+        circuitBreaker = new LdapCircuitBreaker(providerKey, userConfig.getCircuitBreakerWindow(), maxLdapTimeoutCountBeforeDisconnect,
+                userConfig.getCircuitBreakerFailureRate(), userConfig.getCircuitBreakerSlowCallDuration(), userConfig.getCircuitBreakerSlowCallRate(),
+                userConfig.getCircuitBreakerOpenDuration(), new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return probe();
+            }
+        }, new LdapCircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(LdapCircuitBreaker.State state, String reason) {
+                if (state == LdapCircuitBreaker.State.OPEN) {
+                    // the mount point checker remounts the provider once isAvailable succeeds again
+                    getExternalUserGroupService().setMountStatus(providerKey, JCRMountPointNode.MountStatus.waiting, reason);
+                }
+            }
+        });
+        ldapTemplateWrapper.setCircuitBreaker(circuitBreaker);
+        metrics.setCircuitBreaker(circuitBreaker);
+    }
+
+    /**
+     * Reads the base entry of the users, run by the circuit breaker to check whether the server is available again
+     *
+     * @return true if the server answered
+     */
+    private boolean probe() {
+        return ldapTemplateWrapper.execute(LdapMetrics.IS_AVAILABLE, new LdapTemplateCallback<Boolean>() {
+            @Override
+            public Boolean doInLdap(LdapTemplate ldapTemplate) {
+                ldapTemplate.search(query().base(userConfig.getUidSearchName()).searchScope(SearchScope.OBJECT)
+                        .attributes(OBJECTCLASS_ATTRIBUTE).where(OBJECTCLASS_ATTRIBUTE).isPresent(), new NameClassPairCallbackHandler() {
+                    @Override
+                    public void handleNameClassPair(NameClassPair nameClassPair) {
+                    }
+                });
+                return true;
+            }
+
+            @Override
+            public void onSuccess() {
+            }
 
-        List<Member> members = null;
-        if (groupCacheEntry.isDynamic() && StringUtils.isNotEmpty(groupCacheEntry.getDynamicMembersURL())) {
-            members = loadMembersFromUrl(groupCacheEntry.getDynamicMembersURL());
-        } else {
-            members = loadMembersFromDN(groupCacheEntry.getDn());
-        }
+            @Override
+            public Boolean onError(Exception e) {
+                logger.debug("LDAP server " + getKey() + " still unavailable", e);
+                return !LdapCircuitBreaker.isCommunicationError(e);
+            }
+        });
+    }
 
-        if (CollectionUtils.isNotEmpty(members)) {
-            groupCacheEntry.setMembers(members);
-            ldapCacheManager.cacheGroup(getKey(), groupCacheEntry);
-            return new ArrayList<>(groupCacheEntry.getMembers());
-        } else {
-            return Collections.emptyList();
-        }
+    /**
+     * @return false while the circuit is open, the LDAP operations then fail without contacting the server
+     */
+    private boolean isCircuitClosed() {
+        LdapCircuitBreaker breaker = circuitBreaker;
+        return breaker == null || breaker.getState() == LdapCircuitBreaker.State.CLOSED;
     }
 
     private boolean isDynamicGroupMembers(String userId, String groupName) {
@@ -188,7 +1081,8 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
 
         final List<String> membersId = new ArrayList<>();
         final List<Member> members = new ArrayList<>();
-        if (groupCacheEntry.getMembers() == null) {
+        List<Member> cachedMembers = groupCacheEntry.getMembers();
+        if (cachedMembers == null) {
             if (groupCacheEntry.isDynamic() && StringUtils.isNotEmpty(groupCacheEntry.getDynamicMembersURL())) {
                 try {
                     final String dynamicMembersURL = groupCacheEntry.getDynamicMembersURL();
@@ -205,7 +1099,7 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                 }
             }
         } else {
-            members.addAll(groupCacheEntry.getMembers());
+            members.addAll(cachedMembers);
         }
 
         for (Member member : members) {
@@ -215,36 +1109,119 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         return membersId.contains(userId);
     }
 
+    private void invalidateTransitiveMemberships(Member member) {
+        LDAPMembershipClosure closure = membershipClosure;
+        if (closure != null) {
+            closure.invalidate(member);
+        }
+    }
+
+    /**
+     * Returns the groups a member belongs to. When the groups can contain sub groups, the groups the member belongs
+     * to through nested groups are returned too, unless the transitive memberships are disabled.
+     */
     @Override
     public List<String> getMembership(final Member member) {
+        final LDAPMembershipClosure closure = membershipClosure;
+        if (closure == null) {
+            return getDirectMembership(member);
+        }
+        if (userConfig.isMembershipInChain()) {
+            List<String> memberships = closure.get(member);
+            if (memberships == null) {
+                memberships = requestCoalescer.execute("memberships-in-chain/" + member.getType() + "/" + member.getName(), new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        return loadMembershipInChain(closure, member);
+                    }
+                });
+            }
+            return memberships != null ? new ArrayList<>(memberships) : null;
+        }
+        List<String> memberships = getDirectMembership(member);
+        if (memberships == null) {
+            return null;
+        }
+        if (member.getType() == Member.MemberType.GROUP) {
+            return new ArrayList<>(closure.getAncestors(member.getName(), parentResolver));
+        }
+        return closure.expand(memberships, parentResolver);
+    }
 
-        boolean isGroup = member.getType().equals(Member.MemberType.GROUP);
+    private List<String> getDirectMembership(final Member member) {
+        List<String> memberships = requestCoalescer.execute("memberships/" + member.getType() + "/" + member.getName(), new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return loadMembership(member);
+            }
+        });
+        return memberships != null ? new ArrayList<>(memberships) : null;
+    }
 
-        if (isGroup && !userConfig.isCanGroupContainSubGroups()) {
-            return Collections.emptyList();
+    /**
+     * Search all the groups a member belongs to, directly or through nested groups, with a single request using the
+     * Active Directory matching rule in chain
+     *
+     * @param closure the cache of the transitive memberships
+     * @param member the member
+     * @return the names of the groups, or null if the member does not exist
+     */
+    private List<String> loadMembershipInChain(LDAPMembershipClosure closure, Member member) {
+        boolean isGroup = member.getType().equals(Member.MemberType.GROUP);
+        if (!isGroup && groupConfig.isDynamicEnabled()) {
+            // compile the dynamic groups first, so that the attributes they use are retrieved with the user
+            getDynamicGroups();
         }
         LDAPAbstractCacheEntry cacheEntry = isGroup ? getGroupCacheEntry(member.getName(), false) : getUserCacheEntry(member.getName(), false);
-        if (cacheEntry.getMemberships() != null) {
-            return new ArrayList<>(cacheEntry.getMemberships());
-        }
         if (!cacheEntry.getExist()) {
             return null;
         }
+        List<String> memberships = searchMembershipsInChain(cacheEntry.getDn());
+        if (memberships == null) {
+            // communication error, not cached
+            return getDirectMembership(member);
+        }
+        if (groupConfig.isDynamicEnabled()) {
+            for (String dynamicGroup : getDynamicMemberships(member, cacheEntry)) {
+                memberships.add(dynamicGroup);
+                LDAPGroupCacheEntry dynamicGroupEntry = getGroupCacheEntry(dynamicGroup, false);
+                List<String> parents = dynamicGroupEntry.getExist() ? searchMembershipsInChain(dynamicGroupEntry.getDn()) : null;
+                if (parents != null) {
+                    memberships.addAll(parents);
+                }
+            }
+        }
+        closure.put(member, memberships);
+        return closure.get(member);
+    }
 
-        final String dn = cacheEntry.getDn();
+    /**
+     * @param dn the DN of the member
+     * @return the names of the groups containing the member directly or through nested groups, null in case of
+     * communication error
+     */
+    private List<String> searchMembershipsInChain(String dn) {
         long startTime = System.currentTimeMillis();
-        List<String> memberships = ldapTemplateWrapper.execute(new BaseLdapActionCallback<List<String>>(getExternalUserGroupService(), getKey()) {
+        List<String> memberships = searchGroupNames(applyPredefinedGroupFilter(query().base(groupConfig.getSearchName())
+                .attributes(groupConfig.getSearchAttribute())
+                .where(OBJECTCLASS_ATTRIBUTE)
+                .is(groupConfig.getSearchObjectclass())
+                .and(groupConfig.getMembersAttribute() + ":" + MATCHING_RULE_IN_CHAIN + ":")
+                .is(dn)));
+        logger.debug("Query getMembership in chain for dn={} in {} ms", dn, System.currentTimeMillis() - startTime);
+        return memberships;
+    }
+
+    /**
+     * @param query the search of the groups
+     * @return the names of the groups found, null in case of communication error
+     */
+    private List<String> searchGroupNames(final LdapQuery query) {
+        return ldapTemplateWrapper.execute(LdapMetrics.MEMBERSHIP, new BaseLdapActionCallback<List<String>>(getExternalUserGroupService(), getKey()) {
 
             @Override
             public List<String> doInLdap(LdapTemplate ldapTemplate) {
-                return ldapTemplate.search(
-                        applyPredefinedGroupFilter(query().base(groupConfig.getSearchName())
-                                .attributes(groupConfig.getSearchAttribute())
-                                .where(OBJECTCLASS_ATTRIBUTE)
-                                .is(groupConfig.getSearchObjectclass())
-                                .and(groupConfig.getMembersAttribute())
-                                .like(dn)),
-                        new AttributesMapper<String>() {
+                return ldapTemplate.search(query, new AttributesMapper<String>() {
 
                     @Override
                     public String mapFromAttributes(Attributes attrs) throws NamingException {
@@ -253,6 +1230,74 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                 });
             }
         });
+    }
+
+    private List<String> loadMembership(Member member) {
+
+        boolean isGroup = member.getType().equals(Member.MemberType.GROUP);
+
+        if (isGroup && !userConfig.isCanGroupContainSubGroups()) {
+            return Collections.emptyList();
+        }
+        if (!isGroup && groupConfig.isDynamicEnabled()) {
+            // compile the dynamic groups first, so that the attributes they use are retrieved with the user
+            getDynamicGroups();
+        }
+        LDAPAbstractCacheEntry cacheEntry = isGroup ? getGroupCacheEntry(member.getName(), false) : getUserCacheEntry(member.getName(), false);
+        if (cacheEntry.getMemberships() != null) {
+            return new ArrayList<>(cacheEntry.getMemberships());
+        }
+        if (!cacheEntry.getExist()) {
+            return null;
+        }
+        if (membershipIndex.isComplete()) {
+            // the members of the expired groups must no longer be read from the index
+            evictExpiredGroups();
+        }
+        List<String> indexedMemberships = membershipIndex.getMemberships(member);
+        if (indexedMemberships != null) {
+            return indexedMemberships;
+        }
+
+        List<String> memberships = searchMemberships(member, cacheEntry);
+        if (memberships == null) {
+            // search skipped or failed, e.g. rejected while the server is overloaded, the result must not be cached
+            return new ArrayList<>();
+        }
+        cacheEntry.setMemberships(memberships);
+        if (isGroup) {
+            ldapCacheManager.cacheGroup(getKey(), (LDAPGroupCacheEntry) cacheEntry);
+        } else {
+            ldapCacheManager.cacheUser(getKey(), (LDAPUserCacheEntry) cacheEntry);
+        }
+
+        return new ArrayList<>(cacheEntry.getMemberships());
+    }
+
+    private void evictExpiredGroups() {
+        long now = System.currentTimeMillis();
+        long lastCheck = lastGroupExpiryCheck.get();
+        if (now - lastCheck >= GROUP_EXPIRY_CHECK_INTERVAL && lastGroupExpiryCheck.compareAndSet(lastCheck, now)) {
+            ldapCacheManager.evictExpiredGroups(getKey());
+        }
+    }
+
+    /**
+     * Search the groups a member belongs to on the LDAP server
+     *
+     * @param member the member
+     * @param cacheEntry the member cache entry
+     * @return the names of the groups, or null if the search failed
+     */
+    private List<String> searchMemberships(Member member, LDAPAbstractCacheEntry cacheEntry) {
+        final String dn = cacheEntry.getDn();
+        long startTime = System.currentTimeMillis();
+        List<String> memberships = searchGroupNames(applyPredefinedGroupFilter(query().base(groupConfig.getSearchName())
+                .attributes(groupConfig.getSearchAttribute())
+                .where(OBJECTCLASS_ATTRIBUTE)
+                .is(groupConfig.getSearchObjectclass())
+                .and(groupConfig.getMembersAttribute())
+                .like(dn)));
         if (logger.isDebugEnabled()) {
             logger.debug("Query getMembership for {} / {} dn={} in {} ms", new Object[] {
                 member.getName(),
@@ -264,10 +1309,27 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
 
         // in case of communication error, the result may be null
         if (memberships == null) {
-            memberships = new ArrayList<>();
+            return null;
         }
 
         if (groupConfig.isDynamicEnabled()) {
+            memberships.addAll(getDynamicMemberships(member, cacheEntry));
+        }
+        return memberships;
+    }
+
+    /**
+     * Get the dynamic groups a member belongs to. The member URL filters are evaluated against the cached attributes
+     * of users, the LDAP server is only queried for the groups whose filter cannot be evaluated locally.
+     *
+     * @param member the member
+     * @param cacheEntry the member cache entry
+     * @return the names of the dynamic groups
+     */
+    private List<String> getDynamicMemberships(Member member, LDAPAbstractCacheEntry cacheEntry) {
+        List<String> memberships = new ArrayList<>();
+        DynamicGroups groups = member.getType().equals(Member.MemberType.USER) ? getDynamicGroups() : null;
+        if (groups == null) {
             Properties searchCriteria = new Properties();
             searchCriteria.put("*", "*");
             List<String> dynGroups = searchGroups(searchCriteria, true);
@@ -276,16 +1338,99 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                     memberships.add(dynGroup);
                 }
             }
+            return memberships;
         }
 
-        cacheEntry.setMemberships(memberships);
-        if (isGroup) {
-            ldapCacheManager.cacheGroup(getKey(), (LDAPGroupCacheEntry) cacheEntry);
-        } else {
-            ldapCacheManager.cacheUser(getKey(), (LDAPUserCacheEntry) cacheEntry);
+        Map<String, List<String>> attributes = ((LDAPUserCacheEntry) cacheEntry).getLdapAttributes();
+        LdapName dn = null;
+        if (cacheEntry.getDn() != null) {
+            try {
+                dn = new LdapName(cacheEntry.getDn());
+            } catch (InvalidNameException e) {
+                logger.debug("Invalid DN {} for user {}", cacheEntry.getDn(), member.getName());
+            }
+        }
+        int fallbacks = 0;
+        for (DynamicGroupFilter filter : groups.filters) {
+            Boolean matches = dn != null && attributes != null ? filter.matches(dn, attributes) : null;
+            if (matches == null) {
+                fallbacks++;
+                matches = isDynamicGroupMembers(member.getName(), filter.getGroupName());
+            }
+            if (matches) {
+                memberships.add(filter.getGroupName());
+            }
+        }
+        for (String dynGroup : groups.unsupported) {
+            fallbacks++;
+            if (isDynamicGroupMembers(member.getName(), dynGroup)) {
+                memberships.add(dynGroup);
+            }
         }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Evaluated {} dynamic groups for {}, {} of them on the LDAP server", new Object[]{
+                groups.filters.size() + groups.unsupported.size(), member.getName(), fallbacks});
+        }
+        return memberships;
+    }
 
-        return new ArrayList<>(cacheEntry.getMemberships());
+    /**
+     * Get the compiled member URLs of the dynamic groups, reloaded after the configured refresh interval
+     *
+     * @return the dynamic groups, or null if they cannot be loaded
+     */
+    private DynamicGroups getDynamicGroups() {
+        DynamicGroups groups = dynamicGroups;
+        long maxAge = groupConfig.getDynamicRefreshInterval() * 1000L;
+        if (groups != null && System.currentTimeMillis() - groups.loadTime < maxAge) {
+            return groups;
+        }
+        synchronized (dynamicGroupsLock) {
+            groups = dynamicGroups;
+            if (groups != null && System.currentTimeMillis() - groups.loadTime < maxAge) {
+                return groups;
+            }
+            Properties searchCriteria = new Properties();
+            searchCriteria.put("*", "*");
+            List<String> dynGroups = searchGroups(searchCriteria, true);
+            if (dynGroups == null) {
+                return null;
+            }
+            groups = new DynamicGroups();
+            for (String dynGroup : dynGroups) {
+                LDAPGroupCacheEntry groupCacheEntry = getGroupCacheEntry(dynGroup, false);
+                if (groupCacheEntry == null || !groupCacheEntry.getExist()) {
+                    continue;
+                }
+                if (!groupCacheEntry.isDynamic() || StringUtils.isEmpty(groupCacheEntry.getDynamicMembersURL())) {
+                    groups.unsupported.add(dynGroup);
+                    continue;
+                }
+                try {
+                    DynamicGroupFilter filter = new DynamicGroupFilter(dynGroup, groupCacheEntry.getDynamicMembersURL());
+                    groups.filters.add(filter);
+                    groups.attributes.addAll(filter.getAttributes());
+                } catch (NamingException | IllegalArgumentException e) {
+                    logger.warn("Unable to compile member URL {} of dynamic group {}, it will be evaluated by the LDAP server: {}",
+                            new Object[]{groupCacheEntry.getDynamicMembersURL(), dynGroup, e.getMessage()});
+                    groups.unsupported.add(dynGroup);
+                }
+            }
+            groups.loadTime = System.currentTimeMillis();
+            dynamicGroups = groups;
+            logger.debug("Compiled {} dynamic groups of provider {}", groups.filters.size(), getKey());
+            return groups;
+        }
+    }
+
+    /**
+     * Compiled dynamic groups of the provider
+     */
+    private static class DynamicGroups {
+        private final List<DynamicGroupFilter> filters = new ArrayList<>();
+        private final List<String> unsupported = new ArrayList<>();
+        private final Set<String> attributes = new HashSet<>();
+        private long loadTime;
     }
 
     @Override
@@ -302,9 +1447,18 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         if (query == null) {
             return Collections.emptyList();
         }
+        if (userConfig.getSearchPageSize() > 0) {
+            return searchPage(LdapMetrics.SEARCH_USERS, "users/" + query.filter().encode(), userConfig, offset, limit,
+                    new SearchCursorFactory() {
+                        @Override
+                        public LDAPSearchCursor open(int pageSize, LdapPermit permit) {
+                            return openUserSearchCursor(query, pageSize, permit);
+                        }
+                    });
+        }
 
         long startTime = System.currentTimeMillis();
-        final List<String> names = ldapTemplateWrapper.execute(new BaseLdapActionCallback<List<String>>(getExternalUserGroupService(), getKey()) {
+        final List<String> names = ldapTemplateWrapper.execute(LdapMetrics.SEARCH_USERS, new BaseLdapActionCallback<List<String>>(getExternalUserGroupService(), getKey()) {
 
             @Override
             public List<String> doInLdap(LdapTemplate ldapTemplate) {
@@ -313,6 +1467,10 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                 return searchNameClassPairCallbackHandler.getNames();
             }
         });
+        if (names == null) {
+            // server unavailable or operation rejected, already logged
+            return Collections.emptyList();
+        }
 
         if (logger.isDebugEnabled()) {
             logger.debug("Search users for criteria {} using filter {} done in {} ms. Found {} entries.", new Object[]{
@@ -323,7 +1481,7 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
     }
 
     @Override
-    public List<String> searchGroups(Properties searchCriteria, long offset, long limit) {
+    public List<String> searchGroups(final Properties searchCriteria, long offset, long limit) {
         if (searchCriteria.containsKey(PROP_GROUPNAME) && searchCriteria.size() == 1 && !searchCriteria.getProperty(PROP_GROUPNAME).contains("*")) {
             try {
                 JahiaGroup group = getGroup((String) searchCriteria.get(PROP_GROUPNAME));
@@ -332,8 +1490,25 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                 return Collections.emptyList();
             }
         }
+        if (groupConfig.getSearchPageSize() > 0) {
+            final List<ContainerCriteria> queries = getGroupSearchQueries(searchCriteria);
+            if (queries.isEmpty()) {
+                return Collections.emptyList();
+            }
+            StringBuilder searchKey = new StringBuilder("groups");
+            for (ContainerCriteria query : queries) {
+                searchKey.append('/').append(query.filter().encode());
+            }
+            return searchPage(LdapMetrics.SEARCH_GROUPS, searchKey.toString(), groupConfig, offset, limit,
+                    new SearchCursorFactory() {
+                        @Override
+                        public LDAPSearchCursor open(int pageSize, LdapPermit permit) {
+                            return openGroupSearchCursor(queries, pageSize, permit);
+                        }
+                    });
+        }
 
-        List<String> groups = searchGroups(searchCriteria, false);
+        List<String> groups = new ArrayList<>(searchGroups(searchCriteria, false));
 
         // handle dynamics
         if (groupConfig.isDynamicEnabled()) {
@@ -343,29 +1518,302 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         return groups.subList(Math.min((int) offset, groups.size()), limit < 0 ? groups.size() : Math.min((int) (offset + limit), groups.size()));
     }
 
+    /**
+     * Searches users page by page and streams the results to the callback, so that large result sets can be read in
+     * constant memory. The search count limit does not apply.
+     *
+     * @param searchCriteria the search criteria, as for {@link #searchUsers(Properties, long, long)}
+     * @param callback the callback receiving the user names
+     */
+    public void searchUsers(Properties searchCriteria, LDAPSearchCallback callback) {
+        final ContainerCriteria query = buildUserQuery(searchCriteria);
+        if (query == null) {
+            return;
+        }
+        streamSearch(LdapMetrics.SEARCH_USERS, userConfig, callback, new SearchCursorFactory() {
+            @Override
+            public LDAPSearchCursor open(int pageSize, LdapPermit permit) {
+                return openUserSearchCursor(query, pageSize, permit);
+            }
+        });
+    }
+
+    /**
+     * Searches groups, including the dynamic ones if enabled, page by page and streams the results to the callback,
+     * so that large result sets can be read in constant memory. The search count limit does not apply.
+     *
+     * @param searchCriteria the search criteria, as for {@link #searchGroups(Properties, long, long)}
+     * @param callback the callback receiving the group names
+     */
+    public void searchGroups(Properties searchCriteria, LDAPSearchCallback callback) {
+        final List<ContainerCriteria> queries = getGroupSearchQueries(searchCriteria);
+        if (queries.isEmpty()) {
+            return;
+        }
+        streamSearch(LdapMetrics.SEARCH_GROUPS, groupConfig, callback, new SearchCursorFactory() {
+            @Override
+            public LDAPSearchCursor open(int pageSize, LdapPermit permit) {
+                return openGroupSearchCursor(queries, pageSize, permit);
+            }
+        });
+    }
+
+    private List<ContainerCriteria> getGroupSearchQueries(Properties searchCriteria) {
+        List<ContainerCriteria> queries = new ArrayList<>(2);
+        ContainerCriteria query = getGroupQuery(searchCriteria, false);
+        if (query != null) {
+            queries.add(query);
+        }
+        if (groupConfig.isDynamicEnabled()) {
+            query = getGroupQuery(searchCriteria, true);
+            if (query != null) {
+                queries.add(query);
+            }
+        }
+        return queries;
+    }
+
+    private LDAPSearchCursor openUserSearchCursor(ContainerCriteria query, int pageSize, LdapPermit permit) {
+        LDAPSearchCursor cursor = new LDAPSearchCursor(contextSource, pageSize, permit);
+        cursor.addQuery(query, new UsersNameClassPairCallbackHandler(cursor.getBuffer()));
+        return cursor;
+    }
+
+    private LDAPSearchCursor openGroupSearchCursor(List<ContainerCriteria> queries, int pageSize, LdapPermit permit) {
+        LDAPSearchCursor cursor = new LDAPSearchCursor(contextSource, pageSize, permit);
+        // the dynamic groups query, if any, comes after the static one
+        for (int i = 0; i < queries.size(); i++) {
+            cursor.addQuery(queries.get(i), new GroupsNameClassPairCallbackHandler(i > 0, cursor.getBuffer()));
+        }
+        return cursor;
+    }
+
+    /**
+     * Reads a page of search results with the paged results control. The search continues from the cursor left by the
+     * request of the previous page if any, otherwise a new search is started and the results before the offset are
+     * skipped. The cursor is kept for the next page until it times out, and holds a scheduler permit for its connection
+     * until then. A cursor whose search expired on the server is replaced by a new search from the offset.
+     */
+    private List<String> searchPage(final String operation, final String searchKey, final AbstractConfig config, final long offset,
+                                    long limit, final SearchCursorFactory cursorFactory) {
+        final int count = (int) Math.min(limit < 0 ? config.getSearchCountlimit() : limit, Integer.MAX_VALUE);
+        final LDAPSearchCursor[] cursor = new LDAPSearchCursor[]{takeSearchCursor(searchKey, offset, config)};
+        long startTime = System.currentTimeMillis();
+        final boolean resumed = cursor[0] != null;
+        // the permit of the cursor covers the operation
+        List<String> names = ldapTemplateWrapper.executeHoldingPermit(operation, new BaseLdapActionCallback<List<String>>(getExternalUserGroupService(), getKey()) {
+
+            @Override
+            public List<String> doInLdap(LdapTemplate ldapTemplate) {
+                if (cursor[0] != null) {
+                    try {
+                        return cursor[0].next(count);
+                    } catch (LDAPSearchCursorExpiredException e) {
+                        logger.info("Paged search {} expired on the server, searching again from {}: {}", new Object[]{
+                                searchKey, offset, e.getMessage()});
+                        cursor[0].close();
+                        cursor[0] = null;
+                    }
+                }
+                cursor[0] = cursorFactory.open(config.getSearchPageSize(), ldapTemplateWrapper.acquirePermit(operation));
+                cursor[0].skip(offset);
+                return cursor[0].next(count);
+            }
+        });
+
+        if (names == null || cursor[0].isExhausted()) {
+            if (cursor[0] != null) {
+                cursor[0].close();
+            }
+        } else {
+            storeSearchCursor(searchKey, cursor[0]);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Paged search {} from {} ({}) done in {} ms. Found {} entries.", new Object[]{
+                    searchKey, offset, resumed ? "resumed" : "new search", System.currentTimeMillis() - startTime, names != null ? names.size() : 0});
+        }
+        return names != null ? names : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return true if all the results were read
+     */
+    private boolean streamSearch(String operation, AbstractConfig config, final LDAPSearchCallback callback, final SearchCursorFactory cursorFactory) {
+        final int pageSize = config.getSearchPageSize() > 0 ? config.getSearchPageSize() : DEFAULT_STREAM_PAGE_SIZE;
+        Boolean complete = ldapTemplateWrapper.execute(operation, new BaseLdapActionCallback<Boolean>(getExternalUserGroupService(), getKey()) {
+
+            @Override
+            public Boolean doInLdap(LdapTemplate ldapTemplate) {
+                // the cursor is closed within the operation, which holds the permit
+                LDAPSearchCursor cursor = cursorFactory.open(pageSize, null);
+                try {
+                    while (!cursor.isExhausted()) {
+                        for (String name : cursor.next(pageSize)) {
+                            if (!callback.handle(name)) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+        return Boolean.TRUE.equals(complete);
+    }
+
+    /**
+     * @return the cursor left at the given position of the search, or null if there is none
+     */
+    private LDAPSearchCursor takeSearchCursor(String searchKey, long position, AbstractConfig config) {
+        List<LDAPSearchCursor> expired = new ArrayList<>();
+        LDAPSearchCursor cursor;
+        synchronized (searchCursors) {
+            long expiration = System.currentTimeMillis() - config.getSearchCursorTimeout() * 1000L;
+            for (Iterator<LDAPSearchCursor> iterator = searchCursors.values().iterator(); iterator.hasNext(); ) {
+                LDAPSearchCursor candidate = iterator.next();
+                if (candidate.getLastAccess() < expiration) {
+                    expired.add(candidate);
+                    iterator.remove();
+                }
+            }
+            cursor = searchCursors.remove(searchKey + "@" + position);
+        }
+        for (LDAPSearchCursor expiredCursor : expired) {
+            expiredCursor.close();
+        }
+        return cursor;
+    }
+
+    private void storeSearchCursor(String searchKey, LDAPSearchCursor cursor) {
+        List<LDAPSearchCursor> evicted = new ArrayList<>();
+        synchronized (searchCursors) {
+            LDAPSearchCursor previous = searchCursors.put(searchKey + "@" + cursor.getPosition(), cursor);
+            if (previous != null) {
+                evicted.add(previous);
+            }
+            // each cursor holds a connection and its permit, close the oldest ones
+            int maxCursors = getMaxSearchCursors();
+            for (Iterator<LDAPSearchCursor> iterator = searchCursors.values().iterator(); searchCursors.size() > maxCursors; ) {
+                evicted.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        for (LDAPSearchCursor evictedCursor : evicted) {
+            evictedCursor.close();
+        }
+    }
+
+    /**
+     * @return the number of cursors kept for the next pages, leaving at least one bulk permit to the other searches
+     */
+    private int getMaxSearchCursors() {
+        LdapPriorityScheduler scheduler = ldapTemplateWrapper.getBulkScheduler();
+        return scheduler != null ? Math.max(0, Math.min(MAX_SEARCH_CURSORS, scheduler.getPermits() - 1)) : MAX_SEARCH_CURSORS;
+    }
+
+    private void closeSearchCursors() {
+        List<LDAPSearchCursor> cursors;
+        synchronized (searchCursors) {
+            cursors = new ArrayList<>(searchCursors.values());
+            searchCursors.clear();
+        }
+        for (LDAPSearchCursor cursor : cursors) {
+            cursor.close();
+        }
+    }
+
+    private interface SearchCursorFactory {
+        /**
+         * @param permit the scheduler permit held by the cursor, null if the cursor does not outlive the operation
+         */
+        LDAPSearchCursor open(int pageSize, LdapPermit permit);
+    }
+
     @Override
     public boolean verifyPassword(String userName, String userPassword) {
         logger.debug("Verifying password for {}...", userName);
-        DirContext ctx = null;
+        // the users logging in go first, an LdapOverloadException is propagated rather than reported as a wrong login
+        LDAPUserCacheEntry userCacheEntry;
+        LdapPriority previousPriority = LdapPriority.set(LdapPriority.LOGIN);
+        try {
+            userCacheEntry = getUserCacheEntry(userName, true);
+        } finally {
+            LdapPriority.set(previousPriority);
+        }
+        if (!userCacheEntry.getExist()) {
+            return false;
+        }
+        String dn = userCacheEntry.getDn();
+        LdapCredentialCache cache = credentialCache;
+        if (cache != null && userPassword != null && cache.matches(dn, userPassword)) {
+            metrics.recordCredentialCacheAccess(true);
+            logger.debug("Password verified for {} from the credential cache", userName);
+            return true;
+        }
+        LdapCircuitBreaker breaker = circuitBreaker;
+        // the bind is allowed while the circuit is closed, or when it is the probe of a half-open circuit
+        if (breaker != null && !breaker.allowRequest()) {
+            logger.warn("Login failed for user {}: LDAP server {} unavailable", userName, getKey());
+            return false;
+        }
+        LdapBindAuthenticator authenticator = bindAuthenticator;
+        long startTime = System.nanoTime();
         try {
-            LDAPUserCacheEntry userCacheEntry = getUserCacheEntry(userName, true);
-            if (userCacheEntry.getExist()) {
-                long startTime = System.currentTimeMillis();
-                ctx = contextSource.getContext(userCacheEntry.getDn(), userPassword);
-                // Take care here - if a base was specified on the ContextSource
-                // that needs to be removed from the user DN for the lookup to succeed.
-                ctx.lookup(LdapUtils.newLdapName(userCacheEntry.getDn()));
-                logger.debug("Password verified for {} in {} ms", userName, System.currentTimeMillis() - startTime);
-                return true;
+            boolean verified = authenticator != null ? authenticator.authenticate(dn, userPassword) : bind(dn, userPassword);
+            long duration = System.nanoTime() - startTime;
+            // wrong credentials are a normal answer of the LDAP server
+            metrics.recordSuccess(LdapMetrics.VERIFY_PASSWORD, duration, null);
+            if (breaker != null) {
+                breaker.recordSuccess(duration);
+            }
+            if (cache != null) {
+                metrics.recordCredentialCacheAccess(false);
+                if (verified) {
+                    cache.put(dn, userPassword);
+                } else {
+                    cache.invalidate(dn);
+                }
+            }
+            if (verified) {
+                logger.debug("Password verified for {} in {} ms", userName, TimeUnit.NANOSECONDS.toMillis(duration));
+            } else {
+                logger.warn("Login failed for user {}: invalid credentials", userName);
             }
+            return verified;
         } catch (NamingException | org.springframework.ldap.NamingException e) {
-            // Context creation failed - authentication did not succeed
+            long duration = System.nanoTime() - startTime;
+            metrics.recordError(LdapMetrics.VERIFY_PASSWORD, duration, e);
+            if (breaker != null) {
+                breaker.recordError(duration, e);
+            }
             logger.warn("Login failed for user {}: {} (enable debug for full stacktrace)", userName, e.getMessage());
             logger.debug(e.getMessage(), e);
+        }
+        return false;
+    }
+
+    /**
+     * Binds with the credentials of a user on a new connection, when the authentication connections are disabled
+     *
+     * @return true if the server accepted the credentials
+     */
+    private boolean bind(String dn, String password) throws NamingException {
+        if (StringUtils.isEmpty(password)) {
+            // would be accepted as an anonymous bind
+            return false;
+        }
+        DirContext ctx = null;
+        try {
+            ctx = (authContextSource != null ? authContextSource : contextSource).getContext(dn, password);
+            return true;
+        } catch (org.springframework.ldap.AuthenticationException e) {
+            logger.debug("Bind failed for {}: {}", dn, e.getMessage());
+            return false;
         } finally {
             LdapUtils.closeContext(ctx);
         }
-        return false;
     }
 
     @Override
@@ -374,7 +1822,7 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         // do a simple search on users to check the availability
         long startTime = System.currentTimeMillis();
         final Exception[] exception = new Exception[1];
-        boolean available = ldapTemplateWrapper.execute(new BaseLdapActionCallback<Boolean>(getExternalUserGroupService(), getKey()) {
+        boolean available = ldapTemplateWrapper.execute(LdapMetrics.IS_AVAILABLE, new BaseLdapActionCallback<Boolean>(getExternalUserGroupService(), getKey()) {
 
             @Override
             public Boolean doInLdap(LdapTemplate ldapTemplate) {
@@ -393,6 +1841,10 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
             public Boolean onError(Exception e) {
                 super.onError(e);
                 exception[0] = e;
+                // transient errors do not make the provider unavailable until the circuit opens
+                if (circuitBreaker != null) {
+                    return isCircuitClosed();
+                }
                 return timeoutCount.get() < maxLdapTimeoutCountBeforeDisconnect;
             }
         });
@@ -414,7 +1866,7 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         }
         final GroupsNameClassPairCallbackHandler searchNameClassPairCallbackHandler = new GroupsNameClassPairCallbackHandler(isDynamics);
         long startTime = System.currentTimeMillis();
-        final List<String> names = ldapTemplateWrapper.execute(new BaseLdapActionCallback<List<String>>(getExternalUserGroupService(), getKey()) {
+        final List<String> names = ldapTemplateWrapper.execute(LdapMetrics.SEARCH_GROUPS, new BaseLdapActionCallback<List<String>>(getExternalUserGroupService(), getKey()) {
 
             @Override
             public List<String> doInLdap(LdapTemplate ldapTemplate) {
@@ -422,6 +1874,10 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                 return searchNameClassPairCallbackHandler.getNames();
             }
         });
+        if (names == null) {
+            // server unavailable or operation rejected, already logged
+            return Collections.emptyList();
+        }
 
         if (logger.isDebugEnabled()) {
             logger.debug("Search groups for criteria {} using filter {} done in {} ms. Found {} entries.", new Object[]{
@@ -459,7 +1915,7 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
             }
 
             long startTime = System.currentTimeMillis();
-            final List<Member> members = ldapTemplateWrapper.execute(new BaseLdapActionCallback<List<Member>>(getExternalUserGroupService(), getKey()) {
+            final List<Member> members = ldapTemplateWrapper.execute(LdapMetrics.MEMBERS, new BaseLdapActionCallback<List<Member>>(getExternalUserGroupService(), getKey()) {
 
                 @Override
                 public List<Member> doInLdap(LdapTemplate ldapTemplate) {
@@ -486,14 +1942,15 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
      * get the members from a group DN
      *
      * @param groupDN
-     * @return
+     * @return the members, or null if the members could not be read from the LDAP server
      */
     private List<Member> loadMembersFromDN(final String groupDN) {
 
         long startTime = System.currentTimeMillis();
         final LdapName groupName = LdapUtils.newLdapName(groupDN);
+        final Exception[] exceptions = new Exception[1];
 
-        NamingEnumeration<?> members = ldapTemplateWrapper.execute(new BaseLdapActionCallback<NamingEnumeration<?>>(getExternalUserGroupService(), getKey()) {
+        NamingEnumeration<?> members = ldapTemplateWrapper.execute(LdapMetrics.MEMBERS, new BaseLdapActionCallback<NamingEnumeration<?>>(getExternalUserGroupService(), getKey()) {
 
             @Override
             public NamingEnumeration<?> doInLdap(LdapTemplate ldapTemplate) {
@@ -522,20 +1979,43 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                 }
                 return null;
             }
+
+            @Override
+            public NamingEnumeration<?> onError(Exception e) {
+                exceptions[0] = e;
+                return super.onError(e);
+            }
         });
         logger.debug("Load group members {} in {} ms", groupDN, System.currentTimeMillis() - startTime);
+        if (exceptions[0] != null) {
+            return null;
+        }
 
         return loadMembers(members);
     }
 
+    /**
+     * Resolve the members read from a group entry
+     *
+     * @param members the member DNs
+     * @return the members, or null if some of them could not be read from the LDAP server
+     */
     private List<Member> loadMembers(NamingEnumeration<?> members) {
 
         List<Member> memberList = new ArrayList<>();
+        // members not found in the cache, keyed by their position in the member list
+        Map<Integer, String> unresolvedMembers = new LinkedHashMap<>();
         try {
 
             while (members != null && members.hasMore()) {
 
                 final String memberNaming = (String) members.next();
+                try {
+                    LdapUtils.newLdapName(memberNaming);
+                } catch (org.springframework.ldap.InvalidNameException e) {
+                    logger.warn("Skipping invalid member DN {}: {}", memberNaming, e.getMessage());
+                    continue;
+                }
                 // try to know if we deal with a group or a user
                 Boolean isUser = null;
                 if (userConfig.isCanGroupContainSubGroups()) {
@@ -580,39 +2060,212 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                     }
                 }
 
-                // do queries
-                // and cache the result
-                Member member = null;
-                LDAPUserCacheEntry userCacheEntry = getUserCacheEntryByDN(memberNaming, true);
-                if (userCacheEntry == null) {
-                    // look in groups
-                    LDAPGroupCacheEntry groupCacheEntry = getGroupCacheEntryByDN(memberNaming, true, false);
-                    if (groupCacheEntry == null) {
-                        if (groupConfig.isDynamicEnabled()) {
-                            // look in dynamic groups
-                            groupCacheEntry = getGroupCacheEntryByDN(memberNaming, true, true);
-                            if (groupCacheEntry != null) {
-                                member = new Member(groupCacheEntry.getName(), Member.MemberType.GROUP);
-                            }
-                        }
-                    } else {
-                        member = new Member(groupCacheEntry.getName(), Member.MemberType.GROUP);
-                    }
-                } else {
-                    member = new Member(userCacheEntry.getName(), Member.MemberType.USER);
-                }
-
-                if (member != null) {
-                    memberList.add(member);
-                }
+                // keep a slot, the member will be resolved with the other unknown members
+                unresolvedMembers.put(memberList.size(), memberNaming);
+                memberList.add(null);
             }
         } catch (NamingException e) {
             logger.error("Error retrieving LDAP group members for group", e);
+            return null;
+        }
+
+        if (!unresolvedMembers.isEmpty()) {
+            // do queries
+            // and cache the result
+            Map<LdapName, Member> resolvedMembers = resolveMembersFromDN(unresolvedMembers.values());
+            if (resolvedMembers == null) {
+                // a partial list of members must be neither cached nor indexed
+                return null;
+            }
+            for (Map.Entry<Integer, String> unresolvedMember : unresolvedMembers.entrySet()) {
+                memberList.set(unresolvedMember.getKey(), resolvedMembers.get(LdapUtils.newLdapName(unresolvedMember.getValue())));
+            }
+            memberList.removeAll(Collections.singleton(null));
         }
 
         return memberList;
     }
 
+    /**
+     * Resolve the given member DNs as users or groups, querying the LDAP server by batches of
+     * {@link GroupConfig#getMembersBatchSize()} DNs. The resolved entries are cached.
+     *
+     * @param memberDns the DNs to resolve
+     * @return the resolved members, keyed by DN. DNs not matching any user or group are not part of the map. Null
+     * if a batch search failed
+     */
+    private Map<LdapName, Member> resolveMembersFromDN(Collection<String> memberDns) {
+        Map<LdapName, Member> resolvedMembers = new HashMap<>();
+        int batchSize = groupConfig.getMembersBatchSize();
+        if (batchSize < 2) {
+            for (String memberDn : memberDns) {
+                Member member = resolveMemberFromDN(memberDn);
+                if (member != null) {
+                    resolvedMembers.put(LdapUtils.newLdapName(memberDn), member);
+                }
+            }
+            return resolvedMembers;
+        }
+
+        // a batch search can only match entries located under the users or groups base
+        LdapName userBase = StringUtils.isNotEmpty(userConfig.getUidSearchName()) ? LdapUtils.newLdapName(userConfig.getUidSearchName()) : null;
+        LdapName groupBase = StringUtils.isNotEmpty(groupConfig.getSearchName()) ? LdapUtils.newLdapName(groupConfig.getSearchName()) : null;
+        List<LdapName> userDns = new ArrayList<>();
+        List<LdapName> groupDns = new ArrayList<>();
+        List<String> otherDns = new ArrayList<>();
+        for (String memberDn : memberDns) {
+            LdapName memberName = LdapUtils.newLdapName(memberDn);
+            boolean inUserBase = userBase != null && memberName.size() > userBase.size() && memberName.startsWith(userBase);
+            boolean inGroupBase = groupBase != null && memberName.size() > groupBase.size() && memberName.startsWith(groupBase);
+            if (inUserBase) {
+                userDns.add(memberName);
+            }
+            if (inGroupBase) {
+                groupDns.add(memberName);
+            }
+            if (!inUserBase && !inGroupBase) {
+                otherDns.add(memberDn);
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        for (List<LdapName> batch : Lists.partition(userDns, batchSize)) {
+            Map<LdapName, Member> batchMembers = searchMembersByDN(batch, true);
+            if (batchMembers == null) {
+                return null;
+            }
+            resolvedMembers.putAll(batchMembers);
+        }
+        for (List<LdapName> batch : Lists.partition(groupDns, batchSize)) {
+            // a DN matching both bases may already be resolved as a user
+            List<LdapName> remaining = new ArrayList<>(batch);
+            remaining.removeAll(resolvedMembers.keySet());
+            if (!remaining.isEmpty()) {
+                Map<LdapName, Member> batchMembers = searchMembersByDN(remaining, false);
+                if (batchMembers == null) {
+                    return null;
+                }
+                resolvedMembers.putAll(batchMembers);
+            }
+        }
+        for (String memberDn : otherDns) {
+            Member member = resolveMemberFromDN(memberDn);
+            if (member != null) {
+                resolvedMembers.put(LdapUtils.newLdapName(memberDn), member);
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Resolved {} members out of {} DNs in {} ms", new Object[]{
+                resolvedMembers.size(), memberDns.size(), System.currentTimeMillis() - startTime});
+        }
+
+        return resolvedMembers;
+    }
+
+    /**
+     * Resolve a batch of DNs with a single search, matching the entries on the RDN of each DN.
+     *
+     * @param dns the DNs to resolve
+     * @param isUserBase true to search under the users base, false to search under the groups base
+     * @return the resolved members, keyed by DN, or null if the search failed
+     */
+    private Map<LdapName, Member> searchMembersByDN(final List<LdapName> dns, final boolean isUserBase) {
+
+        final Set<String> attrs = new HashSet<>();
+        final OrFilter objectclassFilter = new OrFilter();
+        Filter predefinedFilter;
+        if (isUserBase) {
+            attrs.addAll(getUserAttributes());
+            objectclassFilter.or(new EqualsFilter(OBJECTCLASS_ATTRIBUTE, userConfig.getSearchObjectclass()));
+            predefinedFilter = userConfig.getSearchFilter() != null ? new HardcodedFilter(userConfig.getSearchFilter()) : null;
+        } else {
+            attrs.addAll(getGroupAttributes(groupConfig.isDynamicEnabled()));
+            objectclassFilter.or(new EqualsFilter(OBJECTCLASS_ATTRIBUTE, groupConfig.getSearchObjectclass()));
+            if (groupConfig.isDynamicEnabled()) {
+                objectclassFilter.or(new EqualsFilter(OBJECTCLASS_ATTRIBUTE, groupConfig.getDynamicSearchObjectclass()));
+            }
+            predefinedFilter = groupConfig.getSearchFilter() != null ? new HardcodedFilter(groupConfig.getSearchFilter()) : null;
+        }
+        attrs.add(OBJECTCLASS_ATTRIBUTE);
+
+        final OrFilter rdnFilter = new OrFilter();
+        for (LdapName dn : dns) {
+            AndFilter rdnValuesFilter = new AndFilter();
+            NamingEnumeration<? extends Attribute> rdnAttributes = dn.getRdn(dn.size() - 1).toAttributes().getAll();
+            while (rdnAttributes.hasMoreElements()) {
+                Attribute rdnAttribute = rdnAttributes.nextElement();
+                try {
+                    rdnValuesFilter.and(new EqualsFilter(rdnAttribute.getID(), rdnAttribute.get().toString()));
+                } catch (NamingException e) {
+                    logger.warn("Unable to read RDN value of {}", dn);
+                }
+            }
+            rdnFilter.or(rdnValuesFilter);
+        }
+
+        final AndFilter filter = new AndFilter().and(objectclassFilter).and(rdnFilter);
+        if (predefinedFilter != null) {
+            filter.and(predefinedFilter);
+        }
+
+        final String base = isUserBase ? userConfig.getUidSearchName() : groupConfig.getSearchName();
+        final MembersByDNNameClassPairCallbackHandler nameClassPairCallbackHandler = new MembersByDNNameClassPairCallbackHandler(new HashSet<>(dns));
+        long startTime = System.currentTimeMillis();
+        Boolean searched = ldapTemplateWrapper.execute(LdapMetrics.MEMBERS, new BaseLdapActionCallback<Boolean>(getExternalUserGroupService(), getKey()) {
+
+            @Override
+            public Boolean doInLdap(LdapTemplate ldapTemplate) {
+                ldapTemplate.search(query().base(base)
+                        .attributes(attrs.toArray(new String[attrs.size()]))
+                        .filter(filter),
+                        nameClassPairCallbackHandler);
+                return true;
+            }
+        });
+        if (searched == null) {
+            logger.warn("Unable to search {} members by DN under {}, the group members are not cached", dns.size(), base);
+            return null;
+        }
+        ldapCacheManager.cacheUsers(getKey(), nameClassPairCallbackHandler.getUserCacheEntries());
+        ldapCacheManager.cacheGroups(getKey(), nameClassPairCallbackHandler.getGroupCacheEntries());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Search {} members by DN under {} in {} ms. Found {} entries.", new Object[]{
+                dns.size(), base, System.currentTimeMillis() - startTime, nameClassPairCallbackHandler.getMembers().size()});
+        }
+
+        return nameClassPairCallbackHandler.getMembers();
+    }
+
+    /**
+     * Resolve a single member DN as a user, a group or a dynamic group, querying the LDAP server for each type.
+     * The resolved entry is cached.
+     *
+     * @param memberNaming the member DN
+     * @return the member, or null if the DN does not match any user or group
+     */
+    private Member resolveMemberFromDN(String memberNaming) {
+        Member member = null;
+        LDAPUserCacheEntry userCacheEntry = getUserCacheEntryByDN(memberNaming, true);
+        if (userCacheEntry == null) {
+            // look in groups
+            LDAPGroupCacheEntry groupCacheEntry = getGroupCacheEntryByDN(memberNaming, true, false);
+            if (groupCacheEntry == null) {
+                if (groupConfig.isDynamicEnabled()) {
+                    // look in dynamic groups
+                    groupCacheEntry = getGroupCacheEntryByDN(memberNaming, true, true);
+                    if (groupCacheEntry != null) {
+                        member = new Member(groupCacheEntry.getName(), Member.MemberType.GROUP);
+                    }
+                }
+            } else {
+                member = new Member(groupCacheEntry.getName(), Member.MemberType.GROUP);
+            }
+        } else {
+            member = new Member(userCacheEntry.getName(), Member.MemberType.USER);
+        }
+        return member;
+    }
+
     /**
      * Retrieve the cache entry for a given username, if not found create a new one, and cache it if the param "cache" set to true
      *
@@ -620,7 +2273,36 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
      * @param cache
      * @return
      */
-    private LDAPUserCacheEntry getUserCacheEntry(final String userName, boolean cache) {
+    private LDAPUserCacheEntry getUserCacheEntry(final String userName, final boolean cache) {
+        LDAPUserCacheEntry userCacheEntry = getCachedUserCacheEntry(userName);
+        if (userCacheEntry != null) {
+            return userCacheEntry;
+        }
+        return requestCoalescer.execute("user/" + cache + "/" + userName, new Callable<LDAPUserCacheEntry>() {
+            @Override
+            public LDAPUserCacheEntry call() {
+                return loadUserCacheEntry(userName, cache);
+            }
+        });
+    }
+
+    /**
+     * @return the complete cache entry of the user, scheduling its refresh if it is stale, or null if it is not cached
+     */
+    private LDAPUserCacheEntry getCachedUserCacheEntry(String userName) {
+        LDAPUserCacheEntry userCacheEntry = ldapCacheManager.getUserCacheEntryByName(getKey(), userName);
+        if (userCacheEntry != null && userCacheEntry.getExist() != null && (!userCacheEntry.getExist() || userCacheEntry.getUser() != null)) {
+            LDAPCacheRefresher refresher = cacheRefresher;
+            // keep serving the stale entry while the server is unavailable
+            if (refresher != null && refresher.isStale(userCacheEntry.getLoadedAt()) && isCircuitClosed()) {
+                refreshUserCacheEntry(refresher, userCacheEntry);
+            }
+            return userCacheEntry;
+        }
+        return null;
+    }
+
+    private LDAPUserCacheEntry loadUserCacheEntry(final String userName, boolean cache) {
 
         LDAPUserCacheEntry userCacheEntry = ldapCacheManager.getUserCacheEntryByName(getKey(), userName);
         if (userCacheEntry != null) {
@@ -630,12 +2312,30 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                 return userCacheEntry;
             }
         }
+        LDAPUserCacheEntry loadedCacheEntry = searchUserCacheEntry(userName, userCacheEntry, cache);
+        if (loadedCacheEntry == null) {
+            // LDAP server unavailable, the entry is not cached
+            loadedCacheEntry = new LDAPUserCacheEntry(userName);
+            loadedCacheEntry.setExist(false);
+        }
+        return loadedCacheEntry;
+    }
 
+    /**
+     * Read a user from the LDAP server
+     *
+     * @param userName the user name
+     * @param userCacheEntry the incomplete cache entry to populate, or null
+     * @param cache true to cache the entry
+     * @return the user cache entry, or null if the LDAP server could not be queried
+     * @throws LdapOverloadException if the search was rejected, the user may exist
+     */
+    private LDAPUserCacheEntry searchUserCacheEntry(final String userName, LDAPUserCacheEntry userCacheEntry, boolean cache) {
         final List<String> userAttrs = getUserAttributes();
         final UserNameClassPairCallbackHandler nameClassPairCallbackHandler = new UserNameClassPairCallbackHandler(userCacheEntry);
         long startTime = System.currentTimeMillis();
 
-        boolean validLdapCall = ldapTemplateWrapper.execute(new BaseLdapActionCallback<Boolean>(getExternalUserGroupService(), getKey()) {
+        boolean validLdapCall = ldapTemplateWrapper.execute(LdapMetrics.GET_USER, new BaseLdapActionCallback<Boolean>(getExternalUserGroupService(), getKey()) {
             @Override
             public Boolean doInLdap(LdapTemplate ldapTemplate) {
                 ldapTemplate.search(applyPredefinedUserFilter(query().base(userConfig.getUidSearchName())
@@ -649,22 +2349,30 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
             @Override
             public Boolean onError(Exception e) {
                 super.onError(e);
+                if (e instanceof LdapOverloadException) {
+                    // not an answer of the server, must not be reported or cached as an unknown user
+                    throw (LdapOverloadException) e;
+                }
                 return false;
             }
         });
         if (logger.isDebugEnabled()) {
             logger.debug("Get user {} in {} ms", userName, System.currentTimeMillis() - startTime);
         }
+        if (!validLdapCall) {
+            return null;
+        }
 
         if (nameClassPairCallbackHandler.getCacheEntry() != null) {
             userCacheEntry = nameClassPairCallbackHandler.getCacheEntry();
             userCacheEntry.setExist(true);
+            userCacheEntry.setLoadedAt(System.currentTimeMillis());
         } else {
             userCacheEntry = new LDAPUserCacheEntry(userName);
             userCacheEntry.setExist(false);
         }
 
-        if (cache && validLdapCall) {
+        if (cache) {
             ldapCacheManager.cacheUser(getKey(), userCacheEntry);
         }
 
@@ -678,7 +2386,36 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
      * @param cache
      * @return
      */
-    private LDAPGroupCacheEntry getGroupCacheEntry(String groupName, boolean cache) {
+    private LDAPGroupCacheEntry getGroupCacheEntry(final String groupName, final boolean cache) {
+        LDAPGroupCacheEntry groupCacheEntry = getCachedGroupCacheEntry(groupName);
+        if (groupCacheEntry != null) {
+            return groupCacheEntry;
+        }
+        return requestCoalescer.execute("group/" + cache + "/" + groupName, new Callable<LDAPGroupCacheEntry>() {
+            @Override
+            public LDAPGroupCacheEntry call() {
+                return loadGroupCacheEntry(groupName, cache);
+            }
+        });
+    }
+
+    /**
+     * @return the complete cache entry of the group, scheduling its refresh if it is stale, or null if it is not cached
+     */
+    private LDAPGroupCacheEntry getCachedGroupCacheEntry(String groupName) {
+        LDAPGroupCacheEntry groupCacheEntry = ldapCacheManager.getGroupCacheEntryName(getKey(), groupName);
+        if (groupCacheEntry != null && groupCacheEntry.getExist() != null && (!groupCacheEntry.getExist() || groupCacheEntry.getGroup() != null)) {
+            LDAPCacheRefresher refresher = cacheRefresher;
+            // keep serving the stale entry while the server is unavailable
+            if (refresher != null && refresher.isStale(groupCacheEntry.getLoadedAt()) && isCircuitClosed()) {
+                refreshGroupCacheEntry(refresher, groupCacheEntry);
+            }
+            return groupCacheEntry;
+        }
+        return null;
+    }
+
+    private LDAPGroupCacheEntry loadGroupCacheEntry(String groupName, boolean cache) {
 
         LDAPGroupCacheEntry groupCacheEntry = ldapCacheManager.getGroupCacheEntryName(getKey(), groupName);
         if (groupCacheEntry != null) {
@@ -688,7 +2425,25 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                 return groupCacheEntry;
             }
         }
+        LDAPGroupCacheEntry loadedCacheEntry = searchGroupCacheEntry(groupName, cache);
+        if (loadedCacheEntry == null) {
+            // LDAP server unavailable, the entry is not cached
+            loadedCacheEntry = new LDAPGroupCacheEntry(groupName);
+            loadedCacheEntry.setExist(false);
+        }
+        return loadedCacheEntry;
+    }
 
+    /**
+     * Read a group from the LDAP server
+     *
+     * @param groupName the group name
+     * @param cache true to cache the entry
+     * @return the group cache entry, or null if the LDAP server could not be queried
+     * @throws LdapOverloadException if the search was rejected, the group may exist
+     */
+    private LDAPGroupCacheEntry searchGroupCacheEntry(String groupName, boolean cache) {
+        LDAPGroupCacheEntry groupCacheEntry;
         try {
             groupCacheEntry = getGroupCacheEntryByName(groupName, false, false);
             if (groupCacheEntry == null) {
@@ -699,11 +2454,17 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
                     groupCacheEntry.setExist(false);
                 }
             }
+        } catch (LdapOverloadException e) {
+            throw e;
         } catch (Exception e) {
             // Exception already logged, skip cache and return null
             return null;
         }
 
+        if (groupCacheEntry.getExist()) {
+            // the group may have been created after the preload
+            membershipIndex.addExpectedGroup(groupName);
+        }
         if (cache) {
             ldapCacheManager.cacheGroup(getKey(), groupCacheEntry);
         }
@@ -726,7 +2487,7 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         long startTime = System.currentTimeMillis();
         final Exception[] exceptions = new Exception[1];
 
-        boolean validLdapCall = ldapTemplateWrapper.execute(new BaseLdapActionCallback<Boolean>(getExternalUserGroupService(), getKey()) {
+        boolean validLdapCall = ldapTemplateWrapper.execute(LdapMetrics.GET_GROUP, new BaseLdapActionCallback<Boolean>(getExternalUserGroupService(), getKey()) {
 
             @Override
             public Boolean doInLdap(LdapTemplate ldapTemplate) {
@@ -769,7 +2530,7 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         final List<String> groupAttrs = getGroupAttributes(isDynamic);
         final GroupNameClassPairCallbackHandler nameClassPairCallbackHandler = new GroupNameClassPairCallbackHandler(null, isDynamic);
         long startTime = System.currentTimeMillis();
-        final LDAPGroupCacheEntry groupCacheEntry = ldapTemplateWrapper.execute(new BaseLdapActionCallback<LDAPGroupCacheEntry>(getExternalUserGroupService(), getKey()) {
+        final LDAPGroupCacheEntry groupCacheEntry = ldapTemplateWrapper.execute(LdapMetrics.GET_GROUP_BY_DN, new BaseLdapActionCallback<LDAPGroupCacheEntry>(getExternalUserGroupService(), getKey()) {
 
             @Override
             public LDAPGroupCacheEntry doInLdap(LdapTemplate ldapTemplate) {
@@ -810,7 +2571,7 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
 
         final List<String> userAttrs = getUserAttributes();
         long startTime = System.currentTimeMillis();
-        final LDAPUserCacheEntry userCacheEntry = ldapTemplateWrapper.execute(new BaseLdapActionCallback<LDAPUserCacheEntry>(getExternalUserGroupService(), getKey()) {
+        final LDAPUserCacheEntry userCacheEntry = ldapTemplateWrapper.execute(LdapMetrics.GET_USER_BY_DN, new BaseLdapActionCallback<LDAPUserCacheEntry>(getExternalUserGroupService(), getKey()) {
 
             @Override
             public LDAPUserCacheEntry doInLdap(LdapTemplate ldapTemplate) {
@@ -917,12 +2678,46 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         }
     }
 
+    /**
+     * Callback handler reading the values of an attribute
+     */
+    private static class AttributeValuesCallbackHandler implements NameClassPairCallbackHandler {
+
+        private final String attribute;
+        private final List<String> values;
+
+        private AttributeValuesCallbackHandler(String attribute, List<String> values) {
+            this.attribute = attribute;
+            this.values = values;
+        }
+
+        @Override
+        public void handleNameClassPair(NameClassPair nameClassPair) throws NamingException {
+            if (nameClassPair instanceof SearchResult) {
+                Attribute values = ((SearchResult) nameClassPair).getAttributes().get(attribute);
+                for (int i = 0; values != null && i < values.size(); i++) {
+                    this.values.add(values.get(i).toString());
+                }
+            } else {
+                logger.error("Unexpected NameClassPair {} in {}", nameClassPair, getClass().getName());
+            }
+        }
+    }
+
     /**
      * Callback handler for users, retrieve the list of usernames
      */
     private class UsersNameClassPairCallbackHandler implements NameClassPairCallbackHandler {
 
-        private List<String> names = new ArrayList<>();
+        private List<String> names;
+
+        private UsersNameClassPairCallbackHandler() {
+            this(new ArrayList<String>());
+        }
+
+        private UsersNameClassPairCallbackHandler(List<String> names) {
+            this.names = names;
+        }
 
         public List<String> getNames() {
             return names;
@@ -955,7 +2750,7 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
      */
     private class GroupsNameClassPairCallbackHandler implements NameClassPairCallbackHandler {
 
-        private List<String> names = new LinkedList<>();
+        private List<String> names;
         private boolean isDynamic;
 
         public List<String> getNames() {
@@ -963,7 +2758,12 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         }
 
         private GroupsNameClassPairCallbackHandler(boolean isDynamic) {
+            this(isDynamic, new LinkedList<String>());
+        }
+
+        private GroupsNameClassPairCallbackHandler(boolean isDynamic, List<String> names) {
             this.isDynamic = isDynamic;
+            this.names = names;
         }
 
         @Override
@@ -1109,6 +2909,70 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         }
     }
 
+    /**
+     * Callback handler for members searched by DN, resolve the entries as users or groups based on their objectclass
+     */
+    private class MembersByDNNameClassPairCallbackHandler implements NameClassPairCallbackHandler {
+
+        private final Set<LdapName> dns;
+        private final Map<LdapName, Member> members = new HashMap<>();
+        private final List<LDAPUserCacheEntry> userCacheEntries = new ArrayList<>();
+        private final List<LDAPGroupCacheEntry> groupCacheEntries = new ArrayList<>();
+
+        private MembersByDNNameClassPairCallbackHandler(Set<LdapName> dns) {
+            this.dns = dns;
+        }
+
+        public Map<LdapName, Member> getMembers() {
+            return members;
+        }
+
+        public List<LDAPUserCacheEntry> getUserCacheEntries() {
+            return userCacheEntries;
+        }
+
+        public List<LDAPGroupCacheEntry> getGroupCacheEntries() {
+            return groupCacheEntries;
+        }
+
+        @Override
+        public void handleNameClassPair(NameClassPair nameClassPair) throws NamingException {
+            if (nameClassPair instanceof SearchResult) {
+                SearchResult searchResult = (SearchResult) nameClassPair;
+                LdapName dn = LdapUtils.newLdapName(searchResult.getNameInNamespace());
+                if (!dns.contains(dn) || members.containsKey(dn)) {
+                    // another entry sharing the same RDN
+                    return;
+                }
+
+                List<String> objectclasses = new ArrayList<>();
+                LdapUtils.collectAttributeValues(searchResult.getAttributes(), OBJECTCLASS_ATTRIBUTE, objectclasses, String.class);
+                if (containsIgnoreCase(objectclasses, userConfig.getSearchObjectclass())) {
+                    UserNameClassPairCallbackHandler userNameClassPairCallbackHandler = new UserNameClassPairCallbackHandler(null);
+                    userNameClassPairCallbackHandler.handleNameClassPair(nameClassPair);
+                    LDAPUserCacheEntry userCacheEntry = userNameClassPairCallbackHandler.getCacheEntry();
+                    if (userCacheEntry != null) {
+                        userCacheEntries.add(userCacheEntry);
+                        members.put(dn, new Member(userCacheEntry.getName(), Member.MemberType.USER));
+                    }
+                } else if (searchResult.getAttributes().get(groupConfig.getSearchAttribute()) == null) {
+                    logger.warn("LDAP group entry {} is missing the required {} attribute. Skipping member.", dn, groupConfig.getSearchAttribute());
+                } else {
+                    boolean isDynamic = !containsIgnoreCase(objectclasses, groupConfig.getSearchObjectclass());
+                    GroupNameClassPairCallbackHandler groupNameClassPairCallbackHandler = new GroupNameClassPairCallbackHandler(null, isDynamic);
+                    groupNameClassPairCallbackHandler.handleNameClassPair(nameClassPair);
+                    LDAPGroupCacheEntry groupCacheEntry = groupNameClassPairCallbackHandler.getCacheEntry();
+                    if (groupCacheEntry != null) {
+                        groupCacheEntries.add(groupCacheEntry);
+                        members.put(dn, new Member(groupCacheEntry.getName(), Member.MemberType.GROUP));
+                    }
+                }
+            } else {
+                logger.error("Unexpected NameClassPair {} in {}", nameClassPair, getClass().getName());
+            }
+        }
+    }
+
     /**
      * Populate the given cache entry or create new one if the given is null with the LDAP attributes
      *
@@ -1131,6 +2995,26 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         }
         userCacheEntry.setExist(true);
         userCacheEntry.setUser(jahiaUser);
+        DynamicGroups groups = groupConfig.isDynamicEnabled() ? dynamicGroups : null;
+        if (groups != null && !groups.attributes.isEmpty()) {
+            // keep the attributes used by the dynamic groups filters, absent ones are stored as empty
+            Map<String, List<String>> ldapAttributes = new HashMap<>();
+            for (String attributeName : groups.attributes) {
+                List<String> values = new ArrayList<>();
+                Attribute attribute = attrs.get(attributeName);
+                if (attribute != null) {
+                    NamingEnumeration<?> all = attribute.getAll();
+                    while (all.hasMore()) {
+                        Object value = all.next();
+                        if (value instanceof String) {
+                            values.add((String) value);
+                        }
+                    }
+                }
+                ldapAttributes.put(attributeName, values);
+            }
+            userCacheEntry.setLdapAttributes(ldapAttributes);
+        }
         return userCacheEntry;
     }
 
@@ -1425,6 +3309,14 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
     private List<String> getUserAttributes() {
         List<String> attrs = new ArrayList<>(userConfig.getAttributesMapper().values());
         attrs.add(userConfig.getUidSearchAttribute());
+        DynamicGroups groups = groupConfig.isDynamicEnabled() ? dynamicGroups : null;
+        if (groups != null) {
+            for (String attribute : groups.attributes) {
+                if (!containsIgnoreCase(attrs, attribute)) {
+                    attrs.add(attribute);
+                }
+            }
+        }
         return attrs;
     }
 
@@ -1455,6 +3347,15 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         return commons;
     }
 
+    private static boolean containsIgnoreCase(Collection<String> values, String value) {
+        for (String v : values) {
+            if (v.equalsIgnoreCase(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void setLdapTemplateWrapper(LdapTemplateWrapper ldapTemplateWrapper) {
         this.ldapTemplateWrapper = ldapTemplateWrapper;
     }
@@ -1466,10 +3367,29 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
         return null;
     }
 
-    public void setContextSource(LdapContextSource contextSource) {
+    /**
+     * @param configHash the hash of the provider configuration, see {@link LDAPCacheManager#openSnapshot(String, File, String)}
+     */
+    public void setConfigHash(String configHash) {
+        this.configHash = configHash;
+    }
+
+    public void setContextSource(ContextSource contextSource) {
         this.contextSource = contextSource;
     }
 
+    public void setAuthContextSource(ContextSource authContextSource) {
+        this.authContextSource = authContextSource;
+    }
+
+    /**
+     * @param authenticationEnvironment the JNDI environment of the authentication connections, see
+     * {@link LdapBindAuthenticator}
+     */
+    public void setAuthenticationEnvironment(Hashtable<String, Object> authenticationEnvironment) {
+        this.authenticationEnvironment = authenticationEnvironment;
+    }
+
     @Override
     protected String getSiteKey() {
         return userConfig.getTargetSite();
@@ -1562,14 +3482,24 @@ public class LDAPUserGroupProvider extends BaseUserGroupProvider {
 
         @Override
         public T onError(Exception e)  {
+            if (e instanceof LdapCircuitOpenException) {
+                // the circuit breaker already reported the server as unavailable
+                logger.debug("LDAP server {} unavailable, operation skipped", key);
+                return null;
+            }
+            if (e instanceof LdapOverloadException) {
+                // the server is fine, the provider has too many operations waiting
+                logger.warn("LDAP operation of provider {} rejected: {}", key, e.getMessage());
+                return null;
+            }
             final Throwable cause = e.getCause();
             logger.error("An error occurred while communicating with the LDAP server " + key, e);
-            if (cause instanceof javax.naming.CommunicationException || cause instanceof javax.naming.NamingException || cause instanceof CommunicationException || cause instanceof ServiceUnavailableException || cause instanceof InsufficientResourcesException) {
-                if (timeoutCount.incrementAndGet() >= maxLdapTimeoutCountBeforeDisconnect) {
-                    externalUserGroupService.setMountStatus(key, JCRMountPointNode.MountStatus.waiting, cause.getMessage());
-                }
-            } else {
+            if (!(cause instanceof javax.naming.NamingException) && !LdapCircuitBreaker.isCommunicationError(e)) {
                 externalUserGroupService.setMountStatus(key, JCRMountPointNode.MountStatus.error, e.getMessage());
+            } else if (circuitBreaker == null && timeoutCount.incrementAndGet() >= maxLdapTimeoutCountBeforeDisconnect) {
+                // communication errors are tracked by the circuit breaker when enabled, which sets the waiting state
+                externalUserGroupService.setMountStatus(key, JCRMountPointNode.MountStatus.waiting,
+                        cause != null ? cause.getMessage() : e.getMessage());
             }
             return null;
         }
@@ -15,6 +15,9 @@
  */
 package org.jahia.services.usermanager.ldap.cache;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
 
@@ -22,12 +25,13 @@ import java.util.List;
  * @author kevan
  */
 public abstract class LDAPAbstractCacheEntry implements Serializable{
-    private static final long serialVersionUID = -6551768615414069547L;
+    private static final long serialVersionUID = 3210884263466412372L;
 
     private Boolean exist = false;
     private String name;
     private String dn;
-    private List<String> memberships;
+    private String[] memberships;
+    private long loadedAt = System.currentTimeMillis();
 
     public Boolean getExist() {
         return exist;
@@ -42,15 +46,18 @@ public abstract class LDAPAbstractCacheEntry implements Serializable{
     }
 
     public void setName(String name) {
-        this.name = name;
+        this.name = LDAPCacheStrings.intern(name);
     }
 
+    /**
+     * @return a read-only list of the groups the entry is a member of, null if not loaded
+     */
     public List<String> getMemberships() {
-        return memberships;
+        return LDAPCacheStrings.asList(memberships);
     }
 
     public void setMemberships(List<String> memberships) {
-        this.memberships = memberships;
+        this.memberships = LDAPCacheStrings.toArray(memberships);
     }
 
     public String getDn() {
@@ -60,4 +67,34 @@ public abstract class LDAPAbstractCacheEntry implements Serializable{
     public void setDn(String dn) {
         this.dn = dn;
     }
+
+    /**
+     * @return the time at which the entry was read from the LDAP server
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    public void setLoadedAt(long loadedAt) {
+        this.loadedAt = loadedAt;
+    }
+
+    /**
+     * Writes the entry fields in the binary form of {@link LDAPCacheCodec}
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeBoolean(Boolean.TRUE.equals(exist));
+        LDAPCacheCodec.writeString(out, name);
+        LDAPCacheCodec.writeString(out, dn);
+        LDAPCacheCodec.writeStrings(out, memberships);
+        out.writeLong(loadedAt);
+    }
+
+    void readFrom(DataInput in) throws IOException {
+        exist = in.readBoolean();
+        setName(LDAPCacheCodec.readString(in));
+        dn = LDAPCacheCodec.readString(in);
+        memberships = LDAPCacheCodec.readStrings(in, true);
+        loadedAt = in.readLong();
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary form of the cache entries, used to store them outside of the heap.
+ * <p>
+ * Unlike the Java serialization, no class descriptor is written: an entry is a type byte followed by its fields, the
+ * strings being written as their UTF-8 bytes prefixed by their length.
+ */
+public final class LDAPCacheCodec {
+
+    private static final byte USER = 1;
+    private static final byte GROUP = 2;
+
+    private LDAPCacheCodec() {
+    }
+
+    /**
+     * @param entry the cache entry
+     * @return the binary form of the entry
+     */
+    public static byte[] encode(LDAPAbstractCacheEntry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            write(new DataOutputStream(bytes), entry);
+        } catch (IOException e) {
+            // cannot happen when writing to an array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param data the binary form of the entry, as returned by {@link #encode(LDAPAbstractCacheEntry)}
+     * @return a new cache entry
+     * @throws IOException if the data is not a valid entry
+     */
+    public static LDAPAbstractCacheEntry decode(byte[] data) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    public static void write(DataOutput out, LDAPAbstractCacheEntry entry) throws IOException {
+        out.writeByte(entry instanceof LDAPGroupCacheEntry ? GROUP : USER);
+        entry.writeTo(out);
+    }
+
+    public static LDAPAbstractCacheEntry read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        LDAPAbstractCacheEntry entry;
+        if (type == USER) {
+            entry = new LDAPUserCacheEntry(null);
+        } else if (type == GROUP) {
+            entry = new LDAPGroupCacheEntry(null);
+        } else {
+            throw new IOException("Unknown cache entry type " + type);
+        }
+        entry.readFrom(in);
+        return entry;
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeStrings(DataOutput out, String[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    static String[] readStrings(DataInput in, boolean intern) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        String[] values = new String[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = intern ? LDAPCacheStrings.intern(readString(in)) : readString(in);
+        }
+        return values;
+    }
+
+    /**
+     * Reads properties flattened with {@link LDAPCacheStrings#toArray(java.util.Properties)}, interning their names
+     */
+    static String[] readProperties(DataInput in) throws IOException {
+        String[] values = readStrings(in, false);
+        if (values != null) {
+            for (int i = 0; i < values.length; i += 2) {
+                values[i] = LDAPCacheStrings.intern(values[i]);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+/**
+ * Listener notified when entries of a provider are removed from the LDAP group cache, explicitly or because they
+ * expired or were evicted.
+ */
+public interface LDAPCacheListener {
+
+    /**
+     * Called when a group entry is removed from the cache
+     * @param groupCacheEntry the removed entry
+     */
+    void groupRemoved(LDAPGroupCacheEntry groupCacheEntry);
+
+    /**
+     * Called when the whole cache is flushed
+     */
+    void cacheCleared();
+}
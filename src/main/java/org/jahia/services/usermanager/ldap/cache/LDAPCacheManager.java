@@ -20,18 +20,43 @@ import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
 import org.jahia.services.SpringContextSingleton;
 import org.jahia.services.cache.CacheHelper;
 import org.jahia.services.cache.ModuleClassLoaderAwareCacheEntry;
 import org.jahia.services.cache.ehcache.EhCacheProvider;
+import org.jahia.services.usermanager.ldap.communication.LdapPriority;
+import org.jahia.services.usermanager.ldap.metrics.LdapCacheRegionMetrics;
+import org.jahia.services.usermanager.ldap.metrics.LdapMetrics;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * Helper class for LDAP provider related caches.
+ * <p>
+ * Each provider has its own user and group cache regions, named {@link #LDAP_USER_CACHE} and {@link #LDAP_GROUP_CACHE}
+ * followed by the provider key, so that the entries of a provider are never evicted by the ones of another provider.
+ * The entries are cached once, under their DN, with an index of the names to the DNs that follows the evictions of the
+ * cache. The entries of non existing objects, which have no DN, are cached under their name.
  *
  * @author kevan
  */
@@ -42,100 +67,986 @@ public class LDAPCacheManager {
 
     private static Logger logger = LoggerFactory.getLogger(LDAPCacheManager.class);
 
-    private Ehcache groupCache;
-    private Ehcache userCache;
+    private static final int SNAPSHOT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_TIME_TO_IDLE = 3600;
+
+    private CacheManager cacheManager;
+
+    // cache regions and their settings, keyed by provider key
+    private final ConcurrentMap<String, Ehcache> userCaches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Ehcache> groupCaches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RegionSettings> regionSettings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CacheEventListener> regionListeners = new ConcurrentHashMap<>();
+    // names to DNs of the cached entries, keyed by region name
+    private final ConcurrentMap<String, ConcurrentMap<String, String>> nameIndexes = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LdapMetrics> metrics = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<LDAPCacheListener>> listeners = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LDAPMappedCacheStore> userStores = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LDAPMappedCacheStore> groupStores = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    // names of the non existing users and groups, kept out of the cache regions
+    private final ConcurrentMap<String, LDAPNegativeCache> userNegativeCaches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LDAPNegativeCache> groupNegativeCaches = new ConcurrentHashMap<>();
+
+    // Tier shared by the cluster nodes, used by the clustered providers, null if none is available
+    private volatile LDAPSharedCache sharedCache;
+    private final Set<String> clusteredProviders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // set while applying a change made by another node, which must not be shared again
+    private final ThreadLocal<Boolean> applyingSharedChange = new ThreadLocal<>();
+    // set while a provider flushes its regions, as opposed to an explicit flush, e.g. from the cache administration
+    private final ThreadLocal<Boolean> flushingProvider = new ThreadLocal<>();
+    private final LDAPSharedCache.Listener sharedCacheListener = new LDAPSharedCache.Listener() {
+        @Override
+        public void invalidated(String region, String key) {
+            String providerKey = getProviderKey(region);
+            if (providerKey == null) {
+                return;
+            }
+            // the local copy is dropped, the listeners are not notified as the entry was not removed from the cluster
+            Ehcache cache = getExistingRegion(region, providerKey);
+            if (cache != null) {
+                applyingSharedChange.set(Boolean.TRUE);
+                try {
+                    removeElement(cache, key);
+                } finally {
+                    applyingSharedChange.remove();
+                }
+            }
+            removeStoredEntry(getStores(region), providerKey, key);
+        }
+
+        @Override
+        public void cleared(String region) {
+            String providerKey = getProviderKey(region);
+            if (providerKey == null) {
+                return;
+            }
+            Ehcache cache = getExistingRegion(region, providerKey);
+            if (cache == null) {
+                return;
+            }
+            applyingSharedChange.set(Boolean.TRUE);
+            try {
+                cache.removeAll();
+            } finally {
+                applyingSharedChange.remove();
+            }
+        }
+    };
 
     @Activate
     protected void start(){
         EhCacheProvider cacheProvider = (EhCacheProvider) SpringContextSingleton.getInstance().getContext().getBean("ehCacheProvider");
-        final CacheManager cacheManager = cacheProvider.getCacheManager();
-        userCache = cacheManager.getCache(LDAP_USER_CACHE);
-        if (userCache == null) {
-            userCache = createLDAPCache(cacheManager, LDAP_USER_CACHE);
+        initialize(cacheProvider.getCacheManager());
+    }
+
+    /**
+     * Sets the cache manager holding the LDAP caches. Called on activation with the Jahia cache manager, can also be
+     * called directly when the module runs outside of Jahia, e.g. in tests and benchmarks.
+     *
+     * @param cacheManager the Ehcache manager holding the LDAP caches
+     */
+    public void initialize(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    @Deactivate
+    protected void stop(){
+        // flush, the snapshots and the second level are kept for the next start
+        for (String providerKey : new ArrayList<>(snapshots.keySet())) {
+            closeSnapshot(providerKey);
+        }
+        for (String providerKey : new ArrayList<>(userStores.keySet())) {
+            closeSecondLevelCache(providerKey);
+        }
+        synchronized (regionSettings) {
+            for (Ehcache cache : getCaches()) {
+                CacheEventListener listener = regionListeners.remove(cache.getName());
+                if (listener != null) {
+                    cache.getCacheEventNotificationService().unregisterListener(listener);
+                }
+                cache.removeAll();
+                cacheManager.removeCache(cache.getName());
+            }
+            userCaches.clear();
+            groupCaches.clear();
+            nameIndexes.clear();
+        }
+    }
+
+    /**
+     * Sets the size and expiration of the cache regions of a provider, the regions are created with these settings
+     * or updated if they already exist
+     *
+     * @param providerKey the provider key
+     * @param maxEntries the maximum number of entries of each region, 0 to use the default cache setting
+     * @param timeToIdle the time after which an unused entry expires in seconds, 0 to use the default of one hour
+     * @param timeToLive the maximum time the entries stay in the caches, whether they are used or not, in seconds, 0
+     *                   to only expire idle entries
+     */
+    public void configureCaches(String providerKey, int maxEntries, int timeToIdle, int timeToLive) {
+        RegionSettings settings = new RegionSettings(maxEntries, timeToIdle > 0 ? timeToIdle : DEFAULT_TIME_TO_IDLE, timeToLive);
+        synchronized (regionSettings) {
+            regionSettings.put(providerKey, settings);
+            Ehcache cache = userCaches.get(providerKey);
+            if (cache != null) {
+                settings.apply(cache.getCacheConfiguration());
+            }
+            cache = groupCaches.get(providerKey);
+            if (cache != null) {
+                settings.apply(cache.getCacheConfiguration());
+            }
+        }
+    }
+
+    /**
+     * Keeps the non existing users and groups of a provider out of its cache regions, in {@link LDAPNegativeCache}s.
+     * Without negative caches, the entries of the non existing users and groups are cached like the other ones.
+     *
+     * @param providerKey the provider key
+     * @param maxEntries the maximum number of names kept as not found, for users and for groups
+     * @param timeToLive the time during which a name is kept as not found, in seconds
+     */
+    public void configureNegativeCaches(String providerKey, int maxEntries, int timeToLive) {
+        userNegativeCaches.put(providerKey, new LDAPNegativeCache(false, maxEntries, timeToLive));
+        groupNegativeCaches.put(providerKey, new LDAPNegativeCache(true, maxEntries, timeToLive));
+    }
+
+    /**
+     * Drops the negative caches of a provider
+     *
+     * @param providerKey the provider key
+     */
+    public void removeNegativeCaches(String providerKey) {
+        userNegativeCaches.remove(providerKey);
+        groupNegativeCaches.remove(providerKey);
+    }
+
+    /**
+     * @param providerKey the provider key
+     * @return the names of the users of the provider known not to exist, null if not configured
+     */
+    public LDAPNegativeCache getUserNegativeCache(String providerKey) {
+        return userNegativeCaches.get(providerKey);
+    }
+
+    /**
+     * @param providerKey the provider key
+     * @return the names of the groups of the provider known not to exist, null if not configured
+     */
+    public LDAPNegativeCache getGroupNegativeCache(String providerKey) {
+        return groupNegativeCaches.get(providerKey);
+    }
+
+    /**
+     * Flushes the user and group cache regions of a provider on this node, the regions of the other providers are
+     * kept. The second level of the caches is kept too. The entries shared with the other cluster nodes are only
+     * cleared if the configuration of the provider changed.
+     *
+     * @param providerKey the provider key
+     * @param configChanged true if the entries were read with another configuration of the provider
+     */
+    public void flushCaches(String providerKey, boolean configChanged) {
+        flushingProvider.set(Boolean.TRUE);
+        try {
+            Ehcache cache = userCaches.get(providerKey);
+            if (cache != null) {
+                cache.removeAll();
+            }
+            cache = groupCaches.get(providerKey);
+            if (cache != null) {
+                cache.removeAll();
+            }
+        } finally {
+            flushingProvider.remove();
+        }
+        LDAPSharedCache shared = sharedCache;
+        if (configChanged && shared != null) {
+            // the provider may no longer be clustered, its shared entries are dropped anyway
+            clearSharedCache(shared, LDAP_USER_CACHE + "." + providerKey);
+            clearSharedCache(shared, LDAP_GROUP_CACHE + "." + providerKey);
+        }
+    }
+
+    /**
+     * Sets the tier shared by the cluster nodes
+     *
+     * @param sharedCache the shared cache
+     */
+    @Reference(service = LDAPSharedCache.class, cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC, unbind = "unsetSharedCache")
+    public void setSharedCache(LDAPSharedCache sharedCache) {
+        unsetSharedCache(this.sharedCache);
+        sharedCache.addListener(sharedCacheListener);
+        this.sharedCache = sharedCache;
+    }
+
+    public void unsetSharedCache(LDAPSharedCache sharedCache) {
+        if (sharedCache != null && sharedCache == this.sharedCache) {
+            sharedCache.removeListener(sharedCacheListener);
+            this.sharedCache = null;
+        }
+    }
+
+    /**
+     * Sets whether the entries of a provider are shared with the other cluster nodes, through the
+     * {@link LDAPSharedCache} service
+     *
+     * @param providerKey the provider key
+     * @param clustered true to share the entries
+     */
+    public void setClustered(String providerKey, boolean clustered) {
+        if (clustered) {
+            clusteredProviders.add(providerKey);
+            if (sharedCache == null) {
+                logger.warn("No LDAPSharedCache service is registered, the entries of the clustered provider {} are only cached locally until one is", providerKey);
+            }
         } else {
-            userCache.removeAll();
+            clusteredProviders.remove(providerKey);
         }
-        groupCache = cacheManager.getCache(LDAP_GROUP_CACHE);
-        if (groupCache == null) {
-            groupCache = createLDAPCache(cacheManager, LDAP_GROUP_CACHE);
-        } else  {
-            groupCache.removeAll();
+    }
+
+    /**
+     * Registers a listener notified when group entries of the given provider are removed from the cache
+     *
+     * @param providerKey the provider key
+     * @param listener the listener
+     */
+    public void addListener(String providerKey, LDAPCacheListener listener) {
+        List<LDAPCacheListener> providerListeners = listeners.get(providerKey);
+        if (providerListeners == null) {
+            providerListeners = new CopyOnWriteArrayList<>();
+            List<LDAPCacheListener> existing = listeners.putIfAbsent(providerKey, providerListeners);
+            if (existing != null) {
+                providerListeners = existing;
+            }
         }
+        providerListeners.add(listener);
+    }
+
+    public void removeListener(String providerKey, LDAPCacheListener listener) {
+        List<LDAPCacheListener> providerListeners = listeners.get(providerKey);
+        if (providerListeners != null) {
+            providerListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Removes the expired group entries of a provider from the cache, the listeners are notified of their removal.
+     * Expired entries are otherwise only removed when they are read.
+     *
+     * @param providerKey the provider key
+     */
+    public void evictExpiredGroups(String providerKey) {
+        Ehcache cache = groupCaches.get(providerKey);
+        if (cache != null) {
+            cache.evictExpiredElements();
+        }
+    }
+
+    /**
+     * Sets the metrics recording the cache statistics of a provider
+     *
+     * @param providerKey the provider key
+     * @param providerMetrics the provider metrics, null to stop recording
+     */
+    public void setMetrics(String providerKey, LdapMetrics providerMetrics) {
+        if (providerMetrics != null) {
+            metrics.put(providerKey, providerMetrics);
+            providerMetrics.getUserCache().setCache(getUserCache(providerKey));
+            providerMetrics.getGroupCache().setCache(getGroupCache(providerKey));
+        } else {
+            metrics.remove(providerKey);
+        }
+    }
+
+    /**
+     * Opens the second level of the user and group caches of a provider, held in memory-mapped files outside of the
+     * heap. The entries evicted from the caches are then read from the files instead of the LDAP server, and the files
+     * are kept when the module or the server is restarted.
+     * <p>
+     * The stored entries expire after the time to live of the provider, or after the time to idle of the caches. They
+     * are dropped when the files are opened with another configuration, or when the cache regions are flushed
+     * explicitly, not when the provider flushes them with {@link #flushCaches(String, boolean)}.
+     *
+     * @param providerKey the provider key
+     * @param directory the directory of the cache files
+     * @param sizeInMb the size of each cache file in megabytes
+     * @param configHash the hash of the provider configuration
+     */
+    public void openSecondLevelCache(String providerKey, File directory, int sizeInMb, String configHash) {
+        closeSecondLevelCache(providerKey);
+        String fileName = getFileName(providerKey);
+        int size = (int) Math.min(Integer.MAX_VALUE, sizeInMb * 1024L * 1024L);
+        try {
+            userStores.put(providerKey, new LDAPMappedCacheStore(new File(directory, fileName + "-users.cache"), size,
+                    getMaxAge(getUserCache(providerKey)), configHash));
+            groupStores.put(providerKey, new LDAPMappedCacheStore(new File(directory, fileName + "-groups.cache"), size,
+                    getMaxAge(getGroupCache(providerKey)), configHash));
+        } catch (IOException e) {
+            logger.error("Unable to open the cache files of provider {} in {}, entries are only cached on heap", new Object[]{providerKey, directory, e});
+            closeSecondLevelCache(providerKey);
+        }
+    }
+
+    /**
+     * Closes the second level of the caches of a provider, the cache files are kept
+     *
+     * @param providerKey the provider key
+     */
+    public void closeSecondLevelCache(String providerKey) {
+        LDAPMappedCacheStore store = userStores.remove(providerKey);
+        if (store != null) {
+            store.close();
+        }
+        store = groupStores.remove(providerKey);
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Restores the cached entries of a provider from its snapshot, if there is one matching the provider
+     * configuration. A new snapshot is written when the provider calls {@link #closeSnapshot(String)}, or when the
+     * caches are stopped.
+     *
+     * @param providerKey the provider key
+     * @param directory the directory of the snapshot files
+     * @param configHash the hash of the provider configuration
+     * @return the restored entries, to be refreshed from the LDAP server
+     */
+    public List<LDAPAbstractCacheEntry> openSnapshot(final String providerKey, File directory, String configHash) {
+        File file = new File(directory, getFileName(providerKey) + ".snapshot");
+        snapshots.put(providerKey, new Snapshot(file, configHash));
+        final List<LDAPAbstractCacheEntry> restored = new ArrayList<>();
+        final List<LDAPUserCacheEntry> users = new ArrayList<>(SNAPSHOT_BATCH_SIZE);
+        final List<LDAPGroupCacheEntry> groups = new ArrayList<>(SNAPSHOT_BATCH_SIZE);
+        long startTime = System.currentTimeMillis();
+        try {
+            int count = LDAPCacheSnapshot.read(file, configHash, new LDAPCacheSnapshot.Handler() {
+                @Override
+                public void handle(LDAPAbstractCacheEntry entry) {
+                    restored.add(entry);
+                    if (entry instanceof LDAPGroupCacheEntry) {
+                        groups.add((LDAPGroupCacheEntry) entry);
+                        if (groups.size() >= SNAPSHOT_BATCH_SIZE) {
+                            cacheGroups(providerKey, groups, false);
+                            groups.clear();
+                        }
+                    } else {
+                        users.add((LDAPUserCacheEntry) entry);
+                        if (users.size() >= SNAPSHOT_BATCH_SIZE) {
+                            cacheUsers(providerKey, users, false);
+                            users.clear();
+                        }
+                    }
+                }
+            });
+            if (count >= 0) {
+                logger.info("Restored {} entries of provider {} from snapshot in {} ms", new Object[]{count, providerKey, System.currentTimeMillis() - startTime});
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read snapshot {} of provider {}, {} entries restored", new Object[]{file, providerKey, restored.size(), e});
+        } finally {
+            // the restored entries may be outdated, they are not shared with the other nodes
+            cacheUsers(providerKey, users, false);
+            cacheGroups(providerKey, groups, false);
+        }
+        return restored;
+    }
+
+    /**
+     * Writes the snapshot of the cached entries of a provider, if it was opened with
+     * {@link #openSnapshot(String, File, String)}
+     *
+     * @param providerKey the provider key
+     */
+    public void closeSnapshot(String providerKey) {
+        Snapshot snapshot = snapshots.remove(providerKey);
+        if (snapshot == null || cacheManager == null) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        List<LDAPAbstractCacheEntry> entries = new ArrayList<>();
+        addSnapshotEntries(entries, getUserCache(providerKey));
+        addSnapshotEntries(entries, getGroupCache(providerKey));
+        try {
+            int count = LDAPCacheSnapshot.write(snapshot.file, snapshot.configHash, entries.iterator());
+            logger.info("Wrote {} entries of provider {} to snapshot in {} ms", new Object[]{count, providerKey, System.currentTimeMillis() - startTime});
+        } catch (IOException e) {
+            logger.warn("Unable to write snapshot {} of provider {}", new Object[]{snapshot.file, providerKey, e});
+        }
+    }
+
+    private void addSnapshotEntries(List<LDAPAbstractCacheEntry> entries, Ehcache cache) {
+        for (Object key : cache.getKeys()) {
+            Element element = cache.getQuiet(key);
+            if (element == null || !(element.getObjectValue() instanceof ModuleClassLoaderAwareCacheEntry)) {
+                continue;
+            }
+            Object value = ((ModuleClassLoaderAwareCacheEntry) element.getObjectValue()).getValue();
+            if (value instanceof LDAPAbstractCacheEntry) {
+                LDAPAbstractCacheEntry entry = (LDAPAbstractCacheEntry) value;
+                // the entries of non existing objects are not kept
+                if (Boolean.TRUE.equals(entry.getExist())) {
+                    entries.add(entry);
+                }
+            }
+        }
+    }
+
+    private String getFileName(String providerKey) {
+        return providerKey.replaceAll("[^\\w.-]", "_");
+    }
+
+    private long getMaxAge(Ehcache cache) {
+        CacheConfiguration configuration = cache.getCacheConfiguration();
+        long ttl = configuration.getTimeToLiveSeconds();
+        return (ttl > 0 ? ttl : configuration.getTimeToIdleSeconds()) * 1000L;
+    }
+
+    private void fireGroupRemoved(String providerKey, LDAPGroupCacheEntry groupCacheEntry) {
+        List<LDAPCacheListener> providerListeners = listeners.get(providerKey);
+        if (providerListeners == null) {
+            return;
+        }
+        for (LDAPCacheListener listener : providerListeners) {
+            listener.groupRemoved(groupCacheEntry);
+        }
+    }
+
+    private void fireCacheCleared(String providerKey) {
+        List<LDAPCacheListener> providerListeners = listeners.get(providerKey);
+        if (providerListeners != null) {
+            for (LDAPCacheListener listener : providerListeners) {
+                listener.cacheCleared();
+            }
+        }
+    }
+
+    private Ehcache getUserCache(String providerKey) {
+        Ehcache cache = userCaches.get(providerKey);
+        return cache != null ? cache : getRegion(LDAP_USER_CACHE + "." + providerKey, providerKey);
+    }
+
+    private Ehcache getGroupCache(String providerKey) {
+        Ehcache cache = groupCaches.get(providerKey);
+        return cache != null ? cache : getRegion(LDAP_GROUP_CACHE + "." + providerKey, providerKey);
+    }
+
+    /**
+     * @return the cache region with the given name, null if it was not created
+     */
+    private Ehcache getExistingRegion(String name, String providerKey) {
+        return (name.startsWith(LDAP_GROUP_CACHE) ? groupCaches : userCaches).get(providerKey);
+    }
+
+    /**
+     * Returns the cache region with the given name, creating it with the settings of the provider if needed
+     */
+    private Ehcache getRegion(String name, String providerKey) {
+        boolean groups = name.startsWith(LDAP_GROUP_CACHE);
+        ConcurrentMap<String, Ehcache> caches = groups ? groupCaches : userCaches;
+        Ehcache cache = caches.get(providerKey);
+        if (cache != null) {
+            return cache;
+        }
+        synchronized (regionSettings) {
+            cache = caches.get(providerKey);
+            if (cache == null) {
+                cache = createLDAPCache(name, regionSettings.get(providerKey));
+                ConcurrentMap<String, String> nameIndex = new ConcurrentHashMap<>();
+                nameIndexes.put(name, nameIndex);
+                CacheEventListener listener = newRegionListener(providerKey, groups, nameIndex);
+                cache.getCacheEventNotificationService().registerListener(listener);
+                regionListeners.put(name, listener);
+                LdapMetrics providerMetrics = metrics.get(providerKey);
+                if (providerMetrics != null) {
+                    (groups ? providerMetrics.getGroupCache() : providerMetrics.getUserCache()).setCache(cache);
+                }
+                caches.put(providerKey, cache);
+            }
+            return cache;
+        }
+    }
+
+    private Ehcache createLDAPCache(String cacheName, RegionSettings settings) {
+        Ehcache cache = cacheManager.getCache(cacheName);
+        if (cache != null) {
+            // left by a previous activation
+            cache.removeAll();
+        } else {
+            CacheConfiguration cacheConfiguration = cacheManager.getConfiguration().getDefaultCacheConfiguration() != null ?
+                    cacheManager.getConfiguration().getDefaultCacheConfiguration().clone() :
+                    new CacheConfiguration();
+            cacheConfiguration.setName(cacheName);
+            cacheConfiguration.setEternal(false);
+            cacheConfiguration.setTimeToIdleSeconds(DEFAULT_TIME_TO_IDLE);
+            // Create a new cache with the configuration
+            cache = new Cache(cacheConfiguration);
+            cache.setName(cacheName);
+            // Cache name has been set now we can initialize it by putting it in the manager.
+            // Only Cache manager is initializing caches.
+            cache = cacheManager.addCacheIfAbsent(cache);
+        }
+        if (settings != null) {
+            settings.apply(cache.getCacheConfiguration());
+        }
+        return cache;
+    }
+
+    private CacheEventListener newRegionListener(final String providerKey, final boolean groups, final ConcurrentMap<String, String> nameIndex) {
+        return new CacheEventListenerAdapter() {
+            @Override
+            public void notifyElementRemoved(Ehcache cache, Element element) {
+                LDAPAbstractCacheEntry entry = unindex(element);
+                if (groups && entry instanceof LDAPGroupCacheEntry && applyingSharedChange.get() == null) {
+                    fireGroupRemoved(providerKey, (LDAPGroupCacheEntry) entry);
+                }
+            }
+
+            @Override
+            public void notifyElementEvicted(Ehcache cache, Element element) {
+                LDAPAbstractCacheEntry entry = unindex(element);
+                if (groups && entry instanceof LDAPGroupCacheEntry) {
+                    fireGroupRemoved(providerKey, (LDAPGroupCacheEntry) entry);
+                }
+                LdapCacheRegionMetrics regionMetrics = getRegionMetrics(providerKey, groups);
+                if (regionMetrics != null) {
+                    regionMetrics.recordEviction();
+                }
+            }
+
+            @Override
+            public void notifyElementExpired(Ehcache cache, Element element) {
+                LDAPAbstractCacheEntry entry = unindex(element);
+                if (groups && entry instanceof LDAPGroupCacheEntry) {
+                    fireGroupRemoved(providerKey, (LDAPGroupCacheEntry) entry);
+                }
+                LdapCacheRegionMetrics regionMetrics = getRegionMetrics(providerKey, groups);
+                if (regionMetrics != null) {
+                    regionMetrics.recordExpiration();
+                }
+            }
+
+            @Override
+            public void notifyRemoveAll(Ehcache cache) {
+                nameIndex.clear();
+                // a flush usually follows changes in the directory, the new names must not be reported as absent
+                LDAPNegativeCache negativeCache = (groups ? groupNegativeCaches : userNegativeCaches).get(providerKey);
+                if (negativeCache != null) {
+                    negativeCache.clear();
+                }
+                if (flushingProvider.get() == null) {
+                    // explicit flush, e.g. from the cache administration, the other tiers are flushed too
+                    LDAPMappedCacheStore store = (groups ? groupStores : userStores).get(providerKey);
+                    if (store != null) {
+                        store.clear();
+                    }
+                    LDAPSharedCache shared = getSharedCache(providerKey);
+                    if (shared != null && applyingSharedChange.get() == null) {
+                        clearSharedCache(shared, cache.getName());
+                    }
+                }
+                if (groups) {
+                    fireCacheCleared(providerKey);
+                }
+            }
+
+            /**
+             * Drops the name of a removed entry from the index, unless it now points to another DN
+             */
+            private LDAPAbstractCacheEntry unindex(Element element) {
+                if (!(element.getObjectValue() instanceof ModuleClassLoaderAwareCacheEntry)) {
+                    return null;
+                }
+                Object value = ((ModuleClassLoaderAwareCacheEntry) element.getObjectValue()).getValue();
+                if (!(value instanceof LDAPAbstractCacheEntry)) {
+                    return null;
+                }
+                LDAPAbstractCacheEntry entry = (LDAPAbstractCacheEntry) value;
+                if (entry.getName() != null) {
+                    nameIndex.remove(entry.getName(), element.getObjectKey());
+                }
+                return entry;
+            }
+        };
+    }
+
+    private LdapCacheRegionMetrics getRegionMetrics(String providerKey, boolean groups) {
+        LdapMetrics providerMetrics = metrics.get(providerKey);
+        if (providerMetrics == null) {
+            return null;
+        }
+        return groups ? providerMetrics.getGroupCache() : providerMetrics.getUserCache();
+    }
+
+    private List<Ehcache> getCaches() {
+        List<Ehcache> caches = new ArrayList<>(userCaches.values());
+        caches.addAll(groupCaches.values());
+        return caches;
     }
 
-    @Deactivate
-    protected void stop(){
-        // flush
-        if (userCache != null) {
-            userCache.removeAll();
-        }
-        if (groupCache != null) {
-            groupCache.removeAll();
-        }
-    }
-
-    private Ehcache createLDAPCache(CacheManager cacheManager, String cacheName) {
-        CacheConfiguration cacheConfiguration = cacheManager.getConfiguration().getDefaultCacheConfiguration() != null ?
-                cacheManager.getConfiguration().getDefaultCacheConfiguration().clone() :
-                new CacheConfiguration();
-        cacheConfiguration.setName(cacheName);
-        cacheConfiguration.setEternal(false);
-        cacheConfiguration.setTimeToIdleSeconds(3600);
-        // Create a new cache with the configuration
-        Ehcache cache = new Cache(cacheConfiguration);
-        cache.setName(cacheName);
-        // Cache name has been set now we can initialize it by putting it in the manager.
-        // Only Cache manager is initializing caches.
-        return cacheManager.addCacheIfAbsent(cache);
-    }
-        
     public void clearUserCacheEntryByName(String providerKey, String username) {
-        userCache.remove(getCacheNameKey(providerKey, username));
+        Ehcache cache = getUserCache(providerKey);
+        String dn = nameIndexes.get(cache.getName()).get(username);
+        removeElement(cache, username);
+        removeStoredEntry(userStores, providerKey, username);
+        removeSharedEntry(cache, providerKey, username, dn);
     }
 
     public LDAPUserCacheEntry getUserCacheEntryByName(String providerKey, String username) {
-        return (LDAPUserCacheEntry) CacheHelper.getObjectValue(userCache, getCacheNameKey(providerKey, username));
+        return recordUserCacheAccess(providerKey, (LDAPUserCacheEntry) getCacheEntry(getUserCache(providerKey), userStores, userNegativeCaches.get(providerKey), providerKey, username, false));
     }
 
     public LDAPUserCacheEntry getUserCacheEntryByDn(String providerKey, String dn) {
-        return (LDAPUserCacheEntry) CacheHelper.getObjectValue(userCache, getCacheDnKey(providerKey, dn));
+        return recordUserCacheAccess(providerKey, (LDAPUserCacheEntry) getCacheEntry(getUserCache(providerKey), userStores, null, providerKey, dn, true));
     }
 
     public void cacheUser(String providerKey, LDAPUserCacheEntry ldapUserCacheEntry) {
         if (logger.isDebugEnabled()) {
             logger.debug("Caching user: {}", ldapUserCacheEntry.getName());
         }
-        ModuleClassLoaderAwareCacheEntry cacheEntry = new ModuleClassLoaderAwareCacheEntry(ldapUserCacheEntry, "ldap");
-        userCache.put(new Element(getCacheNameKey(providerKey, ldapUserCacheEntry.getName()), cacheEntry));
-        if (ldapUserCacheEntry.getDn() != null) {
-            userCache.put(new Element(getCacheDnKey(providerKey, ldapUserCacheEntry.getDn()), cacheEntry));
+        Ehcache cache = getUserCache(providerKey);
+        if (cacheAbsent(userNegativeCaches, userStores, cache, providerKey, ldapUserCacheEntry)) {
+            return;
         }
+        cache.put(newElement(cache, ldapUserCacheEntry));
+        storeEntry(userStores, providerKey, ldapUserCacheEntry);
+        shareEntry(cache, providerKey, ldapUserCacheEntry);
+    }
+
+    /**
+     * Caches a set of users in a single cache operation.
+     *
+     * @param providerKey the provider key
+     * @param ldapUserCacheEntries the user entries to cache
+     */
+    public void cacheUsers(String providerKey, Collection<LDAPUserCacheEntry> ldapUserCacheEntries) {
+        cacheUsers(providerKey, ldapUserCacheEntries, true);
+    }
+
+    private void cacheUsers(String providerKey, Collection<LDAPUserCacheEntry> ldapUserCacheEntries, boolean share) {
+        if (ldapUserCacheEntries.isEmpty()) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Caching {} users", ldapUserCacheEntries.size());
+        }
+        Ehcache cache = getUserCache(providerKey);
+        List<Element> elements = new ArrayList<>(ldapUserCacheEntries.size());
+        for (LDAPUserCacheEntry ldapUserCacheEntry : ldapUserCacheEntries) {
+            if (cacheAbsent(userNegativeCaches, userStores, cache, providerKey, ldapUserCacheEntry)) {
+                continue;
+            }
+            elements.add(newElement(cache, ldapUserCacheEntry));
+            storeEntry(userStores, providerKey, ldapUserCacheEntry);
+            if (share) {
+                shareEntry(cache, providerKey, ldapUserCacheEntry);
+            }
+        }
+        cache.putAll(elements);
+    }
+
+    public void clearGroupCacheEntryByName(String providerKey, String groupname) {
+        Ehcache cache = getGroupCache(providerKey);
+        String dn = nameIndexes.get(cache.getName()).get(groupname);
+        removeElement(cache, groupname);
+        removeStoredEntry(groupStores, providerKey, groupname);
+        removeSharedEntry(cache, providerKey, groupname, dn);
     }
 
     public LDAPGroupCacheEntry getGroupCacheEntryName(String providerKey, String groupname) {
-        return (LDAPGroupCacheEntry) CacheHelper.getObjectValue(groupCache, getCacheNameKey(providerKey, groupname));
+        return recordGroupCacheAccess(providerKey, (LDAPGroupCacheEntry) getCacheEntry(getGroupCache(providerKey), groupStores, groupNegativeCaches.get(providerKey), providerKey, groupname, false));
     }
 
     public LDAPGroupCacheEntry getGroupCacheEntryByDn(String providerKey, String dn) {
-        return (LDAPGroupCacheEntry) CacheHelper.getObjectValue(groupCache, getCacheDnKey(providerKey, dn));
+        return recordGroupCacheAccess(providerKey, (LDAPGroupCacheEntry) getCacheEntry(getGroupCache(providerKey), groupStores, null, providerKey, dn, true));
     }
 
     public void cacheGroup(String providerKey, LDAPGroupCacheEntry ldapGroupCacheEntry) {
         if (logger.isDebugEnabled()) {
             logger.debug("Caching group: {}", ldapGroupCacheEntry.getName());
         }
-        ModuleClassLoaderAwareCacheEntry cacheEntry = new ModuleClassLoaderAwareCacheEntry(ldapGroupCacheEntry, "ldap");
-        groupCache.put(new Element(getCacheNameKey(providerKey, ldapGroupCacheEntry.getName()), cacheEntry));
-        if (ldapGroupCacheEntry.getDn() != null) {
-            groupCache.put(new Element(getCacheDnKey(providerKey, ldapGroupCacheEntry.getDn()), cacheEntry));
+        Ehcache cache = getGroupCache(providerKey);
+        if (cacheAbsent(groupNegativeCaches, groupStores, cache, providerKey, ldapGroupCacheEntry)) {
+            return;
+        }
+        cache.put(newElement(cache, ldapGroupCacheEntry));
+        storeEntry(groupStores, providerKey, ldapGroupCacheEntry);
+        shareEntry(cache, providerKey, ldapGroupCacheEntry);
+    }
+
+    /**
+     * Caches a set of groups in a single cache operation.
+     *
+     * @param providerKey the provider key
+     * @param ldapGroupCacheEntries the group entries to cache
+     */
+    public void cacheGroups(String providerKey, Collection<LDAPGroupCacheEntry> ldapGroupCacheEntries) {
+        cacheGroups(providerKey, ldapGroupCacheEntries, true);
+    }
+
+    private void cacheGroups(String providerKey, Collection<LDAPGroupCacheEntry> ldapGroupCacheEntries, boolean share) {
+        if (ldapGroupCacheEntries.isEmpty()) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Caching {} groups", ldapGroupCacheEntries.size());
+        }
+        Ehcache cache = getGroupCache(providerKey);
+        List<Element> elements = new ArrayList<>(ldapGroupCacheEntries.size());
+        for (LDAPGroupCacheEntry ldapGroupCacheEntry : ldapGroupCacheEntries) {
+            if (cacheAbsent(groupNegativeCaches, groupStores, cache, providerKey, ldapGroupCacheEntry)) {
+                continue;
+            }
+            elements.add(newElement(cache, ldapGroupCacheEntry));
+            storeEntry(groupStores, providerKey, ldapGroupCacheEntry);
+            if (share) {
+                shareEntry(cache, providerKey, ldapGroupCacheEntry);
+            }
+        }
+        cache.putAll(elements);
+    }
+
+    /**
+     * Records the entry of a non existing user or group in the negative cache of the provider, if there is one, and
+     * removes the entry previously cached for its name. The names of the existing entries are recorded as known.
+     *
+     * @return true if the entry was handled by the negative cache and must not be cached
+     */
+    private boolean cacheAbsent(Map<String, LDAPNegativeCache> negativeCaches, Map<String, LDAPMappedCacheStore> stores,
+                                Ehcache cache, String providerKey, LDAPAbstractCacheEntry ldapCacheEntry) {
+        LDAPNegativeCache negativeCache = negativeCaches.get(providerKey);
+        if (negativeCache == null) {
+            return false;
+        }
+        if (!Boolean.FALSE.equals(ldapCacheEntry.getExist())) {
+            negativeCache.addKnown(ldapCacheEntry.getName());
+            return false;
+        }
+        removeElement(cache, ldapCacheEntry.getName());
+        removeStoredEntry(stores, providerKey, ldapCacheEntry.getName());
+        negativeCache.addAbsent(ldapCacheEntry.getName());
+        return true;
+    }
+
+    /**
+     * Creates the element of an entry, keyed by its DN, or by its name if it has none, and indexes its name. The
+     * element previously cached for the name, under another DN or without DN, is removed.
+     */
+    private Element newElement(Ehcache cache, LDAPAbstractCacheEntry ldapCacheEntry) {
+        String dn = ldapCacheEntry.getDn();
+        String name = ldapCacheEntry.getName();
+        if (dn == null) {
+            String previousDn = nameIndexes.get(cache.getName()).remove(name);
+            if (previousDn != null) {
+                cache.remove(previousDn);
+            }
+            return new Element(name, new ModuleClassLoaderAwareCacheEntry(ldapCacheEntry, "ldap"));
+        }
+        String previousDn = nameIndexes.get(cache.getName()).put(name, dn);
+        if (previousDn == null) {
+            cache.remove(name);
+        } else if (!previousDn.equals(dn)) {
+            cache.remove(previousDn);
+        }
+        return new Element(dn, new ModuleClassLoaderAwareCacheEntry(ldapCacheEntry, "ldap"));
+    }
+
+    /**
+     * Removes the element of an entry, given its name or its DN
+     */
+    private void removeElement(Ehcache cache, String key) {
+        String dn = nameIndexes.get(cache.getName()).get(key);
+        cache.remove(dn != null ? dn : key);
+    }
+
+    /**
+     * Reads an entry from the cache, or from the second level of the cache or from the tier shared by the cluster
+     * nodes, in which case the entry is put back in the cache. As names and DNs share the same key space, the entry
+     * is only returned if its name or DN matches the key. Names known not to exist are answered by the negative
+     * cache, without looking at the other tiers.
+     */
+    private LDAPAbstractCacheEntry getCacheEntry(Ehcache cache, Map<String, LDAPMappedCacheStore> stores, LDAPNegativeCache negativeCache,
+                                                 String providerKey, String key, boolean dn) {
+        String elementKey = dn ? key : nameIndexes.get(cache.getName()).get(key);
+        LDAPAbstractCacheEntry entry = (LDAPAbstractCacheEntry) CacheHelper.getObjectValue(cache, elementKey != null ? elementKey : key);
+        if (entry == null && negativeCache != null) {
+            // a user logging in or looked up on behalf of a user may have been created since the filter was built
+            entry = negativeCache.getAbsentEntry(key, !LdapPriority.current().isUserFacing());
+            if (entry != null) {
+                return entry;
+            }
+        }
+        if (entry == null) {
+            LDAPMappedCacheStore store = stores.get(providerKey);
+            if (store != null) {
+                entry = store.get(key);
+            }
+            if (entry == null) {
+                entry = getSharedEntry(cache, providerKey, key);
+            }
+            if (entry != null) {
+                cache.put(newElement(cache, entry));
+            }
+        }
+        if (entry != null && !key.equals(dn ? entry.getDn() : entry.getName())) {
+            return null;
+        }
+        return entry;
+    }
+
+    private void storeEntry(Map<String, LDAPMappedCacheStore> stores, String providerKey, LDAPAbstractCacheEntry ldapCacheEntry) {
+        LDAPMappedCacheStore store = stores.get(providerKey);
+        if (store != null) {
+            store.put(ldapCacheEntry.getName(), ldapCacheEntry.getDn(), ldapCacheEntry);
+        }
+    }
+
+    private void removeStoredEntry(Map<String, LDAPMappedCacheStore> stores, String providerKey, String key) {
+        LDAPMappedCacheStore store = stores.get(providerKey);
+        if (store != null) {
+            store.remove(key);
         }
     }
 
-    private String getCacheNameKey(String providerKey, String objectName) {
-        return providerKey + "n" + objectName;
+    private LDAPSharedCache getSharedCache(String providerKey) {
+        return clusteredProviders.contains(providerKey) ? sharedCache : null;
+    }
+
+    private LDAPAbstractCacheEntry getSharedEntry(Ehcache cache, String providerKey, String key) {
+        LDAPSharedCache shared = getSharedCache(providerKey);
+        if (shared == null) {
+            return null;
+        }
+        try {
+            byte[] value = shared.get(cache.getName(), key);
+            return value != null ? LDAPCacheCodec.decode(value) : null;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read {} from the shared cache: {}", key, e.getMessage());
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private void shareEntry(Ehcache cache, String providerKey, LDAPAbstractCacheEntry ldapCacheEntry) {
+        LDAPSharedCache shared = getSharedCache(providerKey);
+        if (shared == null) {
+            return;
+        }
+        try {
+            byte[] value = LDAPCacheCodec.encode(ldapCacheEntry);
+            int ttl = (int) (getMaxAge(cache) / 1000);
+            shared.put(cache.getName(), ldapCacheEntry.getName(), value, ttl);
+            if (ldapCacheEntry.getDn() != null) {
+                shared.put(cache.getName(), ldapCacheEntry.getDn(), value, ttl);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Unable to share {} with the cluster: {}", ldapCacheEntry.getName(), e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes an entry from the tier shared by the cluster nodes, under its name and under its DN
+     *
+     * @param dn the DN of the entry, null to read it from the shared entry
+     */
+    private void removeSharedEntry(Ehcache cache, String providerKey, String name, String dn) {
+        LDAPSharedCache shared = getSharedCache(providerKey);
+        if (shared == null) {
+            return;
+        }
+        if (dn == null) {
+            LDAPAbstractCacheEntry sharedEntry = getSharedEntry(cache, providerKey, name);
+            dn = sharedEntry != null ? sharedEntry.getDn() : null;
+        }
+        try {
+            shared.remove(cache.getName(), name);
+            if (dn != null) {
+                shared.remove(cache.getName(), dn);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Unable to remove {} from the shared cache: {}", name, e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
     }
 
-    private String getCacheDnKey(String providerKey, String objectName) {
-        return providerKey + "d" + objectName;
+    /**
+     * Clears a region of the tier shared by the cluster nodes, the other nodes drop their local copy of the region
+     */
+    private void clearSharedCache(LDAPSharedCache shared, String region) {
+        try {
+            shared.clear(region);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to clear the shared cache {}: {}", region, e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the key of the provider owning the region, null if the region is not an LDAP cache region
+     */
+    private String getProviderKey(String region) {
+        if (region.startsWith(LDAP_USER_CACHE + ".")) {
+            return region.substring(LDAP_USER_CACHE.length() + 1);
+        } else if (region.startsWith(LDAP_GROUP_CACHE + ".")) {
+            return region.substring(LDAP_GROUP_CACHE.length() + 1);
+        }
+        return null;
+    }
+
+    private Map<String, LDAPMappedCacheStore> getStores(String region) {
+        return region.startsWith(LDAP_GROUP_CACHE) ? groupStores : userStores;
+    }
+
+    private LDAPUserCacheEntry recordUserCacheAccess(String providerKey, LDAPUserCacheEntry entry) {
+        LdapMetrics providerMetrics = metrics.get(providerKey);
+        if (providerMetrics != null) {
+            providerMetrics.recordUserCacheAccess(entry != null);
+        }
+        return entry;
+    }
+
+    private LDAPGroupCacheEntry recordGroupCacheAccess(String providerKey, LDAPGroupCacheEntry entry) {
+        LdapMetrics providerMetrics = metrics.get(providerKey);
+        if (providerMetrics != null) {
+            providerMetrics.recordGroupCacheAccess(entry != null);
+        }
+        return entry;
+    }
+
+    /**
+     * Size and expiration of the cache regions of a provider
+     */
+    private static final class RegionSettings {
+        private final int maxEntries;
+        private final int timeToIdle;
+        private final int timeToLive;
+
+        private RegionSettings(int maxEntries, int timeToIdle, int timeToLive) {
+            this.maxEntries = maxEntries;
+            this.timeToIdle = timeToIdle;
+            this.timeToLive = timeToLive;
+        }
+
+        private void apply(CacheConfiguration configuration) {
+            if (maxEntries > 0) {
+                configuration.setMaxEntriesLocalHeap(maxEntries);
+            }
+            configuration.setTimeToIdleSeconds(timeToIdle);
+            configuration.setTimeToLiveSeconds(timeToLive);
+        }
+    }
+
+    private static final class Snapshot {
+        private final File file;
+        private final String configHash;
+
+        private Snapshot(File file, String configHash) {
+            this.file = file;
+            this.configHash = configHash;
+        }
     }
-}
\ No newline at end of file
+}
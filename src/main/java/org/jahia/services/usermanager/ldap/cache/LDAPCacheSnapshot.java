@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Snapshot of the cached entries of a provider, written to disk when the provider is stopped and read again when it
+ * starts, so that it does not start with empty caches.
+ * <p>
+ * The snapshot is a compressed stream of entries in the binary form of {@link LDAPCacheCodec}, preceded by a format
+ * version and by the hash of the provider configuration: a snapshot written with another version or configuration is
+ * ignored.
+ */
+public final class LDAPCacheSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(LDAPCacheSnapshot.class);
+
+    private static final int MAGIC = 0x4c445353;
+    private static final int VERSION = 1;
+
+    /**
+     * Receives the entries read from a snapshot
+     */
+    public interface Handler {
+        void handle(LDAPAbstractCacheEntry entry);
+    }
+
+    private LDAPCacheSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot, replacing the previous one once it is complete
+     *
+     * @param file the snapshot file
+     * @param configHash the hash of the provider configuration
+     * @param entries the entries to write
+     * @return the number of written entries
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static int write(File file, String configHash, Iterator<LDAPAbstractCacheEntry> entries) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            LDAPCacheCodec.writeString(out, configHash);
+            out.writeLong(System.currentTimeMillis());
+            while (entries.hasNext()) {
+                out.writeBoolean(true);
+                LDAPCacheCodec.write(out, entries.next());
+                count++;
+            }
+            out.writeBoolean(false);
+        }
+        if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+            throw new IOException("Cannot replace snapshot " + file);
+        }
+        return count;
+    }
+
+    /**
+     * Reads a snapshot, the entries are passed to the handler as they are read
+     *
+     * @param file the snapshot file
+     * @param configHash the hash of the current provider configuration
+     * @param handler the handler receiving the entries
+     * @return the number of read entries, or -1 if there is no snapshot or if it does not match the format version
+     * or the configuration
+     * @throws IOException if the snapshot cannot be read
+     */
+    public static int read(File file, String configHash, Handler handler) throws IOException {
+        if (!file.isFile()) {
+            return -1;
+        }
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.info("Ignoring snapshot {} written with another version", file);
+                return -1;
+            }
+            if (!Objects.equals(configHash, LDAPCacheCodec.readString(in))) {
+                logger.info("Ignoring snapshot {} written with another configuration", file);
+                return -1;
+            }
+            long createdAt = in.readLong();
+            while (in.readBoolean()) {
+                handler.handle(LDAPCacheCodec.read(in));
+                count++;
+            }
+            logger.debug("Read {} entries from snapshot {} written at {}", new Object[]{count, file, new Date(createdAt)});
+        }
+        return count;
+    }
+}
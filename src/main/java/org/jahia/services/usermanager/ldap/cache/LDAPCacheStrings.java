@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Compact representation of the strings held by the cache entries. The strings repeated across entries (property
+ * and attribute names, member and group names) are interned, so that each of them is stored once in the heap, and
+ * lists and properties are stored as plain arrays.
+ */
+public final class LDAPCacheStrings {
+
+    private static final String[] EMPTY = new String[0];
+
+    // weak, so that the names of the entries evicted from the caches can be collected
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    private LDAPCacheStrings() {
+    }
+
+    public static String intern(String value) {
+        return value != null ? INTERNER.intern(value) : null;
+    }
+
+    /**
+     * @param values the values to store
+     * @return the interned values, or null if the collection is null
+     */
+    public static String[] toArray(Collection<String> values) {
+        if (values == null) {
+            return null;
+        }
+        if (values.isEmpty()) {
+            return EMPTY;
+        }
+        String[] array = new String[values.size()];
+        int i = 0;
+        for (String value : values) {
+            array[i++] = intern(value);
+        }
+        return array;
+    }
+
+    /**
+     * @param array the stored values
+     * @return a read-only list view of the values, or null if the array is null
+     */
+    public static List<String> asList(String[] array) {
+        return array != null ? Collections.unmodifiableList(Arrays.asList(array)) : null;
+    }
+
+    /**
+     * Stores properties as an array of alternate names and values, the names being interned
+     *
+     * @param properties the properties
+     * @return the flattened properties, or null if the properties are null
+     */
+    public static String[] toArray(Properties properties) {
+        if (properties == null) {
+            return null;
+        }
+        String[] array = new String[properties.size() * 2];
+        int i = 0;
+        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+            array[i++] = intern(String.valueOf(entry.getKey()));
+            array[i++] = String.valueOf(entry.getValue());
+        }
+        return array;
+    }
+
+    /**
+     * @param array the properties stored with {@link #toArray(Properties)}
+     * @return a new Properties instance, or null if the array is null
+     */
+    public static Properties toProperties(String[] array) {
+        if (array == null) {
+            return null;
+        }
+        Properties properties = new Properties();
+        for (int i = 0; i < array.length; i += 2) {
+            properties.put(array[i], array[i + 1]);
+        }
+        return properties;
+    }
+}
@@ -17,20 +17,37 @@ package org.jahia.services.usermanager.ldap.cache;
 
 import org.jahia.modules.external.users.Member;
 import org.jahia.services.usermanager.JahiaGroup;
+import org.jahia.services.usermanager.JahiaGroupImpl;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /**
  * Represents an entry in the LDAP grouo cache.
- * 
+ * <p>
+ * The group and its members are stored in a compact form, see {@link LDAPCacheStrings}: the members are kept as an
+ * array of interned names, new {@link JahiaGroup} and {@link Member} objects are created each time they are read.
+ *
  * @author kevan
  */
 public class LDAPGroupCacheEntry extends LDAPAbstractCacheEntry implements Serializable{
-    private static final long serialVersionUID = -3585067276227107907L;
+    private static final long serialVersionUID = 2846507158237195846L;
+
+    // the group, null if the entry has no group
+    private String groupName;
+    private String groupPath;
+    private String groupSiteKey;
+    private String[] groupProperties;
+
+    // member names, and the indexes of the members that are groups, null if there is no group member
+    private String[] memberNames;
+    private BitSet groupMembers;
 
-    private JahiaGroup group;
-    private List<Member> members;
     private boolean isDynamic = false;
     private String dynamicMembersURL;
 
@@ -38,20 +55,72 @@ public class LDAPGroupCacheEntry extends LDAPAbstractCacheEntry implements Seria
         setName(name);
     }
 
+    /**
+     * @return a new list of the group members, or null if the members are not loaded
+     */
     public List<Member> getMembers() {
+        if (memberNames == null) {
+            return null;
+        }
+        List<Member> members = new ArrayList<>(memberNames.length);
+        for (int i = 0; i < memberNames.length; i++) {
+            members.add(new Member(memberNames[i], groupMembers != null && groupMembers.get(i) ? Member.MemberType.GROUP : Member.MemberType.USER));
+        }
         return members;
     }
 
     public void setMembers(List<Member> members) {
-        this.members = members;
+        if (members == null) {
+            memberNames = null;
+            groupMembers = null;
+            return;
+        }
+        String[] names = new String[members.size()];
+        BitSet groups = null;
+        int i = 0;
+        for (Member member : members) {
+            names[i] = LDAPCacheStrings.intern(member.getName());
+            if (member.getType() == Member.MemberType.GROUP) {
+                if (groups == null) {
+                    groups = new BitSet(names.length);
+                }
+                groups.set(i);
+            }
+            i++;
+        }
+        memberNames = names;
+        groupMembers = groups;
+    }
+
+    /**
+     * @return the number of members, or -1 if the members are not loaded
+     */
+    public int getMemberCount() {
+        return memberNames != null ? memberNames.length : -1;
     }
 
+    /**
+     * @return a new JahiaGroup built from the cached data, or null if the entry has no group
+     */
     public JahiaGroup getGroup() {
-        return group;
+        if (groupName == null) {
+            return null;
+        }
+        return new JahiaGroupImpl(groupName, groupPath, groupSiteKey, LDAPCacheStrings.toProperties(groupProperties));
     }
 
     public void setGroup(JahiaGroup group) {
-        this.group = group;
+        if (group == null) {
+            groupName = null;
+            groupPath = null;
+            groupSiteKey = null;
+            groupProperties = null;
+        } else {
+            groupName = LDAPCacheStrings.intern(group.getName());
+            groupPath = group.getLocalPath();
+            groupSiteKey = LDAPCacheStrings.intern(group.getSiteKey());
+            groupProperties = LDAPCacheStrings.toArray(group.getProperties());
+        }
     }
 
     public boolean isDynamic() {
@@ -69,4 +138,38 @@ public class LDAPGroupCacheEntry extends LDAPAbstractCacheEntry implements Seria
     public void setDynamicMembersURL(String dynamicMembersURL) {
         this.dynamicMembersURL = dynamicMembersURL;
     }
+
+    @Override
+    void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+        LDAPCacheCodec.writeString(out, groupName);
+        LDAPCacheCodec.writeString(out, groupPath);
+        LDAPCacheCodec.writeString(out, groupSiteKey);
+        LDAPCacheCodec.writeStrings(out, groupProperties);
+        LDAPCacheCodec.writeStrings(out, memberNames);
+        long[] groupMemberBits = groupMembers != null ? groupMembers.toLongArray() : new long[0];
+        out.writeInt(groupMemberBits.length);
+        for (long bits : groupMemberBits) {
+            out.writeLong(bits);
+        }
+        out.writeBoolean(isDynamic);
+        LDAPCacheCodec.writeString(out, dynamicMembersURL);
+    }
+
+    @Override
+    void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+        groupName = LDAPCacheStrings.intern(LDAPCacheCodec.readString(in));
+        groupPath = LDAPCacheCodec.readString(in);
+        groupSiteKey = LDAPCacheStrings.intern(LDAPCacheCodec.readString(in));
+        groupProperties = LDAPCacheCodec.readProperties(in);
+        memberNames = LDAPCacheCodec.readStrings(in, true);
+        long[] groupMemberBits = new long[in.readInt()];
+        for (int i = 0; i < groupMemberBits.length; i++) {
+            groupMemberBits[i] = in.readLong();
+        }
+        groupMembers = groupMemberBits.length > 0 ? BitSet.valueOf(groupMemberBits) : null;
+        isDynamic = in.readBoolean();
+        dynamicMembersURL = LDAPCacheCodec.readString(in);
+    }
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Second level of an LDAP cache, holding the entries in a memory-mapped file, outside of the heap.
+ * <p>
+ * The file is an append-only log of records, each of them holding the binary form of an entry (see
+ * {@link LDAPCacheCodec}) under its name and DN keys, or the removal of a key. Only the keys and the record offsets
+ * are kept in the heap. When the file is full, the records that are no longer referenced or have expired are
+ * discarded by moving the live records to the start of the file.
+ * <p>
+ * The file is read again when the store is opened, so that the cached entries survive the restarts of the module
+ * and of the server. It is cleared instead if it was written with another provider configuration.
+ */
+public class LDAPMappedCacheStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(LDAPMappedCacheStore.class);
+
+    private static final int MAGIC = 0x4c444150;
+    private static final int VERSION = 1;
+    // magic, version, end of the last record, hash of the configuration
+    private static final int HEADER_SIZE = 16;
+    // length, type, storage time
+    private static final int RECORD_HEADER_SIZE = 13;
+
+    private static final byte ENTRY = 1;
+    private static final byte REMOVAL = 2;
+
+    private final File file;
+    private final long maxAge;
+    private final int configHash;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> index = new ConcurrentHashMap<>();
+
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int position;
+
+    /**
+     * Opens the store, reading the entries already present in the file
+     *
+     * @param file the cache file, created if it does not exist
+     * @param size the size of the file in bytes
+     * @param maxAge the time after which a stored entry expires in milliseconds, 0 if the entries never expire
+     * @param configHash the hash of the provider configuration, the entries stored with another configuration are
+     * dropped
+     * @throws IOException if the file cannot be mapped
+     */
+    public LDAPMappedCacheStore(File file, int size, long maxAge, String configHash) throws IOException {
+        this.file = file;
+        this.maxAge = maxAge;
+        this.configHash = configHash != null ? configHash.hashCode() : 0;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, HEADER_SIZE * 2));
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        load();
+    }
+
+    /**
+     * @param key the cache key
+     * @return a new cache entry read from the file, null if the key is not stored or its entry has expired
+     */
+    public LDAPAbstractCacheEntry get(String key) {
+        lock.readLock().lock();
+        try {
+            Integer offset = index.get(key);
+            if (offset == null || buffer == null) {
+                return null;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset);
+            int length = record.getInt();
+            record.get();
+            if (isExpired(record.getLong())) {
+                return null;
+            }
+            byte[] data = new byte[length - RECORD_HEADER_SIZE];
+            record.get(data);
+            ByteBuffer entry = ByteBuffer.wrap(data);
+            skipString(entry);
+            skipString(entry);
+            byte[] encoded = new byte[entry.remaining()];
+            entry.get(encoded);
+            return LDAPCacheCodec.decode(encoded);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read entry {} from cache file {}", key, file, e);
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores an entry, replacing the entries previously stored with the same keys
+     *
+     * @param nameKey the key of the entry name
+     * @param dnKey the key of the entry DN, null if the entry has no DN
+     * @param entry the cache entry
+     */
+    public void put(String nameKey, String dnKey, LDAPAbstractCacheEntry entry) {
+        byte[] record = newRecord(ENTRY, nameKey, dnKey, LDAPCacheCodec.encode(entry));
+        lock.writeLock().lock();
+        try {
+            int offset = append(record);
+            if (offset > 0) {
+                index.put(nameKey, offset);
+                if (dnKey != null) {
+                    index.put(dnKey, offset);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the entry stored under a key, which is then no longer found under its name nor under its DN
+     *
+     * @param key the name or DN key of the entry to remove
+     */
+    public void remove(String key) {
+        if (!index.containsKey(key)) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Integer offset = index.get(key);
+            if (offset == null) {
+                return;
+            }
+            List<String> removedKeys = new ArrayList<>(2);
+            for (String recordKey : readKeys(offset)) {
+                if (recordKey != null && offset.equals(index.get(recordKey))) {
+                    index.remove(recordKey);
+                    removedKeys.add(recordKey);
+                }
+            }
+            append(newRecord(REMOVAL, removedKeys.get(0), removedKeys.size() > 1 ? removedKeys.get(1) : null, new byte[0]));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            if (buffer != null) {
+                setPosition(HEADER_SIZE);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of stored keys
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Writes the pending changes to the disk, unmaps and closes the file
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (buffer != null) {
+                buffer.force();
+                unmap(buffer);
+                buffer = null;
+            }
+            index.clear();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close cache file {}", file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void load() {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(12) != configHash) {
+            if (buffer.getInt(0) == MAGIC) {
+                logger.info("Cache file {} was written with another configuration, clearing it", file);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(12, configHash);
+            setPosition(HEADER_SIZE);
+            return;
+        }
+        int end = buffer.getInt(8);
+        int offset = HEADER_SIZE;
+        try {
+            while (offset < end) {
+                int length = buffer.getInt(offset);
+                if (length < RECORD_HEADER_SIZE || offset + length > end) {
+                    break;
+                }
+                String[] keys = readKeys(offset);
+                if (buffer.get(offset + 4) == REMOVAL) {
+                    for (String key : keys) {
+                        if (key != null) {
+                            index.remove(key);
+                        }
+                    }
+                } else if (!isExpired(buffer.getLong(offset + 5))) {
+                    for (String key : keys) {
+                        if (key != null) {
+                            index.put(key, offset);
+                        }
+                    }
+                }
+                offset += length;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Cache file {} is corrupted after offset {}, ignoring the next entries", file, offset, e);
+        }
+        setPosition(offset);
+        logger.info("Loaded {} keys from cache file {}", index.size(), file);
+    }
+
+    /**
+     * @return the offset of the record, or 0 if there is no room for it in the file
+     */
+    private int append(byte[] record) {
+        if (buffer == null) {
+            return 0;
+        }
+        if (position + record.length > buffer.capacity()) {
+            compact();
+            if (position + record.length > buffer.capacity()) {
+                logger.warn("Cache file {} is full, clearing it", file);
+                index.clear();
+                setPosition(HEADER_SIZE);
+                if (position + record.length > buffer.capacity()) {
+                    return 0;
+                }
+            }
+        }
+        int offset = position;
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(record);
+        setPosition(offset + record.length);
+        return offset;
+    }
+
+    /**
+     * Moves the live records to the start of the file, dropping the removals and the records that are no longer
+     * referenced or have expired
+     */
+    private void compact() {
+        long start = System.currentTimeMillis();
+        int offset = HEADER_SIZE;
+        int target = HEADER_SIZE;
+        while (offset < position) {
+            int length = buffer.getInt(offset);
+            String[] keys = readKeys(offset);
+            List<String> liveKeys = new ArrayList<>(2);
+            if (buffer.get(offset + 4) == ENTRY) {
+                for (String key : keys) {
+                    Integer keyOffset = key != null ? index.get(key) : null;
+                    if (keyOffset != null && keyOffset == offset) {
+                        liveKeys.add(key);
+                    }
+                }
+                if (!liveKeys.isEmpty() && isExpired(buffer.getLong(offset + 5))) {
+                    for (String key : liveKeys) {
+                        index.remove(key);
+                    }
+                    liveKeys.clear();
+                }
+            }
+            if (!liveKeys.isEmpty()) {
+                if (target != offset) {
+                    byte[] record = new byte[length];
+                    ByteBuffer source = buffer.duplicate();
+                    source.position(offset);
+                    source.get(record);
+                    ByteBuffer destination = buffer.duplicate();
+                    destination.position(target);
+                    destination.put(record);
+                    for (String key : liveKeys) {
+                        index.put(key, target);
+                    }
+                }
+                target += length;
+            }
+            offset += length;
+        }
+        setPosition(target);
+        logger.debug("Compacted cache file {} from {} to {} bytes in {} ms", new Object[]{file, offset, target, System.currentTimeMillis() - start});
+    }
+
+    private void setPosition(int position) {
+        this.position = position;
+        buffer.putInt(8, position);
+    }
+
+    private boolean isExpired(long storedAt) {
+        return maxAge > 0 && storedAt + maxAge < System.currentTimeMillis();
+    }
+
+    private String[] readKeys(int offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + RECORD_HEADER_SIZE);
+        return new String[]{readString(record), readString(record)};
+    }
+
+    /**
+     * Releases the mapping right away, rather than when the buffer is garbage collected, so that the file is not kept
+     * open after the store is closed. The buffer must no longer be used.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            try {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException e1) {
+                logger.debug("Unable to unmap the cache file, it is released by the garbage collector", e1);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Unable to unmap the cache file, it is released by the garbage collector", e);
+        }
+    }
+
+    private static byte[] newRecord(byte type, String firstKey, String secondKey, byte[] data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            // length is set once the record is written
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeLong(System.currentTimeMillis());
+            LDAPCacheCodec.writeString(out, firstKey);
+            LDAPCacheCodec.writeString(out, secondKey);
+            out.write(data);
+        } catch (IOException e) {
+            // cannot happen when writing to an array
+            throw new IllegalStateException(e);
+        }
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length);
+        return record;
+    }
+
+    private static String readString(ByteBuffer source) {
+        int length = source.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer source) {
+        int length = source.getInt();
+        if (length > 0) {
+            source.position(source.position() + length);
+        }
+    }
+}
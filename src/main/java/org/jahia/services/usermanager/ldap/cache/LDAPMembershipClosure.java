@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jahia.modules.external.users.Member;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the transitive group memberships of the members of a provider, so that the nested groups are walked once
+ * for all the members instead of once per member and level.
+ * <p>
+ * The ancestors of the groups are computed by a depth-first traversal of their direct parents, memoized for each
+ * group. Cycles in the group hierarchy are detected: the groups of a cycle share the same ancestors. When a group
+ * changes, only the memberships that include it are invalidated.
+ */
+public class LDAPMembershipClosure {
+
+    private static Logger logger = LoggerFactory.getLogger(LDAPMembershipClosure.class);
+
+    /**
+     * Resolves the direct parents of a group
+     */
+    public interface ParentResolver {
+
+        /**
+         * @param groupName the group name
+         * @return the names of the groups the group directly belongs to, null if the group does not exist
+         */
+        List<String> getParents(String groupName);
+    }
+
+    private final Cache<String, Set<String>> memberships;
+    // incremented on each invalidation, so that a traversal started before does not cache outdated memberships
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong cycleCount = new AtomicLong();
+    // the cycles are found again after each invalidation, they are only reported once
+    private final Set<Set<String>> reportedCycles = Collections.newSetFromMap(new ConcurrentHashMap<Set<String>, Boolean>());
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param maxEntries the maximum number of cached members
+     * @param ttlSeconds the time after which the memberships of a member are computed again, 0 to keep them until
+     * they are invalidated
+     */
+    public LDAPMembershipClosure(int maxEntries, int ttlSeconds) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(maxEntries);
+        if (ttlSeconds > 0) {
+            builder.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS);
+        }
+        this.memberships = builder.build();
+    }
+
+    /**
+     * Returns the groups a member belongs to directly or through nested groups
+     *
+     * @param directGroups the groups the member directly belongs to
+     * @param resolver the resolver of the parents of the groups
+     * @return the names of the groups
+     */
+    public List<String> expand(Collection<String> directGroups, ParentResolver resolver) {
+        Set<String> groups = new LinkedHashSet<>(directGroups);
+        for (String group : directGroups) {
+            groups.addAll(getAncestors(group, resolver));
+        }
+        return new ArrayList<>(groups);
+    }
+
+    /**
+     * Returns the groups a group belongs to directly or through nested groups, walking the parents that are not
+     * cached yet
+     *
+     * @param groupName the group name
+     * @param resolver the resolver of the parents of the groups
+     * @return the names of the ancestors of the group, without the group itself
+     */
+    public Set<String> getAncestors(String groupName, ParentResolver resolver) {
+        Set<String> ancestors = memberships.getIfPresent(getGroupKey(groupName));
+        if (ancestors == null) {
+            ancestors = new Traversal(resolver).run(groupName);
+        }
+        return ancestors;
+    }
+
+    /**
+     * @param member the member
+     * @return the cached transitive memberships of the member, null if they are not cached
+     */
+    public List<String> get(Member member) {
+        Set<String> groups = memberships.getIfPresent(getMemberKey(member));
+        return groups != null ? new ArrayList<>(groups) : null;
+    }
+
+    /**
+     * Caches the transitive memberships of a member, computed by the LDAP server
+     *
+     * @param member the member
+     * @param groups the names of the groups the member belongs to directly or through nested groups
+     */
+    public void put(Member member, Collection<String> groups) {
+        Set<String> cached = new LinkedHashSet<>(groups);
+        if (member.getType() == Member.MemberType.GROUP) {
+            cached.remove(member.getName());
+        }
+        memberships.put(getMemberKey(member), Collections.unmodifiableSet(cached));
+    }
+
+    /**
+     * Invalidates the memberships of a member. The memberships of a group are also invalidated for all the members
+     * that belong to it, as its parents or its members may have changed.
+     *
+     * @param member the member
+     */
+    public void invalidate(Member member) {
+        generation.incrementAndGet();
+        memberships.invalidate(getMemberKey(member));
+        if (member.getType() != Member.MemberType.GROUP) {
+            return;
+        }
+        Iterator<Set<String>> iterator = memberships.asMap().values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().contains(member.getName())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        memberships.invalidateAll();
+    }
+
+    public long getSize() {
+        return memberships.size();
+    }
+
+    /**
+     * @return the number of distinct cycles found in the group hierarchy
+     */
+    public long getCycleCount() {
+        return cycleCount.get();
+    }
+
+    private static String getGroupKey(String groupName) {
+        return "g" + groupName;
+    }
+
+    private static String getMemberKey(Member member) {
+        return (member.getType() == Member.MemberType.GROUP ? "g" : "u") + member.getName();
+    }
+
+    /**
+     * Depth-first walk of the parents of a group, grouping the strongly connected groups (Tarjan's algorithm) so that
+     * each group is resolved once, even within cycles
+     */
+    private final class Traversal {
+        private final ParentResolver resolver;
+        private final long startGeneration = generation.get();
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final Map<String, Integer> lowLinks = new HashMap<>();
+        private final Deque<String> stack = new ArrayDeque<>();
+        private final Set<String> onStack = new HashSet<>();
+        private final Map<String, List<String>> parents = new HashMap<>();
+        private final Map<String, Set<String>> resolved = new HashMap<>();
+
+        private Traversal(ParentResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        private Set<String> run(String groupName) {
+            visit(groupName);
+            if (generation.get() == startGeneration) {
+                for (Map.Entry<String, Set<String>> entry : resolved.entrySet()) {
+                    memberships.put(getGroupKey(entry.getKey()), entry.getValue());
+                }
+            }
+            return resolved.get(groupName);
+        }
+
+        private void visit(String groupName) {
+            int index = indexes.size();
+            indexes.put(groupName, index);
+            lowLinks.put(groupName, index);
+            stack.push(groupName);
+            onStack.add(groupName);
+
+            List<String> groupParents = resolver.getParents(groupName);
+            if (groupParents == null) {
+                groupParents = Collections.emptyList();
+            }
+            parents.put(groupName, groupParents);
+            for (String parent : groupParents) {
+                if (resolved.containsKey(parent)) {
+                    continue;
+                }
+                Set<String> cached = memberships.getIfPresent(getGroupKey(parent));
+                if (cached != null) {
+                    resolved.put(parent, cached);
+                } else if (!indexes.containsKey(parent)) {
+                    visit(parent);
+                    lowLinks.put(groupName, Math.min(lowLinks.get(groupName), lowLinks.get(parent)));
+                } else if (onStack.contains(parent)) {
+                    lowLinks.put(groupName, Math.min(lowLinks.get(groupName), indexes.get(parent)));
+                }
+            }
+
+            if (lowLinks.get(groupName) == index) {
+                resolveComponent(groupName);
+            }
+        }
+
+        // the groups of a cycle have the same ancestors, which include each other
+        private void resolveComponent(String root) {
+            List<String> component = new ArrayList<>();
+            String groupName;
+            do {
+                groupName = stack.pop();
+                onStack.remove(groupName);
+                component.add(groupName);
+            } while (!groupName.equals(root));
+
+            Set<String> ancestors = new LinkedHashSet<>();
+            for (String member : component) {
+                for (String parent : parents.get(member)) {
+                    ancestors.add(parent);
+                    Set<String> parentAncestors = resolved.get(parent);
+                    if (parentAncestors != null) {
+                        ancestors.addAll(parentAncestors);
+                    }
+                }
+            }
+            if ((component.size() > 1 || ancestors.contains(root)) && reportedCycles.add(new HashSet<>(component))) {
+                cycleCount.incrementAndGet();
+                logger.warn("Cycle in the nested groups {}", component);
+            }
+            for (String member : component) {
+                Set<String> memberAncestors = new LinkedHashSet<>(ancestors);
+                memberAncestors.remove(member);
+                resolved.put(member, Collections.unmodifiableSet(memberAncestors));
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import org.jahia.modules.external.users.Member;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory reverse index of the loaded group members: for each member (user or group), the names of the groups it
+ * belongs to. Members are identified by their type and name, which are unique within a provider.
+ * <p>
+ * The index can only answer membership requests once it is complete, i.e. once the members of all the groups of the
+ * provider have been indexed, see {@link #setExpectedGroups(Collection)}.
+ */
+public class LDAPMembershipIndex {
+
+    private final Map<String, Set<String>> groupsByMember = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> membersByGroup = new HashMap<>();
+    private Set<String> expectedGroups;
+    private Set<String> pendingGroups;
+    private volatile boolean complete = false;
+
+    /**
+     * Indexes the members of a group, replacing the previously indexed ones.
+     *
+     * @param groupName the group name
+     * @param members the group members
+     */
+    public synchronized void update(String groupName, Collection<Member> members) {
+        removeMembers(groupName);
+        Set<String> memberKeys = new HashSet<>(members.size());
+        for (Member member : members) {
+            String memberKey = getMemberKey(member);
+            memberKeys.add(memberKey);
+            Set<String> groups = groupsByMember.get(memberKey);
+            if (groups == null) {
+                groups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                groupsByMember.put(memberKey, groups);
+            }
+            groups.add(groupName);
+        }
+        membersByGroup.put(groupName, memberKeys);
+        if (expectedGroups != null) {
+            // the group may have been created after the expected groups were defined
+            expectedGroups.add(groupName);
+            pendingGroups.remove(groupName);
+            complete = pendingGroups.isEmpty();
+        }
+    }
+
+    /**
+     * Removes a group from the index. The index is incomplete until the group members are indexed again.
+     *
+     * @param groupName the group name
+     */
+    public synchronized void remove(String groupName) {
+        removeMembers(groupName);
+        if (expectedGroups != null && expectedGroups.contains(groupName)) {
+            pendingGroups.add(groupName);
+            complete = false;
+        }
+    }
+
+    /**
+     * Removes all the groups from the index, and forget the expected groups.
+     */
+    public synchronized void clear() {
+        groupsByMember.clear();
+        membersByGroup.clear();
+        expectedGroups = null;
+        pendingGroups = null;
+        complete = false;
+    }
+
+    /**
+     * Defines the complete list of groups of the provider. The index is complete once all of them are indexed.
+     *
+     * @param groupNames the names of all the groups
+     */
+    public synchronized void setExpectedGroups(Collection<String> groupNames) {
+        expectedGroups = new HashSet<>(groupNames);
+        pendingGroups = new HashSet<>(groupNames);
+        pendingGroups.removeAll(membersByGroup.keySet());
+        complete = pendingGroups.isEmpty();
+    }
+
+    /**
+     * Adds a group created after the expected groups were defined. The index is incomplete until its members are
+     * indexed.
+     *
+     * @param groupName the group name
+     */
+    public synchronized void addExpectedGroup(String groupName) {
+        if (expectedGroups != null && expectedGroups.add(groupName) && !membersByGroup.containsKey(groupName)) {
+            pendingGroups.add(groupName);
+            complete = false;
+        }
+    }
+
+    /**
+     * @param groupName the group name
+     * @return true if the members of the group are indexed
+     */
+    public synchronized boolean contains(String groupName) {
+        return membersByGroup.containsKey(groupName);
+    }
+
+    /**
+     * @return true if the members of all the groups are indexed
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the groups a member belongs to.
+     *
+     * @param member the member
+     * @return the names of the groups, or null if the index is not complete
+     */
+    public List<String> getMemberships(Member member) {
+        if (!complete) {
+            return null;
+        }
+        Set<String> groups = groupsByMember.get(getMemberKey(member));
+        return groups != null ? new ArrayList<>(groups) : new ArrayList<String>();
+    }
+
+    private void removeMembers(String groupName) {
+        Set<String> memberKeys = membersByGroup.remove(groupName);
+        if (memberKeys != null) {
+            for (String memberKey : memberKeys) {
+                Set<String> groups = groupsByMember.get(memberKey);
+                if (groups != null) {
+                    groups.remove(groupName);
+                    if (groups.isEmpty()) {
+                        groupsByMember.remove(memberKey);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String getMemberKey(Member member) {
+        return (member.getType() == Member.MemberType.GROUP ? "g" : "u") + member.getName();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names of the users or groups of a provider known not to exist, kept apart from the cache regions so that lookups of
+ * random names do not evict the real entries.
+ * <p>
+ * A name is known not to exist if it was not found in the LDAP server during the last time to live, or if it is not
+ * in the filter of the known names, a Bloom filter built from the list of all the names of the provider. The filter
+ * only knows the names that existed when it was built, or that were cached since, so a name created since is missing
+ * from it: the filter is only trusted by the lookups that can afford to miss a new name, the others search it once in
+ * the LDAP server. Names are compared without case, as the naming attributes usually are.
+ */
+public class LDAPNegativeCache {
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final int MIN_EXPECTED_NAMES = 10000;
+
+    private final boolean groups;
+    private final int maxEntries;
+    private final long timeToLive;
+
+    // names not found, with the time at which they were searched
+    private final ConcurrentMap<String, Long> absentNames = new ConcurrentHashMap<>();
+    private volatile KnownNames knownNames;
+    // filter being built, which also receives the names cached in the meantime
+    private volatile KnownNames nextKnownNames;
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param groups true for the group names, false for the user names
+     * @param maxEntries the maximum number of names kept as not found
+     * @param timeToLive the time during which a name is kept as not found, in seconds, 0 to not keep them
+     */
+    public LDAPNegativeCache(boolean groups, int maxEntries, int timeToLive) {
+        this.groups = groups;
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive * 1000L;
+    }
+
+    /**
+     * @param name the user or group name
+     * @param trustFilter true to report the names missing from the filter of the known names as absent, false to only
+     * report the names not found during the last time to live
+     * @return the entry of the name if it is known not to exist, null otherwise
+     */
+    public LDAPAbstractCacheEntry getAbsentEntry(String name, boolean trustFilter) {
+        String key = normalize(name);
+        Long searchedAt = absentNames.get(key);
+        if (searchedAt != null) {
+            if (System.currentTimeMillis() - searchedAt < timeToLive) {
+                return newAbsentEntry(name, searchedAt);
+            }
+            absentNames.remove(key, searchedAt);
+        }
+        KnownNames filter = trustFilter ? knownNames : null;
+        if (filter != null && !filter.mightContain(key)) {
+            return newAbsentEntry(name, filter.builtAt);
+        }
+        return null;
+    }
+
+    /**
+     * Records a name that was not found
+     *
+     * @param name the user or group name
+     */
+    public void addAbsent(String name) {
+        if (timeToLive <= 0) {
+            return;
+        }
+        if (absentNames.size() >= maxEntries) {
+            purge();
+        }
+        absentNames.put(normalize(name), System.currentTimeMillis());
+    }
+
+    /**
+     * Records a name that was found
+     *
+     * @param name the user or group name
+     */
+    public void addKnown(String name) {
+        String key = normalize(name);
+        absentNames.remove(key);
+        KnownNames filter = knownNames;
+        if (filter != null) {
+            filter.add(key);
+        }
+        filter = nextKnownNames;
+        if (filter != null) {
+            filter.add(key);
+        }
+    }
+
+    /**
+     * Starts a new filter of the known names, sized after the current one. The names are added to the filter with
+     * {@link KnownNames#add(String)}, then the filter is used once passed to {@link #setKnownNames(KnownNames)}.
+     *
+     * @return the new filter
+     */
+    public KnownNames newKnownNames() {
+        KnownNames current = knownNames;
+        int expected = Math.max(MIN_EXPECTED_NAMES, current != null ? current.count.get() + current.count.get() / 4 : 0);
+        KnownNames filter = new KnownNames(expected);
+        nextKnownNames = filter;
+        return filter;
+    }
+
+    /**
+     * Replaces the filter of the known names
+     *
+     * @param filter the new filter, complete
+     */
+    public void setKnownNames(KnownNames filter) {
+        knownNames = filter;
+        if (nextKnownNames == filter) {
+            nextKnownNames = null;
+        }
+    }
+
+    /**
+     * @return the time at which the filter of the known names was built, 0 if there is none
+     */
+    public long getKnownNamesBuiltAt() {
+        KnownNames filter = knownNames;
+        return filter != null ? filter.builtAt : 0;
+    }
+
+    /**
+     * @return the number of names kept as not found
+     */
+    public int getAbsentCount() {
+        return absentNames.size();
+    }
+
+    /**
+     * Forgets the names not found and drops the filter of the known names, until it is built again
+     */
+    public void clear() {
+        absentNames.clear();
+        knownNames = null;
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Long>> it = absentNames.entrySet().iterator(); it.hasNext(); ) {
+            if (now - it.next().getValue() >= timeToLive) {
+                it.remove();
+            }
+        }
+        if (absentNames.size() >= maxEntries) {
+            absentNames.clear();
+        }
+    }
+
+    private LDAPAbstractCacheEntry newAbsentEntry(String name, long searchedAt) {
+        LDAPAbstractCacheEntry entry = groups ? new LDAPGroupCacheEntry(name) : new LDAPUserCacheEntry(name);
+        entry.setExist(false);
+        entry.setLoadedAt(searchedAt);
+        return entry;
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Bloom filter of the names of a provider
+     */
+    public static final class KnownNames {
+        private final BloomFilter<CharSequence> filter;
+        private final AtomicInteger count = new AtomicInteger();
+        private final long builtAt = System.currentTimeMillis();
+
+        private KnownNames(int expectedNames) {
+            filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedNames, FALSE_POSITIVE_PROBABILITY);
+        }
+
+        /**
+         * @param name a user or group name
+         */
+        public void add(String name) {
+            if (filter.put(normalize(name))) {
+                count.incrementAndGet();
+            }
+        }
+
+        /**
+         * @return the approximate number of names of the filter
+         */
+        public int getCount() {
+            return count.get();
+        }
+
+        private boolean mightContain(String key) {
+            return filter.mightContain(key);
+        }
+    }
+}
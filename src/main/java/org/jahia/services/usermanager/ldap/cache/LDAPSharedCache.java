@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+/**
+ * Cache tier shared by the nodes of a cluster, under the local caches of the providers configured with
+ * <code>cache.clustered</code>: an entry read from the LDAP server by one node is published to the other nodes,
+ * which then do not need to read it again.
+ * <p>
+ * Implementations are registered as OSGi services, for instance on top of the distributed cache of the cluster.
+ * The entries are stored in the binary form of {@link LDAPCacheCodec}, in the regions named after the local cache
+ * regions of the providers, e.g. <code>LDAPUsersCache.ldap</code>, under their name and under their DN.
+ */
+public interface LDAPSharedCache {
+
+    /**
+     * Notified of the changes made by the other nodes, so that their local copies can be dropped. Listeners are not
+     * notified of the changes made through the same instance.
+     */
+    interface Listener {
+
+        /**
+         * @param region the cache region
+         * @param key the key that was updated or removed
+         */
+        void invalidated(String region, String key);
+
+        /**
+         * @param region the cache region that was cleared
+         */
+        void cleared(String region);
+    }
+
+    /**
+     * @param region the cache region
+     * @param key the cache key
+     * @return the stored value, or null if there is none
+     */
+    byte[] get(String region, String key);
+
+    /**
+     * @param region the cache region
+     * @param key the cache key
+     * @param value the value to store
+     * @param timeToLive the time after which the value expires in seconds, 0 if it never expires
+     */
+    void put(String region, String key, byte[] value, int timeToLive);
+
+    void remove(String region, String key);
+
+    void clear(String region);
+
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+}
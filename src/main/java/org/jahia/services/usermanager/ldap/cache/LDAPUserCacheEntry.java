@@ -16,27 +16,128 @@
 package org.jahia.services.usermanager.ldap.cache;
 
 import org.jahia.services.usermanager.JahiaUser;
+import org.jahia.services.usermanager.JahiaUserImpl;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Represents and entry in the LDAP user cache.
- * 
+ * <p>
+ * The user is stored in a compact form, see {@link LDAPCacheStrings}, and a new {@link JahiaUser} is created each
+ * time it is read.
+ *
  * @author kevan
  */
 public class LDAPUserCacheEntry extends LDAPAbstractCacheEntry implements Serializable{
-    private static final long serialVersionUID = -1432235243384204528L;
-    private JahiaUser user;
+    private static final long serialVersionUID = 6318274107934560321L;
+
+    // the user, null if the entry has no user
+    private String userName;
+    private String userPath;
+    private String userProviderName;
+    private String userRealm;
+    private String[] userProperties;
+
+    private String[] ldapAttributeNames;
+    private String[][] ldapAttributeValues;
 
     public LDAPUserCacheEntry(String name) {
         setName(name);
     }
 
+    /**
+     * @return a new JahiaUser built from the cached data, or null if the entry has no user
+     */
     public JahiaUser getUser() {
-        return user;
+        if (userName == null) {
+            return null;
+        }
+        return new JahiaUserImpl(userName, userPath, LDAPCacheStrings.toProperties(userProperties), userProviderName, userRealm);
     }
 
     public void setUser(JahiaUser user) {
-        this.user = user;
+        if (user == null) {
+            userName = null;
+            userPath = null;
+            userProviderName = null;
+            userRealm = null;
+            userProperties = null;
+        } else {
+            userName = LDAPCacheStrings.intern(user.getName());
+            userPath = user.getLocalPath();
+            userProviderName = LDAPCacheStrings.intern(user.getProviderName());
+            userRealm = LDAPCacheStrings.intern(user.getRealm());
+            userProperties = LDAPCacheStrings.toArray(user.getProperties());
+        }
+    }
+
+    /**
+     * @return the raw LDAP attributes used to evaluate the dynamic group filters, keyed by lower case name
+     */
+    public Map<String, List<String>> getLdapAttributes() {
+        if (ldapAttributeNames == null) {
+            return null;
+        }
+        Map<String, List<String>> ldapAttributes = new HashMap<>(ldapAttributeNames.length * 2);
+        for (int i = 0; i < ldapAttributeNames.length; i++) {
+            ldapAttributes.put(ldapAttributeNames[i], LDAPCacheStrings.asList(ldapAttributeValues[i]));
+        }
+        return ldapAttributes;
+    }
+
+    public void setLdapAttributes(Map<String, List<String>> ldapAttributes) {
+        if (ldapAttributes == null) {
+            ldapAttributeNames = null;
+            ldapAttributeValues = null;
+            return;
+        }
+        ldapAttributeNames = new String[ldapAttributes.size()];
+        ldapAttributeValues = new String[ldapAttributes.size()][];
+        int i = 0;
+        for (Map.Entry<String, List<String>> entry : ldapAttributes.entrySet()) {
+            ldapAttributeNames[i] = LDAPCacheStrings.intern(entry.getKey());
+            ldapAttributeValues[i] = LDAPCacheStrings.toArray(entry.getValue());
+            i++;
+        }
+    }
+
+    @Override
+    void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+        LDAPCacheCodec.writeString(out, userName);
+        LDAPCacheCodec.writeString(out, userPath);
+        LDAPCacheCodec.writeString(out, userProviderName);
+        LDAPCacheCodec.writeString(out, userRealm);
+        LDAPCacheCodec.writeStrings(out, userProperties);
+        LDAPCacheCodec.writeStrings(out, ldapAttributeNames);
+        if (ldapAttributeNames != null) {
+            for (String[] values : ldapAttributeValues) {
+                LDAPCacheCodec.writeStrings(out, values);
+            }
+        }
+    }
+
+    @Override
+    void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+        userName = LDAPCacheStrings.intern(LDAPCacheCodec.readString(in));
+        userPath = LDAPCacheCodec.readString(in);
+        userProviderName = LDAPCacheStrings.intern(LDAPCacheCodec.readString(in));
+        userRealm = LDAPCacheStrings.intern(LDAPCacheCodec.readString(in));
+        userProperties = LDAPCacheCodec.readProperties(in);
+        ldapAttributeNames = LDAPCacheCodec.readStrings(in, true);
+        ldapAttributeValues = null;
+        if (ldapAttributeNames != null) {
+            ldapAttributeValues = new String[ldapAttributeNames.length][];
+            for (int i = 0; i < ldapAttributeNames.length; i++) {
+                ldapAttributeValues[i] = LDAPCacheCodec.readStrings(in, true);
+            }
+        }
     }
 }
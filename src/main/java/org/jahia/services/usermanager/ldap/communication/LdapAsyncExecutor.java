@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor running the asynchronous lookups of a provider, so that the callers can send several lookups in
+ * parallel instead of waiting for each LDAP request in turn. When all the threads are busy and the queue is full, the
+ * lookups are rejected rather than piling up.
+ * <p>
+ * With virtual threads, each lookup runs on its own virtual thread, and the number of lookups in progress is bounded
+ * by the number of threads plus the queue size. The number of concurrent LDAP operations is bounded by the
+ * {@link LdapTemplateWrapper}.
+ */
+public class LdapAsyncExecutor {
+
+    // platform threads, null when running on virtual threads
+    private final ThreadPoolExecutor executor;
+    private final ThreadFactory virtualThreadFactory;
+    private final Semaphore virtualPermits;
+    private final Set<Thread> virtualThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private volatile boolean stopped;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param providerKey the provider key
+     * @param threads the number of threads
+     * @param queueSize the maximum number of lookups waiting for a thread
+     * @param virtual true to run the lookups on virtual threads, if the runtime supports them
+     */
+    public LdapAsyncExecutor(final String providerKey, int threads, int queueSize, boolean virtual) {
+        virtualThreadFactory = virtual ? LdapVirtualThreads.newThreadFactory("LDAP Async " + providerKey + "-") : null;
+        if (virtualThreadFactory != null) {
+            executor = null;
+            virtualPermits = new Semaphore(threads + Math.max(1, queueSize));
+            return;
+        }
+        virtualPermits = null;
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LDAP Async " + providerKey + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs a task on the executor, with the priority of the calling thread
+     *
+     * @param task the task
+     * @param <T> the type of the result
+     * @return the future result of the task, completed with a {@link RejectedExecutionException} if the executor is
+     * saturated or stopped, or with the exception thrown by the task
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> task) {
+        AsyncTask<T> asyncTask = new AsyncTask<>(task);
+        try {
+            if (executor != null) {
+                executor.execute(asyncTask);
+            } else {
+                startVirtualThread(asyncTask);
+            }
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            asyncTask.future.completeExceptionally(e);
+        }
+        return asyncTask.future;
+    }
+
+    private void startVirtualThread(final AsyncTask<?> asyncTask) {
+        if (stopped || !virtualPermits.tryAcquire()) {
+            throw new RejectedExecutionException(stopped ? "LDAP provider stopped" : "Too many asynchronous LDAP lookups");
+        }
+        try {
+            virtualThreadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    virtualThreads.add(Thread.currentThread());
+                    try {
+                        asyncTask.run();
+                    } finally {
+                        virtualThreads.remove(Thread.currentThread());
+                        virtualPermits.release();
+                    }
+                }
+            }).start();
+        } catch (RuntimeException e) {
+            virtualPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the lookups run on virtual threads
+     */
+    public boolean isVirtual() {
+        return executor == null;
+    }
+
+    /**
+     * @return the number of lookups running
+     */
+    public int getActiveCount() {
+        return executor != null ? executor.getActiveCount() : virtualThreads.size();
+    }
+
+    /**
+     * @return the number of lookups waiting for a thread
+     */
+    public int getQueuedCount() {
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    /**
+     * @return the number of lookups rejected because the executor was saturated
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Stops the executor, the futures of the queued lookups are completed with a {@link RejectedExecutionException}
+     */
+    public void stop() {
+        stopped = true;
+        if (executor == null) {
+            for (Thread thread : virtualThreads) {
+                thread.interrupt();
+            }
+            return;
+        }
+        for (Runnable queued : executor.shutdownNow()) {
+            if (queued instanceof AsyncTask) {
+                ((AsyncTask<?>) queued).future.completeExceptionally(new RejectedExecutionException("LDAP provider stopped"));
+            }
+        }
+    }
+
+    private static final class AsyncTask<T> implements Runnable {
+        private final Callable<T> task;
+        private final LdapPriority priority = LdapPriority.current();
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private AsyncTask(Callable<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                // cancelled while queued
+                return;
+            }
+            LdapPriority previous = LdapPriority.set(priority);
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                LdapPriority.set(previous);
+            }
+        }
+    }
+}
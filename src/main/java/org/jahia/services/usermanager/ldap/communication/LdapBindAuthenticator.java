@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.AuthenticationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.ExtendedResponse;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import java.util.Hashtable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Verifies the passwords of the users by binding with their DN on a pool of dedicated connections. Each check re-binds
+ * an idle connection instead of opening a new connection, with its TCP and TLS handshakes, for every login. The
+ * connections are never used for searches, so the identity of their last bind does not matter.
+ * <p>
+ * With Active Directory, the connections can be switched to fast bind mode, in which the server only checks the
+ * password, without evaluating the groups of the user.
+ */
+public class LdapBindAuthenticator {
+
+    private static Logger logger = LoggerFactory.getLogger(LdapBindAuthenticator.class);
+
+    // LDAP_SERVER_FAST_BIND_OID, extended operation supported by Active Directory
+    private static final String FAST_BIND_OID = "1.2.840.113556.1.4.1781";
+
+    private final Hashtable<String, Object> environment;
+    private final String authenticationMode;
+    private final boolean fastBind;
+    private final BlockingQueue<LdapContext> idle;
+    private volatile boolean stopped;
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param environment the JNDI environment of the connections: URL, context factory, authentication mode of the
+     * binds, timeouts and referral handling
+     * @param poolSize the maximum number of idle connections kept open
+     * @param fastBind true to enable the fast bind mode of Active Directory on the connections
+     */
+    public LdapBindAuthenticator(Hashtable<String, Object> environment, int poolSize, boolean fastBind) {
+        this.environment = new Hashtable<>(environment);
+        if (!this.environment.containsKey(Context.INITIAL_CONTEXT_FACTORY)) {
+            this.environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        }
+        // the connections are opened anonymously, the mode is used by the binds of the users
+        Object mode = this.environment.remove(Context.SECURITY_AUTHENTICATION);
+        this.authenticationMode = mode != null ? mode.toString() : "simple";
+        // the connections are re-bound with other identities, they cannot come from the shared JNDI pool
+        this.environment.put("com.sun.jndi.ldap.connect.pool", "false");
+        this.environment.remove(Context.SECURITY_PRINCIPAL);
+        this.environment.remove(Context.SECURITY_CREDENTIALS);
+        this.fastBind = fastBind;
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * Binds with the credentials of a user. A connection that fails is closed, and the bind is retried once on a new
+     * connection, as idle connections may have been dropped by the server.
+     *
+     * @param dn the DN of the user
+     * @param password the password, empty passwords are always rejected as they would be accepted as anonymous binds
+     * @return true if the server accepted the credentials
+     * @throws NamingException if the server could not be reached
+     */
+    public boolean authenticate(String dn, String password) throws NamingException {
+        if (password == null || password.isEmpty()) {
+            return false;
+        }
+        for (int attempt = 0; ; attempt++) {
+            LdapContext ctx = idle.poll();
+            boolean pooled = ctx != null;
+            if (ctx == null) {
+                ctx = openConnection();
+            }
+            try {
+                bind(ctx, dn, password);
+                release(ctx);
+                return true;
+            } catch (AuthenticationException e) {
+                // wrong credentials, the connection remains usable
+                release(ctx);
+                logger.debug("Bind failed for {}: {}", dn, e.getMessage());
+                return false;
+            } catch (NamingException e) {
+                close(ctx);
+                if (!pooled || attempt > 0) {
+                    throw e;
+                }
+                logger.debug("Idle authentication connection failed, retrying on a new one: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void bind(LdapContext ctx, String dn, String password) throws NamingException {
+        ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, authenticationMode);
+        ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, dn);
+        ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+        try {
+            // authenticates again over the existing connection
+            ctx.reconnect(null);
+        } finally {
+            ctx.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+        }
+    }
+
+    private LdapContext openConnection() throws NamingException {
+        LdapContext ctx = new InitialLdapContext(environment, null);
+        if (fastBind) {
+            try {
+                ctx.extendedOperation(new FastBindRequest());
+            } catch (NamingException e) {
+                close(ctx);
+                throw e;
+            }
+        }
+        return ctx;
+    }
+
+    private void release(LdapContext ctx) {
+        if (stopped || !idle.offer(ctx)) {
+            close(ctx);
+        }
+    }
+
+    private static void close(LdapContext ctx) {
+        try {
+            ctx.close();
+        } catch (NamingException e) {
+            logger.debug("Unable to close authentication connection", e);
+        }
+    }
+
+    /**
+     * @return the number of idle connections
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Closes the idle connections, the connections in use are closed when released
+     */
+    public void stop() {
+        stopped = true;
+        LdapContext ctx;
+        while ((ctx = idle.poll()) != null) {
+            close(ctx);
+        }
+    }
+
+    private static final class FastBindRequest implements ExtendedRequest {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String getID() {
+            return FAST_BIND_OID;
+        }
+
+        @Override
+        public byte[] getEncodedValue() {
+            return null;
+        }
+
+        @Override
+        public ExtendedResponse createExtendedResponse(String id, byte[] berValue, int offset, int length) {
+            return null;
+        }
+    }
+}
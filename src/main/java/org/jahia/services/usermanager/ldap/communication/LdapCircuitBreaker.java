@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker of an LDAP provider. The outcome and the duration of the LDAP operations are tracked over a sliding
+ * window; the circuit opens when the error rate or the rate of slow operations exceeds its threshold. While the circuit
+ * is open, the operations fail immediately with a {@link LdapCircuitOpenException} instead of waiting for the server
+ * to time out, and a probe is run on a schedule to check whether the server is back. The circuit closes when a probe
+ * succeeds, otherwise the delay before the next probe is doubled.
+ */
+public class LdapCircuitBreaker {
+
+    private static Logger logger = LoggerFactory.getLogger(LdapCircuitBreaker.class);
+
+    private static final int BUCKETS = 10;
+    private static final int MAX_BACKOFF_FACTOR = 16;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Notified when the circuit opens or closes
+     */
+    public interface Listener {
+        void stateChanged(State state, String reason);
+    }
+
+    private final String providerKey;
+    private final long bucketMillis;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long slowCallNanos;
+    private final int slowCallRateThreshold;
+    private final long openMillis;
+    private final Callable<Boolean> probe;
+    private final Listener listener;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // sliding window, one bucket per time slice
+    private final long[] bucketStarts = new long[BUCKETS];
+    private final int[] calls = new int[BUCKETS];
+    private final int[] failures = new int[BUCKETS];
+    private final int[] slowCalls = new int[BUCKETS];
+
+    private volatile State state = State.CLOSED;
+    private volatile String lastFailure;
+    private int backoffFactor = 1;
+    private volatile long openUntil;
+    private final ThreadLocal<Boolean> probing = new ThreadLocal<>();
+    private final AtomicLong openCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param providerKey the provider key
+     * @param windowSeconds the duration of the sliding window
+     * @param minimumCalls the number of operations in the window below which the circuit stays closed
+     * @param failureRateThreshold the percentage of failed operations opening the circuit
+     * @param slowCallMillis the duration above which an operation is slow
+     * @param slowCallRateThreshold the percentage of slow operations opening the circuit, 0 to ignore the durations
+     * @param openSeconds the time before the first probe, doubled after each failed probe
+     * @param probe checks whether the server is available, runs while the circuit is half open
+     * @param listener notified when the circuit opens or closes, may be null
+     */
+    public LdapCircuitBreaker(final String providerKey, int windowSeconds, int minimumCalls, int failureRateThreshold,
+                              long slowCallMillis, int slowCallRateThreshold, int openSeconds, Callable<Boolean> probe, Listener listener) {
+        this.providerKey = providerKey;
+        this.bucketMillis = Math.max(1L, windowSeconds * 1000L / BUCKETS);
+        this.minimumCalls = Math.max(1, minimumCalls);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openMillis = Math.max(1, openSeconds) * 1000L;
+        this.probe = probe;
+        this.listener = listener;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LDAP Circuit breaker " + providerKey);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return true if an operation can be sent to the server: the circuit is closed, or the current thread is probing
+     */
+    public boolean allowRequest() {
+        if (state == State.CLOSED || Boolean.TRUE.equals(probing.get())) {
+            return true;
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records an operation that got an answer from the server
+     *
+     * @param durationNanos the duration of the operation, 0 if it does not count in the slow operations
+     */
+    public void recordSuccess(long durationNanos) {
+        record(false, durationNanos);
+    }
+
+    /**
+     * Records an operation that failed; only the communication errors count as failures, other errors mean that the
+     * server answered
+     *
+     * @param durationNanos the duration of the operation, 0 if it does not count in the slow operations
+     * @param e the error
+     */
+    public void recordError(long durationNanos, Throwable e) {
+        boolean failure = isCommunicationError(e);
+        if (failure) {
+            lastFailure = e.getMessage();
+        }
+        record(failure, durationNanos);
+    }
+
+    private void record(boolean failure, long durationNanos) {
+        if (state != State.CLOSED) {
+            // the probe decides when the circuit closes
+            return;
+        }
+        String reason = null;
+        synchronized (this) {
+            int bucket = getBucket(System.currentTimeMillis());
+            calls[bucket]++;
+            if (failure) {
+                failures[bucket]++;
+            }
+            boolean slow = slowCallRateThreshold > 0 && durationNanos >= slowCallNanos;
+            if (slow) {
+                slowCalls[bucket]++;
+            }
+            if (failure || slow) {
+                reason = checkThresholds();
+            }
+            if (reason != null) {
+                open();
+            }
+        }
+        if (reason != null) {
+            logger.warn("Circuit opened for LDAP provider {}: {}, next check in {} s",
+                    new Object[]{providerKey, reason, openMillis / 1000});
+            fireStateChanged(State.OPEN, reason);
+        }
+    }
+
+    private int getBucket(long now) {
+        long start = now - now % bucketMillis;
+        int bucket = (int) ((now / bucketMillis) % BUCKETS);
+        if (bucketStarts[bucket] != start) {
+            bucketStarts[bucket] = start;
+            calls[bucket] = 0;
+            failures[bucket] = 0;
+            slowCalls[bucket] = 0;
+        }
+        return bucket;
+    }
+
+    private String checkThresholds() {
+        int[] totals = getTotals();
+        if (totals[0] < minimumCalls) {
+            return null;
+        }
+        if (totals[1] * 100 >= failureRateThreshold * totals[0]) {
+            return totals[1] + " of " + totals[0] + " operations failed" + (lastFailure != null ? " (" + lastFailure + ")" : "");
+        }
+        if (slowCallRateThreshold > 0 && totals[2] * 100 >= slowCallRateThreshold * totals[0]) {
+            return totals[2] + " of " + totals[0] + " operations took more than " + TimeUnit.NANOSECONDS.toMillis(slowCallNanos) + " ms";
+        }
+        return null;
+    }
+
+    // calls, failures and slow calls in the window
+    private synchronized int[] getTotals() {
+        long windowStart = System.currentTimeMillis() - bucketMillis * BUCKETS;
+        int[] totals = new int[3];
+        for (int i = 0; i < BUCKETS; i++) {
+            if (bucketStarts[i] > windowStart) {
+                totals[0] += calls[i];
+                totals[1] += failures[i];
+                totals[2] += slowCalls[i];
+            }
+        }
+        return totals;
+    }
+
+    // called with the lock held
+    private void open() {
+        openCount.incrementAndGet();
+        state = State.OPEN;
+        long delay = openMillis * backoffFactor;
+        openUntil = System.currentTimeMillis() + delay;
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runProbe();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    private void runProbe() {
+        synchronized (this) {
+            if (state != State.OPEN) {
+                return;
+            }
+            state = State.HALF_OPEN;
+        }
+        boolean available;
+        probing.set(Boolean.TRUE);
+        try {
+            available = Boolean.TRUE.equals(probe.call());
+        } catch (Exception e) {
+            logger.debug("Probe of LDAP provider " + providerKey + " failed", e);
+            available = false;
+        } finally {
+            probing.remove();
+        }
+        synchronized (this) {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            if (!available) {
+                backoffFactor = Math.min(backoffFactor * 2, MAX_BACKOFF_FACTOR);
+                open();
+            } else {
+                backoffFactor = 1;
+                lastFailure = null;
+                for (int i = 0; i < BUCKETS; i++) {
+                    bucketStarts[i] = 0;
+                }
+                state = State.CLOSED;
+            }
+        }
+        if (available) {
+            logger.info("Circuit closed for LDAP provider {}, the server is available again", providerKey);
+            fireStateChanged(State.CLOSED, null);
+        } else {
+            logger.info("LDAP provider {} is still unavailable, next check in {} s", providerKey, getRemainingOpenTime() / 1000);
+        }
+    }
+
+    private void fireStateChanged(State newState, String reason) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.stateChanged(newState, reason);
+        } catch (RuntimeException e) {
+            logger.warn("Error while notifying the circuit state of LDAP provider " + providerKey, e);
+        }
+    }
+
+    /**
+     * @param e an error thrown by an LDAP operation
+     * @return true if the error means that the server could not be reached or did not answer in time
+     */
+    public static boolean isCommunicationError(Throwable e) {
+        // the Spring LDAP exceptions wrap the JNDI ones
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof javax.naming.CommunicationException || t instanceof javax.naming.ServiceUnavailableException
+                    || t instanceof javax.naming.InsufficientResourcesException || t instanceof javax.naming.TimeLimitExceededException
+                    || t instanceof SocketTimeoutException
+                    || t instanceof org.springframework.ldap.CommunicationException
+                    || t instanceof org.springframework.ldap.ServiceUnavailableException
+                    || t instanceof org.springframework.ldap.InsufficientResourcesException
+                    || t instanceof org.springframework.ldap.TimeLimitExceededException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the time in milliseconds before the next probe, 0 if the circuit is not open
+     */
+    public long getRemainingOpenTime() {
+        return state == State.OPEN ? Math.max(0, openUntil - System.currentTimeMillis()) : 0;
+    }
+
+    /**
+     * @return the percentage of failed operations in the window
+     */
+    public double getFailureRate() {
+        int[] totals = getTotals();
+        return totals[0] > 0 ? totals[1] * 100.0 / totals[0] : 0;
+    }
+
+    /**
+     * @return the percentage of slow operations in the window
+     */
+    public double getSlowCallRate() {
+        int[] totals = getTotals();
+        return totals[0] > 0 ? totals[2] * 100.0 / totals[0] : 0;
+    }
+
+    /**
+     * @return the number of times the circuit opened
+     */
+    public long getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * @return the number of operations that failed fast because the circuit was open
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
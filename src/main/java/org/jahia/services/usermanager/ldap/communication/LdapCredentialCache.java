@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of the credentials that were verified by the LDAP server, so that repeated logins of a user do
+ * not need a bind. Only a salted PBKDF2 hash of each password is kept, with a random salt per entry, and the entries
+ * expire a fixed time after the successful bind. A password changed on the server keeps working until then.
+ */
+public class LdapCredentialCache {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 256;
+
+    private final Cache<String, byte[][]> hashes;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param ttlSeconds the time after which a verified password must be checked again by the server
+     * @param maxEntries the maximum number of cached credentials
+     * @param iterations the number of PBKDF2 iterations
+     */
+    public LdapCredentialCache(int ttlSeconds, int maxEntries, int iterations) {
+        this.hashes = CacheBuilder.newBuilder().expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).maximumSize(maxEntries).build();
+        this.iterations = iterations;
+    }
+
+    /**
+     * @param dn the DN of the user
+     * @param password the password to check
+     * @return true if the password was verified by the server for this user less than the TTL ago
+     */
+    public boolean matches(String dn, String password) {
+        byte[][] saltAndHash = hashes.getIfPresent(dn);
+        return saltAndHash != null && MessageDigest.isEqual(saltAndHash[1], hash(password, saltAndHash[0]));
+    }
+
+    /**
+     * Caches a password verified by the server
+     *
+     * @param dn the DN of the user
+     * @param password the password
+     */
+    public void put(String dn, String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        hashes.put(dn, new byte[][]{salt, hash(password, salt)});
+    }
+
+    public void invalidate(String dn) {
+        hashes.invalidate(dn);
+    }
+
+    public void clear() {
+        hashes.invalidateAll();
+    }
+
+    public long getSize() {
+        return hashes.size();
+    }
+
+    private byte[] hash(String password, byte[] salt) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to hash the credentials with " + ALGORITHM, e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
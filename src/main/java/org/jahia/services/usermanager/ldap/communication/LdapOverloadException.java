@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.springframework.ldap.NamingException;
+
+/**
+ * Thrown instead of sending an LDAP operation to the server when too many operations of its priority are waiting, or
+ * when it waited longer than its deadline.
+ */
+public class LdapOverloadException extends NamingException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LdapOverloadException(String msg) {
+        super(msg);
+    }
+}
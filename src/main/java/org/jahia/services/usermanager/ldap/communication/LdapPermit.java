@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Permit of an {@link LdapPriorityScheduler} held beyond a single operation, by a resource that keeps a connection
+ * between operations. Releasing it more than once has no effect.
+ */
+public class LdapPermit {
+
+    private final LdapPriorityScheduler scheduler;
+    private final LdapPriority priority;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    LdapPermit(LdapPriorityScheduler scheduler, LdapPriority priority) {
+        this.scheduler = scheduler;
+        this.priority = priority;
+    }
+
+    /**
+     * Gives the permit back to its scheduler
+     */
+    public void release() {
+        if (released.compareAndSet(false, true) && scheduler != null) {
+            scheduler.release(priority);
+        }
+    }
+
+    /**
+     * @return true if the permit was given back
+     */
+    public boolean isReleased() {
+        return released.get();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+/**
+ * Priority classes of the LDAP operations, from the highest to the lowest. The priority of the operations is the one
+ * of the current thread: interactive by default, the background threads of the provider set their own.
+ */
+public enum LdapPriority {
+
+    /**
+     * Lookups of the users logging in
+     */
+    LOGIN,
+    /**
+     * Requests of the users
+     */
+    INTERACTIVE,
+    /**
+     * Refresh of the cache and synchronization
+     */
+    REFRESH,
+    /**
+     * Preload of the cache
+     */
+    PRELOAD;
+
+    private static final ThreadLocal<LdapPriority> CURRENT = new ThreadLocal<>();
+
+    /**
+     * @return the priority of the operations of the current thread
+     */
+    public static LdapPriority current() {
+        LdapPriority priority = CURRENT.get();
+        return priority != null ? priority : INTERACTIVE;
+    }
+
+    /**
+     * Sets the priority of the operations of the current thread
+     *
+     * @param priority the priority, null to restore the default one
+     * @return the previous priority, to restore it
+     */
+    public static LdapPriority set(LdapPriority priority) {
+        LdapPriority previous = CURRENT.get();
+        if (priority != null) {
+            CURRENT.set(priority);
+        } else {
+            CURRENT.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * @return true for the operations done on behalf of a user
+     */
+    public boolean isUserFacing() {
+        return this == LOGIN || this == INTERACTIVE;
+    }
+
+    /**
+     * @param runnable the body of a thread
+     * @return a runnable running the body with this priority
+     */
+    public Runnable wrap(final Runnable runnable) {
+        final LdapPriority priority = this;
+        return new Runnable() {
+            @Override
+            public void run() {
+                LdapPriority previous = set(priority);
+                try {
+                    runnable.run();
+                } finally {
+                    set(previous);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Grants the permits to run LDAP operations by priority. When a permit is released, it goes to the oldest waiting
+ * operation of the highest priority that did not reach the concurrency limit of its class. The background classes
+ * are limited to a part of the permits, so that the user-facing operations always find free connections.
+ * <p>
+ * Operations are rejected with a {@link LdapOverloadException} when the queue of their class is full, or when they
+ * waited longer than their deadline, as they would not get an answer in time anyway. An operation whose thread is
+ * interrupted while waiting leaves the queue and is rejected the same way.
+ */
+public class LdapPriorityScheduler {
+
+    private static final LdapPriority[] PRIORITIES = LdapPriority.values();
+    // background operations wait longer than the user-facing ones
+    private static final int BACKGROUND_WAIT_FACTOR = 10;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int permits;
+    private int available;
+    private final int[] maxActive = new int[PRIORITIES.length];
+    private final int[] active = new int[PRIORITIES.length];
+    private final long[] maxWaitNanos = new long[PRIORITIES.length];
+    private final int maxQueued;
+    private final List<Deque<Waiter>> queues;
+    private final long[] shedCount = new long[PRIORITIES.length];
+    private final long[] expiredCount = new long[PRIORITIES.length];
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param permits the maximum number of concurrent operations
+     * @param maxBackground the maximum number of concurrent operations of each background class, 0 for a quarter of
+     * the permits
+     * @param maxQueued the maximum number of waiting operations of each class, 0 for no limit
+     * @param maxWaitMillis the time after which a waiting user-facing operation is rejected, background ones wait ten
+     * times longer, 0 for no deadline
+     */
+    public LdapPriorityScheduler(int permits, int maxBackground, int maxQueued, long maxWaitMillis) {
+        this.permits = permits;
+        this.available = permits;
+        this.maxQueued = maxQueued > 0 ? maxQueued : Integer.MAX_VALUE;
+        this.queues = new ArrayList<>(PRIORITIES.length);
+        int background = maxBackground > 0 ? Math.min(maxBackground, permits) : Math.max(1, permits / 4);
+        for (LdapPriority priority : PRIORITIES) {
+            int i = priority.ordinal();
+            queues.add(new ArrayDeque<Waiter>());
+            maxActive[i] = priority.isUserFacing() ? permits : background;
+            if (maxWaitMillis > 0) {
+                maxWaitNanos[i] = TimeUnit.MILLISECONDS.toNanos(priority.isUserFacing() ? maxWaitMillis : maxWaitMillis * BACKGROUND_WAIT_FACTOR);
+            } else {
+                maxWaitNanos[i] = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Waits for a permit
+     *
+     * @param priority the priority of the operation
+     * @throws LdapOverloadException if the queue is full, the deadline is reached or the thread is interrupted, its
+     * interrupt status is then kept
+     */
+    public void acquire(LdapPriority priority) {
+        int i = priority.ordinal();
+        lock.lock();
+        try {
+            if (canRun(i) && !hasPrecedingWaiter(i)) {
+                grant(i);
+                return;
+            }
+            Deque<Waiter> queue = queues.get(i);
+            if (queue.size() >= maxQueued) {
+                shedCount[i]++;
+                throw new LdapOverloadException("Too many " + priority + " LDAP operations waiting");
+            }
+            Waiter waiter = new Waiter(lock.newCondition());
+            queue.addLast(waiter);
+            boolean timed = maxWaitNanos[i] != Long.MAX_VALUE;
+            long deadline = timed ? System.nanoTime() + maxWaitNanos[i] : 0L;
+            try {
+                while (!waiter.granted) {
+                    long remaining = timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+                    if (remaining <= 0) {
+                        queue.remove(waiter);
+                        expiredCount[i]++;
+                        throw new LdapOverloadException(priority + " LDAP operation waited more than "
+                                + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[i]) + " ms");
+                    }
+                    waiter.condition.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    // granted in the meantime, the permit goes to the next waiting operation
+                    active[i]--;
+                    available++;
+                    dispatch();
+                } else {
+                    queue.remove(waiter);
+                }
+                Thread.currentThread().interrupt();
+                throw new LdapOverloadException(priority + " LDAP operation interrupted while waiting");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the permit of an operation and hands it over to the next waiting operation
+     *
+     * @param priority the priority of the operation
+     */
+    public void release(LdapPriority priority) {
+        lock.lock();
+        try {
+            active[priority.ordinal()]--;
+            available++;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canRun(int i) {
+        return available > 0 && active[i] < maxActive[i];
+    }
+
+    // a waiting operation of the same or a higher priority could take the permit
+    private boolean hasPrecedingWaiter(int i) {
+        for (int j = 0; j <= i; j++) {
+            if (!queues.get(j).isEmpty() && active[j] < maxActive[j]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void grant(int i) {
+        active[i]++;
+        available--;
+    }
+
+    private void dispatch() {
+        for (int i = 0; i < PRIORITIES.length && available > 0; i++) {
+            while (available > 0 && active[i] < maxActive[i] && !queues.get(i).isEmpty()) {
+                Waiter waiter = queues.get(i).pollFirst();
+                grant(i);
+                waiter.granted = true;
+                waiter.condition.signal();
+            }
+        }
+    }
+
+    /**
+     * @return the number of operations that can start without waiting
+     */
+    public int getAvailablePermits() {
+        lock.lock();
+        try {
+            return available;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the state of each priority class
+     */
+    public Map<LdapPriority, PriorityStatus> getStatus() {
+        Map<LdapPriority, PriorityStatus> status = new EnumMap<>(LdapPriority.class);
+        lock.lock();
+        try {
+            for (LdapPriority priority : PRIORITIES) {
+                int i = priority.ordinal();
+                status.put(priority, new PriorityStatus(active[i], maxActive[i], queues.get(i).size(), shedCount[i], expiredCount[i]));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return status;
+    }
+
+    public int getPermits() {
+        return permits;
+    }
+
+    private static final class Waiter {
+        private final Condition condition;
+        private boolean granted;
+
+        private Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * State of a priority class
+     */
+    public static class PriorityStatus {
+        private final int active;
+        private final int maxActive;
+        private final int queued;
+        private final long shed;
+        private final long expired;
+
+        PriorityStatus(int active, int maxActive, int queued, long shed, long expired) {
+            this.active = active;
+            this.maxActive = maxActive;
+            this.queued = queued;
+            this.shed = shed;
+            this.expired = expired;
+        }
+
+        /**
+         * @return the number of operations running
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * @return the maximum number of operations running at the same time
+         */
+        public int getMaxActive() {
+            return maxActive;
+        }
+
+        /**
+         * @return the number of operations waiting for a permit
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return the number of operations rejected because the queue was full
+         */
+        public long getShed() {
+            return shed;
+        }
+
+        /**
+         * @return the number of operations rejected because they waited longer than their deadline
+         */
+        public long getExpired() {
+            return expired;
+        }
+    }
+}
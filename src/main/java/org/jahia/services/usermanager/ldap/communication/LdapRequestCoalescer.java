@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical requests: while a request is in flight for a key, the other threads requesting the
+ * same key wait for its result instead of sending their own request to the LDAP server.
+ */
+public class LdapRequestCoalescer {
+
+    private final ConcurrentMap<String, Flight<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Executes the loader, or waits for the result of the loader already running for the same key.
+     *
+     * @param key the request key
+     * @param loader the loader to execute
+     * @param <T> the type of the result
+     * @return the result of the loader, shared with the coalesced callers
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Callable<T> loader) {
+        Flight<T> flight = new Flight<>(loader);
+        Flight<T> existing = (Flight<T>) inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            if (existing.owner == Thread.currentThread()) {
+                // reentrant request, waiting would never end
+                return call(loader);
+            }
+            coalescedCount.incrementAndGet();
+            return getResult(existing, loader);
+        }
+        try {
+            flight.run();
+            return getResult(flight, loader);
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return the number of requests that waited for the result of an identical request instead of being executed
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    private static <T> T getResult(Flight<T> flight, Callable<T> loader) {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return call(loader);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static <T> T call(Callable<T> loader) {
+        try {
+            return loader.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class Flight<T> extends FutureTask<T> {
+        private volatile Thread owner;
+
+        private Flight(Callable<T> callable) {
+            super(callable);
+        }
+
+        @Override
+        public void run() {
+            owner = Thread.currentThread();
+            try {
+                super.run();
+            } finally {
+                owner = null;
+            }
+        }
+    }
+}
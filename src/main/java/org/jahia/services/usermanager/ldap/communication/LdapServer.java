@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.springframework.ldap.core.ContextSource;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the servers of a {@link LoadBalancingContextSource}, with its own context source and connection pool, and its
+ * health: operations in progress, latency, consecutive failures and ejection.
+ */
+public class LdapServer {
+
+    // weight of the last operation in the average latency
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final int MAX_BACKOFF_FACTOR = 16;
+
+    private final String url;
+    private final ContextSource contextSource;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong ejectionCount = new AtomicLong();
+    private volatile double averageLatencyNanos;
+    private volatile long ejectedUntil;
+    private int backoffFactor = 1;
+
+    LdapServer(String url, ContextSource contextSource) {
+        this.url = url;
+        this.contextSource = contextSource;
+    }
+
+    ContextSource getContextSource() {
+        return contextSource;
+    }
+
+    void acquire() {
+        outstanding.incrementAndGet();
+        requestCount.incrementAndGet();
+    }
+
+    void release() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * @return the new average latency
+     */
+    synchronized double recordSuccess(long durationNanos) {
+        consecutiveFailures.set(0);
+        backoffFactor = 1;
+        averageLatencyNanos = averageLatencyNanos == 0 ? durationNanos
+                : averageLatencyNanos + LATENCY_SMOOTHING * (durationNanos - averageLatencyNanos);
+        return averageLatencyNanos;
+    }
+
+    /**
+     * @return the number of consecutive failures
+     */
+    int recordFailure() {
+        failureCount.incrementAndGet();
+        return consecutiveFailures.incrementAndGet();
+    }
+
+    /**
+     * Stops sending operations to the server for a while, the time doubles at each ejection until an operation succeeds
+     *
+     * @return the ejection time in milliseconds
+     */
+    synchronized long eject(long ejectionMillis) {
+        long time = ejectionMillis * backoffFactor;
+        backoffFactor = Math.min(backoffFactor * 2, MAX_BACKOFF_FACTOR);
+        ejectedUntil = System.currentTimeMillis() + time;
+        // the latency is measured again once the server is back
+        averageLatencyNanos = 0;
+        ejectionCount.incrementAndGet();
+        return time;
+    }
+
+    long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return true if the server does not receive operations, because it failed or was too slow
+     */
+    public boolean isEjected() {
+        return ejectedUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * @return the number of operations in progress on the server
+     */
+    public int getOutstandingRequests() {
+        return outstanding.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getEjectionCount() {
+        return ejectionCount.get();
+    }
+
+    /**
+     * @return the moving average of the latency of the operations, in milliseconds
+     */
+    public double getAverageLatency() {
+        return averageLatencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
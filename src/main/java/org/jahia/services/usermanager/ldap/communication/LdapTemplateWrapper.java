@@ -15,31 +15,234 @@
  */
 package org.jahia.services.usermanager.ldap.communication;
 
+import org.jahia.services.usermanager.ldap.metrics.LdapMetrics;
 import org.springframework.ldap.core.LdapTemplate;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * LdapTemplate wrapper that wrap all the call to the ldapTemplate object
  * You need to use this class instead of use directly the ldapTemplate in order to react to the communication issue with the ldap server
+ * <p>
+ * The bulk searches (memberships, group members, user and group searches, synchronization) can run on their own
+ * template and connections, and wait for their own permits, so that they never delay the point lookups. The permits
+ * are granted by priority, see {@link LdapPriorityScheduler}.
  * @author kevan
  */
 public class LdapTemplateWrapper {
+
+    // operations reading many entries, see the LdapMetrics constants
+    private static final Set<String> BULK_OPERATIONS = new HashSet<>(Arrays.asList(LdapMetrics.MEMBERSHIP, LdapMetrics.MEMBERS,
+            LdapMetrics.SEARCH_USERS, LdapMetrics.SEARCH_GROUPS, LdapMetrics.SYNC, LdapMetrics.SCAN_NAMES));
+
     private LdapTemplate ldapTemplate;
+    // template of the bulk searches, null to use the same as the lookups
+    private LdapTemplate bulkLdapTemplate;
+    private LdapMetrics metrics;
+    private volatile LdapCircuitBreaker circuitBreaker;
+    // bound the concurrent lookups and bulk searches, null if unbounded
+    private volatile LdapPriorityScheduler scheduler;
+    private volatile LdapPriorityScheduler bulkScheduler;
+    // operations executed by the current thread, the nested ones run with the permit of the outer one
+    private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
 
     public LdapTemplateWrapper(LdapTemplate ldapTemplate) {
         this.ldapTemplate = ldapTemplate;
     }
 
+    public LdapTemplateWrapper(LdapTemplate ldapTemplate, LdapMetrics metrics) {
+        this.ldapTemplate = ldapTemplate;
+        this.metrics = metrics;
+    }
+
     public <X> X execute(LdapTemplateCallback<X> callback) {
+        return execute(null, callback);
+    }
+
+    /**
+     * Executes the callback and records its duration, result size or error in the metrics. While the circuit is open,
+     * the callback is not executed and its {@link LdapTemplateCallback#onError(Exception)} method gets a
+     * {@link LdapCircuitOpenException}; when the operation is rejected by the scheduler, it gets a
+     * {@link LdapOverloadException}.
+     *
+     * @param operation the operation name, see the {@link LdapMetrics} constants, null if not recorded
+     * @param callback the callback
+     */
+    public <X> X execute(String operation, LdapTemplateCallback<X> callback) {
+        LdapCircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && !breaker.allowRequest()) {
+            return callback.onError(new LdapCircuitOpenException("LDAP server unavailable, circuit open"));
+        }
+        LdapMetrics currentMetrics = operation != null ? metrics : null;
+        boolean bulk = isBulkOperation(operation);
+        LdapTemplate template = bulk && bulkLdapTemplate != null ? bulkLdapTemplate : ldapTemplate;
+        LdapPriority priority = LdapPriority.current();
+        LdapPriorityScheduler permits;
+        try {
+            permits = acquire(bulk ? bulkScheduler : scheduler, priority);
+        } catch (LdapOverloadException e) {
+            return callback.onError(e);
+        }
         try {
-            X x = callback.doInLdap(ldapTemplate);
+            long startTime = System.nanoTime();
+            // bulk searches last as long as the entries they read, only the lookups tell whether the server is slow
+            boolean timed = !bulk;
+            X x;
+            try {
+                x = callback.doInLdap(template);
+            } catch (Exception e) {
+                long duration = System.nanoTime() - startTime;
+                if (currentMetrics != null) {
+                    currentMetrics.recordError(operation, duration, e);
+                }
+                if (breaker != null) {
+                    breaker.recordError(timed ? duration : 0L, e);
+                }
+                return callback.onError(e);
+            }
+            long duration = System.nanoTime() - startTime;
+            if (currentMetrics != null) {
+                currentMetrics.recordSuccess(operation, duration, x);
+            }
+            if (breaker != null) {
+                breaker.recordSuccess(timed ? duration : 0L);
+            }
             callback.onSuccess();
             return x;
-        } catch (Exception e) {
-            return callback.onError(e);
+        } finally {
+            release(permits, priority);
+        }
+    }
+
+    /**
+     * Executes the callback like {@link #execute(String, LdapTemplateCallback)}, without taking a permit, for
+     * operations run on a connection whose permit is already held with {@link #acquirePermit(String)}.
+     *
+     * @param operation the operation name, see the {@link LdapMetrics} constants, null if not recorded
+     * @param callback the callback
+     */
+    public <X> X executeHoldingPermit(String operation, LdapTemplateCallback<X> callback) {
+        int[] currentDepth = depth.get();
+        currentDepth[0]++;
+        try {
+            return execute(operation, callback);
+        } finally {
+            currentDepth[0]--;
+        }
+    }
+
+    /**
+     * Waits for a permit of the operation class with the priority of the current thread, to be held until released by
+     * the caller, for a connection kept across several operations.
+     *
+     * @param operation the operation name, see the {@link LdapMetrics} constants
+     * @return the permit, to be released once the connection is closed
+     * @throws LdapOverloadException if the operation is rejected by the scheduler
+     */
+    public LdapPermit acquirePermit(String operation) {
+        LdapPriorityScheduler permits = isBulkOperation(operation) ? bulkScheduler : scheduler;
+        LdapPriority priority = LdapPriority.current();
+        if (permits != null) {
+            long startTime = System.nanoTime();
+            permits.acquire(priority);
+            LdapMetrics currentMetrics = metrics;
+            if (currentMetrics != null) {
+                currentMetrics.recordQueueWait(System.nanoTime() - startTime);
+            }
+        }
+        return new LdapPermit(permits, priority);
+    }
+
+    /**
+     * @param operation the operation name, see the {@link LdapMetrics} constants
+     * @return true if the operation reads many entries and runs with the bulk template and permits
+     */
+    public static boolean isBulkOperation(String operation) {
+        return operation != null && BULK_OPERATIONS.contains(operation);
+    }
+
+    /**
+     * Waits for a permit to run an operation, unless the thread already holds one
+     *
+     * @param permits the scheduler of the operation class, null if unbounded
+     * @param priority the priority of the operation
+     * @return the scheduler the permit was taken from, null if none was taken
+     * @throws LdapOverloadException if the operation is rejected by the scheduler
+     */
+    private LdapPriorityScheduler acquire(LdapPriorityScheduler permits, LdapPriority priority) {
+        int[] currentDepth = depth.get();
+        if (currentDepth[0] > 0 || permits == null) {
+            currentDepth[0]++;
+            return null;
+        }
+        long startTime = System.nanoTime();
+        permits.acquire(priority);
+        currentDepth[0]++;
+        LdapMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.recordQueueWait(System.nanoTime() - startTime);
         }
+        return permits;
+    }
+
+    private void release(LdapPriorityScheduler permits, LdapPriority priority) {
+        depth.get()[0]--;
+        if (permits != null) {
+            permits.release(priority);
+        }
+    }
+
+    /**
+     * @param scheduler the scheduler granting the permits of the lookups, null for no limit
+     */
+    public void setScheduler(LdapPriorityScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param bulkScheduler the scheduler granting the permits of the bulk searches, null for no limit
+     */
+    public void setBulkScheduler(LdapPriorityScheduler bulkScheduler) {
+        this.bulkScheduler = bulkScheduler;
+    }
+
+    public LdapPriorityScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public LdapPriorityScheduler getBulkScheduler() {
+        return bulkScheduler;
+    }
+
+    /**
+     * Sets the circuit breaker tracking the operations, the operations fail fast while its circuit is open
+     *
+     * @param circuitBreaker the circuit breaker, null to disable it
+     */
+    public void setCircuitBreaker(LdapCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
     }
 
     public void setLdapTemplate(LdapTemplate ldapTemplate) {
         this.ldapTemplate = ldapTemplate;
     }
+
+    /**
+     * @param bulkLdapTemplate the template of the bulk searches, with its own connections, null to use the template of
+     * the lookups
+     */
+    public void setBulkLdapTemplate(LdapTemplate bulkLdapTemplate) {
+        this.bulkLdapTemplate = bulkLdapTemplate;
+    }
+
+    public void setMetrics(LdapMetrics metrics) {
+        this.metrics = metrics;
+    }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.apache.commons.lang.ClassUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.NamingException;
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.directory.DirContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Context source distributing the LDAP operations over several replicas of the directory, each one having its own
+ * context source and connection pool. A context is taken from the next server in turn, or from the server with the
+ * fewest operations in progress.
+ * <p>
+ * The servers are tracked passively: a server failing several times in a row, or whose average latency exceeds the
+ * slow threshold, is ejected for a while, the time doubling at each consecutive ejection. When a context cannot be
+ * opened because of a communication error, the next server is tried. If all the servers are ejected, the one coming
+ * back first is still used.
+ */
+public class LoadBalancingContextSource implements ContextSource {
+
+    public static final String FAILOVER = "failover";
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String LEAST_REQUESTS = "least-requests";
+
+    private static Logger logger = LoggerFactory.getLogger(LoadBalancingContextSource.class);
+
+    // operations whose duration is the latency of the server
+    private static final Set<String> TIMED_METHODS = new HashSet<>(Arrays.asList("search", "lookup", "getAttributes", "list", "listBindings"));
+
+    private final List<LdapServer> servers;
+    private final boolean leastRequests;
+    private final int ejectionFailures;
+    private final long ejectionMillis;
+    private final long slowNanos;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param urls the URLs of the servers
+     * @param contextSources the context sources of the servers, in the same order
+     * @param strategy {@link #ROUND_ROBIN} or {@link #LEAST_REQUESTS}
+     * @param ejectionFailures the number of consecutive communication errors ejecting a server
+     * @param ejectionSeconds the time a server is ejected for the first time
+     * @param slowMillis the average latency above which a server is ejected, 0 to ignore the latency
+     */
+    public LoadBalancingContextSource(List<String> urls, List<? extends ContextSource> contextSources, String strategy,
+                                      int ejectionFailures, int ejectionSeconds, int slowMillis) {
+        List<LdapServer> list = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            list.add(new LdapServer(urls.get(i), contextSources.get(i)));
+        }
+        this.servers = Collections.unmodifiableList(list);
+        this.leastRequests = LEAST_REQUESTS.equalsIgnoreCase(strategy);
+        this.ejectionFailures = Math.max(1, ejectionFailures);
+        this.ejectionMillis = Math.max(1, ejectionSeconds) * 1000L;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        return getContext(false, new ContextFactory() {
+            @Override
+            public DirContext open(ContextSource contextSource) {
+                return contextSource.getReadOnlyContext();
+            }
+        });
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        return getContext(false, new ContextFactory() {
+            @Override
+            public DirContext open(ContextSource contextSource) {
+                return contextSource.getReadWriteContext();
+            }
+        });
+    }
+
+    @Override
+    public DirContext getContext(final String principal, final String credentials) {
+        // the bind is the operation
+        return getContext(true, new ContextFactory() {
+            @Override
+            public DirContext open(ContextSource contextSource) {
+                return contextSource.getContext(principal, credentials);
+            }
+        });
+    }
+
+    /**
+     * Opens a context on the next available server, trying the other servers on communication errors
+     *
+     * @param bind true if opening the context is the operation, otherwise the outcome of the operations done with the
+     * context is recorded, not the one of the borrowing of a pooled context
+     * @param factory opens the context from the context source of a server
+     */
+    private DirContext getContext(boolean bind, ContextFactory factory) {
+        Set<LdapServer> tried = new HashSet<>();
+        NamingException lastError = null;
+        LdapServer server;
+        while ((server = select(tried)) != null) {
+            tried.add(server);
+            server.acquire();
+            long startTime = System.nanoTime();
+            DirContext ctx;
+            try {
+                ctx = factory.open(server.getContextSource());
+            } catch (NamingException e) {
+                server.release();
+                if (!LdapCircuitBreaker.isCommunicationError(e)) {
+                    // e.g. wrong credentials, another server would answer the same
+                    throw e;
+                }
+                recordFailure(server, e);
+                lastError = e;
+                continue;
+            }
+            if (bind) {
+                recordSuccess(server, System.nanoTime() - startTime);
+            }
+            return track(server, ctx);
+        }
+        if (lastError == null) {
+            throw new org.springframework.ldap.CommunicationException(new javax.naming.CommunicationException("No LDAP server available"));
+        }
+        throw lastError;
+    }
+
+    /**
+     * @return the server for the next operation among the ones not tried yet, null if all of them were tried
+     */
+    private LdapServer select(Set<LdapServer> tried) {
+        int size = servers.size();
+        if (size == 0) {
+            return null;
+        }
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        LdapServer selected = null;
+        LdapServer firstBack = null;
+        for (int i = 0; i < size; i++) {
+            LdapServer server = servers.get((start + i) % size);
+            if (tried.contains(server)) {
+                continue;
+            }
+            if (server.isEjected()) {
+                if (firstBack == null || server.getEjectedUntil() < firstBack.getEjectedUntil()) {
+                    firstBack = server;
+                }
+            } else if (!leastRequests) {
+                return server;
+            } else if (selected == null || server.getOutstandingRequests() < selected.getOutstandingRequests()) {
+                selected = server;
+            }
+        }
+        return selected != null ? selected : firstBack;
+    }
+
+    private void recordSuccess(LdapServer server, long durationNanos) {
+        double averageLatency = server.recordSuccess(durationNanos);
+        if (slowNanos > 0 && averageLatency > slowNanos && getAvailableCount() > 1) {
+            long time = server.eject(ejectionMillis);
+            logger.warn("LDAP server {} ejected for {} s, average latency {} ms",
+                    new Object[]{server.getUrl(), time / 1000, TimeUnit.NANOSECONDS.toMillis((long) averageLatency)});
+        }
+    }
+
+    private void recordFailure(LdapServer server, Exception e) {
+        if (server.recordFailure() >= ejectionFailures && !server.isEjected()) {
+            long time = server.eject(ejectionMillis);
+            logger.warn("LDAP server {} ejected for {} s: {}", new Object[]{server.getUrl(), time / 1000, e.getMessage()});
+        }
+    }
+
+    private int getAvailableCount() {
+        int count = 0;
+        for (LdapServer server : servers) {
+            if (!server.isEjected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Wraps a context to count it as in progress on its server until it is closed, and to track the latency and the
+     * communication errors of its operations
+     */
+    private DirContext track(final LdapServer server, final DirContext ctx) {
+        List<?> interfaces = ClassUtils.getAllInterfaces(ctx.getClass());
+        final AtomicBoolean closed = new AtomicBoolean();
+        return (DirContext) Proxy.newProxyInstance(LoadBalancingContextSource.class.getClassLoader(),
+                interfaces.toArray(new Class<?>[interfaces.size()]), new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("close".equals(method.getName()) && closed.compareAndSet(false, true)) {
+                    server.release();
+                }
+                long startTime = System.nanoTime();
+                try {
+                    Object result = method.invoke(ctx, args);
+                    if (TIMED_METHODS.contains(method.getName())) {
+                        recordSuccess(server, System.nanoTime() - startTime);
+                    }
+                    return result;
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception && LdapCircuitBreaker.isCommunicationError(cause)) {
+                        recordFailure(server, (Exception) cause);
+                    }
+                    throw cause;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the servers, with their health
+     */
+    public List<LdapServer> getServers() {
+        return servers;
+    }
+
+    private interface ContextFactory {
+        DirContext open(ContextSource contextSource);
+    }
+}
@@ -59,6 +59,11 @@ public abstract class AbstractConfig {
     private Boolean ldapConnectPoolTestWhileIdle;
     private Long ldapConnectPoolTimeBetweenEvictionRunsMillis;
     private String ldapConnectPoolWhenExhaustedAction;
+    /**
+     * Number of consecutive communication errors after which the provider is unmounted when the circuit breaker is
+     * disabled. When it is enabled, minimum number of operations in the circuit breaker window before the failure
+     * rate is checked, so that as many consecutive communication errors open the circuit.
+     */
     private int maxLdapTimeoutCountBeforeDisconnect = DEFAULT_MAX_TIMEOUT_COUNT;
 
     private long searchCountlimit = DEFAULT_SEARCH_COUNT_LIMIT;
@@ -74,6 +79,215 @@ public abstract class AbstractConfig {
 
     private String targetSite;
 
+    /**
+     * Delay in seconds between two polls of the entries modified on the LDAP server, 0 if the cached entries are not
+     * synchronized.
+     */
+    private int syncInterval = 0;
+    /**
+     * Operational attribute holding the last modification time of the entries.
+     */
+    private String syncTimestampAttribute = "modifyTimestamp";
+    /**
+     * Age in seconds after which a cached user or group is still served but refreshed in the background, 0 if the
+     * entries are never refreshed in the background.
+     */
+    private int cacheSoftTtl = 0;
+    /**
+     * Age in seconds after which a cached user or group expires and has to be read again from the LDAP server, 0 if the
+     * entries only expire when they are idle.
+     */
+    private int cacheHardTtl = 0;
+    /**
+     * Maximum number of entries of each cache region of the provider, 0 to use the default cache setting.
+     */
+    private int cacheMaxEntries = 0;
+    /**
+     * Time in seconds after which an unused cache entry expires.
+     */
+    private int cacheTti = 3600;
+    /**
+     * Number of entries read per page when searching with the paged results control, 0 to read all the search results
+     * at once.
+     */
+    private int searchPageSize = 0;
+    /**
+     * Time in seconds a paged search is kept open waiting for the request of its next page.
+     */
+    private int searchCursorTimeout = 60;
+    /**
+     * Directory of the memory-mapped files holding the second level of the user and group caches, null if the entries
+     * are only cached on heap.
+     */
+    private String cacheOffheapDirectory;
+    /**
+     * Size in megabytes of each memory-mapped cache file.
+     */
+    private int cacheOffheapSize = 128;
+    /**
+     * Directory of the snapshots of the cached users and groups, written when the provider is stopped and restored when
+     * it starts, null if no snapshot is written.
+     */
+    private String cacheSnapshotDirectory;
+    /**
+     * Maximum number of entries restored from the snapshot read again from the LDAP server per second, 0 to let them
+     * expire without refreshing them.
+     */
+    private int cacheSnapshotRefreshRate = 10;
+    /**
+     * True if the cached users and groups are shared with the other cluster nodes, through the
+     * {@link org.jahia.services.usermanager.ldap.cache.LDAPSharedCache} service. The module does not provide this
+     * service, it must be registered by another bundle on top of the distributed cache of the cluster, without it the
+     * entries are only cached locally.
+     */
+    private boolean cacheClustered = false;
+    /**
+     * Time in seconds during which a user or group name not found in the LDAP server is answered as not found without
+     * querying the server again. The non existing users and groups are kept out of the cache regions when this time or
+     * the filter refresh interval are set.
+     */
+    private int cacheNegativeTtl = 300;
+    /**
+     * Maximum number of user names and of group names kept as not found.
+     */
+    private int cacheNegativeMaxEntries = 10000;
+    /**
+     * Interval in seconds at which the filter of all the user and group names is read again from the LDAP server, 0 to
+     * not use the filter. The background lookups answer the names that are not in the filter as not found without
+     * querying the server, the logins and the lookups on behalf of a user still search them once, so that users and
+     * groups created in the directory since the last refresh are found.
+     */
+    private int cacheNegativeFilterRefresh = 0;
+    /**
+     * Number of threads running the asynchronous lookups of the provider.
+     */
+    private int asyncThreads = 8;
+    /**
+     * Maximum number of asynchronous lookups waiting for a thread, further lookups are rejected.
+     */
+    private int asyncQueueSize = 1000;
+    /**
+     * True if the asynchronous lookups run on virtual threads, when the runtime supports them.
+     */
+    private boolean asyncVirtualThreads = true;
+    /**
+     * Maximum number of concurrent LDAP operations of the provider, 0 to use the maximum size of the connection pool,
+     * or no limit if the pool is not bounded. Negative values disable the limit.
+     */
+    private int ldapMaxConcurrentOperations = 0;
+    /**
+     * Duration in seconds of the sliding window over which the errors and the slow operations are counted by the
+     * circuit breaker, 0 to disable the circuit breaker.
+     */
+    private int circuitBreakerWindow = 60;
+    /**
+     * Percentage of failed operations in the window that opens the circuit, once the window holds at least
+     * {@link #maxLdapTimeoutCountBeforeDisconnect} operations.
+     */
+    private int circuitBreakerFailureRate = 50;
+    /**
+     * Duration in milliseconds above which an operation counts as slow.
+     */
+    private int circuitBreakerSlowCallDuration = 3000;
+    /**
+     * Percentage of slow operations in the window that opens the circuit, 0 to ignore the durations.
+     */
+    private int circuitBreakerSlowCallRate = 80;
+    /**
+     * Time in seconds the circuit stays open before the server is probed, doubled after each failed probe.
+     */
+    private int circuitBreakerOpenDuration = 10;
+    /**
+     * Maximum number of idle connections kept open for the password checks, 0 to open a new connection for each check.
+     */
+    private int authPoolSize = 0;
+    /**
+     * True if the password checks use the fast bind mode of Active Directory.
+     */
+    private boolean authFastBind = false;
+    /**
+     * Time in seconds during which a verified password is accepted again without contacting the server, 0 to always
+     * contact the server. A password changed on the server keeps working during this time.
+     */
+    private int authCacheTtl = 0;
+    /**
+     * Maximum number of verified passwords kept in the credential cache.
+     */
+    private int authCacheMaxEntries = 10000;
+    /**
+     * Number of PBKDF2 iterations used to hash the passwords of the credential cache.
+     */
+    private int authCacheHashIterations = 10000;
+    /**
+     * How the operations are distributed when several URLs are configured: "failover" to use the first available
+     * server, "round-robin" or "least-requests" to balance them over all the servers.
+     */
+    private String ldapLoadBalancing = "failover";
+    /**
+     * Number of consecutive communication errors after which a server stops receiving operations for a while, when the
+     * operations are balanced.
+     */
+    private int ldapServerEjectionFailures = 3;
+    /**
+     * Time in seconds a failing or slow server stops receiving operations, doubled at each consecutive ejection.
+     */
+    private int ldapServerEjectionTime = 30;
+    /**
+     * Average latency in milliseconds above which a server stops receiving operations for a while, 0 to ignore the
+     * latency.
+     */
+    private int ldapServerSlowThreshold = 0;
+    /**
+     * URLs of the servers receiving the bulk searches (memberships, group members, searches and synchronization),
+     * separated by spaces, null to use the same servers as the lookups.
+     */
+    private String ldapBulkUrl;
+    /**
+     * Maximum number of concurrent bulk searches, 0 to use the size of their own connection pool, or half of the pool
+     * shared with the lookups. Negative values disable the limit.
+     */
+    private int ldapBulkMaxConcurrentOperations = 0;
+    /**
+     * Maximum number of active connections of the Apache Commons pool of the bulk searches. When set, the bulk searches
+     * get their own pool, otherwise they share the pool of the lookups unless they use other servers.
+     */
+    private Integer ldapBulkConnectPoolMaxActive;
+    /**
+     * URLs of the servers checking the passwords, separated by spaces and tried in turn, null to use the same servers
+     * as the lookups.
+     */
+    private String authUrl;
+    /**
+     * Maximum number of concurrent operations of each background class, the refresh of the cache and the preload, 0 for
+     * a quarter of the permits.
+     */
+    private int ldapBackgroundMaxConcurrentOperations = 0;
+    /**
+     * Maximum number of operations of each priority class waiting for a permit, the next ones are rejected, 0 for no
+     * limit.
+     */
+    private int ldapMaxQueuedOperations = 500;
+    /**
+     * Time in milliseconds after which a user-facing operation waiting for a permit is rejected, the background ones
+     * wait ten times longer, 0 for no deadline.
+     */
+    private int ldapMaxQueueWait = 0;
+    /**
+     * True if the memberships of a member include the groups it belongs to through nested groups, when the groups can
+     * contain sub groups. Disabled by default, as only the direct memberships were returned before.
+     */
+    private boolean membershipTransitive = false;
+    /**
+     * True if the transitive memberships are computed by the server with the Active Directory matching rule in chain,
+     * rather than by walking the parents of each group.
+     */
+    private boolean membershipInChain = false;
+    /**
+     * Time in seconds after which the cached transitive memberships are computed again, 0 to keep them until a group
+     * changes.
+     */
+    private int membershipClosureTtl = 600;
+
     public String getUrl() {
         return url;
     }
@@ -338,6 +552,30 @@ public abstract class AbstractConfig {
         this.canGroupContainSubGroups = canGroupContainSubGroups;
     }
 
+    public boolean isMembershipTransitive() {
+        return membershipTransitive;
+    }
+
+    public void setMembershipTransitive(boolean membershipTransitive) {
+        this.membershipTransitive = membershipTransitive;
+    }
+
+    public boolean isMembershipInChain() {
+        return membershipInChain;
+    }
+
+    public void setMembershipInChain(boolean membershipInChain) {
+        this.membershipInChain = membershipInChain;
+    }
+
+    public int getMembershipClosureTtl() {
+        return membershipClosureTtl;
+    }
+
+    public void setMembershipClosureTtl(int membershipClosureTtl) {
+        this.membershipClosureTtl = membershipClosureTtl;
+    }
+
     public String getTargetSite() {
         return targetSite;
     }
@@ -346,6 +584,334 @@ public abstract class AbstractConfig {
         this.targetSite = targetSite;
     }
 
+    public int getSyncInterval() {
+        return syncInterval;
+    }
+
+    public void setSyncInterval(int syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    public String getSyncTimestampAttribute() {
+        return syncTimestampAttribute;
+    }
+
+    public void setSyncTimestampAttribute(String syncTimestampAttribute) {
+        this.syncTimestampAttribute = syncTimestampAttribute;
+    }
+
+    public int getCacheSoftTtl() {
+        return cacheSoftTtl;
+    }
+
+    public void setCacheSoftTtl(int cacheSoftTtl) {
+        this.cacheSoftTtl = cacheSoftTtl;
+    }
+
+    public int getCacheHardTtl() {
+        return cacheHardTtl;
+    }
+
+    public void setCacheHardTtl(int cacheHardTtl) {
+        this.cacheHardTtl = cacheHardTtl;
+    }
+
+    public int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
+    public int getCacheTti() {
+        return cacheTti;
+    }
+
+    public void setCacheTti(int cacheTti) {
+        this.cacheTti = cacheTti;
+    }
+
+    public int getSearchPageSize() {
+        return searchPageSize;
+    }
+
+    public void setSearchPageSize(int searchPageSize) {
+        this.searchPageSize = searchPageSize;
+    }
+
+    public int getSearchCursorTimeout() {
+        return searchCursorTimeout;
+    }
+
+    public void setSearchCursorTimeout(int searchCursorTimeout) {
+        this.searchCursorTimeout = searchCursorTimeout;
+    }
+
+    public String getCacheOffheapDirectory() {
+        return cacheOffheapDirectory;
+    }
+
+    public void setCacheOffheapDirectory(String cacheOffheapDirectory) {
+        this.cacheOffheapDirectory = cacheOffheapDirectory;
+    }
+
+    public int getCacheOffheapSize() {
+        return cacheOffheapSize;
+    }
+
+    public void setCacheOffheapSize(int cacheOffheapSize) {
+        this.cacheOffheapSize = cacheOffheapSize;
+    }
+
+    public String getCacheSnapshotDirectory() {
+        return cacheSnapshotDirectory;
+    }
+
+    public void setCacheSnapshotDirectory(String cacheSnapshotDirectory) {
+        this.cacheSnapshotDirectory = cacheSnapshotDirectory;
+    }
+
+    public int getCacheSnapshotRefreshRate() {
+        return cacheSnapshotRefreshRate;
+    }
+
+    public void setCacheSnapshotRefreshRate(int cacheSnapshotRefreshRate) {
+        this.cacheSnapshotRefreshRate = cacheSnapshotRefreshRate;
+    }
+
+    public boolean isCacheClustered() {
+        return cacheClustered;
+    }
+
+    public void setCacheClustered(boolean cacheClustered) {
+        this.cacheClustered = cacheClustered;
+    }
+
+    public int getCacheNegativeTtl() {
+        return cacheNegativeTtl;
+    }
+
+    public void setCacheNegativeTtl(int cacheNegativeTtl) {
+        this.cacheNegativeTtl = cacheNegativeTtl;
+    }
+
+    public int getCacheNegativeMaxEntries() {
+        return cacheNegativeMaxEntries;
+    }
+
+    public void setCacheNegativeMaxEntries(int cacheNegativeMaxEntries) {
+        this.cacheNegativeMaxEntries = cacheNegativeMaxEntries;
+    }
+
+    public int getCacheNegativeFilterRefresh() {
+        return cacheNegativeFilterRefresh;
+    }
+
+    public void setCacheNegativeFilterRefresh(int cacheNegativeFilterRefresh) {
+        this.cacheNegativeFilterRefresh = cacheNegativeFilterRefresh;
+    }
+
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    public void setAsyncThreads(int asyncThreads) {
+        this.asyncThreads = asyncThreads;
+    }
+
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    public boolean isAsyncVirtualThreads() {
+        return asyncVirtualThreads;
+    }
+
+    public void setAsyncVirtualThreads(boolean asyncVirtualThreads) {
+        this.asyncVirtualThreads = asyncVirtualThreads;
+    }
+
+    public int getLdapMaxConcurrentOperations() {
+        return ldapMaxConcurrentOperations;
+    }
+
+    public void setLdapMaxConcurrentOperations(int ldapMaxConcurrentOperations) {
+        this.ldapMaxConcurrentOperations = ldapMaxConcurrentOperations;
+    }
+
+    public int getCircuitBreakerWindow() {
+        return circuitBreakerWindow;
+    }
+
+    public void setCircuitBreakerWindow(int circuitBreakerWindow) {
+        this.circuitBreakerWindow = circuitBreakerWindow;
+    }
+
+    public int getCircuitBreakerFailureRate() {
+        return circuitBreakerFailureRate;
+    }
+
+    public void setCircuitBreakerFailureRate(int circuitBreakerFailureRate) {
+        this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+    }
+
+    public int getCircuitBreakerSlowCallDuration() {
+        return circuitBreakerSlowCallDuration;
+    }
+
+    public void setCircuitBreakerSlowCallDuration(int circuitBreakerSlowCallDuration) {
+        this.circuitBreakerSlowCallDuration = circuitBreakerSlowCallDuration;
+    }
+
+    public int getCircuitBreakerSlowCallRate() {
+        return circuitBreakerSlowCallRate;
+    }
+
+    public void setCircuitBreakerSlowCallRate(int circuitBreakerSlowCallRate) {
+        this.circuitBreakerSlowCallRate = circuitBreakerSlowCallRate;
+    }
+
+    public int getCircuitBreakerOpenDuration() {
+        return circuitBreakerOpenDuration;
+    }
+
+    public void setCircuitBreakerOpenDuration(int circuitBreakerOpenDuration) {
+        this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+    }
+
+    public int getAuthPoolSize() {
+        return authPoolSize;
+    }
+
+    public void setAuthPoolSize(int authPoolSize) {
+        this.authPoolSize = authPoolSize;
+    }
+
+    public boolean isAuthFastBind() {
+        return authFastBind;
+    }
+
+    public void setAuthFastBind(boolean authFastBind) {
+        this.authFastBind = authFastBind;
+    }
+
+    public int getAuthCacheTtl() {
+        return authCacheTtl;
+    }
+
+    public void setAuthCacheTtl(int authCacheTtl) {
+        this.authCacheTtl = authCacheTtl;
+    }
+
+    public int getAuthCacheMaxEntries() {
+        return authCacheMaxEntries;
+    }
+
+    public void setAuthCacheMaxEntries(int authCacheMaxEntries) {
+        this.authCacheMaxEntries = authCacheMaxEntries;
+    }
+
+    public int getAuthCacheHashIterations() {
+        return authCacheHashIterations;
+    }
+
+    public void setAuthCacheHashIterations(int authCacheHashIterations) {
+        this.authCacheHashIterations = authCacheHashIterations;
+    }
+
+    public String getLdapLoadBalancing() {
+        return ldapLoadBalancing;
+    }
+
+    public void setLdapLoadBalancing(String ldapLoadBalancing) {
+        this.ldapLoadBalancing = ldapLoadBalancing;
+    }
+
+    public int getLdapServerEjectionFailures() {
+        return ldapServerEjectionFailures;
+    }
+
+    public void setLdapServerEjectionFailures(int ldapServerEjectionFailures) {
+        this.ldapServerEjectionFailures = ldapServerEjectionFailures;
+    }
+
+    public int getLdapServerEjectionTime() {
+        return ldapServerEjectionTime;
+    }
+
+    public void setLdapServerEjectionTime(int ldapServerEjectionTime) {
+        this.ldapServerEjectionTime = ldapServerEjectionTime;
+    }
+
+    public int getLdapServerSlowThreshold() {
+        return ldapServerSlowThreshold;
+    }
+
+    public void setLdapServerSlowThreshold(int ldapServerSlowThreshold) {
+        this.ldapServerSlowThreshold = ldapServerSlowThreshold;
+    }
+
+    public String getLdapBulkUrl() {
+        return ldapBulkUrl;
+    }
+
+    public void setLdapBulkUrl(String ldapBulkUrl) {
+        this.ldapBulkUrl = ldapBulkUrl;
+    }
+
+    public int getLdapBulkMaxConcurrentOperations() {
+        return ldapBulkMaxConcurrentOperations;
+    }
+
+    public void setLdapBulkMaxConcurrentOperations(int ldapBulkMaxConcurrentOperations) {
+        this.ldapBulkMaxConcurrentOperations = ldapBulkMaxConcurrentOperations;
+    }
+
+    public Integer getLdapBulkConnectPoolMaxActive() {
+        return ldapBulkConnectPoolMaxActive;
+    }
+
+    public void setLdapBulkConnectPoolMaxActive(Integer ldapBulkConnectPoolMaxActive) {
+        this.ldapBulkConnectPoolMaxActive = ldapBulkConnectPoolMaxActive;
+    }
+
+    public String getAuthUrl() {
+        return authUrl;
+    }
+
+    public void setAuthUrl(String authUrl) {
+        this.authUrl = authUrl;
+    }
+
+    public int getLdapBackgroundMaxConcurrentOperations() {
+        return ldapBackgroundMaxConcurrentOperations;
+    }
+
+    public void setLdapBackgroundMaxConcurrentOperations(int ldapBackgroundMaxConcurrentOperations) {
+        this.ldapBackgroundMaxConcurrentOperations = ldapBackgroundMaxConcurrentOperations;
+    }
+
+    public int getLdapMaxQueuedOperations() {
+        return ldapMaxQueuedOperations;
+    }
+
+    public void setLdapMaxQueuedOperations(int ldapMaxQueuedOperations) {
+        this.ldapMaxQueuedOperations = ldapMaxQueuedOperations;
+    }
+
+    public int getLdapMaxQueueWait() {
+        return ldapMaxQueueWait;
+    }
+
+    public void setLdapMaxQueueWait(int ldapMaxQueueWait) {
+        this.ldapMaxQueueWait = ldapMaxQueueWait;
+    }
+
     /**
      * Returns fixed query filter that is used when searching for users/groups to filter out "unwanted" entries.
      * 
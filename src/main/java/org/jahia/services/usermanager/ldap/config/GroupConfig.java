@@ -28,7 +28,22 @@ import javax.naming.directory.BasicAttributes;
  * @author kevan
  */
 public class GroupConfig extends AbstractConfig{
+    private static final int DEFAULT_MEMBERS_BATCH_SIZE = 100;
+    private static final int DEFAULT_PRELOAD_THREADS = 4;
+    private static final int DEFAULT_DYNAMIC_REFRESH_INTERVAL = 600;
+    public static final String PRELOAD_ORDER_ACCESS = "access";
+    public static final String PRELOAD_ORDER_SIZE = "size";
+
     private boolean preload = false;
+    /**
+     * Number of groups preloaded in parallel, capped by the size of the connection pool.
+     */
+    private int preloadThreads = DEFAULT_PRELOAD_THREADS;
+    /**
+     * Order in which groups are preloaded: {@link #PRELOAD_ORDER_ACCESS} loads the most accessed groups first,
+     * {@link #PRELOAD_ORDER_SIZE} the biggest ones first.
+     */
+    private String preloadOrder = PRELOAD_ORDER_ACCESS;
     private boolean dynamicEnabled = false;
     private String refferal = "ignore";
     private int adRangeStep = 0;
@@ -37,6 +52,15 @@ public class GroupConfig extends AbstractConfig{
     private String membersAttribute = "uniqueMember";
     private String dynamicSearchObjectclass = "groupOfURLs";
     private String dynamicMembersAttribute = "memberurl";
+    /**
+     * Delay in seconds after which the compiled member URLs of the dynamic groups are reloaded from the LDAP.
+     */
+    private int dynamicRefreshInterval = DEFAULT_DYNAMIC_REFRESH_INTERVAL;
+    /**
+     * Number of member DNs resolved with a single LDAP search when loading group members. A value lower than 2 disables
+     * the batching and resolves each member DN on its own.
+     */
+    private int membersBatchSize = DEFAULT_MEMBERS_BATCH_SIZE;
 
     public GroupConfig() {
     }
@@ -62,6 +86,22 @@ public class GroupConfig extends AbstractConfig{
         this.preload = preload;
     }
 
+    public int getPreloadThreads() {
+        return preloadThreads;
+    }
+
+    public void setPreloadThreads(int preloadThreads) {
+        this.preloadThreads = preloadThreads;
+    }
+
+    public String getPreloadOrder() {
+        return preloadOrder;
+    }
+
+    public void setPreloadOrder(String preloadOrder) {
+        this.preloadOrder = preloadOrder;
+    }
+
     public String getRefferal() {
         return refferal;
     }
@@ -126,6 +166,22 @@ public class GroupConfig extends AbstractConfig{
         this.dynamicEnabled = dynamicEnabled;
     }
 
+    public int getDynamicRefreshInterval() {
+        return dynamicRefreshInterval;
+    }
+
+    public void setDynamicRefreshInterval(int dynamicRefreshInterval) {
+        this.dynamicRefreshInterval = dynamicRefreshInterval;
+    }
+
+    public int getMembersBatchSize() {
+        return membersBatchSize;
+    }
+
+    public void setMembersBatchSize(int membersBatchSize) {
+        this.membersBatchSize = membersBatchSize;
+    }
+
     public boolean isMinimalSettingsOk() {
         return StringUtils.isNotEmpty(getUrl()) && StringUtils.isNotEmpty(getSearchName());
     }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.filter;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapName;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Member URL of a dynamic group, compiled once so that the membership of an entry can be checked in memory.
+ */
+public class DynamicGroupFilter {
+
+    private final String groupName;
+    private final String memberURL;
+    private final LdapName base;
+    private final String scope;
+    private final LdapFilterEvaluator filter;
+
+    /**
+     * Compiles the member URL of a dynamic group
+     *
+     * @param groupName the group name
+     * @param memberURL the LDAP URL of the group members
+     * @throws NamingException if the URL or its base DN is invalid
+     * @throws IllegalArgumentException if the URL filter is invalid
+     */
+    public DynamicGroupFilter(String groupName, String memberURL) throws NamingException {
+        this.groupName = groupName;
+        this.memberURL = memberURL;
+        URI uri;
+        try {
+            uri = new URI(encodeIllegalCharacters(memberURL.trim()));
+        } catch (URISyntaxException e) {
+            throw new InvalidNameException("Invalid member URL " + memberURL + ": " + e.getMessage());
+        }
+        if (!"ldap".equalsIgnoreCase(uri.getScheme()) && !"ldaps".equalsIgnoreCase(uri.getScheme())) {
+            throw new InvalidNameException("Not an LDAP URL: " + memberURL);
+        }
+        // ldap://host:port/dn?attributes?scope?filter?extensions, RFC 4516
+        String path = StringUtils.removeStart(StringUtils.defaultString(uri.getRawPath()), "/");
+        String[] fields = uri.getRawQuery() != null ? uri.getRawQuery().split("\\?", -1) : new String[0];
+        this.base = new LdapName(decode(path));
+        this.scope = fields.length > 1 ? decode(fields[1]) : null;
+        this.filter = LdapFilterEvaluator.compile(StringUtils.defaultIfEmpty(fields.length > 2 ? decode(fields[2]) : null, "(objectclass=*)"));
+    }
+
+    /**
+     * Percent-encodes the characters often left as is in LDAP URLs but not allowed in URIs, e.g. the spaces and the
+     * backslashes of the filter escape sequences
+     */
+    private static String encodeIllegalCharacters(String url) {
+        StringBuilder encoded = new StringBuilder(url.length());
+        for (int i = 0; i < url.length(); i += Character.charCount(url.codePointAt(i))) {
+            int c = url.codePointAt(i);
+            if (c <= ' ' || c >= 0x7f || "\"<>\\^`{|}".indexOf(c) >= 0) {
+                for (byte b : new String(Character.toChars(c)).getBytes(StandardCharsets.UTF_8)) {
+                    encoded.append('%').append(String.format("%02X", b & 0xff));
+                }
+            } else {
+                encoded.append((char) c);
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String decode(String value) {
+        try {
+            // a plus sign is not a space in an LDAP URL
+            return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks if an entry is a member of the group.
+     *
+     * @param dn the entry DN
+     * @param attributes the retrieved attributes of the entry, see {@link LdapFilterEvaluator#evaluate(Map)}
+     * @return true or false, or null if the membership has to be checked by the LDAP server
+     */
+    public Boolean matches(LdapName dn, Map<String, ? extends Collection<String>> attributes) {
+        if (!isInScope(dn)) {
+            return false;
+        }
+        return filter.evaluate(attributes);
+    }
+
+    private boolean isInScope(LdapName dn) {
+        if (!dn.startsWith(base)) {
+            return false;
+        }
+        // subtree scope is used by default, as when the members are loaded from the URL
+        if ("base".equalsIgnoreCase(scope)) {
+            return dn.size() == base.size();
+        } else if ("one".equalsIgnoreCase(scope)) {
+            return dn.size() == base.size() + 1;
+        }
+        return true;
+    }
+
+    /**
+     * @return the lower case names of the attributes used by the filter
+     */
+    public Set<String> getAttributes() {
+        return filter.getAttributes();
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public String getMemberURL() {
+        return memberURL;
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.filter;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled LDAP search filter (RFC 4515) that can be evaluated against the attributes of an entry held in memory.
+ * <p>
+ * The evaluation is three-valued: {@link Boolean#TRUE} or {@link Boolean#FALSE} when the filter can be evaluated
+ * locally, <code>null</code> when it cannot, because it relies on an attribute that was not retrieved or on a matching
+ * rule that is only known by the server (ordering on non numeric values, approximate and extensible matches,
+ * attribute options). In that case the filter has to be evaluated by the LDAP server.
+ * <p>
+ * The schema of the server is not read: equality and substring assertions are only evaluated on the well-known
+ * attributes whose matching rule is standard, i.e. caseIgnoreMatch, distinguishedNameMatch or integerMatch.
+ */
+public abstract class LdapFilterEvaluator {
+
+    private enum MatchingRule {
+        CASE_IGNORE, DISTINGUISHED_NAME, INTEGER
+    }
+
+    private static final Map<String, MatchingRule> MATCHING_RULES = new HashMap<>();
+
+    static {
+        for (String attribute : Arrays.asList("objectclass", "cn", "sn", "givenname", "initials", "displayname", "uid",
+                "mail", "dc", "o", "ou", "l", "st", "c", "street", "postalcode", "title", "description",
+                "businesscategory", "departmentnumber", "employeenumber", "employeetype", "department", "company",
+                "samaccountname", "userprincipalname")) {
+            MATCHING_RULES.put(attribute, MatchingRule.CASE_IGNORE);
+        }
+        for (String attribute : Arrays.asList("member", "uniquemember", "memberof", "ismemberof", "manager", "owner",
+                "secretary", "seealso", "roleoccupant", "entrydn")) {
+            MATCHING_RULES.put(attribute, MatchingRule.DISTINGUISHED_NAME);
+        }
+        for (String attribute : Arrays.asList("uidnumber", "gidnumber", "useraccountcontrol")) {
+            MATCHING_RULES.put(attribute, MatchingRule.INTEGER);
+        }
+    }
+
+    /**
+     * Compiles an LDAP filter
+     *
+     * @param filter the filter, with or without enclosing parentheses
+     * @return the compiled filter
+     * @throws IllegalArgumentException if the filter is not a valid LDAP filter
+     */
+    public static LdapFilterEvaluator compile(String filter) {
+        String trimmed = filter.trim();
+        if (!trimmed.startsWith("(")) {
+            trimmed = "(" + trimmed + ")";
+        }
+        Parser parser = new Parser(trimmed);
+        LdapFilterEvaluator evaluator = parser.parseFilter();
+        if (parser.position != trimmed.length()) {
+            throw new IllegalArgumentException("Unexpected characters at position " + parser.position + " in filter " + filter);
+        }
+        return evaluator;
+    }
+
+    /**
+     * Evaluates the filter against the attributes of an entry.
+     *
+     * @param attributes the retrieved attributes of the entry, keyed by lower case attribute name. An attribute that
+     *                   was retrieved but is not set on the entry must be present with an empty collection.
+     * @return true or false, or null if the filter cannot be evaluated with the given attributes
+     */
+    public abstract Boolean evaluate(Map<String, ? extends Collection<String>> attributes);
+
+    /**
+     * @return the lower case names of the attributes used by the filter
+     */
+    public Set<String> getAttributes() {
+        Set<String> attributes = new HashSet<>();
+        collectAttributes(attributes);
+        return attributes;
+    }
+
+    protected abstract void collectAttributes(Set<String> attributes);
+
+    private static final class Composite extends LdapFilterEvaluator {
+        private final boolean and;
+        private final List<LdapFilterEvaluator> children;
+
+        private Composite(boolean and, List<LdapFilterEvaluator> children) {
+            this.and = and;
+            this.children = children;
+        }
+
+        @Override
+        public Boolean evaluate(Map<String, ? extends Collection<String>> attributes) {
+            boolean undefined = false;
+            for (LdapFilterEvaluator child : children) {
+                Boolean result = child.evaluate(attributes);
+                if (result == null) {
+                    undefined = true;
+                } else if (result != and) {
+                    // false in a AND or true in a OR
+                    return result;
+                }
+            }
+            return undefined ? null : and;
+        }
+
+        @Override
+        protected void collectAttributes(Set<String> attributes) {
+            for (LdapFilterEvaluator child : children) {
+                child.collectAttributes(attributes);
+            }
+        }
+    }
+
+    private static final class Not extends LdapFilterEvaluator {
+        private final LdapFilterEvaluator child;
+
+        private Not(LdapFilterEvaluator child) {
+            this.child = child;
+        }
+
+        @Override
+        public Boolean evaluate(Map<String, ? extends Collection<String>> attributes) {
+            Boolean result = child.evaluate(attributes);
+            return result != null ? !result : null;
+        }
+
+        @Override
+        protected void collectAttributes(Set<String> attributes) {
+            child.collectAttributes(attributes);
+        }
+    }
+
+    private abstract static class Item extends LdapFilterEvaluator {
+        protected final String attribute;
+
+        private Item(String attribute) {
+            this.attribute = attribute.toLowerCase(Locale.ENGLISH);
+        }
+
+        @Override
+        public Boolean evaluate(Map<String, ? extends Collection<String>> attributes) {
+            if (attribute.indexOf(';') >= 0) {
+                // attribute options are not supported
+                return null;
+            }
+            Collection<String> values = attributes.get(attribute);
+            if (values == null) {
+                return null;
+            }
+            boolean undefined = false;
+            for (String value : values) {
+                Boolean result = matches(value);
+                if (result == null) {
+                    undefined = true;
+                } else if (result) {
+                    return true;
+                }
+            }
+            return undefined ? null : false;
+        }
+
+        protected abstract Boolean matches(String value);
+
+        @Override
+        protected void collectAttributes(Set<String> attributes) {
+            attributes.add(attribute);
+        }
+    }
+
+    private static final class Presence extends Item {
+        private Presence(String attribute) {
+            super(attribute);
+        }
+
+        @Override
+        protected Boolean matches(String value) {
+            return true;
+        }
+    }
+
+    private static final class Equality extends Item {
+        private final String assertion;
+        private final MatchingRule matchingRule;
+
+        private Equality(String attribute, String assertion) {
+            super(attribute);
+            this.assertion = assertion;
+            this.matchingRule = MATCHING_RULES.get(this.attribute);
+        }
+
+        @Override
+        protected Boolean matches(String value) {
+            if (matchingRule == null) {
+                // the matching rule of the attribute is only known by the server
+                return null;
+            }
+            switch (matchingRule) {
+                case DISTINGUISHED_NAME:
+                    try {
+                        return new LdapName(value).equals(new LdapName(assertion));
+                    } catch (InvalidNameException | IllegalArgumentException e) {
+                        return null;
+                    }
+                case INTEGER:
+                    try {
+                        return Long.parseLong(value.trim()) == Long.parseLong(assertion.trim());
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                default:
+                    return normalizeSpaces(value).equalsIgnoreCase(normalizeSpaces(assertion));
+            }
+        }
+
+        /**
+         * Ignores the leading, trailing and repeated spaces, as the caseIgnoreMatch rule does
+         */
+        private static String normalizeSpaces(String value) {
+            return value.trim().replaceAll(" {2,}", " ");
+        }
+    }
+
+    private static final class Ordering extends Item {
+        private final String assertion;
+        private final boolean greater;
+
+        private Ordering(String attribute, String assertion, boolean greater) {
+            super(attribute);
+            this.assertion = assertion;
+            this.greater = greater;
+        }
+
+        @Override
+        protected Boolean matches(String value) {
+            // only integer values can be ordered without knowing the attribute syntax
+            try {
+                int comparison = Long.compare(Long.parseLong(value.trim()), Long.parseLong(assertion.trim()));
+                return greater ? comparison >= 0 : comparison <= 0;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class Substring extends Item {
+        private final String initial;
+        private final List<String> any;
+        private final String last;
+        private final boolean caseIgnore;
+
+        private Substring(String attribute, String initial, List<String> any, String last) {
+            super(attribute);
+            this.caseIgnore = MATCHING_RULES.get(this.attribute) == MatchingRule.CASE_IGNORE;
+            this.initial = initial != null ? initial.toLowerCase(Locale.ENGLISH) : null;
+            this.any = new ArrayList<>(any.size());
+            for (String s : any) {
+                this.any.add(s.toLowerCase(Locale.ENGLISH));
+            }
+            this.last = last != null ? last.toLowerCase(Locale.ENGLISH) : null;
+        }
+
+        @Override
+        protected Boolean matches(String value) {
+            if (!caseIgnore) {
+                // no substring rule for the other well-known attributes, the others are only known by the server
+                return null;
+            }
+            String v = value.toLowerCase(Locale.ENGLISH);
+            int start = 0;
+            int end = v.length();
+            if (initial != null) {
+                if (!v.startsWith(initial)) {
+                    return false;
+                }
+                start = initial.length();
+            }
+            if (last != null) {
+                if (!v.endsWith(last) || end - last.length() < start) {
+                    return false;
+                }
+                end -= last.length();
+            }
+            for (String s : any) {
+                int index = v.indexOf(s, start);
+                if (index < 0 || index + s.length() > end) {
+                    return false;
+                }
+                start = index + s.length();
+            }
+            return true;
+        }
+    }
+
+    private static final class Undefined extends LdapFilterEvaluator {
+        private final String attribute;
+
+        private Undefined(String attribute) {
+            this.attribute = attribute;
+        }
+
+        @Override
+        public Boolean evaluate(Map<String, ? extends Collection<String>> attributes) {
+            return null;
+        }
+
+        @Override
+        protected void collectAttributes(Set<String> attributes) {
+            if (attribute != null) {
+                attributes.add(attribute.toLowerCase(Locale.ENGLISH));
+            }
+        }
+    }
+
+    /**
+     * Recursive descent parser for RFC 4515 filters
+     */
+    private static final class Parser {
+        private final String filter;
+        private int position = 0;
+
+        private Parser(String filter) {
+            this.filter = filter;
+        }
+
+        private LdapFilterEvaluator parseFilter() {
+            expect('(');
+            LdapFilterEvaluator result;
+            char c = peek();
+            if (c == '&' || c == '|') {
+                position++;
+                List<LdapFilterEvaluator> children = new ArrayList<>();
+                while (peek() == '(') {
+                    children.add(parseFilter());
+                }
+                result = new Composite(c == '&', children);
+            } else if (c == '!') {
+                position++;
+                result = new Not(parseFilter());
+            } else {
+                result = parseItem();
+            }
+            expect(')');
+            return result;
+        }
+
+        private LdapFilterEvaluator parseItem() {
+            int start = position;
+            while (position < filter.length() && "=~<>:()".indexOf(filter.charAt(position)) < 0) {
+                position++;
+            }
+            String attribute = filter.substring(start, position).trim();
+            char c = peek();
+            if (c == ':') {
+                // extensible match, evaluated by the server
+                skipValue();
+                return new Undefined(attribute.isEmpty() ? null : attribute);
+            }
+            if (attribute.isEmpty()) {
+                throw new IllegalArgumentException("Missing attribute at position " + start + " in filter " + filter);
+            }
+            if (c == '~' || c == '<' || c == '>') {
+                position++;
+                expect('=');
+                String value = unescape(readRawValue());
+                if (c == '~') {
+                    return new Undefined(attribute);
+                }
+                return new Ordering(attribute, value, c == '>');
+            }
+            expect('=');
+            String rawValue = readRawValue();
+            if (rawValue.equals("*")) {
+                return new Presence(attribute);
+            }
+            if (rawValue.indexOf('*') < 0) {
+                return new Equality(attribute, unescape(rawValue));
+            }
+            List<String> parts = new ArrayList<>();
+            int partStart = 0;
+            for (int i = 0; i <= rawValue.length(); i++) {
+                if (i == rawValue.length() || rawValue.charAt(i) == '*') {
+                    parts.add(unescape(rawValue.substring(partStart, i)));
+                    partStart = i + 1;
+                }
+            }
+            String initial = parts.get(0).isEmpty() ? null : parts.get(0);
+            String last = parts.get(parts.size() - 1).isEmpty() ? null : parts.get(parts.size() - 1);
+            List<String> any = new ArrayList<>();
+            for (String part : parts.subList(1, parts.size() - 1)) {
+                if (!part.isEmpty()) {
+                    any.add(part);
+                }
+            }
+            return new Substring(attribute, initial, any.isEmpty() ? Collections.<String>emptyList() : any, last);
+        }
+
+        private String readRawValue() {
+            int start = position;
+            while (position < filter.length() && filter.charAt(position) != ')') {
+                if (filter.charAt(position) == '(') {
+                    throw new IllegalArgumentException("Unescaped parenthesis at position " + position + " in filter " + filter);
+                }
+                position++;
+            }
+            return filter.substring(start, position);
+        }
+
+        private void skipValue() {
+            while (position < filter.length() && filter.charAt(position) != ')') {
+                position++;
+            }
+        }
+
+        private String unescape(String value) {
+            if (value.indexOf('\\') < 0) {
+                return value;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    try {
+                        bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                        i += 2;
+                        continue;
+                    } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                        throw new IllegalArgumentException("Invalid escape sequence in value " + value);
+                    }
+                }
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        private char peek() {
+            if (position >= filter.length()) {
+                throw new IllegalArgumentException("Unexpected end of filter " + filter);
+            }
+            return filter.charAt(position);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at position " + position + " in filter " + filter);
+            }
+            position++;
+        }
+    }
+}
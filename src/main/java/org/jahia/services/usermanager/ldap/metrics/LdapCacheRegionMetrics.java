@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.metrics;
+
+import net.sf.ehcache.Ehcache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the cache region holding the users or the groups of a provider.
+ */
+public class LdapCacheRegionMetrics {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private volatile Ehcache cache;
+
+    void recordAccess(boolean hit) {
+        (hit ? hits : misses).incrementAndGet();
+    }
+
+    public void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    public void recordExpiration() {
+        expirations.incrementAndGet();
+    }
+
+    /**
+     * @param cache the cache region, used to read its size and settings
+     */
+    public void setCache(Ehcache cache) {
+        this.cache = cache;
+    }
+
+    void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        expirations.set(0);
+    }
+
+    /**
+     * @return the name of the cache region, null if it is not created yet
+     */
+    public String getName() {
+        Ehcache region = cache;
+        return region != null ? region.getName() : null;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        return hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0;
+    }
+
+    /**
+     * @return the number of elements evicted because the region was full, each entry having a name and a DN element
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the number of elements in the region
+     */
+    public int getSize() {
+        Ehcache region = cache;
+        return region != null ? region.getSize() : 0;
+    }
+
+    /**
+     * @return the maximum number of elements of the region, 0 if unlimited
+     */
+    public long getMaxEntries() {
+        Ehcache region = cache;
+        return region != null ? region.getCacheConfiguration().getMaxEntriesLocalHeap() : 0;
+    }
+
+    public long getTimeToIdleSeconds() {
+        Ehcache region = cache;
+        return region != null ? region.getCacheConfiguration().getTimeToIdleSeconds() : 0;
+    }
+
+    public long getTimeToLiveSeconds() {
+        Ehcache region = cache;
+        return region != null ? region.getCacheConfiguration().getTimeToLiveSeconds() : 0;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram counting the recorded values in fixed buckets.
+ */
+public class LdapHistogram {
+
+    private final long[] bounds;
+    private final String unit;
+    // one counter per bound, plus one for the values above the last bound
+    private final AtomicLongArray counts;
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param unit the unit of the values, used in the bucket labels
+     * @param bounds the inclusive upper bounds of the buckets, in increasing order
+     */
+    public LdapHistogram(String unit, long... bounds) {
+        this.unit = unit;
+        this.bounds = bounds;
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+    }
+
+    /**
+     * @return the number of values per bucket, keyed by a bucket label like "<= 10 ms"
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < bounds.length; i++) {
+            result.put("<= " + bounds[i] + " " + unit, counts.get(i));
+        }
+        result.put("> " + bounds[bounds.length - 1] + " " + unit, counts.get(bounds.length));
+        return result;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+}
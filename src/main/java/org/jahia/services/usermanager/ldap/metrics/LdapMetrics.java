@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.metrics;
+
+import org.jahia.services.usermanager.ldap.LDAPCacheRefresher;
+import org.jahia.services.usermanager.ldap.cache.LDAPMembershipClosure;
+import org.jahia.services.usermanager.ldap.communication.LdapAsyncExecutor;
+import org.jahia.services.usermanager.ldap.communication.LdapCircuitBreaker;
+import org.jahia.services.usermanager.ldap.communication.LdapPriority;
+import org.jahia.services.usermanager.ldap.communication.LdapPriorityScheduler;
+import org.jahia.services.usermanager.ldap.communication.LdapRequestCoalescer;
+import org.jahia.services.usermanager.ldap.communication.LdapServer;
+import org.jahia.services.usermanager.ldap.communication.LoadBalancingContextSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Metrics of an LDAP provider: latency, errors, timeouts and result sizes of the LDAP operations, and cache hits and
+ * misses. Exposed through JMX once registered.
+ */
+public class LdapMetrics implements LdapMetricsMXBean {
+
+    public static final String GET_USER = "getUser";
+    public static final String GET_USER_BY_DN = "getUserByDn";
+    public static final String GET_GROUP = "getGroup";
+    public static final String GET_GROUP_BY_DN = "getGroupByDn";
+    public static final String MEMBERSHIP = "membership";
+    public static final String MEMBERS = "members";
+    public static final String SEARCH_USERS = "searchUsers";
+    public static final String SEARCH_GROUPS = "searchGroups";
+    public static final String VERIFY_PASSWORD = "verifyPassword";
+    public static final String IS_AVAILABLE = "isAvailable";
+    public static final String SYNC = "sync";
+    public static final String SCAN_NAMES = "scanNames";
+
+    private static final String JMX_DOMAIN = "org.jahia.modules.ldap";
+
+    private static Logger logger = LoggerFactory.getLogger(LdapMetrics.class);
+
+    private final ConcurrentMap<String, LdapOperationMetrics> operations = new ConcurrentHashMap<>();
+    private final LdapCacheRegionMetrics userCache = new LdapCacheRegionMetrics();
+    private final LdapCacheRegionMetrics groupCache = new LdapCacheRegionMetrics();
+    private final LdapOperationMetrics queueWait = new LdapOperationMetrics();
+    private final LdapCacheRegionMetrics credentialCache = new LdapCacheRegionMetrics();
+
+    private volatile LdapRequestCoalescer requestCoalescer;
+    private volatile LDAPCacheRefresher cacheRefresher;
+    private volatile LdapAsyncExecutor asyncExecutor;
+    private volatile LdapCircuitBreaker circuitBreaker;
+    private volatile LoadBalancingContextSource loadBalancingContextSource;
+    private volatile LoadBalancingContextSource bulkLoadBalancingContextSource;
+    private volatile LdapPriorityScheduler scheduler;
+    private volatile LdapPriorityScheduler bulkScheduler;
+    private volatile LDAPMembershipClosure membershipClosure;
+    private ObjectName objectName;
+
+    /**
+     * Records a successful LDAP operation
+     *
+     * @param operation the operation name
+     * @param durationNanos the duration of the operation
+     * @param result the operation result, its size is recorded if it is a collection
+     */
+    public void recordSuccess(String operation, long durationNanos, Object result) {
+        getOrCreateOperation(operation).record(durationNanos, result instanceof Collection ? ((Collection<?>) result).size() : -1, false, false);
+    }
+
+    /**
+     * Records a failed LDAP operation
+     *
+     * @param operation the operation name
+     * @param durationNanos the duration of the operation
+     * @param e the error
+     */
+    public void recordError(String operation, long durationNanos, Exception e) {
+        getOrCreateOperation(operation).record(durationNanos, -1, true, isTimeout(e));
+    }
+
+    /**
+     * Records the time an LDAP operation waited for a permit, when the concurrent operations are limited
+     *
+     * @param durationNanos the waiting time
+     */
+    public void recordQueueWait(long durationNanos) {
+        queueWait.record(durationNanos, -1, false, false);
+    }
+
+    public void recordUserCacheAccess(boolean hit) {
+        userCache.recordAccess(hit);
+    }
+
+    public void recordGroupCacheAccess(boolean hit) {
+        groupCache.recordAccess(hit);
+    }
+
+    public void recordCredentialCacheAccess(boolean hit) {
+        credentialCache.recordAccess(hit);
+    }
+
+    private LdapOperationMetrics getOrCreateOperation(String operation) {
+        LdapOperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            LdapOperationMetrics newMetrics = new LdapOperationMetrics();
+            metrics = operations.putIfAbsent(operation, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    private static boolean isTimeout(Throwable e) {
+        // the Spring LDAP exceptions wrap the JNDI ones
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof javax.naming.TimeLimitExceededException || t instanceof org.springframework.ldap.TimeLimitExceededException
+                    || t instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setRequestCoalescer(LdapRequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    public void setCacheRefresher(LDAPCacheRefresher cacheRefresher) {
+        this.cacheRefresher = cacheRefresher;
+    }
+
+    public void setAsyncExecutor(LdapAsyncExecutor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public void setCircuitBreaker(LdapCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public void setLoadBalancingContextSource(LoadBalancingContextSource loadBalancingContextSource) {
+        this.loadBalancingContextSource = loadBalancingContextSource;
+    }
+
+    public void setBulkLoadBalancingContextSource(LoadBalancingContextSource bulkLoadBalancingContextSource) {
+        this.bulkLoadBalancingContextSource = bulkLoadBalancingContextSource;
+    }
+
+    public void setSchedulers(LdapPriorityScheduler scheduler, LdapPriorityScheduler bulkScheduler) {
+        this.scheduler = scheduler;
+        this.bulkScheduler = bulkScheduler;
+    }
+
+    public void setMembershipClosure(LDAPMembershipClosure membershipClosure) {
+        this.membershipClosure = membershipClosure;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server
+     *
+     * @param providerKey the provider key
+     */
+    public synchronized void register(String providerKey) {
+        unregister();
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=LdapMetrics,provider=" + ObjectName.quote(providerKey));
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            logger.warn("Unable to register the metrics of LDAP provider {}: {}", providerKey, e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.debug("Unable to unregister " + objectName, e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public Map<String, LdapOperationMetrics> getOperations() {
+        return new TreeMap<>(operations);
+    }
+
+    /**
+     * @param operation the operation name
+     * @return the statistics of the operation, null if it was not executed yet
+     */
+    public LdapOperationMetrics getOperation(String operation) {
+        return operations.get(operation);
+    }
+
+    @Override
+    public LdapOperationMetrics getQueueWait() {
+        return queueWait;
+    }
+
+    @Override
+    public LdapCacheRegionMetrics getUserCache() {
+        return userCache;
+    }
+
+    @Override
+    public LdapCacheRegionMetrics getGroupCache() {
+        return groupCache;
+    }
+
+    @Override
+    public long getCredentialCacheHits() {
+        return credentialCache.getHits();
+    }
+
+    @Override
+    public long getCredentialCacheMisses() {
+        return credentialCache.getMisses();
+    }
+
+    @Override
+    public long getUserCacheHits() {
+        return userCache.getHits();
+    }
+
+    @Override
+    public long getUserCacheMisses() {
+        return userCache.getMisses();
+    }
+
+    @Override
+    public double getUserCacheHitRatio() {
+        return userCache.getHitRatio();
+    }
+
+    @Override
+    public long getGroupCacheHits() {
+        return groupCache.getHits();
+    }
+
+    @Override
+    public long getGroupCacheMisses() {
+        return groupCache.getMisses();
+    }
+
+    @Override
+    public double getGroupCacheHitRatio() {
+        return groupCache.getHitRatio();
+    }
+
+    @Override
+    public long getCoalescedRequestCount() {
+        LdapRequestCoalescer coalescer = requestCoalescer;
+        return coalescer != null ? coalescer.getCoalescedCount() : 0;
+    }
+
+    @Override
+    public long getBackgroundRefreshCount() {
+        LDAPCacheRefresher refresher = cacheRefresher;
+        return refresher != null ? refresher.getRefreshCount() : 0;
+    }
+
+    @Override
+    public int getAsyncActiveCount() {
+        LdapAsyncExecutor executor = asyncExecutor;
+        return executor != null ? executor.getActiveCount() : 0;
+    }
+
+    @Override
+    public int getAsyncQueuedCount() {
+        LdapAsyncExecutor executor = asyncExecutor;
+        return executor != null ? executor.getQueuedCount() : 0;
+    }
+
+    @Override
+    public long getAsyncRejectedCount() {
+        LdapAsyncExecutor executor = asyncExecutor;
+        return executor != null ? executor.getRejectedCount() : 0;
+    }
+
+    @Override
+    public long getTransitiveMembershipCount() {
+        LDAPMembershipClosure closure = membershipClosure;
+        return closure != null ? closure.getSize() : 0;
+    }
+
+    @Override
+    public long getGroupCycleCount() {
+        LDAPMembershipClosure closure = membershipClosure;
+        return closure != null ? closure.getCycleCount() : 0;
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        LdapCircuitBreaker breaker = circuitBreaker;
+        return breaker != null ? breaker.getState().name() : "DISABLED";
+    }
+
+    @Override
+    public double getCircuitBreakerFailureRate() {
+        LdapCircuitBreaker breaker = circuitBreaker;
+        return breaker != null ? breaker.getFailureRate() : 0;
+    }
+
+    @Override
+    public double getCircuitBreakerSlowCallRate() {
+        LdapCircuitBreaker breaker = circuitBreaker;
+        return breaker != null ? breaker.getSlowCallRate() : 0;
+    }
+
+    @Override
+    public long getCircuitBreakerOpenCount() {
+        LdapCircuitBreaker breaker = circuitBreaker;
+        return breaker != null ? breaker.getOpenCount() : 0;
+    }
+
+    @Override
+    public long getCircuitBreakerRejectedCount() {
+        LdapCircuitBreaker breaker = circuitBreaker;
+        return breaker != null ? breaker.getRejectedCount() : 0;
+    }
+
+    @Override
+    public Map<String, LdapServer> getServers() {
+        return getServers(loadBalancingContextSource);
+    }
+
+    @Override
+    public Map<String, LdapServer> getBulkServers() {
+        return getServers(bulkLoadBalancingContextSource);
+    }
+
+    private static Map<String, LdapServer> getServers(LoadBalancingContextSource contextSource) {
+        Map<String, LdapServer> servers = new TreeMap<>();
+        if (contextSource != null) {
+            for (LdapServer server : contextSource.getServers()) {
+                servers.put(server.getUrl(), server);
+            }
+        }
+        return servers;
+    }
+
+    @Override
+    public Map<String, LdapPriorityScheduler.PriorityStatus> getScheduler() {
+        return getSchedulerStatus(scheduler);
+    }
+
+    @Override
+    public Map<String, LdapPriorityScheduler.PriorityStatus> getBulkScheduler() {
+        return getSchedulerStatus(bulkScheduler);
+    }
+
+    private static Map<String, LdapPriorityScheduler.PriorityStatus> getSchedulerStatus(LdapPriorityScheduler scheduler) {
+        Map<String, LdapPriorityScheduler.PriorityStatus> status = new TreeMap<>();
+        if (scheduler != null) {
+            for (Map.Entry<LdapPriority, LdapPriorityScheduler.PriorityStatus> entry : scheduler.getStatus().entrySet()) {
+                status.put(entry.getKey().name(), entry.getValue());
+            }
+        }
+        return status;
+    }
+
+    @Override
+    public void reset() {
+        for (LdapOperationMetrics metrics : operations.values()) {
+            metrics.reset();
+        }
+        userCache.reset();
+        groupCache.reset();
+        credentialCache.reset();
+        queueWait.reset();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.metrics;
+
+import org.jahia.services.usermanager.ldap.communication.LdapPriorityScheduler;
+import org.jahia.services.usermanager.ldap.communication.LdapServer;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of an LDAP provider, registered as
+ * <code>org.jahia.modules.ldap:type=LdapMetrics,provider=&lt;provider key&gt;</code>.
+ */
+public interface LdapMetricsMXBean {
+
+    /**
+     * @return the statistics of the LDAP operations, keyed by operation name
+     */
+    Map<String, LdapOperationMetrics> getOperations();
+
+    /**
+     * @return the statistics of the cache region holding the users of the provider
+     */
+    LdapCacheRegionMetrics getUserCache();
+
+    /**
+     * @return the statistics of the cache region holding the groups of the provider
+     */
+    LdapCacheRegionMetrics getGroupCache();
+
+    /**
+     * @return the number of password checks served by the credential cache
+     */
+    long getCredentialCacheHits();
+
+    /**
+     * @return the number of password checks that needed a bind while the credential cache was enabled
+     */
+    long getCredentialCacheMisses();
+
+    long getUserCacheHits();
+
+    long getUserCacheMisses();
+
+    double getUserCacheHitRatio();
+
+    long getGroupCacheHits();
+
+    long getGroupCacheMisses();
+
+    double getGroupCacheHitRatio();
+
+    /**
+     * @return the number of requests that were served by an identical request already in flight
+     */
+    long getCoalescedRequestCount();
+
+    /**
+     * @return the number of stale cache entries refreshed in the background
+     */
+    long getBackgroundRefreshCount();
+
+    /**
+     * @return the time the LDAP operations waited for a permit, when the concurrent operations are limited
+     */
+    LdapOperationMetrics getQueueWait();
+
+    /**
+     * @return the number of asynchronous lookups running
+     */
+    int getAsyncActiveCount();
+
+    /**
+     * @return the number of asynchronous lookups waiting for a thread
+     */
+    int getAsyncQueuedCount();
+
+    /**
+     * @return the number of asynchronous lookups rejected because the executor was saturated
+     */
+    long getAsyncRejectedCount();
+
+    /**
+     * @return the number of members and groups whose transitive memberships are cached
+     */
+    long getTransitiveMembershipCount();
+
+    /**
+     * @return the number of cycles found in the nested groups
+     */
+    long getGroupCycleCount();
+
+    /**
+     * @return the state of the circuit breaker: CLOSED, OPEN or HALF_OPEN while the server is probed, DISABLED if
+     * there is no circuit breaker
+     */
+    String getCircuitBreakerState();
+
+    /**
+     * @return the percentage of LDAP operations that failed to reach the server in the circuit breaker window
+     */
+    double getCircuitBreakerFailureRate();
+
+    /**
+     * @return the percentage of slow LDAP operations in the circuit breaker window
+     */
+    double getCircuitBreakerSlowCallRate();
+
+    /**
+     * @return the number of times the circuit opened
+     */
+    long getCircuitBreakerOpenCount();
+
+    /**
+     * @return the number of LDAP operations that failed fast because the circuit was open
+     */
+    long getCircuitBreakerRejectedCount();
+
+    /**
+     * @return the health of the servers keyed by URL, when the operations are balanced over several servers
+     */
+    Map<String, LdapServer> getServers();
+
+    /**
+     * @return the health of the servers of the bulk searches keyed by URL, when they have their own balanced servers
+     */
+    Map<String, LdapServer> getBulkServers();
+
+    /**
+     * @return the running, waiting and rejected lookups of each priority class
+     */
+    Map<String, LdapPriorityScheduler.PriorityStatus> getScheduler();
+
+    /**
+     * @return the running, waiting and rejected bulk searches of each priority class
+     */
+    Map<String, LdapPriorityScheduler.PriorityStatus> getBulkScheduler();
+
+    /**
+     * Resets the operation and cache statistics
+     */
+    void reset();
+}
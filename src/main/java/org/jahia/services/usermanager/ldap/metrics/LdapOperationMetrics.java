@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, error and result size statistics of one kind of LDAP operation.
+ */
+public class LdapOperationMetrics {
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+    private final AtomicLong totalResults = new AtomicLong();
+    private final AtomicLong sizedResultCount = new AtomicLong();
+    private final AtomicLong maxResultSize = new AtomicLong();
+    private final LdapHistogram latencyHistogram = new LdapHistogram("ms", 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000);
+    private final LdapHistogram resultSizeHistogram = new LdapHistogram("entries", 0, 1, 10, 100, 1000, 10000, 100000);
+
+    void record(long durationNanos, int resultSize, boolean error, boolean timeout) {
+        long durationMicros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+        count.incrementAndGet();
+        totalTime.addAndGet(durationMicros);
+        updateMax(maxTime, durationMicros);
+        latencyHistogram.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        if (error) {
+            errorCount.incrementAndGet();
+        }
+        if (timeout) {
+            timeoutCount.incrementAndGet();
+        }
+        if (resultSize >= 0) {
+            sizedResultCount.incrementAndGet();
+            totalResults.addAndGet(resultSize);
+            updateMax(maxResultSize, resultSize);
+            resultSizeHistogram.record(resultSize);
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    void reset() {
+        count.set(0);
+        errorCount.set(0);
+        timeoutCount.set(0);
+        totalTime.set(0);
+        maxTime.set(0);
+        totalResults.set(0);
+        sizedResultCount.set(0);
+        maxResultSize.set(0);
+        latencyHistogram.reset();
+        resultSizeHistogram.reset();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * @return the total time spent in the operation, in milliseconds
+     */
+    public double getTotalTime() {
+        return totalTime.get() / 1000d;
+    }
+
+    /**
+     * @return the average duration of the operation, in milliseconds
+     */
+    public double getAverageTime() {
+        long n = count.get();
+        return n > 0 ? totalTime.get() / 1000d / n : 0;
+    }
+
+    /**
+     * @return the longest duration of the operation, in milliseconds
+     */
+    public double getMaxTime() {
+        return maxTime.get() / 1000d;
+    }
+
+    public Map<String, Long> getLatencyHistogram() {
+        return latencyHistogram.getCounts();
+    }
+
+    /**
+     * @return the average number of entries returned by the operation, for the operations returning a list
+     */
+    public double getAverageResultSize() {
+        long n = sizedResultCount.get();
+        return n > 0 ? (double) totalResults.get() / n : 0;
+    }
+
+    public long getMaxResultSize() {
+        return maxResultSize.get();
+    }
+
+    public Map<String, Long> getResultSizeHistogram() {
+        return resultSizeHistogram.getCounts();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap;
+
+import org.jahia.services.usermanager.ldap.communication.LdapPriority;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LDAPCacheRefresherTest {
+
+    private final LDAPCacheRefresher refresher = new LDAPCacheRefresher("ldap", 60);
+
+    @After
+    public void tearDown() {
+        refresher.stop();
+    }
+
+    @Test
+    public void testIsStale() {
+        long now = System.currentTimeMillis();
+        assertFalse(refresher.isStale(now));
+        assertFalse(refresher.isStale(now - 30000L));
+        assertTrue(refresher.isStale(now - 61000L));
+    }
+
+    @Test
+    public void testRefreshRunsWithRefreshPriority() throws Exception {
+        final BlockingQueue<LdapPriority> priorities = new ArrayBlockingQueue<>(1);
+        refresher.refresh("user/user1", new Runnable() {
+            @Override
+            public void run() {
+                priorities.add(LdapPriority.current());
+            }
+        });
+        assertEquals(LdapPriority.REFRESH, priorities.poll(5, TimeUnit.SECONDS));
+        waitForRefreshCount(1);
+    }
+
+    @Test
+    public void testPendingRefreshIsNotScheduledTwice() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                running.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        refresher.refresh("group/group-a", refresh);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        refresher.refresh("group/group-a", refresh);
+        release.countDown();
+        waitForRefreshCount(1);
+        assertEquals(1, runs.get());
+
+        // once done, the entry can be refreshed again
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (runs.get() < 2 && System.currentTimeMillis() < deadline) {
+            refresher.refresh("group/group-a", refresh);
+            Thread.sleep(10);
+        }
+        waitForRefreshCount(2);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void testFailedRefreshCanBeScheduledAgain() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        refresher.refresh("user/user1", new Runnable() {
+            @Override
+            public void run() {
+                failed.countDown();
+                throw new IllegalStateException("LDAP server unavailable");
+            }
+        });
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                refreshed.countDown();
+            }
+        };
+        // the key is released right after the failure
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!refreshed.await(50, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < deadline) {
+            refresher.refresh("user/user1", refresh);
+        }
+        assertEquals(0, refreshed.getCount());
+        waitForRefreshCount(1);
+    }
+
+    private void waitForRefreshCount(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (refresher.getRefreshCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, refresher.getRefreshCount());
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import org.jahia.modules.external.users.Member;
+import org.jahia.services.usermanager.GroupNotFoundException;
+import org.jahia.services.usermanager.JahiaGroup;
+import org.jahia.services.usermanager.JahiaUser;
+import org.jahia.services.usermanager.ldap.cache.LDAPCacheManager;
+import org.jahia.services.usermanager.ldap.cache.LDAPNegativeCache;
+import org.jahia.services.usermanager.ldap.communication.LdapCircuitOpenException;
+import org.jahia.services.usermanager.ldap.communication.LdapPriority;
+import org.jahia.services.usermanager.ldap.communication.LdapPriorityScheduler;
+import org.jahia.services.usermanager.ldap.communication.LdapTemplateCallback;
+import org.jahia.services.usermanager.ldap.communication.LdapTemplateWrapper;
+import org.jahia.services.usermanager.ldap.config.GroupConfig;
+import org.jahia.services.usermanager.ldap.config.UserConfig;
+import org.jahia.services.usermanager.ldap.metrics.LdapMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.support.DefaultDirObjectFactory;
+import org.springframework.ldap.core.support.LdapContextSource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the provider against an embedded directory. The schema is not checked, so that malformed entries can be
+ * added.
+ */
+public class LDAPUserGroupProviderTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String PEOPLE_DN = "ou=people," + BASE_DN;
+    private static final String GROUPS_DN = "ou=groups," + BASE_DN;
+    private static final String BIND_DN = "cn=Directory Manager";
+    private static final String PASSWORD = "password";
+
+    private InMemoryDirectoryServer server;
+    private CacheManager cacheManager;
+    private LDAPCacheManager ldapCacheManager;
+    private LdapTemplate ldapTemplate;
+    private UserConfig userConfig;
+    private LDAPUserGroupProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(BIND_DN, PASSWORD);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+        config.setAccessLogHandler(null);
+        server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "example")));
+        server.add(new Entry(PEOPLE_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "people")));
+        server.add(new Entry(GROUPS_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "groups")));
+        for (int i = 0; i < 3; i++) {
+            server.add(user("user" + i));
+        }
+        server.add(group("group-a", getUserDn("user0")));
+        server.startListening();
+
+        Configuration configuration = new Configuration();
+        configuration.setName("ldap-test-" + System.nanoTime());
+        configuration.setUpdateCheck(false);
+        configuration.defaultCache(new CacheConfiguration("default", 0));
+        cacheManager = CacheManager.newInstance(configuration);
+        ldapCacheManager = new LDAPCacheManager();
+        ldapCacheManager.initialize(cacheManager);
+
+        provider = createProvider();
+    }
+
+    @After
+    public void tearDown() {
+        cacheManager.shutdown();
+        server.shutDown(true);
+    }
+
+    @Test
+    public void testRefreshModifiedEntriesSkipsMalformedGroup() throws Exception {
+        assertEquals(members("user0"), provider.getGroupMembers("group-a"));
+        assertEquals("user1", provider.getUser("user1").getProperty("j:lastName"));
+
+        // a group entry without its name attribute, returned by the modification search
+        server.add(new Entry("ou=broken," + GROUPS_DN, new Attribute("objectClass", "top", "groupOfUniqueNames"),
+                new Attribute("uniqueMember", getUserDn("user2"))));
+        server.modify("cn=group-a," + GROUPS_DN, new Modification(ModificationType.ADD, "uniqueMember", getUserDn("user1")));
+        server.modify(getUserDn("user1"), new Modification(ModificationType.REPLACE, "sn", "Smith"));
+
+        assertNotNull(provider.refreshModifiedEntries("19700101000000Z"));
+        assertEquals(members("user0", "user1"), provider.getGroupMembers("group-a"));
+        assertEquals("Smith", provider.getUser("user1").getProperty("j:lastName"));
+    }
+
+    @Test
+    public void testLoadMembersSkipsInvalidMembers() throws Exception {
+        server.add(new Entry("ou=broken," + GROUPS_DN, new Attribute("objectClass", "top", "groupOfUniqueNames"),
+                new Attribute("uniqueMember", getUserDn("user2"))));
+        server.add(group("group-b", getUserDn("user0"), "not a dn", "ou=broken," + GROUPS_DN, "cn=group-a," + GROUPS_DN));
+
+        List<Member> expected = members("user0");
+        expected.add(new Member("group-a", Member.MemberType.GROUP));
+        assertEquals(expected, provider.getGroupMembers("group-b"));
+    }
+
+    @Test
+    public void testLoginOfUserCreatedAfterKnownNamesFilter() throws Exception {
+        ldapCacheManager.configureNegativeCaches("ldap", 100, 60);
+        LDAPNegativeCache negativeCache = ldapCacheManager.getUserNegativeCache("ldap");
+        LDAPNegativeCache.KnownNames knownNames = negativeCache.newKnownNames();
+        for (int i = 0; i < 3; i++) {
+            knownNames.add("user" + i);
+        }
+        negativeCache.setKnownNames(knownNames);
+        server.add(user("user3"));
+
+        LdapPriority previousPriority = LdapPriority.set(LdapPriority.REFRESH);
+        try {
+            // background lookups trust the filter
+            assertFalse(ldapCacheManager.getUserCacheEntryByName("ldap", "user3").getExist());
+        } finally {
+            LdapPriority.set(previousPriority);
+        }
+        assertTrue(provider.verifyPassword("user3", PASSWORD));
+        assertFalse(provider.verifyPassword("user4", PASSWORD));
+        // not found once, then answered by the negative cache
+        assertEquals(1, negativeCache.getAbsentCount());
+    }
+
+    @Test
+    public void testFailedMembersBatchNotCached() throws Exception {
+        final AtomicInteger membersOperations = new AtomicInteger();
+        provider.setLdapTemplateWrapper(new LdapTemplateWrapper(ldapTemplate) {
+            @Override
+            public <X> X execute(String operation, LdapTemplateCallback<X> callback) {
+                // the group members are read, the search of the unknown members fails
+                if (LdapMetrics.MEMBERS.equals(operation) && membersOperations.incrementAndGet() == 2) {
+                    return callback.onError(new LdapCircuitOpenException("LDAP server unavailable"));
+                }
+                return super.execute(operation, callback);
+            }
+        });
+
+        server.add(group("group-b", getUserDn("user0"), getUserDn("user1")));
+        // cached user, resolved without searching the server
+        assertNotNull(provider.getUser("user1"));
+
+        assertTrue(provider.getGroupMembers("group-b").isEmpty());
+        assertEquals(2, membersOperations.get());
+        // the members are read again once the server is back
+        assertEquals(members("user0", "user1"), provider.getGroupMembers("group-b"));
+    }
+
+    @Test
+    public void testSearchesWhileServerUnavailable() throws Exception {
+        provider.setLdapTemplateWrapper(new LdapTemplateWrapper(ldapTemplate) {
+            @Override
+            public <X> X execute(String operation, LdapTemplateCallback<X> callback) {
+                return callback.onError(new LdapCircuitOpenException("LDAP server unavailable"));
+            }
+        });
+        Properties searchCriteria = new Properties();
+        searchCriteria.setProperty("username", "user*");
+
+        assertTrue(provider.searchUsers(searchCriteria, 0, -1).isEmpty());
+        assertTrue(provider.searchGroups(new Properties(), 0, -1).isEmpty());
+        assertTrue(provider.getGroupMembers("group-a").isEmpty());
+    }
+
+    @Test
+    public void testPagedSearchCursorHoldsPermit() throws Exception {
+        LdapPriorityScheduler bulkScheduler = new LdapPriorityScheduler(3, 0, 0, 0);
+        LdapTemplateWrapper ldapTemplateWrapper = new LdapTemplateWrapper(ldapTemplate);
+        ldapTemplateWrapper.setBulkScheduler(bulkScheduler);
+        provider.setLdapTemplateWrapper(ldapTemplateWrapper);
+        userConfig.setSearchPageSize(1);
+        Properties searchCriteria = new Properties();
+        searchCriteria.setProperty("username", "user*");
+        Set<String> names = new HashSet<>();
+
+        List<String> page = provider.searchUsers(searchCriteria, 0, 1);
+        assertEquals(1, page.size());
+        names.addAll(page);
+        // the cursor kept for the next page holds a permit
+        assertEquals(2, bulkScheduler.getAvailablePermits());
+        page = provider.searchUsers(searchCriteria, 1, 1);
+        assertEquals(1, page.size());
+        names.addAll(page);
+        assertEquals(2, bulkScheduler.getAvailablePermits());
+
+        // the paged search is lost with the connection, the next page comes from a new search
+        server.closeAllConnections(true);
+        page = provider.searchUsers(searchCriteria, 2, 1);
+        assertEquals(1, page.size());
+        names.addAll(page);
+        assertEquals(3, names.size());
+        // the exhausted cursor is closed
+        assertEquals(3, bulkScheduler.getAvailablePermits());
+    }
+
+    @Test
+    public void testAsyncLookups() throws Exception {
+        CompletableFuture<JahiaUser> user = provider.getUserAsync("user1");
+        CompletableFuture<List<Member>> members = provider.getGroupMembersAsync("group-a");
+        CompletableFuture<JahiaGroup> missingGroup = provider.getGroupAsync("group-z");
+
+        assertEquals("user1", user.get(5, TimeUnit.SECONDS).getName());
+        assertEquals(members("user0"), members.get(5, TimeUnit.SECONDS));
+        try {
+            missingGroup.get(5, TimeUnit.SECONDS);
+            fail("The lookup of a missing group should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GroupNotFoundException);
+        }
+        // answered from the cache
+        assertTrue(provider.getUserAsync("user1").isDone());
+        assertTrue(provider.getGroupAsync("group-z").isCompletedExceptionally());
+    }
+
+    private LDAPUserGroupProvider createProvider() throws Exception {
+        String url = "ldap://localhost:" + server.getListenPort();
+        userConfig = new UserConfig();
+        userConfig.setUrl(url);
+        userConfig.setUidSearchName(PEOPLE_DN);
+        userConfig.setUidSearchAttribute("uid");
+        userConfig.setSearchObjectclass("inetOrgPerson");
+        userConfig.setCanGroupContainSubGroups(true);
+        userConfig.handleDefaults();
+
+        GroupConfig groupConfig = new GroupConfig();
+        groupConfig.setUrl(url);
+        groupConfig.setSearchName(GROUPS_DN);
+        groupConfig.handleDefaults();
+
+        LdapContextSource contextSource = new LdapContextSource();
+        contextSource.setUrl(url);
+        contextSource.setUserDn(BIND_DN);
+        contextSource.setPassword(PASSWORD);
+        contextSource.setDirObjectFactory(DefaultDirObjectFactory.class);
+        contextSource.afterPropertiesSet();
+        ldapTemplate = new LdapTemplate(contextSource);
+        ldapTemplate.setIgnorePartialResultException(true);
+        ldapTemplate.setIgnoreNameNotFoundException(true);
+
+        LDAPUserGroupProvider ldapUserGroupProvider = new LDAPUserGroupProvider();
+        ldapUserGroupProvider.setKey("ldap");
+        ldapUserGroupProvider.setUserConfig(userConfig);
+        ldapUserGroupProvider.setGroupConfig(groupConfig);
+        ldapUserGroupProvider.setDistinctBase(true);
+        ldapUserGroupProvider.setLdapCacheManager(ldapCacheManager);
+        ldapUserGroupProvider.setLdapTemplateWrapper(new LdapTemplateWrapper(ldapTemplate));
+        ldapUserGroupProvider.setContextSource(contextSource);
+        return ldapUserGroupProvider;
+    }
+
+    private static List<Member> members(String... userNames) {
+        List<Member> members = new ArrayList<>();
+        for (String userName : userNames) {
+            members.add(new Member(userName, Member.MemberType.USER));
+        }
+        return members;
+    }
+
+    private static String getUserDn(String userName) {
+        return "uid=" + userName + "," + PEOPLE_DN;
+    }
+
+    private static Entry user(String userName) {
+        return new Entry(getUserDn(userName),
+                new Attribute("objectClass", "top", "person", "organizationalPerson", "inetOrgPerson"),
+                new Attribute("uid", userName),
+                new Attribute("cn", userName),
+                new Attribute("sn", userName),
+                new Attribute("userPassword", PASSWORD));
+    }
+
+    private static Entry group(String name, String... memberDns) {
+        return new Entry("cn=" + name + "," + GROUPS_DN,
+                new Attribute("objectClass", "top", "groupOfUniqueNames"),
+                new Attribute("cn", name),
+                new Attribute("uniqueMember", memberDns));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import org.jahia.modules.external.users.Member;
+import org.jahia.services.usermanager.JahiaGroupImpl;
+import org.jahia.services.usermanager.JahiaUserImpl;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LDAPCacheCodecTest {
+
+    @Test
+    public void testUser() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("j:firstName", "John");
+        properties.setProperty("j:email", "john@example.com");
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("uid", Collections.singletonList("john"));
+        attributes.put("o", Arrays.asList("Sales", "Marketing"));
+        LDAPUserCacheEntry entry = new LDAPUserCacheEntry("john");
+        entry.setExist(true);
+        entry.setDn("uid=john,ou=people,dc=example,dc=com");
+        entry.setLoadedAt(1234567L);
+        entry.setMemberships(Arrays.asList("sales", "staff"));
+        entry.setUser(new JahiaUserImpl("john", null, properties, "ldap", null));
+        entry.setLdapAttributes(attributes);
+
+        LDAPUserCacheEntry decoded = (LDAPUserCacheEntry) LDAPCacheCodec.decode(LDAPCacheCodec.encode(entry));
+        assertEquals("john", decoded.getName());
+        assertEquals(Boolean.TRUE, decoded.getExist());
+        assertEquals(entry.getDn(), decoded.getDn());
+        assertEquals(1234567L, decoded.getLoadedAt());
+        assertEquals(Arrays.asList("sales", "staff"), decoded.getMemberships());
+        assertEquals("john", decoded.getUser().getName());
+        assertEquals("ldap", decoded.getUser().getProviderName());
+        assertEquals(properties, decoded.getUser().getProperties());
+        assertEquals(attributes, decoded.getLdapAttributes());
+    }
+
+    @Test
+    public void testAbsentUser() throws Exception {
+        LDAPUserCacheEntry entry = new LDAPUserCacheEntry("nobody");
+        entry.setExist(false);
+
+        LDAPUserCacheEntry decoded = (LDAPUserCacheEntry) LDAPCacheCodec.decode(LDAPCacheCodec.encode(entry));
+        assertEquals("nobody", decoded.getName());
+        assertEquals(Boolean.FALSE, decoded.getExist());
+        assertNull(decoded.getDn());
+        assertNull(decoded.getUser());
+        assertNull(decoded.getMemberships());
+    }
+
+    @Test
+    public void testGroup() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("description", "Sales team");
+        LDAPGroupCacheEntry entry = new LDAPGroupCacheEntry("sales");
+        entry.setExist(true);
+        entry.setDn("cn=sales,ou=groups,dc=example,dc=com");
+        entry.setGroup(new JahiaGroupImpl("sales", null, null, properties));
+        entry.setMembers(Arrays.asList(new Member("john", Member.MemberType.USER), new Member("emea", Member.MemberType.GROUP)));
+        entry.setDynamic(true);
+        entry.setDynamicMembersURL("ldap:///ou=people,dc=example,dc=com??sub?(o=Sales)");
+
+        LDAPGroupCacheEntry decoded = (LDAPGroupCacheEntry) LDAPCacheCodec.decode(LDAPCacheCodec.encode(entry));
+        assertEquals("sales", decoded.getName());
+        assertEquals(entry.getDn(), decoded.getDn());
+        assertEquals("Sales team", decoded.getGroup().getProperty("description"));
+        assertEquals(entry.getMembers(), decoded.getMembers());
+        assertEquals(2, decoded.getMemberCount());
+        assertTrue(decoded.isDynamic());
+        assertEquals(entry.getDynamicMembersURL(), decoded.getDynamicMembersURL());
+    }
+
+    @Test
+    public void testGroupWithoutMembers() throws Exception {
+        LDAPGroupCacheEntry entry = new LDAPGroupCacheEntry("empty");
+        entry.setExist(true);
+
+        LDAPGroupCacheEntry decoded = (LDAPGroupCacheEntry) LDAPCacheCodec.decode(LDAPCacheCodec.encode(entry));
+        assertNull(decoded.getMembers());
+        assertFalse(decoded.isDynamic());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidData() throws Exception {
+        LDAPCacheCodec.decode(new byte[]{42, 0, 0});
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import net.sf.ehcache.CacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.PROVIDER_KEY;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.getUserDn;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.group;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.newCacheManager;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the cache managers of two cluster nodes sharing their entries through an {@link LDAPInMemorySharedCache}
+ */
+public class LDAPCacheManagerClusterTest {
+
+    private CacheManager cacheManager1;
+    private CacheManager cacheManager2;
+    private LDAPCacheManager node1;
+    private LDAPCacheManager node2;
+
+    @Before
+    public void setUp() {
+        LDAPInMemorySharedCache sharedCache = new LDAPInMemorySharedCache();
+        cacheManager1 = newCacheManager("node1");
+        cacheManager2 = newCacheManager("node2");
+        node1 = newNode(cacheManager1, sharedCache);
+        node2 = newNode(cacheManager2, sharedCache.newNode());
+    }
+
+    @After
+    public void tearDown() {
+        cacheManager1.shutdown();
+        cacheManager2.shutdown();
+    }
+
+    @Test
+    public void testEntrySharedWithOtherNode() {
+        node1.cacheUser(PROVIDER_KEY, user("john"));
+
+        LDAPUserCacheEntry entry = node2.getUserCacheEntryByName(PROVIDER_KEY, "john");
+        assertNotNull(entry);
+        assertEquals(getUserDn("john"), entry.getDn());
+        assertNotNull(node2.getUserCacheEntryByDn(PROVIDER_KEY, getUserDn("john")));
+    }
+
+    @Test
+    public void testClearRemovesNameAndDn() {
+        node1.cacheUser(PROVIDER_KEY, user("john"));
+        node1.clearUserCacheEntryByName(PROVIDER_KEY, "john");
+
+        assertNull(node2.getUserCacheEntryByName(PROVIDER_KEY, "john"));
+        assertNull(node2.getUserCacheEntryByDn(PROVIDER_KEY, getUserDn("john")));
+    }
+
+    @Test
+    public void testClearRemovesDnOfEntryNotCachedLocally() {
+        node1.cacheUser(PROVIDER_KEY, user("john"));
+        node2.clearUserCacheEntryByName(PROVIDER_KEY, "john");
+
+        assertNull(node1.getUserCacheEntryByName(PROVIDER_KEY, "john"));
+        assertNull(node1.getUserCacheEntryByDn(PROVIDER_KEY, getUserDn("john")));
+    }
+
+    @Test
+    public void testPeerUpdateDoesNotNotifyRemoval() {
+        final AtomicInteger removed = new AtomicInteger();
+        node2.addListener(PROVIDER_KEY, new LDAPCacheListener() {
+            @Override
+            public void groupRemoved(LDAPGroupCacheEntry groupCacheEntry) {
+                removed.incrementAndGet();
+            }
+
+            @Override
+            public void cacheCleared() {
+            }
+        });
+        node2.cacheGroup(PROVIDER_KEY, group("editors", "Editors"));
+        node1.cacheGroup(PROVIDER_KEY, group("editors", "Editors and reviewers"));
+
+        assertEquals(0, removed.get());
+        LDAPGroupCacheEntry entry = node2.getGroupCacheEntryName(PROVIDER_KEY, "editors");
+        assertEquals("Editors and reviewers", entry.getGroup().getProperty("description"));
+
+        node2.clearGroupCacheEntryByName(PROVIDER_KEY, "editors");
+        assertEquals(1, removed.get());
+    }
+
+    @Test
+    public void testPeerChangeDoesNotCreateRegions() {
+        node1.setClustered("other", true);
+        node1.cacheUser("other", user("john"));
+        node1.clearUserCacheEntryByName("other", "john");
+        cacheManager1.getCache(LDAPCacheManager.LDAP_USER_CACHE + ".other").removeAll();
+
+        assertFalse(cacheManager2.cacheExists(LDAPCacheManager.LDAP_USER_CACHE + ".other"));
+        assertFalse(cacheManager2.cacheExists(LDAPCacheManager.LDAP_GROUP_CACHE + ".other"));
+    }
+
+    @Test
+    public void testFlushPropagated() {
+        node1.cacheUser(PROVIDER_KEY, user("john"));
+        assertNotNull(node2.getUserCacheEntryByName(PROVIDER_KEY, "john"));
+
+        // flush of the region, e.g. from the cache administration
+        cacheManager1.getCache(LDAPCacheManager.LDAP_USER_CACHE + "." + PROVIDER_KEY).removeAll();
+        assertNull(node2.getUserCacheEntryByName(PROVIDER_KEY, "john"));
+    }
+
+    @Test
+    public void testProviderFlushKeepsSharedEntries() {
+        node1.cacheUser(PROVIDER_KEY, user("john"));
+        assertNotNull(node2.getUserCacheEntryByName(PROVIDER_KEY, "john"));
+
+        // restart of the provider with the same configuration
+        node1.flushCaches(PROVIDER_KEY, false);
+        assertNotNull(node2.getUserCacheEntryByName(PROVIDER_KEY, "john"));
+        assertNotNull(node1.getUserCacheEntryByName(PROVIDER_KEY, "john"));
+    }
+
+    @Test
+    public void testConfigChangeClearsOnlyProviderSharedEntries() {
+        node1.setClustered("other", true);
+        node2.setClustered("other", true);
+        node1.cacheUser(PROVIDER_KEY, user("john"));
+        node1.cacheUser("other", user("john"));
+        assertNotNull(node2.getUserCacheEntryByName(PROVIDER_KEY, "john"));
+        assertNotNull(node2.getUserCacheEntryByName("other", "john"));
+
+        node1.flushCaches(PROVIDER_KEY, true);
+        assertNull(node2.getUserCacheEntryByName(PROVIDER_KEY, "john"));
+        assertNotNull(node2.getUserCacheEntryByName("other", "john"));
+    }
+
+    private static LDAPCacheManager newNode(CacheManager cacheManager, LDAPSharedCache sharedCache) {
+        LDAPCacheManager ldapCacheManager = new LDAPCacheManager();
+        ldapCacheManager.initialize(cacheManager);
+        ldapCacheManager.setSharedCache(sharedCache);
+        ldapCacheManager.setClustered(PROVIDER_KEY, true);
+        return ldapCacheManager;
+    }
+}
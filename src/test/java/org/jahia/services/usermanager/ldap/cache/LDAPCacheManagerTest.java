@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import net.sf.ehcache.CacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.getGroupDn;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.getUserDn;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.group;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.newCacheManager;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LDAPCacheManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CacheManager cacheManager;
+    private LDAPCacheManager ldapCacheManager;
+
+    @Before
+    public void setUp() {
+        cacheManager = newCacheManager("local");
+        ldapCacheManager = new LDAPCacheManager();
+        ldapCacheManager.initialize(cacheManager);
+    }
+
+    @After
+    public void tearDown() {
+        cacheManager.shutdown();
+    }
+
+    @Test
+    public void testFlushOnlyProviderRegions() {
+        ldapCacheManager.cacheUser("ldap.a", user("john"));
+        ldapCacheManager.cacheGroup("ldap.a", group("sales", "Sales"));
+        ldapCacheManager.cacheUser("ldap.b", user("john"));
+        ldapCacheManager.cacheGroup("ldap.b", group("sales", "Sales"));
+
+        ldapCacheManager.flushCaches("ldap.a", false);
+
+        assertNull(ldapCacheManager.getUserCacheEntryByName("ldap.a", "john"));
+        assertNull(ldapCacheManager.getGroupCacheEntryName("ldap.a", "sales"));
+        assertNotNull(ldapCacheManager.getUserCacheEntryByName("ldap.b", "john"));
+        assertNotNull(ldapCacheManager.getGroupCacheEntryName("ldap.b", "sales"));
+    }
+
+    @Test
+    public void testFlushDoesNotCreateRegions() {
+        ldapCacheManager.flushCaches("ldap.a", false);
+        assertNull(cacheManager.getCache(LDAPCacheManager.LDAP_USER_CACHE + ".ldap.a"));
+        assertNull(cacheManager.getCache(LDAPCacheManager.LDAP_GROUP_CACHE + ".ldap.a"));
+    }
+
+    @Test
+    public void testExpiredGroupNotified() throws Exception {
+        List<String> removed = listenRemovedGroups("ldap");
+        ldapCacheManager.configureCaches("ldap", 0, 0, 1);
+        ldapCacheManager.cacheGroup("ldap", group("sales", "Sales"));
+
+        Thread.sleep(1100);
+        ldapCacheManager.evictExpiredGroups("ldap");
+        assertEquals(1, removed.size());
+        assertEquals("sales", removed.get(0));
+        assertNull(ldapCacheManager.getGroupCacheEntryName("ldap", "sales"));
+    }
+
+    @Test
+    public void testEvictedGroupNotified() {
+        List<String> removed = listenRemovedGroups("ldap");
+        ldapCacheManager.configureCaches("ldap", 1, 0, 0);
+        ldapCacheManager.cacheGroup("ldap", group("sales", "Sales"));
+        ldapCacheManager.cacheGroup("ldap", group("support", "Support"));
+
+        assertEquals(1, removed.size());
+        assertNull(ldapCacheManager.getGroupCacheEntryName("ldap", removed.get(0)));
+    }
+
+    @Test
+    public void testSnapshotRestoredAfterFlush() throws Exception {
+        ldapCacheManager.openSnapshot("ldap", folder.getRoot(), "hash");
+        ldapCacheManager.cacheUser("ldap", user("john"));
+        ldapCacheManager.cacheGroup("ldap", group("sales", "Sales"));
+
+        // reconfiguration: the snapshot is written, the regions flushed, then the snapshot is read again
+        ldapCacheManager.closeSnapshot("ldap");
+        ldapCacheManager.flushCaches("ldap", false);
+        List<LDAPAbstractCacheEntry> restored = ldapCacheManager.openSnapshot("ldap", folder.getRoot(), "hash");
+
+        assertEquals(2, restored.size());
+        assertNotNull(ldapCacheManager.getUserCacheEntryByName("ldap", "john"));
+        assertNotNull(ldapCacheManager.getGroupCacheEntryName("ldap", "sales"));
+    }
+
+    @Test
+    public void testSnapshotOfOtherConfigurationNotRestored() throws Exception {
+        ldapCacheManager.openSnapshot("ldap", folder.getRoot(), "hash");
+        ldapCacheManager.cacheUser("ldap", user("john"));
+        ldapCacheManager.closeSnapshot("ldap");
+        ldapCacheManager.flushCaches("ldap", false);
+
+        assertEquals(0, ldapCacheManager.openSnapshot("ldap", folder.getRoot(), "other").size());
+        assertNull(ldapCacheManager.getUserCacheEntryByName("ldap", "john"));
+    }
+
+    @Test
+    public void testProviderFlushKeepsSecondLevel() {
+        ldapCacheManager.openSecondLevelCache("ldap", folder.getRoot(), 1, "hash");
+        ldapCacheManager.cacheUser("ldap", user("john"));
+
+        ldapCacheManager.flushCaches("ldap", false);
+        assertNotNull(ldapCacheManager.getUserCacheEntryByName("ldap", "john"));
+
+        // explicit flush, e.g. from the cache administration
+        cacheManager.getCache(LDAPCacheManager.LDAP_USER_CACHE + ".ldap").removeAll();
+        assertNull(ldapCacheManager.getUserCacheEntryByName("ldap", "john"));
+        ldapCacheManager.closeSecondLevelCache("ldap");
+    }
+
+    @Test
+    public void testSecondLevelKeptAcrossRestarts() {
+        ldapCacheManager.openSecondLevelCache("ldap", folder.getRoot(), 1, "hash");
+        ldapCacheManager.cacheUser("ldap", user("john"));
+        ldapCacheManager.closeSecondLevelCache("ldap");
+        ldapCacheManager.flushCaches("ldap", false);
+
+        ldapCacheManager.openSecondLevelCache("ldap", folder.getRoot(), 1, "hash");
+        assertNotNull(ldapCacheManager.getUserCacheEntryByName("ldap", "john"));
+        ldapCacheManager.flushCaches("ldap", false);
+        ldapCacheManager.closeSecondLevelCache("ldap");
+
+        ldapCacheManager.openSecondLevelCache("ldap", folder.getRoot(), 1, "other");
+        assertNull(ldapCacheManager.getUserCacheEntryByName("ldap", "john"));
+        ldapCacheManager.closeSecondLevelCache("ldap");
+    }
+
+    @Test
+    public void testEntryCachedOnceUnderItsDn() {
+        ldapCacheManager.cacheUser("ldap", user("john"));
+        ldapCacheManager.cacheGroups("ldap", Arrays.asList(group("sales", "Sales"), group("support", "Support")));
+
+        assertEquals(1, cacheManager.getCache(LDAPCacheManager.LDAP_USER_CACHE + ".ldap").getSize());
+        assertEquals(2, cacheManager.getCache(LDAPCacheManager.LDAP_GROUP_CACHE + ".ldap").getSize());
+        assertEquals("john", ldapCacheManager.getUserCacheEntryByDn("ldap", getUserDn("john")).getName());
+        assertEquals(getUserDn("john"), ldapCacheManager.getUserCacheEntryByName("ldap", "john").getDn());
+        assertEquals("sales", ldapCacheManager.getGroupCacheEntryByDn("ldap", getGroupDn("sales")).getName());
+
+        ldapCacheManager.clearUserCacheEntryByName("ldap", "john");
+        assertNull(ldapCacheManager.getUserCacheEntryByName("ldap", "john"));
+        assertNull(ldapCacheManager.getUserCacheEntryByDn("ldap", getUserDn("john")));
+    }
+
+    @Test
+    public void testNameFollowsEvictions() {
+        ldapCacheManager.configureCaches("ldap", 1, 0, 0);
+        ldapCacheManager.cacheUser("ldap", user("john"));
+        ldapCacheManager.cacheUser("ldap", user("jane"));
+
+        assertEquals(1, cacheManager.getCache(LDAPCacheManager.LDAP_USER_CACHE + ".ldap").getSize());
+        assertNull(ldapCacheManager.getUserCacheEntryByName("ldap", "john"));
+        assertNull(ldapCacheManager.getUserCacheEntryByDn("ldap", getUserDn("john")));
+        assertNotNull(ldapCacheManager.getUserCacheEntryByName("ldap", "jane"));
+    }
+
+    @Test
+    public void testNameMovedToAnotherDn() {
+        ldapCacheManager.cacheUser("ldap", user("john"));
+        LDAPUserCacheEntry moved = user("john");
+        moved.setDn("uid=john,ou=staff,dc=example,dc=com");
+        ldapCacheManager.cacheUser("ldap", moved);
+
+        assertEquals(1, cacheManager.getCache(LDAPCacheManager.LDAP_USER_CACHE + ".ldap").getSize());
+        assertNull(ldapCacheManager.getUserCacheEntryByDn("ldap", getUserDn("john")));
+        assertEquals(moved.getDn(), ldapCacheManager.getUserCacheEntryByName("ldap", "john").getDn());
+    }
+
+    @Test
+    public void testNonExistingEntryReplaced() {
+        LDAPGroupCacheEntry absent = new LDAPGroupCacheEntry("sales");
+        absent.setExist(false);
+        ldapCacheManager.cacheGroup("ldap", absent);
+        assertFalse(ldapCacheManager.getGroupCacheEntryName("ldap", "sales").getExist());
+
+        ldapCacheManager.cacheGroup("ldap", group("sales", "Sales"));
+        assertEquals(1, cacheManager.getCache(LDAPCacheManager.LDAP_GROUP_CACHE + ".ldap").getSize());
+        assertTrue(ldapCacheManager.getGroupCacheEntryName("ldap", "sales").getExist());
+    }
+
+    private List<String> listenRemovedGroups(String providerKey) {
+        final List<String> removed = new ArrayList<>();
+        ldapCacheManager.addListener(providerKey, new LDAPCacheListener() {
+            @Override
+            public void groupRemoved(LDAPGroupCacheEntry groupCacheEntry) {
+                removed.add(groupCacheEntry.getName());
+            }
+
+            @Override
+            public void cacheCleared() {
+            }
+        });
+        return removed;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import org.jahia.modules.external.users.Member;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.group;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class LDAPCacheStringsTest {
+
+    @Test
+    public void testIntern() {
+        String name = new String("group-a");
+        assertSame(LDAPCacheStrings.intern("group-a"), LDAPCacheStrings.intern(name));
+        assertNull(LDAPCacheStrings.intern(null));
+    }
+
+    @Test
+    public void testArrays() {
+        assertNull(LDAPCacheStrings.toArray((List<String>) null));
+        assertNull(LDAPCacheStrings.asList(null));
+        assertEquals(0, LDAPCacheStrings.toArray(Collections.<String>emptyList()).length);
+
+        List<String> values = Arrays.asList("group-a", new String("group-b"));
+        String[] array = LDAPCacheStrings.toArray(values);
+        assertSame(LDAPCacheStrings.intern("group-b"), array[1]);
+        assertEquals(values, LDAPCacheStrings.asList(array));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testListIsReadOnly() {
+        LDAPCacheStrings.asList(new String[]{"group-a"}).add("group-b");
+    }
+
+    @Test
+    public void testProperties() {
+        assertNull(LDAPCacheStrings.toArray((Properties) null));
+        assertNull(LDAPCacheStrings.toProperties(null));
+
+        Properties properties = new Properties();
+        properties.setProperty("j:firstName", "John");
+        properties.setProperty("j:email", "john@example.com");
+        String[] array = LDAPCacheStrings.toArray(properties);
+        assertEquals(4, array.length);
+        assertEquals(properties, LDAPCacheStrings.toProperties(array));
+    }
+
+    @Test
+    public void testUserEntry() {
+        LDAPUserCacheEntry first = user("user1");
+        LDAPUserCacheEntry second = user("user2");
+        assertEquals("user1", first.getUser().getName());
+        assertEquals("user1", first.getUser().getProperty("j:lastName"));
+        // a new user each time, built from the compact form
+        assertNotSame(first.getUser(), first.getUser());
+
+        Map<String, List<String>> ldapAttributes = new HashMap<>();
+        ldapAttributes.put("objectclass", Arrays.asList("top", "inetOrgPerson"));
+        ldapAttributes.put("departmentnumber", Collections.singletonList("42"));
+        first.setLdapAttributes(ldapAttributes);
+        second.setLdapAttributes(new HashMap<>(ldapAttributes));
+        assertEquals(ldapAttributes, first.getLdapAttributes());
+        assertSame(first.getLdapAttributes().get("objectclass").get(1), second.getLdapAttributes().get("objectclass").get(1));
+
+        first.setUser(null);
+        assertNull(first.getUser());
+    }
+
+    @Test
+    public void testGroupEntry() {
+        LDAPGroupCacheEntry entry = group("group-a", "Group A");
+        assertEquals(-1, entry.getMemberCount());
+        assertNull(entry.getMembers());
+        assertEquals("Group A", entry.getGroup().getProperty("description"));
+
+        List<Member> members = new ArrayList<>();
+        members.add(new Member("user1", Member.MemberType.USER));
+        members.add(new Member("group-b", Member.MemberType.GROUP));
+        members.add(new Member("user2", Member.MemberType.USER));
+        entry.setMembers(members);
+        assertEquals(3, entry.getMemberCount());
+        assertEquals(members, entry.getMembers());
+
+        entry.setMembers(Collections.<Member>emptyList());
+        assertEquals(0, entry.getMemberCount());
+        assertEquals(Collections.<Member>emptyList(), entry.getMembers());
+    }
+
+    @Test
+    public void testSerializedEntry() throws Exception {
+        LDAPGroupCacheEntry entry = group("group-a", "Group A");
+        entry.setMembers(Arrays.asList(new Member("user1", Member.MemberType.USER), new Member("group-b", Member.MemberType.GROUP)));
+        entry.setMemberships(Collections.singletonList("group-c"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(entry);
+        out.close();
+        LDAPGroupCacheEntry copy = (LDAPGroupCacheEntry) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(entry.getMembers(), copy.getMembers());
+        assertEquals(entry.getMemberships(), copy.getMemberships());
+        assertEquals(entry.getGroup().getName(), copy.getGroup().getName());
+        assertEquals(entry.getGroup().getProperties(), copy.getGroup().getProperties());
+        assertEquals(entry.getLoadedAt(), copy.getLoadedAt());
+    }
+}
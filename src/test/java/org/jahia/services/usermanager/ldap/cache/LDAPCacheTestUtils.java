@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import org.jahia.services.usermanager.JahiaGroupImpl;
+import org.jahia.services.usermanager.JahiaUserImpl;
+
+import java.util.Properties;
+
+/**
+ * Cache entries and cache managers shared by the cache tests
+ */
+public final class LDAPCacheTestUtils {
+
+    public static final String PROVIDER_KEY = "ldap";
+
+    private LDAPCacheTestUtils() {
+    }
+
+    /**
+     * @return a new Ehcache manager, which must be shut down by the test
+     */
+    public static CacheManager newCacheManager(String name) {
+        Configuration configuration = new Configuration();
+        configuration.setName("ldap-test-" + name + "-" + System.nanoTime());
+        configuration.setUpdateCheck(false);
+        configuration.defaultCache(new CacheConfiguration("default", 0));
+        return CacheManager.newInstance(configuration);
+    }
+
+    public static String getUserDn(String name) {
+        return "uid=" + name + ",ou=people,dc=example,dc=com";
+    }
+
+    public static String getGroupDn(String name) {
+        return "cn=" + name + ",ou=groups,dc=example,dc=com";
+    }
+
+    /**
+     * @return the entry of an existing user, whose last name is its name
+     */
+    public static LDAPUserCacheEntry user(String name) {
+        Properties properties = new Properties();
+        properties.setProperty("j:lastName", name);
+        LDAPUserCacheEntry entry = new LDAPUserCacheEntry(name);
+        entry.setExist(true);
+        entry.setDn(getUserDn(name));
+        entry.setUser(new JahiaUserImpl(name, null, properties, PROVIDER_KEY, null));
+        return entry;
+    }
+
+    /**
+     * @return the entry of an existing group
+     */
+    public static LDAPGroupCacheEntry group(String name, String description) {
+        Properties properties = new Properties();
+        properties.setProperty("description", description);
+        LDAPGroupCacheEntry entry = new LDAPGroupCacheEntry(name);
+        entry.setExist(true);
+        entry.setDn(getGroupDn(name));
+        entry.setGroup(new JahiaGroupImpl(name, null, null, properties));
+        return entry;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory {@link LDAPSharedCache}, standing in for a distributed cache when several cache managers run in the same
+ * JVM: each node of the simulated cluster is an instance returned by {@link #newNode()}, and the changes made through
+ * one node are notified to the listeners of the other ones.
+ */
+public class LDAPInMemorySharedCache implements LDAPSharedCache {
+
+    private final ConcurrentMap<String, ConcurrentMap<String, StoredValue>> regions;
+    private final List<LDAPInMemorySharedCache> nodes;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public LDAPInMemorySharedCache() {
+        regions = new ConcurrentHashMap<>();
+        nodes = new CopyOnWriteArrayList<>();
+        nodes.add(this);
+    }
+
+    private LDAPInMemorySharedCache(LDAPInMemorySharedCache cluster) {
+        regions = cluster.regions;
+        nodes = cluster.nodes;
+        nodes.add(this);
+    }
+
+    /**
+     * @return a new node sharing the entries of this one
+     */
+    public LDAPInMemorySharedCache newNode() {
+        return new LDAPInMemorySharedCache(this);
+    }
+
+    @Override
+    public byte[] get(String region, String key) {
+        StoredValue value = getRegion(region).get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.expiresAt > 0 && value.expiresAt < System.currentTimeMillis()) {
+            getRegion(region).remove(key, value);
+            return null;
+        }
+        return value.data;
+    }
+
+    @Override
+    public void put(String region, String key, byte[] value, int timeToLive) {
+        getRegion(region).put(key, new StoredValue(value, timeToLive > 0 ? System.currentTimeMillis() + timeToLive * 1000L : 0));
+        for (LDAPInMemorySharedCache node : nodes) {
+            if (node != this) {
+                for (Listener listener : node.listeners) {
+                    listener.invalidated(region, key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove(String region, String key) {
+        getRegion(region).remove(key);
+        for (LDAPInMemorySharedCache node : nodes) {
+            if (node != this) {
+                for (Listener listener : node.listeners) {
+                    listener.invalidated(region, key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear(String region) {
+        getRegion(region).clear();
+        for (LDAPInMemorySharedCache node : nodes) {
+            if (node != this) {
+                for (Listener listener : node.listeners) {
+                    listener.cleared(region);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private ConcurrentMap<String, StoredValue> getRegion(String region) {
+        ConcurrentMap<String, StoredValue> values = regions.get(region);
+        if (values == null) {
+            values = new ConcurrentHashMap<>();
+            ConcurrentMap<String, StoredValue> existing = regions.putIfAbsent(region, values);
+            if (existing != null) {
+                values = existing;
+            }
+        }
+        return values;
+    }
+
+    private static final class StoredValue {
+        private final byte[] data;
+        private final long expiresAt;
+
+        private StoredValue(byte[] data, long expiresAt) {
+            this.data = data;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.getUserDn;
+import static org.jahia.services.usermanager.ldap.cache.LDAPCacheTestUtils.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class LDAPMappedCacheStoreTest {
+
+    private static final String HASH = "hash";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        LDAPMappedCacheStore store = new LDAPMappedCacheStore(new File(folder.getRoot(), "users.cache"), 64 * 1024, 0, HASH);
+        try {
+            store.put("john", getUserDn("john"), user("john"));
+            assertEquals("john", store.get("john").getName());
+            assertEquals("john", store.get(getUserDn("john")).getName());
+            assertEquals(2, store.size());
+
+            store.remove("john");
+            assertNull(store.get("john"));
+            assertNull(store.get(getUserDn("john")));
+            assertEquals(0, store.size());
+            assertNull(store.get("jane"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testRemoveByDn() throws Exception {
+        LDAPMappedCacheStore store = new LDAPMappedCacheStore(new File(folder.getRoot(), "users.cache"), 64 * 1024, 0, HASH);
+        try {
+            store.put("john", getUserDn("john"), user("john"));
+            store.remove(getUserDn("john"));
+            assertNull(store.get("john"));
+            assertNull(store.get(getUserDn("john")));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testRemoveKeepsKeyOfNewerEntry() throws Exception {
+        File file = new File(folder.getRoot(), "users.cache");
+        LDAPMappedCacheStore store = new LDAPMappedCacheStore(file, 64 * 1024, 0, HASH);
+        store.put("john", getUserDn("john"), user("john"));
+        // renamed entry, the old name still points to the previous record
+        LDAPUserCacheEntry renamed = user("johnny");
+        renamed.setDn(getUserDn("john"));
+        store.put("johnny", getUserDn("john"), renamed);
+        store.remove("john");
+        assertEquals("johnny", store.get(getUserDn("john")).getName());
+        store.close();
+
+        store = new LDAPMappedCacheStore(file, 64 * 1024, 0, HASH);
+        try {
+            assertNull(store.get("john"));
+            assertEquals("johnny", store.get("johnny").getName());
+            assertEquals("johnny", store.get(getUserDn("john")).getName());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        LDAPMappedCacheStore store = new LDAPMappedCacheStore(new File(folder.getRoot(), "users.cache"), 64 * 1024, 0, HASH);
+        try {
+            store.put("john", getUserDn("john"), user("john"));
+            LDAPUserCacheEntry renamed = user("johnny");
+            renamed.setDn(getUserDn("john"));
+            store.put("johnny", getUserDn("john"), renamed);
+            assertEquals("johnny", store.get(getUserDn("john")).getName());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        File file = new File(folder.getRoot(), "users.cache");
+        LDAPMappedCacheStore store = new LDAPMappedCacheStore(file, 64 * 1024, 0, HASH);
+        store.put("john", getUserDn("john"), user("john"));
+        store.put("jane", getUserDn("jane"), user("jane"));
+        store.remove("jane");
+        store.close();
+
+        store = new LDAPMappedCacheStore(file, 64 * 1024, 0, HASH);
+        try {
+            assertEquals("john", store.get("john").getName());
+            assertNull(store.get("jane"));
+            assertNull(store.get(getUserDn("jane")));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReopenWithOtherConfiguration() throws Exception {
+        File file = new File(folder.getRoot(), "users.cache");
+        LDAPMappedCacheStore store = new LDAPMappedCacheStore(file, 64 * 1024, 0, HASH);
+        store.put("john", getUserDn("john"), user("john"));
+        store.close();
+        assertNull(store.get("john"));
+
+        store = new LDAPMappedCacheStore(file, 64 * 1024, 0, "other");
+        try {
+            assertEquals(0, store.size());
+            assertNull(store.get("john"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        LDAPMappedCacheStore store = new LDAPMappedCacheStore(new File(folder.getRoot(), "users.cache"), 64 * 1024, 50, HASH);
+        try {
+            store.put("john", getUserDn("john"), user("john"));
+            assertNotNull(store.get("john"));
+            Thread.sleep(100);
+            assertNull(store.get("john"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        LDAPMappedCacheStore store = new LDAPMappedCacheStore(new File(folder.getRoot(), "users.cache"), 16 * 1024, 0, HASH);
+        try {
+            // rewriting the same entries many times fills the file with dead records
+            for (int i = 0; i < 500; i++) {
+                store.put("user" + (i % 10), getUserDn("user" + (i % 10)), user("user" + (i % 10)));
+            }
+            assertEquals(20, store.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("user" + i, store.get("user" + i).getName());
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        File file = new File(folder.getRoot(), "users.cache");
+        LDAPMappedCacheStore store = new LDAPMappedCacheStore(file, 64 * 1024, 0, HASH);
+        store.put("john", getUserDn("john"), user("john"));
+        store.clear();
+        assertNull(store.get("john"));
+        store.close();
+
+        store = new LDAPMappedCacheStore(file, 64 * 1024, 0, HASH);
+        try {
+            assertEquals(0, store.size());
+        } finally {
+            store.close();
+        }
+    }
+}
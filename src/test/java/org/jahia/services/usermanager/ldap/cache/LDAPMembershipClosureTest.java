@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import org.jahia.modules.external.users.Member;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LDAPMembershipClosureTest {
+
+    private final Map<String, List<String>> hierarchy = new HashMap<>();
+    private final List<String> resolved = new ArrayList<>();
+    private final LDAPMembershipClosure.ParentResolver resolver = new LDAPMembershipClosure.ParentResolver() {
+        @Override
+        public List<String> getParents(String groupName) {
+            resolved.add(groupName);
+            return hierarchy.get(groupName);
+        }
+    };
+
+    @Test
+    public void testChain() {
+        parents("a", "b");
+        parents("b", "c");
+        parents("c");
+        LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+
+        assertEquals(set("b", "c"), closure.getAncestors("a", resolver));
+        assertEquals(Arrays.asList("a", "b", "c"), resolved);
+
+        // memoized for every group of the traversal
+        resolved.clear();
+        assertEquals(set("c"), closure.getAncestors("b", resolver));
+        assertEquals(set("b", "c"), closure.getAncestors("a", resolver));
+        assertEquals(Collections.emptyList(), resolved);
+    }
+
+    @Test
+    public void testDiamondResolvedOnce() {
+        parents("a", "b", "c");
+        parents("b", "d");
+        parents("c", "d");
+        parents("d");
+        LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+
+        assertEquals(set("b", "c", "d"), closure.getAncestors("a", resolver));
+        assertEquals(4, resolved.size());
+        assertEquals(0, closure.getCycleCount());
+    }
+
+    @Test
+    public void testCycle() {
+        parents("a", "b");
+        parents("b", "c");
+        parents("c", "a", "d");
+        parents("d");
+        LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+
+        assertEquals(set("b", "c", "d"), closure.getAncestors("a", resolver));
+        assertEquals(set("a", "c", "d"), closure.getAncestors("b", resolver));
+        assertEquals(set("a", "b", "d"), closure.getAncestors("c", resolver));
+        assertEquals(4, resolved.size());
+        assertEquals(1, closure.getCycleCount());
+    }
+
+    @Test
+    public void testCycleReportedOnce() {
+        parents("a", "b");
+        parents("b", "a");
+        LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+
+        assertEquals(set("b"), closure.getAncestors("a", resolver));
+        closure.clear();
+        assertEquals(set("b"), closure.getAncestors("a", resolver));
+        assertEquals(1, closure.getCycleCount());
+    }
+
+    @Test
+    public void testSelfMembership() {
+        parents("a", "a", "b");
+        parents("b");
+        LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+
+        assertEquals(set("b"), closure.getAncestors("a", resolver));
+        assertEquals(1, closure.getCycleCount());
+    }
+
+    @Test
+    public void testMissingGroup() {
+        parents("a", "missing");
+        LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+
+        assertEquals(set("missing"), closure.getAncestors("a", resolver));
+        assertEquals(set(), closure.getAncestors("missing", resolver));
+    }
+
+    @Test
+    public void testExpand() {
+        parents("a", "b");
+        parents("b");
+        parents("x");
+        LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+
+        assertEquals(Arrays.asList("a", "x", "b"), closure.expand(Arrays.asList("a", "x"), resolver));
+    }
+
+    @Test
+    public void testMemberships() {
+        LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+        Member user = new Member("john", Member.MemberType.USER);
+        Member group = new Member("a", Member.MemberType.GROUP);
+        assertNull(closure.get(user));
+
+        closure.put(user, Arrays.asList("a", "b"));
+        closure.put(group, Arrays.asList("a", "b"));
+        assertEquals(Arrays.asList("a", "b"), closure.get(user));
+        // a group is not its own member
+        assertEquals(Collections.singletonList("b"), closure.get(group));
+
+        closure.invalidate(user);
+        assertNull(closure.get(user));
+        assertEquals(Collections.singletonList("b"), closure.get(group));
+    }
+
+    @Test
+    public void testInvalidateGroup() {
+        parents("a", "b");
+        parents("b", "c");
+        parents("c");
+        parents("x");
+        LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+        Member user = new Member("john", Member.MemberType.USER);
+        closure.put(user, Arrays.asList("a", "b", "c"));
+        closure.getAncestors("a", resolver);
+        closure.getAncestors("x", resolver);
+
+        parents("b");
+        closure.invalidate(new Member("b", Member.MemberType.GROUP));
+        assertNull(closure.get(user));
+
+        resolved.clear();
+        assertEquals(set("b"), closure.getAncestors("a", resolver));
+        assertEquals(set(), closure.getAncestors("x", resolver));
+        assertEquals(Arrays.asList("a", "b"), resolved);
+    }
+
+    @Test
+    public void testInvalidationDuringTraversal() {
+        final LDAPMembershipClosure closure = new LDAPMembershipClosure(100, 0);
+        parents("b");
+        LDAPMembershipClosure.ParentResolver invalidatingResolver = new LDAPMembershipClosure.ParentResolver() {
+            @Override
+            public List<String> getParents(String groupName) {
+                resolved.add(groupName);
+                if (groupName.equals("a")) {
+                    closure.invalidate(new Member("b", Member.MemberType.GROUP));
+                    return Collections.singletonList("b");
+                }
+                return hierarchy.get(groupName);
+            }
+        };
+
+        assertEquals(set("b"), closure.getAncestors("a", invalidatingResolver));
+        // not cached, it may be outdated
+        assertEquals(0, closure.getSize());
+    }
+
+    private void parents(String groupName, String... parents) {
+        hierarchy.put(groupName, Arrays.asList(parents));
+    }
+
+    private static HashSet<String> set(String... groups) {
+        return new HashSet<>(Arrays.asList(groups));
+    }
+}
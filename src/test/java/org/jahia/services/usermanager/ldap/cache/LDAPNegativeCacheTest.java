@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LDAPNegativeCacheTest {
+
+    @Test
+    public void testAbsentName() {
+        LDAPNegativeCache negativeCache = new LDAPNegativeCache(false, 100, 60);
+        assertNull(negativeCache.getAbsentEntry("john", false));
+
+        negativeCache.addAbsent("John");
+        LDAPAbstractCacheEntry entry = negativeCache.getAbsentEntry("JOHN", false);
+        assertNotNull(entry);
+        assertTrue(entry instanceof LDAPUserCacheEntry);
+        assertFalse(entry.getExist());
+        assertEquals("JOHN", entry.getName());
+
+        negativeCache.addKnown("john");
+        assertNull(negativeCache.getAbsentEntry("john", false));
+    }
+
+    @Test
+    public void testAbsentNamesNotKeptWithoutTimeToLive() {
+        LDAPNegativeCache negativeCache = new LDAPNegativeCache(true, 100, 0);
+        negativeCache.addAbsent("admins");
+        assertNull(negativeCache.getAbsentEntry("admins", true));
+        assertEquals(0, negativeCache.getAbsentCount());
+    }
+
+    @Test
+    public void testPurgeWhenFull() {
+        LDAPNegativeCache negativeCache = new LDAPNegativeCache(false, 10, 60);
+        for (int i = 0; i < 25; i++) {
+            negativeCache.addAbsent("user" + i);
+        }
+        assertTrue(negativeCache.getAbsentCount() <= 10);
+        assertNotNull(negativeCache.getAbsentEntry("user24", false));
+    }
+
+    @Test
+    public void testKnownNamesFilter() {
+        LDAPNegativeCache negativeCache = new LDAPNegativeCache(true, 100, 60);
+        LDAPNegativeCache.KnownNames knownNames = negativeCache.newKnownNames();
+        knownNames.add("Admins");
+        // cached while the filter is built
+        negativeCache.addKnown("editors");
+        assertEquals(0, negativeCache.getKnownNamesBuiltAt());
+        negativeCache.setKnownNames(knownNames);
+        assertTrue(negativeCache.getKnownNamesBuiltAt() > 0);
+
+        assertNull(negativeCache.getAbsentEntry("admins", true));
+        assertNull(negativeCache.getAbsentEntry("editors", true));
+        LDAPAbstractCacheEntry entry = negativeCache.getAbsentEntry("reviewers", true);
+        assertNotNull(entry);
+        assertTrue(entry instanceof LDAPGroupCacheEntry);
+        // possibly created since the filter was built
+        assertNull(negativeCache.getAbsentEntry("reviewers", false));
+
+        negativeCache.addKnown("reviewers");
+        assertNull(negativeCache.getAbsentEntry("reviewers", true));
+    }
+
+    @Test
+    public void testClear() {
+        LDAPNegativeCache negativeCache = new LDAPNegativeCache(false, 100, 60);
+        negativeCache.setKnownNames(negativeCache.newKnownNames());
+        negativeCache.addAbsent("john");
+        negativeCache.clear();
+        assertEquals(0, negativeCache.getAbsentCount());
+        assertEquals(0, negativeCache.getKnownNamesBuiltAt());
+        assertNull(negativeCache.getAbsentEntry("jane", true));
+    }
+}
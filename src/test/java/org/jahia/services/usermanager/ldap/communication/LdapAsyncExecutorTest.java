@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LdapAsyncExecutorTest {
+
+    private LdapAsyncExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.stop();
+        }
+    }
+
+    @Test
+    public void testTaskRunsWithCallerPriority() throws Exception {
+        executor = new LdapAsyncExecutor("ldap", 1, 1, false);
+        LdapPriority previous = LdapPriority.set(LdapPriority.LOGIN);
+        CompletableFuture<LdapPriority> future;
+        try {
+            future = executor.submit(new Callable<LdapPriority>() {
+                @Override
+                public LdapPriority call() {
+                    return LdapPriority.current();
+                }
+            });
+        } finally {
+            LdapPriority.set(previous);
+        }
+        assertEquals(LdapPriority.LOGIN, future.get(5, TimeUnit.SECONDS));
+        assertFalse(executor.isVirtual());
+    }
+
+    @Test
+    public void testTaskErrorCompletesFuture() throws Exception {
+        executor = new LdapAsyncExecutor("ldap", 1, 1, false);
+        CompletableFuture<String> future = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new IllegalStateException("LDAP server unavailable");
+            }
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The error of the task should complete the future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testSaturatedExecutorRejectsTasks() throws Exception {
+        executor = new LdapAsyncExecutor("ldap", 1, 1, false);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<String> blocking = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                running.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "done";
+            }
+        };
+        CompletableFuture<String> first = executor.submit(blocking);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> queued = executor.submit(blocking);
+        assertEquals(1, executor.getActiveCount());
+        assertEquals(1, executor.getQueuedCount());
+
+        CompletableFuture<String> rejected = executor.submit(blocking);
+        assertTrue(rejected.isCompletedExceptionally());
+        assertEquals(1, executor.getRejectedCount());
+
+        release.countDown();
+        assertEquals("done", first.get(5, TimeUnit.SECONDS));
+        assertEquals("done", queued.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testStopCompletesQueuedTasks() throws Exception {
+        executor = new LdapAsyncExecutor("ldap", 1, 1, false);
+        final CountDownLatch running = new CountDownLatch(1);
+        Callable<String> blocking = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                running.countDown();
+                new CountDownLatch(1).await(5, TimeUnit.SECONDS);
+                return "done";
+            }
+        };
+        executor.submit(blocking);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> queued = executor.submit(blocking);
+
+        executor.stop();
+        try {
+            queued.get(5, TimeUnit.SECONDS);
+            fail("The queued task should be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
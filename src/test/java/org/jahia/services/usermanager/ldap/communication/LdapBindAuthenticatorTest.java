@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.naming.Context;
+import java.util.Hashtable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LdapBindAuthenticatorTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String USER_DN = "uid=user1," + BASE_DN;
+    private static final String PASSWORD = "password";
+
+    private InMemoryDirectoryServer server;
+    private LdapBindAuthenticator authenticator;
+
+    @Before
+    public void setUp() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+        config.setAccessLogHandler(null);
+        server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "example")));
+        server.add(new Entry(USER_DN, new Attribute("objectClass", "top", "person"), new Attribute("uid", "user1"),
+                new Attribute("userPassword", PASSWORD)));
+        server.startListening();
+
+        Hashtable<String, Object> environment = new Hashtable<>();
+        environment.put(Context.PROVIDER_URL, "ldap://localhost:" + server.getListenPort());
+        environment.put(Context.SECURITY_AUTHENTICATION, "simple");
+        authenticator = new LdapBindAuthenticator(environment, 2, false);
+    }
+
+    @After
+    public void tearDown() {
+        authenticator.stop();
+        server.shutDown(true);
+    }
+
+    @Test
+    public void testAuthenticate() throws Exception {
+        assertTrue(authenticator.authenticate(USER_DN, PASSWORD));
+        assertFalse(authenticator.authenticate(USER_DN, "wrong"));
+        // an empty password would be an anonymous bind
+        assertFalse(authenticator.authenticate(USER_DN, ""));
+        assertFalse(authenticator.authenticate(USER_DN, null));
+    }
+
+    @Test
+    public void testConnectionReused() throws Exception {
+        assertTrue(authenticator.authenticate(USER_DN, PASSWORD));
+        assertEquals(1, authenticator.getIdleCount());
+        assertFalse(authenticator.authenticate(USER_DN, "wrong"));
+        assertTrue(authenticator.authenticate(USER_DN, PASSWORD));
+        assertEquals(1, authenticator.getIdleCount());
+    }
+
+    @Test
+    public void testRetriedAfterConnectionDropped() throws Exception {
+        assertTrue(authenticator.authenticate(USER_DN, PASSWORD));
+        server.closeAllConnections(true);
+
+        assertTrue(authenticator.authenticate(USER_DN, PASSWORD));
+        assertEquals(1, authenticator.getIdleCount());
+    }
+
+    @Test
+    public void testStopClosesIdleConnections() throws Exception {
+        assertTrue(authenticator.authenticate(USER_DN, PASSWORD));
+        authenticator.stop();
+        assertEquals(0, authenticator.getIdleCount());
+        // still works, without keeping the connection
+        assertTrue(authenticator.authenticate(USER_DN, PASSWORD));
+        assertEquals(0, authenticator.getIdleCount());
+    }
+}
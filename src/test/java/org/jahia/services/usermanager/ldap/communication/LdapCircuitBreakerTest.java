@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LdapCircuitBreakerTest {
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final AtomicBoolean available = new AtomicBoolean();
+    private final BlockingQueue<LdapCircuitBreaker.State> states = new ArrayBlockingQueue<>(10);
+    private LdapCircuitBreaker breaker;
+
+    @After
+    public void tearDown() {
+        if (breaker != null) {
+            breaker.stop();
+        }
+    }
+
+    @Test
+    public void testStaysClosedBelowMinimumCalls() {
+        breaker = newBreaker(10, 0);
+        for (int i = 0; i < 9; i++) {
+            breaker.recordError(0, communicationError());
+        }
+        assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testOpensOnFailureRate() throws Exception {
+        breaker = newBreaker(10, 0);
+        for (int i = 0; i < 5; i++) {
+            breaker.recordSuccess(0);
+        }
+        for (int i = 0; i < 5; i++) {
+            breaker.recordError(0, communicationError());
+        }
+        assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(LdapCircuitBreaker.State.OPEN, states.poll());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getRejectedCount());
+        assertEquals(1, breaker.getOpenCount());
+        assertTrue(breaker.getRemainingOpenTime() > 0);
+    }
+
+    @Test
+    public void testAnswersOfTheServerAreNotFailures() {
+        breaker = newBreaker(10, 0);
+        for (int i = 0; i < 20; i++) {
+            breaker.recordError(0, new org.springframework.ldap.NameNotFoundException(new javax.naming.NameNotFoundException("no such object")));
+        }
+        assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailureRate(), 0);
+    }
+
+    @Test
+    public void testOpensOnSlowCallRate() {
+        breaker = newBreaker(10, 50);
+        for (int i = 0; i < 10; i++) {
+            // not timed, e.g. bulk searches
+            breaker.recordSuccess(0);
+        }
+        for (int i = 0; i < 9; i++) {
+            breaker.recordSuccess(SLOW);
+        }
+        assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordSuccess(SLOW);
+        assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testProbeClosesCircuit() throws Exception {
+        breaker = newBreaker(1, 0);
+        breaker.recordError(0, communicationError());
+        assertEquals(LdapCircuitBreaker.State.OPEN, states.poll());
+
+        available.set(true);
+        assertEquals(LdapCircuitBreaker.State.CLOSED, states.poll(5, TimeUnit.SECONDS));
+        assertTrue(breaker.allowRequest());
+        // the window starts over
+        assertEquals(0, breaker.getFailureRate(), 0);
+    }
+
+    @Test
+    public void testFailedProbeBacksOff() throws Exception {
+        breaker = newBreaker(1, 0);
+        breaker.recordError(0, communicationError());
+        assertEquals(LdapCircuitBreaker.State.OPEN, states.poll());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (breaker.getRemainingOpenTime() <= 1000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.getRemainingOpenTime() > 1000);
+        assertEquals(2, breaker.getOpenCount());
+    }
+
+    @Test
+    public void testCommunicationErrors() {
+        assertTrue(LdapCircuitBreaker.isCommunicationError(communicationError()));
+        assertTrue(LdapCircuitBreaker.isCommunicationError(new javax.naming.TimeLimitExceededException()));
+        assertTrue(LdapCircuitBreaker.isCommunicationError(new org.springframework.ldap.TimeLimitExceededException(
+                new javax.naming.TimeLimitExceededException())));
+        assertFalse(LdapCircuitBreaker.isCommunicationError(new javax.naming.NamingException("timed out")));
+        assertTrue(LdapCircuitBreaker.isCommunicationError(new RuntimeException(new java.net.SocketTimeoutException())));
+        assertFalse(LdapCircuitBreaker.isCommunicationError(new javax.naming.AuthenticationException("invalid credentials")));
+        assertFalse(LdapCircuitBreaker.isCommunicationError(new IllegalStateException()));
+    }
+
+    private LdapCircuitBreaker newBreaker(int minimumCalls, int slowCallRateThreshold) {
+        return new LdapCircuitBreaker("ldap", 60, minimumCalls, 50, 500, slowCallRateThreshold, 1, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return available.get();
+            }
+        }, new LdapCircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(LdapCircuitBreaker.State state, String reason) {
+                states.add(state);
+            }
+        });
+    }
+
+    private static Exception communicationError() {
+        return new org.springframework.ldap.CommunicationException(new javax.naming.CommunicationException("connection refused"));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LdapCredentialCacheTest {
+
+    private static final String USER_DN = "uid=user1,dc=example,dc=com";
+
+    @Test
+    public void testMatches() {
+        LdapCredentialCache cache = new LdapCredentialCache(60, 10, 1000);
+        assertFalse(cache.matches(USER_DN, "password"));
+        cache.put(USER_DN, "password");
+        assertTrue(cache.matches(USER_DN, "password"));
+        assertFalse(cache.matches(USER_DN, "Password"));
+        assertFalse(cache.matches("uid=user2,dc=example,dc=com", "password"));
+
+        cache.invalidate(USER_DN);
+        assertFalse(cache.matches(USER_DN, "password"));
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        LdapCredentialCache cache = new LdapCredentialCache(1, 10, 1000);
+        cache.put(USER_DN, "password");
+        Thread.sleep(1100);
+        assertFalse(cache.matches(USER_DN, "password"));
+    }
+
+    @Test
+    public void testSizeBounded() {
+        LdapCredentialCache cache = new LdapCredentialCache(60, 2, 1000);
+        for (int i = 0; i < 5; i++) {
+            cache.put("uid=user" + i + ",dc=example,dc=com", "password");
+        }
+        assertTrue(cache.getSize() <= 2);
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LdapPrioritySchedulerTest {
+
+    @Test
+    public void testPermits() {
+        LdapPriorityScheduler scheduler = new LdapPriorityScheduler(2, 0, 0, 0);
+        scheduler.acquire(LdapPriority.INTERACTIVE);
+        scheduler.acquire(LdapPriority.LOGIN);
+        assertEquals(0, scheduler.getAvailablePermits());
+        scheduler.release(LdapPriority.LOGIN);
+        assertEquals(1, scheduler.getAvailablePermits());
+        assertEquals(1, scheduler.getStatus().get(LdapPriority.INTERACTIVE).getActive());
+    }
+
+    @Test
+    public void testGrantedByPriority() throws Exception {
+        final LdapPriorityScheduler scheduler = new LdapPriorityScheduler(1, 1, 0, 0);
+        scheduler.acquire(LdapPriority.INTERACTIVE);
+
+        final BlockingQueue<LdapPriority> granted = new LinkedBlockingQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (LdapPriority priority : new LdapPriority[]{LdapPriority.PRELOAD, LdapPriority.REFRESH, LdapPriority.INTERACTIVE, LdapPriority.LOGIN}) {
+            threads.add(startWaiter(scheduler, priority, granted));
+        }
+
+        List<LdapPriority> order = new ArrayList<>();
+        scheduler.release(LdapPriority.INTERACTIVE);
+        for (int i = 0; i < 4; i++) {
+            LdapPriority priority = granted.poll(5, TimeUnit.SECONDS);
+            order.add(priority);
+            scheduler.release(priority);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Arrays.asList(LdapPriority.LOGIN, LdapPriority.INTERACTIVE, LdapPriority.REFRESH, LdapPriority.PRELOAD), order);
+        assertEquals(1, scheduler.getAvailablePermits());
+    }
+
+    @Test
+    public void testBackgroundOperationsLimited() throws Exception {
+        LdapPriorityScheduler scheduler = new LdapPriorityScheduler(4, 1, 0, 0);
+        scheduler.acquire(LdapPriority.PRELOAD);
+        BlockingQueue<LdapPriority> granted = new LinkedBlockingQueue<>();
+        Thread thread = startWaiter(scheduler, LdapPriority.PRELOAD, granted);
+        assertEquals(3, scheduler.getAvailablePermits());
+
+        // the user-facing operations still run
+        scheduler.acquire(LdapPriority.INTERACTIVE);
+        scheduler.acquire(LdapPriority.LOGIN);
+        assertTrue(granted.isEmpty());
+
+        scheduler.release(LdapPriority.PRELOAD);
+        assertEquals(LdapPriority.PRELOAD, granted.poll(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    @Test
+    public void testShedding() throws Exception {
+        LdapPriorityScheduler scheduler = new LdapPriorityScheduler(1, 0, 1, 0);
+        scheduler.acquire(LdapPriority.INTERACTIVE);
+        BlockingQueue<LdapPriority> granted = new LinkedBlockingQueue<>();
+        Thread thread = startWaiter(scheduler, LdapPriority.INTERACTIVE, granted);
+        try {
+            scheduler.acquire(LdapPriority.INTERACTIVE);
+            fail("the queue is full");
+        } catch (LdapOverloadException e) {
+            assertEquals(1, scheduler.getStatus().get(LdapPriority.INTERACTIVE).getShed());
+        }
+        // the other classes have their own queue
+        startWaiter(scheduler, LdapPriority.LOGIN, granted);
+
+        scheduler.release(LdapPriority.INTERACTIVE);
+        assertEquals(LdapPriority.LOGIN, granted.poll(5, TimeUnit.SECONDS));
+        scheduler.release(LdapPriority.LOGIN);
+        assertEquals(LdapPriority.INTERACTIVE, granted.poll(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    @Test
+    public void testInterruptedWaiterLeavesQueue() throws Exception {
+        final LdapPriorityScheduler scheduler = new LdapPriorityScheduler(1, 0, 0, 0);
+        scheduler.acquire(LdapPriority.INTERACTIVE);
+        final List<Object> result = Collections.synchronizedList(new ArrayList<>());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(LdapPriority.INTERACTIVE);
+                    result.add("granted");
+                } catch (LdapOverloadException e) {
+                    result.add(Thread.currentThread().isInterrupted());
+                }
+            }
+        });
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getStatus().get(LdapPriority.INTERACTIVE).getQueued() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        thread.interrupt();
+        thread.join(5000);
+
+        assertEquals(Collections.<Object>singletonList(Boolean.TRUE), result);
+        assertEquals(0, scheduler.getStatus().get(LdapPriority.INTERACTIVE).getQueued());
+        // the permit is not handed over to the interrupted operation
+        scheduler.release(LdapPriority.INTERACTIVE);
+        assertEquals(1, scheduler.getAvailablePermits());
+    }
+
+    /**
+     * Starts a thread waiting for a permit, returns once it is queued
+     */
+    private static Thread startWaiter(final LdapPriorityScheduler scheduler, final LdapPriority priority,
+                                      final BlockingQueue<LdapPriority> granted) throws InterruptedException {
+        int queued = scheduler.getStatus().get(priority).getQueued();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.acquire(priority);
+                granted.add(priority);
+            }
+        });
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getStatus().get(priority).getQueued() == queued && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return thread;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LdapRequestCoalescerTest {
+
+    private final LdapRequestCoalescer coalescer = new LdapRequestCoalescer();
+
+    @Test
+    public void testConcurrentRequestsShareOneLoad() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "user1";
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<String> first = executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return coalescer.execute("user/user1", loader);
+                }
+            });
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Future<String> second = executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return coalescer.execute("user/user1", loader);
+                }
+            });
+            while (coalescer.getCoalescedCount() < 1) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+            assertEquals(1, coalescer.getCoalescedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCompletedRequestIsLoadedAgain() {
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<Integer> loader = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return loads.incrementAndGet();
+            }
+        };
+        assertEquals(Integer.valueOf(1), coalescer.execute("user/user1", loader));
+        assertEquals(Integer.valueOf(2), coalescer.execute("user/user1", loader));
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testReentrantRequestIsLoaded() {
+        String result = coalescer.execute("group/group-a", new Callable<String>() {
+            @Override
+            public String call() {
+                return coalescer.execute("group/group-a", new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "inner";
+                    }
+                }) + "-outer";
+            }
+        });
+        assertEquals("inner-outer", result);
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testErrorIsThrownToTheCaller() {
+        final IllegalStateException error = new IllegalStateException("server down");
+        try {
+            coalescer.execute("user/user1", new Callable<String>() {
+                @Override
+                public String call() {
+                    throw error;
+                }
+            });
+            fail("The error of the loader should be thrown");
+        } catch (IllegalStateException e) {
+            assertSame(error, e);
+        }
+        // the failed request does not stay in flight
+        assertEquals("user1", coalescer.execute("user/user1", new Callable<String>() {
+            @Override
+            public String call() {
+                return "user1";
+            }
+        }));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.jahia.services.usermanager.ldap.metrics.LdapMetrics;
+import org.junit.Test;
+import org.springframework.ldap.core.LdapTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LdapTemplateWrapperTest {
+
+    private final LdapMetrics metrics = new LdapMetrics();
+    private final LdapTemplateWrapper ldapTemplateWrapper = new LdapTemplateWrapper(null, metrics);
+
+    @Test
+    public void testConcurrentOperationsBounded() throws Exception {
+        ldapTemplateWrapper.setScheduler(new LdapPriorityScheduler(2, 0, 0, 0));
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        start.await(5, TimeUnit.SECONDS);
+                        return ldapTemplateWrapper.execute(LdapMetrics.GET_USER, new TestCallback() {
+                            @Override
+                            public String doInLdap(LdapTemplate ldapTemplate) {
+                                int current = running.incrementAndGet();
+                                synchronized (maxRunning) {
+                                    maxRunning.set(Math.max(maxRunning.get(), current));
+                                }
+                                try {
+                                    Thread.sleep(20);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                                running.decrementAndGet();
+                                return "user1";
+                            }
+                        });
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<String> result : results) {
+                assertEquals("user1", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(maxRunning.get() <= 2);
+        assertEquals(2, ldapTemplateWrapper.getScheduler().getAvailablePermits());
+        assertEquals(6, metrics.getQueueWait().getCount());
+    }
+
+    @Test
+    public void testNestedOperationUsesOuterPermit() {
+        ldapTemplateWrapper.setScheduler(new LdapPriorityScheduler(1, 0, 0, 0));
+        String result = ldapTemplateWrapper.execute(LdapMetrics.GET_GROUP, new TestCallback() {
+            @Override
+            public String doInLdap(LdapTemplate ldapTemplate) {
+                return ldapTemplateWrapper.execute(LdapMetrics.GET_USER, new TestCallback() {
+                    @Override
+                    public String doInLdap(LdapTemplate ldapTemplate) {
+                        return "user1";
+                    }
+                });
+            }
+        });
+        assertEquals("user1", result);
+        assertEquals(1, ldapTemplateWrapper.getScheduler().getAvailablePermits());
+        assertEquals(1, metrics.getQueueWait().getCount());
+    }
+
+    @Test
+    public void testBulkOperationsUseBulkPermits() {
+        ldapTemplateWrapper.setScheduler(new LdapPriorityScheduler(1, 0, 0, 0));
+        ldapTemplateWrapper.setBulkScheduler(new LdapPriorityScheduler(1, 0, 0, 0));
+        final int[] available = new int[2];
+        ldapTemplateWrapper.execute(LdapMetrics.SEARCH_USERS, new TestCallback() {
+            @Override
+            public String doInLdap(LdapTemplate ldapTemplate) {
+                available[0] = ldapTemplateWrapper.getScheduler().getAvailablePermits();
+                available[1] = ldapTemplateWrapper.getBulkScheduler().getAvailablePermits();
+                return null;
+            }
+        });
+        assertEquals(1, available[0]);
+        assertEquals(0, available[1]);
+        assertTrue(LdapTemplateWrapper.isBulkOperation(LdapMetrics.MEMBERSHIP));
+        assertFalse(LdapTemplateWrapper.isBulkOperation(LdapMetrics.GET_USER));
+    }
+
+    @Test
+    public void testBulkOperationsUseBulkTemplate() {
+        final LdapTemplate lookupTemplate = new LdapTemplate();
+        final LdapTemplate bulkTemplate = new LdapTemplate();
+        ldapTemplateWrapper.setLdapTemplate(lookupTemplate);
+        final List<LdapTemplate> templates = new ArrayList<>();
+        TestCallback callback = new TestCallback() {
+            @Override
+            public String doInLdap(LdapTemplate ldapTemplate) {
+                templates.add(ldapTemplate);
+                return null;
+            }
+        };
+        // without their own connections, the bulk searches use the lookup template
+        ldapTemplateWrapper.execute(LdapMetrics.MEMBERS, callback);
+        ldapTemplateWrapper.setBulkLdapTemplate(bulkTemplate);
+        ldapTemplateWrapper.execute(LdapMetrics.MEMBERS, callback);
+        ldapTemplateWrapper.execute(LdapMetrics.GET_GROUP, callback);
+
+        assertSame(lookupTemplate, templates.get(0));
+        assertSame(bulkTemplate, templates.get(1));
+        assertSame(lookupTemplate, templates.get(2));
+    }
+
+    @Test
+    public void testLookupsNotQueuedBehindBulkSearches() throws Exception {
+        ldapTemplateWrapper.setScheduler(new LdapPriorityScheduler(1, 0, 0, 0));
+        ldapTemplateWrapper.setBulkScheduler(new LdapPriorityScheduler(1, 0, 0, 0));
+        final CountDownLatch searching = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> search = executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return ldapTemplateWrapper.execute(LdapMetrics.MEMBERSHIP, new TestCallback() {
+                        @Override
+                        public String doInLdap(LdapTemplate ldapTemplate) {
+                            searching.countDown();
+                            try {
+                                release.await(5, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return "group-a";
+                        }
+                    });
+                }
+            });
+            assertTrue(searching.await(5, TimeUnit.SECONDS));
+            assertEquals(0, ldapTemplateWrapper.getBulkScheduler().getAvailablePermits());
+
+            // the bulk permits are all taken, the lookup runs anyway
+            assertEquals("user1", ldapTemplateWrapper.execute(LdapMetrics.GET_USER, new TestCallback() {
+                @Override
+                public String doInLdap(LdapTemplate ldapTemplate) {
+                    return "user1";
+                }
+            }));
+            release.countDown();
+            assertEquals("group-a", search.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPermitReleasedOnError() {
+        ldapTemplateWrapper.setScheduler(new LdapPriorityScheduler(1, 0, 0, 0));
+        for (int i = 0; i < 3; i++) {
+            ldapTemplateWrapper.execute(LdapMetrics.GET_USER, new TestCallback() {
+                @Override
+                public String doInLdap(LdapTemplate ldapTemplate) {
+                    throw new IllegalStateException("LDAP server unavailable");
+                }
+            });
+        }
+        assertEquals(1, ldapTemplateWrapper.getScheduler().getAvailablePermits());
+        assertEquals(3, metrics.getOperation(LdapMetrics.GET_USER).getErrorCount());
+    }
+
+    @Test
+    public void testAsyncExecutorFallsBackWithoutVirtualThreads() throws Exception {
+        LdapAsyncExecutor executor = new LdapAsyncExecutor("ldap", 1, 1, true);
+        try {
+            assertEquals(LdapVirtualThreads.isSupported(), executor.isVirtual());
+            Boolean virtual = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return LdapVirtualThreads.isVirtual(Thread.currentThread());
+                }
+            }).get(5, TimeUnit.SECONDS);
+            assertEquals(executor.isVirtual(), virtual);
+        } finally {
+            executor.stop();
+        }
+    }
+
+    private static class TestCallback implements LdapTemplateCallback<String> {
+
+        @Override
+        public String doInLdap(LdapTemplate ldapTemplate) {
+            return null;
+        }
+
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public String onError(Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.communication;
+
+import org.junit.Test;
+import org.springframework.ldap.AuthenticationException;
+import org.springframework.ldap.CommunicationException;
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.directory.DirContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoadBalancingContextSourceTest {
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        FakeContextSource a = new FakeContextSource();
+        FakeContextSource b = new FakeContextSource();
+        LoadBalancingContextSource source = newSource(LoadBalancingContextSource.ROUND_ROBIN, a, b);
+        for (int i = 0; i < 4; i++) {
+            source.getReadOnlyContext().close();
+        }
+        assertEquals(2, a.opened);
+        assertEquals(2, b.opened);
+        for (LdapServer server : source.getServers()) {
+            assertEquals(2, server.getRequestCount());
+            assertEquals(0, server.getOutstandingRequests());
+        }
+    }
+
+    @Test
+    public void testLeastRequests() throws Exception {
+        FakeContextSource a = new FakeContextSource();
+        FakeContextSource b = new FakeContextSource();
+        LoadBalancingContextSource source = newSource(LoadBalancingContextSource.LEAST_REQUESTS, a, b);
+        DirContext held = source.getReadOnlyContext();
+        // the server of the context still open is avoided
+        for (int i = 0; i < 3; i++) {
+            source.getReadOnlyContext().close();
+        }
+        assertEquals(4, a.opened + b.opened);
+        assertEquals(3, Math.max(a.opened, b.opened));
+        held.close();
+        held.close();
+        assertEquals(0, source.getServers().get(0).getOutstandingRequests());
+        assertEquals(0, source.getServers().get(1).getOutstandingRequests());
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        FakeContextSource a = new FakeContextSource();
+        FakeContextSource b = new FakeContextSource();
+        a.down = true;
+        LoadBalancingContextSource source = newSource(LoadBalancingContextSource.ROUND_ROBIN, a, b);
+        for (int i = 0; i < 4; i++) {
+            source.getReadOnlyContext().close();
+        }
+        assertEquals(4, b.opened);
+        LdapServer serverA = source.getServers().get(0);
+        assertEquals(1, serverA.getFailureCount());
+        assertTrue(serverA.isEjected());
+        assertEquals(0, serverA.getOutstandingRequests());
+        assertFalse(source.getServers().get(1).isEjected());
+    }
+
+    @Test
+    public void testAllServersDown() {
+        FakeContextSource a = new FakeContextSource();
+        FakeContextSource b = new FakeContextSource();
+        a.down = true;
+        b.down = true;
+        LoadBalancingContextSource source = newSource(LoadBalancingContextSource.ROUND_ROBIN, a, b);
+        try {
+            source.getReadOnlyContext();
+            fail();
+        } catch (CommunicationException e) {
+            // expected
+        }
+        assertEquals(1, a.attempts);
+        assertEquals(1, b.attempts);
+    }
+
+    @Test
+    public void testNoServer() {
+        LoadBalancingContextSource source = newSource(LoadBalancingContextSource.ROUND_ROBIN);
+        try {
+            source.getReadOnlyContext();
+            fail();
+        } catch (CommunicationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAuthenticationErrorNotFailedOver() {
+        FakeContextSource a = new FakeContextSource();
+        FakeContextSource b = new FakeContextSource();
+        LoadBalancingContextSource source = newSource(LoadBalancingContextSource.ROUND_ROBIN, a, b);
+        try {
+            source.getContext("cn=user", "wrong");
+            fail();
+        } catch (AuthenticationException e) {
+            // expected
+        }
+        assertEquals(1, a.attempts + b.attempts);
+        for (LdapServer server : source.getServers()) {
+            assertEquals(0, server.getFailureCount());
+            assertFalse(server.isEjected());
+        }
+    }
+
+    @Test
+    public void testLatencyRecordedForOperationsNotBorrowing() throws Exception {
+        FakeContextSource a = new FakeContextSource();
+        LoadBalancingContextSource source = newSource(LoadBalancingContextSource.ROUND_ROBIN, a);
+        LdapServer server = source.getServers().get(0);
+        DirContext ctx = source.getReadOnlyContext();
+        assertEquals(0, server.getAverageLatency(), 0);
+        ctx.search("dc=example", "(objectClass=*)", null);
+        assertTrue(server.getAverageLatency() > 0);
+        ctx.close();
+
+        FakeContextSource b = new FakeContextSource();
+        source = newSource(LoadBalancingContextSource.ROUND_ROBIN, b);
+        source.getContext("cn=user", FakeContextSource.PASSWORD).close();
+        assertTrue(source.getServers().get(0).getAverageLatency() > 0);
+    }
+
+    private static LoadBalancingContextSource newSource(String strategy, FakeContextSource... contextSources) {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < contextSources.length; i++) {
+            urls.add("ldap://server" + i + ":389");
+        }
+        return new LoadBalancingContextSource(urls, Arrays.asList(contextSources), strategy, 1, 60, 0);
+    }
+
+    /**
+     * Context source of a server, opening contexts whose operations take a millisecond
+     */
+    private static class FakeContextSource implements ContextSource {
+
+        static final String PASSWORD = "password";
+
+        volatile boolean down;
+        int attempts;
+        int opened;
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            return open();
+        }
+
+        @Override
+        public DirContext getReadWriteContext() {
+            return open();
+        }
+
+        @Override
+        public DirContext getContext(String principal, String credentials) {
+            DirContext ctx = open();
+            if (!PASSWORD.equals(credentials)) {
+                opened--;
+                throw new AuthenticationException(new javax.naming.AuthenticationException("Invalid credentials"));
+            }
+            return ctx;
+        }
+
+        private DirContext open() {
+            attempts++;
+            if (down) {
+                throw new CommunicationException(new javax.naming.CommunicationException("Connection refused"));
+            }
+            opened++;
+            pause();
+            return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{DirContext.class},
+                    new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("search".equals(method.getName())) {
+                        pause();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        private static void pause() {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.filter;
+
+import org.junit.Test;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapName;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DynamicGroupFilterTest {
+
+    private static final Map<String, Collection<String>> PERSON = Collections.<String, Collection<String>>singletonMap(
+            "objectclass", Collections.singletonList("person"));
+
+    @Test
+    public void testSubtreeScope() throws NamingException {
+        DynamicGroupFilter filter = new DynamicGroupFilter("people", "ldap://ldap.example.com:389/ou=people,dc=example,dc=com??sub?(objectClass=person)");
+        assertTrue(filter.matches(new LdapName("uid=john,ou=staff,ou=people,dc=example,dc=com"), PERSON));
+        assertFalse(filter.matches(new LdapName("uid=john,ou=other,dc=example,dc=com"), PERSON));
+        assertEquals(Collections.singleton("objectclass"), filter.getAttributes());
+    }
+
+    @Test
+    public void testOneLevelScope() throws NamingException {
+        DynamicGroupFilter filter = new DynamicGroupFilter("people", "ldap:///ou=people,dc=example,dc=com??one?(objectClass=person)");
+        assertTrue(filter.matches(new LdapName("uid=john,ou=people,dc=example,dc=com"), PERSON));
+        assertFalse(filter.matches(new LdapName("uid=john,ou=staff,ou=people,dc=example,dc=com"), PERSON));
+    }
+
+    @Test
+    public void testEncodedAndUnencodedCharacters() throws NamingException {
+        DynamicGroupFilter filter = new DynamicGroupFilter("sales", "ldap:///ou=Sales%20Team,dc=example,dc=com??sub?(cn=John Smith \\28Sales\\29)");
+        Map<String, Collection<String>> attributes = Collections.<String, Collection<String>>singletonMap(
+                "cn", Collections.singletonList("John Smith (Sales)"));
+        assertTrue(filter.matches(new LdapName("uid=john,ou=Sales Team,dc=example,dc=com"), attributes));
+    }
+
+    @Test
+    public void testDefaultFilter() throws NamingException {
+        DynamicGroupFilter filter = new DynamicGroupFilter("all", "ldap:///dc=example,dc=com");
+        assertTrue(filter.matches(new LdapName("uid=john,dc=example,dc=com"), PERSON));
+    }
+
+    @Test(expected = InvalidNameException.class)
+    public void testNotAnLdapUrl() throws NamingException {
+        new DynamicGroupFilter("people", "http://example.com/ou=people,dc=example,dc=com");
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.filter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LdapFilterEvaluatorTest {
+
+    private final Map<String, Collection<String>> entry = new HashMap<>();
+
+    public LdapFilterEvaluatorTest() {
+        entry.put("objectclass", Arrays.asList("top", "person", "inetOrgPerson"));
+        entry.put("cn", Collections.singletonList("John  Smith"));
+        entry.put("mail", Collections.singletonList("John.Smith@Example.com"));
+        entry.put("manager", Collections.singletonList("uid=jdoe,ou=People,dc=example,dc=com"));
+        entry.put("uidnumber", Collections.singletonList("1042"));
+        entry.put("description", Collections.<String>emptyList());
+        entry.put("carlicense", Collections.singletonList("ABC-123"));
+    }
+
+    @Test
+    public void testEquality() {
+        assertTrue(evaluate("(cn=john smith)"));
+        assertTrue(evaluate("(objectClass=INETORGPERSON)"));
+        assertFalse(evaluate("(cn=Jane Smith)"));
+        assertTrue(evaluate("(uidNumber=01042)"));
+        assertFalse(evaluate("(description=sales)"));
+    }
+
+    @Test
+    public void testDnEquality() {
+        assertTrue(evaluate("(manager=UID=jdoe, ou=people, DC=example, DC=com)"));
+        assertFalse(evaluate("(manager=uid=jsmith,ou=people,dc=example,dc=com)"));
+        assertNull(LdapFilterEvaluator.compile("(manager=not a dn)").evaluate(entry));
+    }
+
+    @Test
+    public void testUnknownMatchingRuleEvaluatedByServer() {
+        assertNull(LdapFilterEvaluator.compile("(carLicense=abc-123)").evaluate(entry));
+        assertNull(LdapFilterEvaluator.compile("(carLicense=ABC*)").evaluate(entry));
+        // attribute not retrieved
+        assertNull(LdapFilterEvaluator.compile("(departmentNumber=42)").evaluate(entry));
+    }
+
+    @Test
+    public void testSubstring() {
+        assertTrue(evaluate("(mail=john.*@example.com)"));
+        assertTrue(evaluate("(cn=*smith)"));
+        assertTrue(evaluate("(cn=j*n*s*h)"));
+        assertFalse(evaluate("(cn=*doe*)"));
+        // the final part cannot overlap the initial one
+        assertFalse(evaluate("(uid=ab*ba)", "aba"));
+    }
+
+    @Test
+    public void testPresence() {
+        assertTrue(evaluate("(mail=*)"));
+        assertFalse(evaluate("(description=*)"));
+        assertNull(LdapFilterEvaluator.compile("(telephoneNumber=*)").evaluate(entry));
+    }
+
+    @Test
+    public void testComposite() {
+        assertTrue(evaluate("(&(objectClass=person)(cn=*smith))"));
+        assertFalse(evaluate("(&(objectClass=person)(cn=jane*))"));
+        assertTrue(evaluate("(|(cn=jane*)(mail=*@example.com))"));
+        assertFalse(evaluate("(|(cn=jane*)(mail=*@example.org))"));
+        assertTrue(evaluate("(!(cn=jane*))"));
+        assertFalse(evaluate("(!(objectClass=person))"));
+        assertTrue(evaluate("(&(objectClass=person)(!(|(cn=jane*)(description=*))))"));
+    }
+
+    @Test
+    public void testCompositeWithUndefinedChild() {
+        // false or true whatever the value of the undefined child
+        assertFalse(evaluate("(&(cn=jane*)(carLicense=abc-123))"));
+        assertTrue(evaluate("(|(cn=john*)(carLicense=abc-123))"));
+        assertNull(LdapFilterEvaluator.compile("(&(cn=john*)(carLicense=abc-123))").evaluate(entry));
+        assertNull(LdapFilterEvaluator.compile("(!(carLicense=abc-123))").evaluate(entry));
+    }
+
+    @Test
+    public void testAttributes() {
+        assertEquals(new HashSet<>(Arrays.asList("objectclass", "cn", "mail")),
+                LdapFilterEvaluator.compile("(&(objectClass=person)(|(cn=*)(!(mail=a*))))").getAttributes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFilter() {
+        LdapFilterEvaluator.compile("(&(cn=john)");
+    }
+
+    private boolean evaluate(String filter) {
+        Boolean result = LdapFilterEvaluator.compile(filter).evaluate(entry);
+        assertTrue("Filter " + filter + " not evaluated", result != null);
+        return result;
+    }
+
+    private boolean evaluate(String filter, String uid) {
+        entry.put("uid", Collections.singletonList(uid));
+        return evaluate(filter);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2002-2022 Jahia Solutions Group SA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jahia.services.usermanager.ldap.metrics;
+
+import org.jahia.services.usermanager.ldap.communication.LdapTemplateCallback;
+import org.jahia.services.usermanager.ldap.communication.LdapTemplateWrapper;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.ldap.core.LdapTemplate;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LdapMetricsTest {
+
+    private final LdapMetrics metrics = new LdapMetrics();
+
+    @After
+    public void tearDown() {
+        metrics.unregister();
+    }
+
+    @Test
+    public void testRecordOperations() {
+        metrics.recordSuccess(LdapMetrics.SEARCH_USERS, TimeUnit.MILLISECONDS.toNanos(4), Arrays.asList("user0", "user1"));
+        metrics.recordSuccess(LdapMetrics.SEARCH_USERS, TimeUnit.MILLISECONDS.toNanos(8), Arrays.asList("user0", "user1", "user2", "user3"));
+        metrics.recordSuccess(LdapMetrics.SEARCH_USERS, TimeUnit.MILLISECONDS.toNanos(30), "not a list");
+        metrics.recordError(LdapMetrics.SEARCH_USERS, TimeUnit.MILLISECONDS.toNanos(3000),
+                new org.springframework.ldap.CommunicationException(new javax.naming.CommunicationException("connection closed")));
+
+        LdapOperationMetrics searchUsers = metrics.getOperation(LdapMetrics.SEARCH_USERS);
+        assertEquals(4, searchUsers.getCount());
+        assertEquals(1, searchUsers.getErrorCount());
+        assertEquals(0, searchUsers.getTimeoutCount());
+        assertEquals(3000, searchUsers.getMaxTime(), 0.001);
+        assertEquals(3042 / 4d, searchUsers.getAverageTime(), 0.001);
+        // only the collections have a size
+        assertEquals(3, searchUsers.getAverageResultSize(), 0);
+        assertEquals(4, searchUsers.getMaxResultSize());
+
+        Map<String, Long> latencies = searchUsers.getLatencyHistogram();
+        assertEquals(Long.valueOf(1), latencies.get("<= 5 ms"));
+        assertEquals(Long.valueOf(1), latencies.get("<= 10 ms"));
+        assertEquals(Long.valueOf(1), latencies.get("<= 50 ms"));
+        assertEquals(Long.valueOf(1), latencies.get("<= 5000 ms"));
+        Map<String, Long> sizes = searchUsers.getResultSizeHistogram();
+        assertEquals(Long.valueOf(2), sizes.get("<= 10 entries"));
+
+        assertNull(metrics.getOperation(LdapMetrics.GET_USER));
+        assertEquals(1, metrics.getOperations().size());
+    }
+
+    @Test
+    public void testTemplateWrapperRecordsOperations() {
+        LdapTemplateWrapper ldapTemplateWrapper = new LdapTemplateWrapper(null, metrics);
+        ldapTemplateWrapper.execute(LdapMetrics.MEMBERSHIP, new TestCallback() {
+            @Override
+            public List<String> doInLdap(LdapTemplate ldapTemplate) {
+                return Arrays.asList("group-a", "group-b");
+            }
+        });
+        ldapTemplateWrapper.execute(LdapMetrics.MEMBERSHIP, new TestCallback() {
+            @Override
+            public List<String> doInLdap(LdapTemplate ldapTemplate) {
+                throw new org.springframework.ldap.TimeLimitExceededException(new javax.naming.TimeLimitExceededException());
+            }
+        });
+        // not recorded without an operation name
+        ldapTemplateWrapper.execute(new TestCallback());
+
+        LdapOperationMetrics membership = metrics.getOperation(LdapMetrics.MEMBERSHIP);
+        assertEquals(2, membership.getCount());
+        assertEquals(1, membership.getErrorCount());
+        assertEquals(1, membership.getTimeoutCount());
+        assertEquals(2, membership.getMaxResultSize());
+        assertEquals(1, metrics.getOperations().size());
+    }
+
+    @Test
+    public void testRecordTimeouts() {
+        metrics.recordError(LdapMetrics.GET_USER, 0, new org.springframework.ldap.TimeLimitExceededException(
+                new javax.naming.TimeLimitExceededException("time limit exceeded")));
+        metrics.recordError(LdapMetrics.GET_USER, 0, new org.springframework.ldap.CommunicationException(
+                new javax.naming.CommunicationException("read timed out")));
+        javax.naming.CommunicationException readTimeout = new javax.naming.CommunicationException("read timed out");
+        readTimeout.setRootCause(new java.net.SocketTimeoutException("Read timed out"));
+        metrics.recordError(LdapMetrics.GET_USER, 0, new org.springframework.ldap.CommunicationException(readTimeout));
+
+        LdapOperationMetrics getUser = metrics.getOperation(LdapMetrics.GET_USER);
+        assertEquals(3, getUser.getErrorCount());
+        assertEquals(2, getUser.getTimeoutCount());
+    }
+
+    @Test
+    public void testCacheAccesses() {
+        metrics.recordUserCacheAccess(true);
+        metrics.recordUserCacheAccess(true);
+        metrics.recordUserCacheAccess(true);
+        metrics.recordUserCacheAccess(false);
+        metrics.recordGroupCacheAccess(false);
+
+        assertEquals(3, metrics.getUserCacheHits());
+        assertEquals(1, metrics.getUserCacheMisses());
+        assertEquals(0.75, metrics.getUserCacheHitRatio(), 0);
+        assertEquals(0, metrics.getGroupCacheHitRatio(), 0);
+        assertEquals(1, metrics.getGroupCacheMisses());
+    }
+
+    @Test
+    public void testReset() {
+        metrics.recordSuccess(LdapMetrics.GET_GROUP, TimeUnit.MILLISECONDS.toNanos(2), null);
+        metrics.recordQueueWait(TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.recordUserCacheAccess(true);
+        metrics.reset();
+
+        assertEquals(0, metrics.getOperation(LdapMetrics.GET_GROUP).getCount());
+        assertEquals(0, metrics.getOperation(LdapMetrics.GET_GROUP).getMaxTime(), 0);
+        assertEquals(0, metrics.getQueueWait().getCount());
+        assertEquals(0, metrics.getUserCacheHits());
+        for (Long count : metrics.getOperation(LdapMetrics.GET_GROUP).getLatencyHistogram().values()) {
+            assertEquals(Long.valueOf(0), count);
+        }
+    }
+
+    @Test
+    public void testRegisterInJmx() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.jahia.modules.ldap:type=LdapMetrics,provider=" + ObjectName.quote("ldap-test"));
+        metrics.recordUserCacheAccess(true);
+        metrics.register("ldap-test");
+        assertTrue(mBeanServer.isRegistered(name));
+        assertEquals(1L, mBeanServer.getAttribute(name, "UserCacheHits"));
+
+        metrics.unregister();
+        assertFalse(mBeanServer.isRegistered(name));
+    }
+
+    private static class TestCallback implements LdapTemplateCallback<List<String>> {
+
+        @Override
+        public List<String> doInLdap(LdapTemplate ldapTemplate) {
+            return null;
+        }
+
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public List<String> onError(Exception e) {
+            return null;
+        }
+    }
+}